@@ -16,12 +16,15 @@
 
 package com.google.bitcoin.core;
 
+import com.google.bitcoin.store.BatchableBlockStore;
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.utils.ListenerRegistration;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import org.slf4j.Logger;
@@ -31,7 +34,9 @@ import javax.annotation.Nullable;
 import java.math.BigInteger;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.*;
@@ -111,6 +116,8 @@ public abstract class AbstractBlockChain {
         final Block block;
         final List<Sha256Hash> filteredTxHashes;
         final Map<Sha256Hash, Transaction> filteredTxn;
+        // Roughly how many bytes this takes up, for the cap on the orphan blocks.
+        final int size;
         OrphanBlock(Block block, @Nullable List<Sha256Hash> filteredTxHashes, @Nullable Map<Sha256Hash, Transaction> filteredTxn) {
             final boolean filtered = filteredTxHashes != null && filteredTxn != null;
             Preconditions.checkArgument((block.transactions == null && filtered)
@@ -121,11 +128,34 @@ public abstract class AbstractBlockChain {
                 this.block = block;
             this.filteredTxHashes = filteredTxHashes;
             this.filteredTxn = filteredTxn;
+            int size = this.block.transactions == null ? Block.HEADER_SIZE : this.block.getOptimalEncodingMessageSize();
+            if (filtered) {
+                size += filteredTxHashes.size() * 32;
+                for (Transaction tx : filteredTxn.values())
+                    size += tx.getMessageSize();
+            }
+            this.size = size;
         }
     }
     // Holds blocks that we have received but can't plug into the chain yet, eg because they were created whilst we
-    // were downloading the block chain.
+    // were downloading the block chain. They are also indexed by the hash of the block they build on, so that the ones
+    // a newly connected block lets us connect are found straight away. Once they take up more than maxOrphanBytes the
+    // oldest ones are dropped, we will ask for them again if they turn out to be needed.
     private final LinkedHashMap<Sha256Hash, OrphanBlock> orphanBlocks = new LinkedHashMap<Sha256Hash, OrphanBlock>();
+    private final ArrayListMultimap<Sha256Hash, OrphanBlock> orphanBlocksByPrev = ArrayListMultimap.create();
+    // Parents that are stored, but that blocks couldn't be connected to when their orphan children were last tried,
+    // or whose children weren't all tried because connecting one of them failed. They are tried again whenever a block
+    // connects, just as every orphan was before the orphans were indexed.
+    private final LinkedHashSet<Sha256Hash> orphanParentsToRetry = new LinkedHashSet<Sha256Hash>();
+    private long orphanBytes;
+    private long maxOrphanBytes = DEFAULT_MAX_ORPHAN_BYTES;
+    private long orphansConnected, orphansEvicted;
+
+    /** The default for {@link #setMaxOrphanBytes(long)}. */
+    public static final long DEFAULT_MAX_ORPHAN_BYTES = 32 * Block.MAX_BLOCK_SIZE;
+
+    // Batches of at least this many headers have their proof of work checked on several threads.
+    private static final int PARALLEL_HEADERS_THRESHOLD = 256;
 
     /** False positive estimation uses a double exponential moving average. */
     public static final double FP_ESTIMATOR_ALPHA = 0.0001;
@@ -160,7 +190,7 @@ public abstract class AbstractBlockChain {
         addListener(wallet, Threading.SAME_THREAD);
         if (wallet.getLastBlockSeenHeight() != getBestChainHeight()) {
             log.warn("Wallet/chain height mismatch: {} vs {}", wallet.getLastBlockSeenHeight(), getBestChainHeight());
-            log.warn("Hashes: {} vs {}", wallet.getLastBlockSeenHash(), getChainHead().getHeader().getHash());
+            log.warn("Hashes: {} vs {}", wallet.getLastBlockSeenHash(), getChainHead().getHash());
         }
     }
 
@@ -293,6 +323,169 @@ public abstract class AbstractBlockChain {
         }
     }
     
+    /**
+     * <p>Adds a batch of block headers, as received while catching up with the chain before the fast catchup time. This
+     * does what calling {@link #add(Block)} on each of them in turn would, but faster: the proof of work of all the
+     * headers is checked on several threads, and the ones that extend the best chain are written to the store in one
+     * go, after which the chain head is moved once. Listeners are still told about every new best block, but with one
+     * call into the executor of each listener for the whole batch.</p>
+     *
+     * <p>Headers that don't extend the best chain, such as ones on a fork or ones that don't connect yet, are handled
+     * like {@link #add(Block)} handles them. If a header turns out to be bad, the headers before it are still added
+     * before the exception is thrown.</p>
+     *
+     * @return true if all the headers could be connected to the chain, false if some were kept as orphans.
+     */
+    public boolean addHeaders(List<Block> headers) throws VerificationException, PrunedException {
+        if (shouldVerifyTransactions())
+            throw new VerificationException("Got block headers while running in full-block mode");
+        // Check the proof of work before taking the lock.
+        VerificationException[] failure = new VerificationException[1];
+        int verified = verifyHeaders(headers, failure);
+        lock.lock();
+        try {
+            int connected = connectHeaders(headers.subList(0, verified));
+            boolean allConnected = true;
+            for (Block header : headers.subList(connected, verified))
+                allConnected &= add(header, true, null, null);
+            if (failure[0] != null)
+                throw failure[0];
+            return allConnected;
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);
+        } catch (VerificationException e) {
+            try {
+                notSettingChainHead();
+            } catch (BlockStoreException e1) {
+                throw new RuntimeException(e1);
+            }
+            throw new VerificationException("Could not verify block headers", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Checks the headers, on several threads if there are many. Returns how many of them from the start are fine, and
+    // puts what is wrong with the first one that isn't into failure[0].
+    private static int verifyHeaders(final List<Block> headers, VerificationException[] failure) {
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(),
+                headers.size() / (PARALLEL_HEADERS_THRESHOLD / 4));
+        if (headers.size() < PARALLEL_HEADERS_THRESHOLD || threads < 2)
+            threads = 1;
+        final int chunk = (headers.size() + threads - 1) / threads;
+        final int[] firstBad = new int[threads];
+        final VerificationException[] failures = new VerificationException[threads];
+        Runnable[] verifiers = new Runnable[threads];
+        for (int thread = 0; thread < threads; thread++) {
+            final int index = thread;
+            verifiers[thread] = new Runnable() {
+                public void run() {
+                    int end = Math.min((index + 1) * chunk, headers.size());
+                    for (int i = index * chunk; i < end; i++) {
+                        try {
+                            headers.get(i).verifyHeader();
+                        } catch (VerificationException e) {
+                            firstBad[index] = i;
+                            failures[index] = e;
+                            return;
+                        }
+                    }
+                }
+            };
+        }
+        // The first chunk is done on this thread.
+        List<Future<?>> futures = new ArrayList<Future<?>>(threads - 1);
+        for (int thread = 1; thread < threads; thread++)
+            futures.add(Threading.THREAD_POOL.submit(verifiers[thread]));
+        verifiers[0].run();
+        for (Future<?> future : futures) {
+            try {
+                Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        for (int thread = 0; thread < threads; thread++) {
+            if (failures[thread] != null) {
+                log.error("Failed to verify block: ", failures[thread]);
+                failure[0] = failures[thread];
+                return firstBad[thread];
+            }
+        }
+        return headers.size();
+    }
+
+    // Connects the headers from the start of the list that extend the best chain one after the other, and returns how
+    // many that was. Their proof of work must have been checked already.
+    private int connectHeaders(List<Block> headers)
+            throws BlockStoreException, VerificationException, PrunedException {
+        checkState(lock.isHeldByCurrentThread());
+        List<StoredBlock> newBlocks = new ArrayList<StoredBlock>();
+        StoredBlock head = getChainHead();
+        VerificationException failure = null;
+        boolean batch = blockStore instanceof BatchableBlockStore;
+        if (batch)
+            ((BatchableBlockStore) blockStore).beginBatchWrite();
+        try {
+            for (Block header : headers) {
+                boolean hasTransactions = header.transactions != null && !header.transactions.isEmpty();
+                if (hasTransactions || !header.getPrevBlockHash().equals(head.getHash()))
+                    break;
+                try {
+                    if (!params.passesCheckpoint(head.getHeight() + 1, header.getHash()))
+                        throw new VerificationException("Block failed checkpoint lockin at " + (head.getHeight() + 1));
+                    checkDifficultyTransitions(head, header);
+                    head = addToBlockStore(head, header.transactions == null ? header : header.cloneAsHeader());
+                } catch (VerificationException e) {
+                    // Keep the headers before this one, and tell the listeners about them below.
+                    failure = e;
+                    break;
+                }
+                newBlocks.add(head);
+            }
+            if (!newBlocks.isEmpty())
+                setChainHead(head);
+            if (batch)
+                ((BatchableBlockStore) blockStore).commitBatchWrite();
+        } catch (BlockStoreException e) {
+            if (batch)
+                ((BatchableBlockStore) blockStore).abortBatchWrite();
+            throw e;
+        }
+        if (!newBlocks.isEmpty()) {
+            log.debug("Chain is now {} blocks high, running listeners", head.getHeight());
+            informListenersForNewBestBlocks(newBlocks);
+            statsBlocksAdded += newBlocks.size();
+            for (StoredBlock block : newBlocks)
+                tryConnectingOrphans(block.getHash());
+        }
+        if (failure != null)
+            throw failure;
+        return newBlocks.size();
+    }
+
+    // Tells the listeners about new best blocks that have no transactions, with one call into the executor of each.
+    private void informListenersForNewBestBlocks(final List<StoredBlock> newBlocks) throws VerificationException {
+        for (final ListenerRegistration<BlockChainListener> registration : listeners) {
+            if (registration.executor == Threading.SAME_THREAD) {
+                for (StoredBlock block : newBlocks)
+                    registration.listener.notifyNewBestBlock(block);
+            } else {
+                registration.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (StoredBlock block : newBlocks)
+                                registration.listener.notifyNewBestBlock(block);
+                        } catch (VerificationException e) {
+                            log.error("Block chain listener threw exception: ", e);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
     /**
      * Whether or not we are maintaining a set of unspent outputs and are verifying all transactions.
      * Also indicates that all calls to add() should provide a block containing transactions
@@ -339,8 +532,7 @@ public abstract class AbstractBlockChain {
                 statsLastTime = System.currentTimeMillis();
                 statsBlocksAdded = 0;
             }
-            // Quick check for duplicates to avoid an expensive check further down (in findSplit). This can happen a lot
-            // when connecting orphan transactions due to the dumb brute force algorithm we use.
+            // Quick check for duplicates to avoid an expensive check further down (in findSplit).
             if (block.equals(getChainHead().getHeader())) {
                 return true;
             }
@@ -389,7 +581,7 @@ public abstract class AbstractBlockChain {
                 // have more blocks.
                 checkState(tryConnecting, "bug in tryConnectingOrphans");
                 log.warn("Block does not connect: {} prev {}", block.getHashAsString(), block.getPrevBlockHash());
-                orphanBlocks.put(block.getHash(), new OrphanBlock(block, filteredTxHashList, filteredTxn));
+                addOrphan(new OrphanBlock(block, filteredTxHashList, filteredTxn));
                 return false;
             } else {
                 // It connects to somewhere on the chain. Not necessarily the top of the best known chain.
@@ -398,7 +590,7 @@ public abstract class AbstractBlockChain {
             }
 
             if (tryConnecting)
-                tryConnectingOrphans();
+                tryConnectingOrphans(block.getHash());
 
             statsBlocksAdded++;
             return true;
@@ -460,7 +652,7 @@ public abstract class AbstractBlockChain {
                     // that we already saw and linked into the chain previously, which isn't the chain head.
                     // Re-processing it is confusing for the wallet so just skip.
                     log.warn("Saw duplicated block in main chain at height {}: {}",
-                            newBlock.getHeight(), newBlock.getHeader().getHash());
+                            newBlock.getHeight(), newBlock.getHash());
                     return;
                 }
                 if (splitPoint == null) {
@@ -697,6 +889,15 @@ public abstract class AbstractBlockChain {
         //         \--> E -> F -> G
         //
         // findSplit will return block B. oldChainHead = D and newChainHead = G.
+        //
+        // First jump back to where both chains are the same height, then walk back both at once.
+        if (currentChainCursor.getHeight() > newChainCursor.getHeight()) {
+            currentChainCursor = currentChainCursor.getAncestor(store, newChainCursor.getHeight());
+            checkNotNull(currentChainCursor, "Attempt to follow an orphan chain");
+        } else if (newChainCursor.getHeight() > currentChainCursor.getHeight()) {
+            newChainCursor = newChainCursor.getAncestor(store, currentChainCursor.getHeight());
+            checkNotNull(newChainCursor, "Attempt to follow an orphan chain");
+        }
         while (!currentChainCursor.equals(newChainCursor)) {
             if (currentChainCursor.getHeight() > newChainCursor.getHeight()) {
                 currentChainCursor = currentChainCursor.getPrev(store);
@@ -754,40 +955,70 @@ public abstract class AbstractBlockChain {
     }
 
     /**
-     * For each block in orphanBlocks, see if we can now fit it on top of the chain and if so, do so.
+     * Connects the orphan blocks that build on the given block, which has just been connected, then the ones that build
+     * on those and so on. Orphans whose parent can't be connected to yet are tried again the next time this is called.
      */
-    private void tryConnectingOrphans() throws VerificationException, BlockStoreException, PrunedException {
+    private void tryConnectingOrphans(Sha256Hash connected) throws VerificationException, BlockStoreException, PrunedException {
         checkState(lock.isHeldByCurrentThread());
-        // For each block in our orphan list, try and fit it onto the head of the chain. If we succeed remove it
-        // from the list and keep going. If we changed the head of the list at the end of the round try again until
-        // we can't fit anything else on the top.
-        //
-        // This algorithm is kind of crappy, we should do a topo-sort then just connect them in order, but for small
-        // numbers of orphan blocks it does OK.
-        int blocksConnectedThisRound;
-        do {
-            blocksConnectedThisRound = 0;
-            Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
-            while (iter.hasNext()) {
-                OrphanBlock orphanBlock = iter.next();
-                log.debug("Trying to connect {}", orphanBlock.block.getHash());
-                // Look up the blocks previous.
-                StoredBlock prev = getStoredBlockInCurrentScope(orphanBlock.block.getPrevBlockHash());
-                if (prev == null) {
-                    // This is still an unconnected/orphan block.
-                    log.debug("  but it is not connectable right now");
-                    continue;
+        int blocksConnected = 0;
+        Deque<Sha256Hash> parents = new ArrayDeque<Sha256Hash>();
+        parents.add(connected);
+        parents.addAll(orphanParentsToRetry);
+        orphanParentsToRetry.clear();
+        try {
+            while (!parents.isEmpty()) {
+                Sha256Hash parent = parents.peek();
+                if (orphanBlocksByPrev.containsKey(parent) && getStoredBlockInCurrentScope(parent) == null) {
+                    // The parent isn't stored in a way that lets blocks connect to it, so leave its children for later.
+                    log.debug("Orphan blocks building on {} are not connectable right now", parent);
+                    orphanParentsToRetry.add(parent);
+                } else {
+                    // Copied, as connecting the blocks changes the index. An orphan is only removed once it has been
+                    // added, so one that fails to connect stays where it is.
+                    for (OrphanBlock orphanBlock : new ArrayList<OrphanBlock>(orphanBlocksByPrev.get(parent))) {
+                        log.debug("Connecting orphan block {}", orphanBlock.block.getHash());
+                        // False here ensures we don't recurse infinitely downwards when connecting huge chains.
+                        add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
+                        removeOrphan(orphanBlock);
+                        parents.add(orphanBlock.block.getHash());
+                        blocksConnected++;
+                    }
                 }
-                // Otherwise we can connect it now.
-                // False here ensures we don't recurse infinitely downwards when connecting huge chains.
-                add(orphanBlock.block, false, orphanBlock.filteredTxHashes, orphanBlock.filteredTxn);
-                iter.remove();
-                blocksConnectedThisRound++;
+                parents.poll();
             }
-            if (blocksConnectedThisRound > 0) {
-                log.info("Connected {} orphan blocks.", blocksConnectedThisRound);
+        } finally {
+            // If connecting an orphan threw, the parents that weren't done yet are tried again next time.
+            orphanParentsToRetry.addAll(parents);
+            if (blocksConnected > 0) {
+                orphansConnected += blocksConnected;
+                log.info("Connected {} orphan blocks.", blocksConnected);
             }
-        } while (blocksConnectedThisRound > 0);
+        }
+    }
+
+    private void addOrphan(OrphanBlock orphanBlock) {
+        orphanBlocks.put(orphanBlock.block.getHash(), orphanBlock);
+        orphanBlocksByPrev.put(orphanBlock.block.getPrevBlockHash(), orphanBlock);
+        orphanBytes += orphanBlock.size;
+        // Make room by dropping the oldest orphans, but never the one just added.
+        Iterator<OrphanBlock> iter = orphanBlocks.values().iterator();
+        while (orphanBytes > maxOrphanBytes) {
+            OrphanBlock eldest = iter.next();
+            if (eldest == orphanBlock)
+                break;
+            iter.remove();
+            orphanBlocksByPrev.remove(eldest.block.getPrevBlockHash(), eldest);
+            orphanBytes -= eldest.size;
+            orphansEvicted++;
+            log.info("Dropped orphan block {} as the orphan blocks take up more than {} bytes",
+                    eldest.block.getHash(), maxOrphanBytes);
+        }
+    }
+
+    private void removeOrphan(OrphanBlock orphanBlock) {
+        orphanBlocks.remove(orphanBlock.block.getHash());
+        orphanBlocksByPrev.remove(orphanBlock.block.getPrevBlockHash(), orphanBlock);
+        orphanBytes -= orphanBlock.size;
     }
 
     // February 16th 2012
@@ -819,17 +1050,14 @@ public abstract class AbstractBlockChain {
             return;
         }
 
-        // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
-        // two weeks after the initial block chain download.
+        // We need to find a block far back in the chain. The skip pointers of the stored blocks make this a handful
+        // of lookups rather than one per block.
         long now = System.currentTimeMillis();
-        StoredBlock cursor = blockStore.get(prev.getHash());
-        for (int i = 0; i < params.getInterval() - 1; i++) {
-            if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
-            }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+        StoredBlock cursor = storedPrev.getAncestor(blockStore, storedPrev.getHeight() - (params.getInterval() - 1));
+        if (cursor == null) {
+            // This should never happen. If it does, it means we are following an incorrect or busted chain.
+            throw new VerificationException(
+                    "Difficulty transition point but we did not find a way back to the genesis block.");
         }
         long elapsed = System.currentTimeMillis() - now;
         if (elapsed > 50)
@@ -955,6 +1183,69 @@ public abstract class AbstractBlockChain {
         }
     }
 
+    /** Returns the number of orphan blocks currently held. */
+    public int getOrphanCount() {
+        lock.lock();
+        try {
+            return orphanBlocks.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns roughly how many bytes the orphan blocks currently held take up. */
+    public long getOrphanBytes() {
+        lock.lock();
+        try {
+            return orphanBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many orphan blocks were connected to the chain once their parents arrived. */
+    public long getOrphansConnected() {
+        lock.lock();
+        try {
+            return orphansConnected;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many orphan blocks were dropped to keep them under {@link #getMaxOrphanBytes()}. */
+    public long getOrphansEvicted() {
+        lock.lock();
+        try {
+            return orphansEvicted;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets roughly how many bytes the orphan blocks may take up. When there are more the oldest ones are dropped, though
+     * never the one that was just received. Defaults to {@link #DEFAULT_MAX_ORPHAN_BYTES}.
+     */
+    public void setMaxOrphanBytes(long maxOrphanBytes) {
+        checkArgument(maxOrphanBytes >= 0);
+        lock.lock();
+        try {
+            this.maxOrphanBytes = maxOrphanBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxOrphanBytes() {
+        lock.lock();
+        try {
+            return maxOrphanBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Returns an estimate of when the given block will be reached, assuming a perfect 10 minute average for each
      * block. This is useful for turning transaction lock times into human readable times. Note that a height in
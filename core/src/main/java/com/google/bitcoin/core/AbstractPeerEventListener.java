@@ -19,9 +19,9 @@ package com.google.bitcoin.core;
 import java.util.List;
 
 /**
- * Convenience implementation of {@link PeerEventListener}.
+ * Convenience implementation of {@link PeerEventListener} and {@link ChainDownloadSpeedListener}.
  */
-public class AbstractPeerEventListener implements PeerEventListener {
+public class AbstractPeerEventListener implements PeerEventListener, ChainDownloadSpeedListener {
     @Override
     public void onBlocksDownloaded(Peer peer, Block block, int blocksLeft) {
     }
@@ -30,6 +30,10 @@ public class AbstractPeerEventListener implements PeerEventListener {
     public void onChainDownloadStarted(Peer peer, int blocksLeft) {
     }
 
+    @Override
+    public void onChainDownloadSpeed(Peer peer, double blocksPerSecond, double bytesPerSecond) {
+    }
+
     @Override
     public void onPeerConnected(Peer peer, int peerCount) {
     }
@@ -20,11 +20,13 @@ package com.google.bitcoin.core;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -99,6 +101,38 @@ public class BitcoinSerializer {
      * Writes message to to the output stream.
      */
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
+        byte[] header = serializeHeader(name, message, null);
+        out.write(header);
+        out.write(message);
+    }
+
+    /**
+     * Writes message to to the output stream.
+     */
+    public void serialize(Message message, OutputStream out) throws IOException {
+        serialize(getCommand(message), message.bitcoinSerialize(), out);
+    }
+
+    /**
+     * <p>Returns the header to send before the given payload, which must be what
+     * {@link Message#unsafeBitcoinSerialize()} returned for the message. Sending the header followed by that array,
+     * rather than using {@link #serialize(Message, java.io.OutputStream)}, avoids copying the payload.</p>
+     *
+     * <p>If the message keeps its serialized bytes (see {@link Message#isCached()}), the checksum is kept alongside
+     * them until the message is next changed, so sending the same message to many peers only serializes and hashes it
+     * once. Other messages are hashed on every call, as not all of them notice when they are modified.</p>
+     */
+    public byte[] serializeHeader(Message message, byte[] payload) {
+        if (!message.isCached())
+            return serializeHeader(getCommand(message), payload, null);
+        byte[] checksum = message.getChecksum();
+        byte[] header = serializeHeader(getCommand(message), payload, checksum);
+        if (checksum == null)
+            message.setChecksum(Arrays.copyOfRange(header, 4 + COMMAND_LEN + 4, header.length));
+        return header;
+    }
+
+    private byte[] serializeHeader(String name, byte[] message, @Nullable byte[] checksum) {
         byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
         uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
 
@@ -110,24 +144,21 @@ public class BitcoinSerializer {
 
         Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
 
-        byte[] hash = doubleDigest(message);
-        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
-        out.write(header);
-        out.write(message);
+        if (checksum == null)
+            checksum = doubleDigest(message);
+        System.arraycopy(checksum, 0, header, 4 + COMMAND_LEN + 4, 4);
 
         if (log.isDebugEnabled())
             log.debug("Sending {} message: {}", name, bytesToHexString(header) + bytesToHexString(message));
+        return header;
     }
 
-    /**
-     * Writes message to to the output stream.
-     */
-    public void serialize(Message message, OutputStream out) throws IOException {
+    private String getCommand(Message message) {
         String name = names.get(message.getClass());
         if (name == null) {
             throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
         }
-        serialize(name, message.bitcoinSerialize(), out);
+        return name;
     }
 
     /**
@@ -169,10 +200,15 @@ public class BitcoinSerializer {
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
         byte[] payloadBytes = new byte[header.size];
         in.get(payloadBytes, 0, header.size);
+        return deserializePayload(header, payloadBytes, doubleDigest(payloadBytes));
+    }
 
+    /**
+     * Deserializes a payload that was read in full already, given its double SHA-256 hash. The array is used by the
+     * message rather than copied, so mustn't be changed afterwards.
+     */
+    Message deserializePayload(BitcoinPacketHeader header, byte[] payloadBytes, byte[] hash) throws ProtocolException {
         // Verify the checksum.
-        byte[] hash;
-        hash = doubleDigest(payloadBytes);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -212,7 +248,7 @@ public class BitcoinSerializer {
         } else if (command.equals("tx")) {
             Transaction tx = new Transaction(params, payloadBytes, null, parseLazy, parseRetain, length);
             if (hash != null)
-                tx.setHash(new Sha256Hash(Utils.reverseBytes(hash)));
+                tx.setHash(Sha256Hash.readReversed(hash, 0));
             message = tx;
         } else if (command.equals("addr")) {
             message = new AddressMessage(params, payloadBytes, parseLazy, parseRetain, length);
@@ -18,9 +18,11 @@ package com.google.bitcoin.core;
 
 import com.google.bitcoin.script.Script;
 import com.google.bitcoin.script.ScriptBuilder;
+import com.google.bitcoin.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,9 +33,13 @@ import java.io.ObjectInputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static com.google.bitcoin.core.Utils.doubleDigest;
 import static com.google.bitcoin.core.Utils.doubleDigestTwoBuffers;
@@ -73,6 +79,11 @@ public class Block extends Message {
     /** A value for difficultyTarget (nBits) that allows half of all possible hash solutions. Used in unit testing. */
     public static final long EASIEST_DIFFICULTY_TARGET = 0x207fFFFFL;
 
+    // Merkle tree levels with at least this many hashes to calculate are split between several threads.
+    private static final int PARALLEL_MERKLE_THRESHOLD = 1024;
+    // Blocks with at least this many transactions have them parsed and hashed by several threads.
+    private static final int PARALLEL_PARSE_THRESHOLD = 256;
+
     // Fields defined as part of the protocol format.
     private long version;
     private Sha256Hash prevBlockHash;
@@ -92,6 +103,9 @@ public class Block extends Message {
 
     private transient boolean headerBytesValid;
     private transient boolean transactionBytesValid;
+
+    // The merkle tree last built from the transactions, see buildMerkleTree(). Null if it has to be built again.
+    private transient byte[][] merkleTree;
     
     // Blocks can be encoded in a way that will use more bytes than is optimal (due to VarInts having multiple encodings)
     // MAX_BLOCK_SIZE must be compared to the optimal encoding, not the actual encoding, so when parsing, we keep track
@@ -189,7 +203,7 @@ public class Block extends Message {
         difficultyTarget = readUint32();
         nonce = readUint32();
 
-        hash = new Sha256Hash(Utils.reverseBytes(Utils.doubleDigest(bytes, offset, cursor)));
+        hash = Sha256Hash.readReversed(Utils.doubleDigest(bytes, offset, cursor), 0);
 
         headerParsed = true;
         headerBytesValid = parseRetain;
@@ -210,6 +224,11 @@ public class Block extends Message {
 
         int numTransactions = (int) readVarInt();
         optimalEncodingMessageSize += VarInt.sizeOf(numTransactions);
+        // A count that can't fit in the rest of the message fails below, as it always did.
+        if (numTransactions >= PARALLEL_PARSE_THRESHOLD && numTransactions <= bytes.length - cursor) {
+            parseTransactionsInParallel(numTransactions);
+            return;
+        }
         transactions = new ArrayList<Transaction>(numTransactions);
         for (int i = 0; i < numTransactions; i++) {
             Transaction tx = new Transaction(params, bytes, cursor, this, parseLazy, parseRetain, UNKNOWN_LENGTH);
@@ -225,6 +244,58 @@ public class Block extends Message {
         transactionBytesValid = parseRetain;
     }
 
+    /**
+     * Parses the transactions the same way as parseTransactions() does, but on several threads. The boundaries
+     * between the transactions are found first, which only needs the lengths of their scripts, and then the
+     * transactions are made and hashed from their bytes in parallel.
+     */
+    private void parseTransactionsInParallel(final int numTransactions) throws ProtocolException {
+        final int[] offsets = new int[numTransactions + 1];
+        offsets[0] = cursor;
+        for (int i = 0; i < numTransactions; i++) {
+            int txLength;
+            try {
+                txLength = Transaction.calcLength(bytes, offsets[i]);
+            } catch (IndexOutOfBoundsException e) {
+                throw new ProtocolException(e);
+            }
+            // The lengths of scripts come off the wire, so the sum can be nonsense. Each transaction is checked
+            // against the length it is given below.
+            if (txLength <= 0 || txLength > bytes.length - offsets[i])
+                throw new ProtocolException("Transaction " + i + " runs past the end of the block");
+            offsets[i + 1] = offsets[i] + txLength;
+        }
+        final Transaction[] txns = new Transaction[numTransactions];
+        final AtomicReference<ProtocolException> failure = new AtomicReference<ProtocolException>();
+        runInParallel(numTransactions, PARALLEL_PARSE_THRESHOLD, new Range() {
+            void run(int from, int to) {
+                for (int i = from; i < to && failure.get() == null; i++) {
+                    int txOffset = offsets[i], txLength = offsets[i + 1] - offsets[i];
+                    try {
+                        Transaction tx = new Transaction(params, bytes, txOffset, Block.this, parseLazy, parseRetain,
+                                txLength);
+                        if (!parseLazy && tx.getMessageSize() != txLength)
+                            throw new ProtocolException("Transaction " + i + " isn't the length it says it is");
+                        // The hash is of the bytes as they are, so there's no need to serialize the transaction again.
+                        tx.setHash(Sha256Hash.readReversed(Utils.doubleDigest(bytes, txOffset, txLength), 0));
+                        tx.getConfidence().setSource(TransactionConfidence.Source.NETWORK);
+                        txns[i] = tx;
+                    } catch (ProtocolException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }
+        });
+        if (failure.get() != null)
+            throw failure.get();
+        transactions = new ArrayList<Transaction>(Arrays.asList(txns));
+        for (Transaction tx : txns)
+            optimalEncodingMessageSize += tx.getOptimalEncodingMessageSize();
+        cursor = offsets[numTransactions];
+        transactionsParsed = true;
+        transactionBytesValid = parseRetain;
+    }
+
     void parse() throws ProtocolException {
         parseHeader();
         parseTransactions();
@@ -379,8 +450,8 @@ public class Block extends Message {
         // fall back to manual write
         maybeParseHeader();
         Utils.uint32ToByteStreamLE(version, stream);
-        stream.write(Utils.reverseBytes(prevBlockHash.getBytes()));
-        stream.write(Utils.reverseBytes(getMerkleRoot().getBytes()));
+        stream.write(prevBlockHash.getReversedBytes());
+        stream.write(getMerkleRoot().getReversedBytes());
         Utils.uint32ToByteStreamLE(time, stream);
         Utils.uint32ToByteStreamLE(difficultyTarget, stream);
         Utils.uint32ToByteStreamLE(nonce, stream);
@@ -493,6 +564,7 @@ public class Block extends Message {
         unCacheHeader();
         // Clear merkleRoot last as it may end up being parsed during unCacheHeader().
         merkleRoot = null;
+        merkleTree = null;
     }
 
     /**
@@ -503,7 +575,7 @@ public class Block extends Message {
         try {
             ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
             writeHeader(bos);
-            return new Sha256Hash(Utils.reverseBytes(doubleDigest(bos.toByteArray())));
+            return Sha256Hash.readReversed(doubleDigest(bos.toByteArray()), 0);
         } catch (IOException e) {
             throw new RuntimeException(e); // Cannot happen.
         }
@@ -562,6 +634,23 @@ public class Block extends Message {
         return block;
     }
 
+    /**
+     * Returns a header-only block made from the 80 bytes of a header in the wire format, whose hash is already known.
+     * Used by {@link StoredBlock}, which keeps the header in this form and so needn't hash it again.
+     */
+    static Block headerFromBytes(NetworkParameters params, byte[] header, Sha256Hash hash) {
+        Block block = new Block(params);
+        block.version = Utils.readUint32(header, 0);
+        block.prevBlockHash = Sha256Hash.readReversed(header, 4);
+        block.merkleRoot = Sha256Hash.readReversed(header, 36);
+        block.time = Utils.readUint32(header, 68);
+        block.difficultyTarget = Utils.readUint32(header, 72);
+        block.nonce = Utils.readUint32(header, 76);
+        block.transactions = null;
+        block.hash = hash;
+        return block;
+    }
+
     /**
      * Returns a multi-line string containing a description of the contents of
      * the block. Use for debugging purposes only.
@@ -684,11 +773,11 @@ public class Block extends Message {
     }
 
     private Sha256Hash calculateMerkleRoot() {
-        List<byte[]> tree = buildMerkleTree();
-        return new Sha256Hash(tree.get(tree.size() - 1));
+        byte[][] tree = buildMerkleTree();
+        return Sha256Hash.readReversed(tree[tree.length - 1], 0);
     }
 
-    private List<byte[]> buildMerkleTree() {
+    private byte[][] buildMerkleTree() {
         // The Merkle root is based on a tree of hashes calculated from the transactions:
         //
         //     root
@@ -719,30 +808,96 @@ public class Block extends Message {
         //    2     3    4  4
         //  / \   / \   / \
         // t1 t2 t3 t4 t5 t5
+        //
+        // The hashes are kept in the byte order they are hashed in, which is the reverse of Sha256Hash. The tree is
+        // kept until the transactions change, so verifying the block again doesn't hash anything. The transaction
+        // hashes come from the transactions, which calculate them only once. Large blocks are hashed by several
+        // threads, level by level.
         maybeParseTransactions();
-        ArrayList<byte[]> tree = new ArrayList<byte[]>();
+        final List<Transaction> transactions = this.transactions;
+        int treeSize = 1;  // The root.
+        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2)
+            treeSize += levelSize;
+        if (merkleTree != null && merkleTree.length == treeSize && isMerkleTreeOf(merkleTree, transactions))
+            return merkleTree;
+        final byte[][] tree = new byte[treeSize][];
         // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (Transaction t : transactions) {
-            tree.add(t.getHash().getBytes());
-        }
+        runInParallel(transactions.size(), PARALLEL_MERKLE_THRESHOLD, new Range() {
+            void run(int from, int to) {
+                for (int i = from; i < to; i++)
+                    tree[i] = transactions.get(i).getHash().getReversedBytes();
+            }
+        });
         int levelOffset = 0; // Offset in the list where the currently processed level starts.
         // Step through each level, stopping when we reach the root (levelSize == 1).
         for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
+            final int offset = levelOffset, size = levelSize;
             // For each pair of nodes on that level:
-            for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(doubleDigestTwoBuffers(leftBytes, 0, 32, rightBytes, 0, 32)));
-            }
+            runInParallel((levelSize + 1) / 2, PARALLEL_MERKLE_THRESHOLD, new Range() {
+                void run(int from, int to) {
+                    for (int i = from; i < to; i++) {
+                        int left = i * 2;
+                        // The right hand node can be the same as the left hand, in the case where we don't have
+                        // enough transactions.
+                        int right = Math.min(left + 1, size - 1);
+                        tree[offset + size + i] = doubleDigestTwoBuffers(tree[offset + left], 0, 32,
+                                tree[offset + right], 0, 32);
+                    }
+                }
+            });
             // Move to the next level.
             levelOffset += levelSize;
         }
+        merkleTree = tree;
         return tree;
     }
 
+    // Whether the leaves of the given tree are the hashes of the given transactions, in the byte order of the tree.
+    private static boolean isMerkleTreeOf(byte[][] tree, List<Transaction> transactions) {
+        for (int i = 0; i < transactions.size(); i++) {
+            byte[] hash = transactions.get(i).getHash().getBytes();
+            byte[] leaf = tree[i];
+            for (int j = 0; j < 32; j++) {
+                if (leaf[j] != hash[31 - j])
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    // Does the work for the elements [from, to) of a range, like a level of the merkle tree.
+    private static abstract class Range {
+        abstract void run(int from, int to);
+    }
+
+    // Does the work for the count elements of a range on this thread, or if there are at least threshold of them,
+    // splits them between the threads of the shared thread pool and this one.
+    private static void runInParallel(int count, int threshold, final Range range) {
+        int threads = Math.min(Runtime.getRuntime().availableProcessors(), count / (threshold / 4));
+        if (count < threshold || threads < 2) {
+            range.run(0, count);
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<Future<?>>(threads - 1);
+        int chunk = (count + threads - 1) / threads;
+        for (int from = chunk; from < count; from += chunk) {
+            final int start = from, end = Math.min(from + chunk, count);
+            futures.add(Threading.THREAD_POOL.submit(new Runnable() {
+                public void run() {
+                    range.run(start, end);
+                }
+            }));
+        }
+        range.run(0, chunk);
+        for (Future<?> future : futures) {
+            try {
+                Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
     private void checkTransactions() throws VerificationException {
         // The first transaction in a block must always be a coinbase transaction.
         if (!transactions.get(0).isCoinBase())
@@ -110,6 +110,21 @@ public class BloomFilter extends Message {
         this.nFlags = (byte)(0xff & updateFlag.ordinal());
     }
     
+    private BloomFilter(BloomFilter filter) {
+        this.data = Arrays.copyOf(filter.data, filter.data.length);
+        this.hashFuncs = filter.hashFuncs;
+        this.nTweak = filter.nTweak;
+        this.nFlags = filter.nFlags;
+    }
+
+    /**
+     * Returns a copy of this filter. Objects can be inserted into the copy without affecting this filter, for instance
+     * while this one is still being sent to a peer.
+     */
+    public BloomFilter duplicate() {
+        return new BloomFilter(this);
+    }
+
     /**
      * Returns the theoretical false positive rate of this filter if were to contain the given number of elements.
      */
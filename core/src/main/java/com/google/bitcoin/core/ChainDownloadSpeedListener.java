@@ -0,0 +1,35 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+/**
+ * <p>A {@link PeerEventListener} that registers with a {@link PeerGroup} can also implement this interface to hear
+ * how fast each peer is sending us the chain. {@link AbstractPeerEventListener} implements it with an empty method, so
+ * subclasses of that only need to override it.</p>
+ */
+public interface ChainDownloadSpeedListener {
+    /**
+     * Called about once a second by a {@link PeerGroup} for each peer that sent us blocks or block headers during that
+     * time, with how fast they arrived. This can be used to show download progress per peer. Round trip times are
+     * available from {@link Peer#getPingTime()}.
+     *
+     * @param peer             the peer the data came from
+     * @param blocksPerSecond  blocks or headers added to the chain per second
+     * @param bytesPerSecond   bytes of chain data received per second
+     */
+    public void onChainDownloadSpeed(Peer peer, double blocksPerSecond, double bytesPerSecond);
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * <p>Counts the blocks, and the work in them, that a {@link Wallet} has seen added to (or removed from) the best chain.
+ * The confidence objects of the wallet's transactions refer to it, so the depth and work done of a building
+ * transaction can be worked out when somebody asks for them, instead of the wallet updating every one of its
+ * transactions on every block.</p>
+ *
+ * <p>It also remembers which of those confidence objects had event listeners added to them, so the wallet knows which
+ * transactions somebody wants to hear about as they get buried.</p>
+ */
+class ChainTip {
+    private int blocks;
+    private BigInteger work = BigInteger.ZERO;
+    private final Set<TransactionConfidence> listenedTo = new LinkedHashSet<TransactionConfidence>();
+
+    synchronized int getBlocks() {
+        return blocks;
+    }
+
+    synchronized BigInteger getWork() {
+        return work;
+    }
+
+    /** Called when a block with the given amount of work becomes the new best block. */
+    synchronized void add(BigInteger blockWork) {
+        blocks++;
+        work = work.add(blockWork);
+    }
+
+    /** Called when a re-organize takes the given number of blocks, with the given total work, off the best chain. */
+    synchronized void subtract(int numBlocks, BigInteger blocksWork) {
+        blocks -= numBlocks;
+        work = work.subtract(blocksWork);
+    }
+
+    synchronized void listenerAdded(TransactionConfidence confidence) {
+        listenedTo.add(confidence);
+    }
+
+    /** Returns the confidences that had listeners added to them since the last call. */
+    synchronized List<TransactionConfidence> takeListenedTo() {
+        List<TransactionConfidence> result = new ArrayList<TransactionConfidence>(listenedTo);
+        listenedTo.clear();
+        return result;
+    }
+}
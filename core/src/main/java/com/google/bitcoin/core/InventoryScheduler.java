@@ -0,0 +1,309 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.nio.channels.NotYetConnectedException;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Decides which peer to download announced transactions from, so that a transaction announced by many peers is
+ * only requested from one of them at a time. Typically one is created for you by a {@link PeerGroup} and given to
+ * each Peer, which hands over the transactions it hears about in "inv" messages.</p>
+ *
+ * <p>Each transaction is requested from the first peer that announced it. If that peer replies with "notfound",
+ * disconnects, or hasn't sent the transaction within the request timeout, it is requested from the next peer that
+ * announced it instead. Requests for the same peer are sent together in one "getdata" message, and each peer only has
+ * a limited number of requests outstanding: the rest wait until earlier ones are answered.</p>
+ */
+public class InventoryScheduler {
+    private static final Logger log = LoggerFactory.getLogger(InventoryScheduler.class);
+
+    /** How long a peer has to send a transaction we asked it for, by default. */
+    public static final long DEFAULT_TIMEOUT_MSEC = 30 * 1000;
+    /** How many transactions may be requested from a peer at once, by default. */
+    public static final int DEFAULT_MAX_IN_FLIGHT_PER_PEER = 100;
+    // How many transactions we keep track of at once, so a flood of invs can't use up all our memory. Announcements
+    // of further transactions are ignored until some are received.
+    private static final int MAX_TRACKED = 10000;
+    // How many received transactions we remember, so that later announcements of them don't trigger requests.
+    private static final int MAX_RECEIVED = 1000;
+
+    private final ReentrantLock lock = Threading.lock("inventoryscheduler");
+
+    private static class Request {
+        final Sha256Hash hash;
+        // The peers that announced the transaction and haven't been asked for it yet, in the order they did so.
+        final LinkedHashSet<Peer> announcers = new LinkedHashSet<Peer>();
+        // The peer it has been requested from, if any, and when that peer should have sent it by.
+        @Nullable Peer peer;
+        long deadline;
+
+        Request(Sha256Hash hash) {
+            this.hash = hash;
+        }
+    }
+
+    @GuardedBy("lock") private final Map<Sha256Hash, Request> requests = new HashMap<Sha256Hash, Request>();
+    // Requests that haven't been sent to any peer yet, in the order they were announced.
+    @GuardedBy("lock") private final LinkedHashSet<Request> unassigned = new LinkedHashSet<Request>();
+    @GuardedBy("lock") private final Map<Peer, Integer> inFlight = new HashMap<Peer, Integer>();
+    @GuardedBy("lock") private final Set<Sha256Hash> received = Collections.newSetFromMap(new LinkedHashMap<Sha256Hash, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Boolean> eldest) {
+            return size() > MAX_RECEIVED;
+        }
+    });
+    private final NetworkParameters params;
+    private final long timeoutMsec;
+    private final int maxInFlightPerPeer;
+
+    /** Creates a scheduler using {@link #DEFAULT_TIMEOUT_MSEC} and {@link #DEFAULT_MAX_IN_FLIGHT_PER_PEER}. */
+    public InventoryScheduler(NetworkParameters params) {
+        this(params, DEFAULT_TIMEOUT_MSEC, DEFAULT_MAX_IN_FLIGHT_PER_PEER);
+    }
+
+    /**
+     * Creates a scheduler that gives each peer timeoutMsec milliseconds to send a transaction, and asks each peer for
+     * at most maxInFlightPerPeer transactions at a time.
+     */
+    public InventoryScheduler(NetworkParameters params, long timeoutMsec, int maxInFlightPerPeer) {
+        checkArgument(timeoutMsec > 0);
+        checkArgument(maxInFlightPerPeer > 0);
+        this.params = checkNotNull(params);
+        this.timeoutMsec = timeoutMsec;
+        this.maxInFlightPerPeer = maxInFlightPerPeer;
+    }
+
+    /**
+     * Called when the given peer announces transactions. Any that haven't been received or requested yet are requested
+     * from it, as far as it has room for more requests.
+     */
+    public void announced(Peer peer, List<Sha256Hash> hashes) {
+        Map<Peer, GetDataMessage> getdatas;
+        lock.lock();
+        try {
+            for (Sha256Hash hash : hashes) {
+                if (received.contains(hash))
+                    continue;
+                Request request = requests.get(hash);
+                if (request == null) {
+                    if (requests.size() >= MAX_TRACKED) {
+                        log.warn("{}: Too many transactions being fetched, ignoring announcement of {}", peer, hash);
+                        continue;
+                    }
+                    request = new Request(hash);
+                    requests.put(hash, request);
+                    unassigned.add(request);
+                }
+                if (request.peer != peer)
+                    request.announcers.add(peer);
+            }
+            getdatas = dispatch();
+        } finally {
+            lock.unlock();
+        }
+        send(getdatas);
+    }
+
+    /** Called when the given peer sends us a transaction, whether or not we asked it for it. */
+    public void received(Peer peer, Sha256Hash hash) {
+        Map<Peer, GetDataMessage> getdatas;
+        lock.lock();
+        try {
+            received.add(hash);
+            Request request = requests.remove(hash);
+            if (request == null)
+                return;
+            unassigned.remove(request);
+            if (request.peer != null)
+                release(request.peer);
+            getdatas = dispatch();
+        } finally {
+            lock.unlock();
+        }
+        send(getdatas);
+    }
+
+    /** Called when the given peer tells us it doesn't have some of the things we asked it for. */
+    public void notFound(Peer peer, List<Sha256Hash> hashes) {
+        Map<Peer, GetDataMessage> getdatas;
+        lock.lock();
+        try {
+            for (Sha256Hash hash : hashes) {
+                Request request = requests.get(hash);
+                if (request == null || request.peer != peer)
+                    continue;
+                retry(request);
+                if (request.announcers.isEmpty()) {
+                    requests.remove(hash);
+                    unassigned.remove(request);
+                }
+            }
+            getdatas = dispatch();
+        } finally {
+            lock.unlock();
+        }
+        send(getdatas);
+    }
+
+    /** Called when the given peer disconnects. Whatever was requested from it is requested from someone else. */
+    public void disconnected(Peer peer) {
+        Map<Peer, GetDataMessage> getdatas;
+        lock.lock();
+        try {
+            for (Iterator<Request> it = requests.values().iterator(); it.hasNext(); ) {
+                Request request = it.next();
+                request.announcers.remove(peer);
+                if (request.peer == peer)
+                    retry(request);
+                if (request.peer == null && request.announcers.isEmpty()) {
+                    it.remove();
+                    unassigned.remove(request);
+                }
+            }
+            inFlight.remove(peer);
+            getdatas = dispatch();
+        } finally {
+            lock.unlock();
+        }
+        send(getdatas);
+    }
+
+    /**
+     * Requests transactions that weren't sent to us in time from the next peer that announced them. This is called
+     * regularly by {@link PeerGroup}.
+     */
+    public void checkTimeouts() {
+        checkTimeouts(Utils.currentTimeMillis());
+    }
+
+    void checkTimeouts(long now) {
+        Map<Peer, GetDataMessage> getdatas;
+        lock.lock();
+        try {
+            for (Iterator<Request> it = requests.values().iterator(); it.hasNext(); ) {
+                Request request = it.next();
+                if (request.peer == null || now < request.deadline)
+                    continue;
+                log.info("{}: Timed out waiting for tx {}", request.peer, request.hash);
+                retry(request);
+                if (request.announcers.isEmpty()) {
+                    // Nobody else has it, so forget about it until someone announces it again.
+                    it.remove();
+                    unassigned.remove(request);
+                }
+            }
+            getdatas = dispatch();
+        } finally {
+            lock.unlock();
+        }
+        send(getdatas);
+    }
+
+    /** Returns how many transactions are currently requested from the given peer. */
+    public int getInFlight(Peer peer) {
+        lock.lock();
+        try {
+            Integer count = inFlight.get(peer);
+            return count == null ? 0 : count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many announced transactions are waiting to be received, whether requested already or not. */
+    public int size() {
+        lock.lock();
+        try {
+            return requests.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Takes the request away from the peer it was sent to, so it can go to the next announcer.
+    @GuardedBy("lock")
+    private void retry(Request request) {
+        release(request.peer);
+        request.peer = null;
+        unassigned.add(request);
+    }
+
+    @GuardedBy("lock")
+    private void release(Peer peer) {
+        Integer count = inFlight.get(peer);
+        if (count == null)
+            return;
+        if (count <= 1)
+            inFlight.remove(peer);
+        else
+            inFlight.put(peer, count - 1);
+    }
+
+    // Assigns as many waiting requests as possible to peers, and returns the getdata messages to send them.
+    @GuardedBy("lock")
+    private Map<Peer, GetDataMessage> dispatch() {
+        Map<Peer, GetDataMessage> getdatas = new HashMap<Peer, GetDataMessage>();
+        long deadline = Utils.currentTimeMillis() + timeoutMsec;
+        for (Iterator<Request> it = unassigned.iterator(); it.hasNext(); ) {
+            Request request = it.next();
+            for (Iterator<Peer> peers = request.announcers.iterator(); peers.hasNext(); ) {
+                Peer peer = peers.next();
+                Integer count = inFlight.get(peer);
+                if (count == null)
+                    count = 0;
+                if (count >= maxInFlightPerPeer)
+                    continue;
+                inFlight.put(peer, count + 1);
+                peers.remove();
+                request.peer = peer;
+                request.deadline = deadline;
+                it.remove();
+                GetDataMessage getdata = getdatas.get(peer);
+                if (getdata == null) {
+                    getdata = new GetDataMessage(params);
+                    getdatas.put(peer, getdata);
+                }
+                getdata.addTransaction(request.hash);
+                break;
+            }
+        }
+        return getdatas;
+    }
+
+    private void send(Map<Peer, GetDataMessage> getdatas) {
+        for (Map.Entry<Peer, GetDataMessage> entry : getdatas.entrySet()) {
+            log.debug("{}: getdata on {} txns", entry.getKey(), entry.getValue().getItems().size());
+            try {
+                entry.getKey().sendMessage(entry.getValue());
+            } catch (NotYetConnectedException e) {
+                // The peer is going away, and the requests will move on when we hear about it.
+                log.warn("{}: Could not request txns: {}", entry.getKey(), e.toString());
+            }
+        }
+    }
+}
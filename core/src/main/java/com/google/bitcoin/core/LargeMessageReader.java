@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * <p>Collects the payload of a message that doesn't fit in one read buffer, for {@link PeerSocketHandler}. The bytes
+ * are copied once, straight into the array the message is then deserialized from.</p>
+ *
+ * <p>Work is done while the rest of the message is still on its way: each piece is hashed for the checksum as it
+ * arrives, and each transaction of a block is hashed as soon as all of its bytes have arrived. The hashes are given to
+ * the deserialized transactions, so they aren't calculated again when the block's merkle root is checked.</p>
+ */
+class LargeMessageReader {
+    // Returned while scanning a block for lengths that can't be right.
+    private static final long BROKEN = Long.MAX_VALUE;
+
+    private final BitcoinSerializer.BitcoinPacketHeader header;
+    private final byte[] payload;
+    private int position;
+    private final MessageDigest digest;
+
+    // For blocks: where the next transaction starts, and how many are still to come. That is -1 until the count has
+    // arrived, and -2 once something turned out to be wrong with the block.
+    private final boolean isBlock;
+    private int txOffset = Block.HEADER_SIZE;
+    private long txRemaining = -1;
+    private final List<Sha256Hash> txHashes = new ArrayList<Sha256Hash>();
+
+    LargeMessageReader(BitcoinSerializer.BitcoinPacketHeader header) {
+        this.header = header;
+        this.payload = new byte[header.size];
+        this.isBlock = header.command.equals("block");
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Can't happen.
+        }
+    }
+
+    /** Takes as many bytes from the buffer as the message still needs, and returns whether it is complete now. */
+    boolean read(ByteBuffer buff) {
+        int length = Math.min(buff.remaining(), payload.length - position);
+        buff.get(payload, position, length);
+        digest.update(payload, position, length);
+        position += length;
+        if (isBlock)
+            hashTransactions();
+        return position == payload.length;
+    }
+
+    /** Deserializes the message once it is complete. */
+    Message deserialize(BitcoinSerializer serializer) throws ProtocolException {
+        byte[] hash = digest.digest(digest.digest());
+        Message message = serializer.deserializePayload(header, payload, hash);
+        // In lazy mode, asking for the transactions would parse them, so they get no hashes then.
+        if (message instanceof Block && !serializer.isParseLazyMode()) {
+            List<Transaction> transactions = ((Block) message).transactions;
+            if (transactions != null && txRemaining == 0 && transactions.size() == txHashes.size()) {
+                for (int i = 0; i < txHashes.size(); i++)
+                    transactions.get(i).setHash(txHashes.get(i));
+            }
+        }
+        return message;
+    }
+
+    // Hashes the transactions that arrived in full since last time.
+    private void hashTransactions() {
+        if (txRemaining == -1) {
+            long count = varIntAt(txOffset);
+            if (count == -1)
+                return;
+            if (count == BROKEN) {
+                txRemaining = -2;
+                return;
+            }
+            txRemaining = count;
+            txOffset += sizeOfVarIntAt(txOffset);
+        }
+        while (txRemaining > 0) {
+            long length = transactionLength(txOffset);
+            if (length == -1)
+                return;
+            if (length == BROKEN) {
+                // Deserializing the message will find out what's wrong with it.
+                txRemaining = -2;
+                return;
+            }
+            txHashes.add(Sha256Hash.readReversed(Utils.doubleDigest(payload, txOffset, (int) length), 0));
+            txOffset += length;
+            txRemaining--;
+        }
+    }
+
+    // Like Transaction.calcLength(), but returns -1 if not enough of the transaction has arrived to tell yet, and
+    // BROKEN if it doesn't fit in the message.
+    private long transactionLength(int offset) {
+        long cursor = offset + 4;  // Version.
+        long inputs = varIntAt(cursor);
+        if (inputs == -1 || inputs == BROKEN)
+            return inputs;
+        cursor += sizeOfVarIntAt(cursor);
+        for (long i = 0; i < inputs; i++) {
+            cursor += 36;  // Outpoint.
+            long scriptLength = varIntAt(cursor);
+            if (scriptLength == -1 || scriptLength == BROKEN)
+                return scriptLength;
+            cursor += sizeOfVarIntAt(cursor) + scriptLength + 4;  // Script and sequence number.
+        }
+        long outputs = varIntAt(cursor);
+        if (outputs == -1 || outputs == BROKEN)
+            return outputs;
+        cursor += sizeOfVarIntAt(cursor);
+        for (long i = 0; i < outputs; i++) {
+            cursor += 8;  // Value.
+            long scriptLength = varIntAt(cursor);
+            if (scriptLength == -1 || scriptLength == BROKEN)
+                return scriptLength;
+            cursor += sizeOfVarIntAt(cursor) + scriptLength;
+        }
+        cursor += 4;  // Lock time.
+        if (cursor > payload.length)
+            return BROKEN;
+        return cursor <= position ? cursor - offset : -1;
+    }
+
+    // Returns the value of the VarInt at the given offset, -1 if it hasn't fully arrived yet, or BROKEN if it doesn't
+    // fit in the message or is larger than anything in the message could be.
+    private long varIntAt(long offset) {
+        if (offset >= payload.length)
+            return BROKEN;
+        if (offset >= position)
+            return -1;
+        int size = sizeOfVarIntAt(offset);
+        if (offset + size > payload.length)
+            return BROKEN;
+        if (offset + size > position)
+            return -1;
+        long value = new VarInt(payload, (int) offset).value;
+        return value < 0 || value > payload.length ? BROKEN : value;
+    }
+
+    private int sizeOfVarIntAt(long offset) {
+        int first = payload[(int) offset] & 0xff;
+        return first < 253 ? 1 : first == 253 ? 3 : first == 254 ? 5 : 9;
+    }
+}
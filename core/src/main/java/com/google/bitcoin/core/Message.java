@@ -410,13 +410,10 @@ public abstract class Message implements Serializable {
 
     Sha256Hash readHash() throws ProtocolException {
         try {
-            byte[] hash = new byte[32];
-            System.arraycopy(bytes, cursor, hash, 0, 32);
             // We have to flip it around, as it's been read off the wire in little endian.
-            // Not the most efficient way to do this but the clearest.
-            hash = Utils.reverseBytes(hash);
+            Sha256Hash hash = Sha256Hash.readReversed(bytes, cursor);
             cursor += 32;
-            return new Sha256Hash(hash);
+            return hash;
         } catch (IndexOutOfBoundsException e) {
             throw new ProtocolException(e);
         }
@@ -37,6 +37,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -87,9 +88,15 @@ public class Peer extends PeerSocketHandler {
     // so we can use this to calculate the height of the peers chain, by adding it to the initial height in the version
     // message. This method can go wrong if the peer re-orgs onto a shorter (but harder) chain, however, this is rare.
     private final AtomicInteger blocksAnnounced = new AtomicInteger();
+    // How many blocks or headers from this peer were added to the chain, and how many bytes of chain data (blocks,
+    // filtered blocks and their transactions, and headers) it sent us. PeerGroup uses these to measure download speed.
+    private final AtomicLong blocksDownloaded = new AtomicLong();
+    private final AtomicLong chainBytesReceived = new AtomicLong();
     // A class that tracks recent transactions that have been broadcast across the network, counts how many
     // peers announced them and updates the transaction confidence data. It is passed to each Peer.
     private final MemoryPool memoryPool;
+    // Decides which peer announced transactions are downloaded from, when this peer is one of several in a PeerGroup.
+    @Nullable private volatile InventoryScheduler vInventoryScheduler;
     // Each wallet added to the peer will be notified of downloaded transaction data.
     private final CopyOnWriteArrayList<Wallet> wallets;
     // A time before which we only download block headers, after that point we download block bodies.
@@ -117,7 +124,7 @@ public class Peer extends PeerSocketHandler {
     //
     // It is important to avoid a nasty edge case where we can end up with parallel chain downloads proceeding
     // simultaneously if we were to receive a newly solved block whilst parts of the chain are streaming to us.
-    private final HashSet<Sha256Hash> pendingBlockDownloads = new HashSet<Sha256Hash>();
+    private final Sha256HashSet pendingBlockDownloads = new Sha256HashSet();
     // The lowest version number we're willing to accept. Lower than this will result in an immediate disconnect.
     private volatile int vMinProtocolVersion = Pong.MIN_PROTOCOL_VERSION;
     // When an API user explicitly requests a block or transaction from a peer, the InventoryItem is put here
@@ -323,6 +330,10 @@ public class Peer extends PeerSocketHandler {
             currentFilteredBlock = null;
         }
 
+        if (m instanceof Block || m instanceof FilteredBlock || m instanceof HeadersMessage ||
+                (currentFilteredBlock != null && m instanceof Transaction))
+            chainBytesReceived.addAndGet(m.getMessageSize());
+
         if (m instanceof NotFoundMessage) {
             // This is sent to us when we did a getdata on some transactions that aren't in the peers memory pool.
             // Because NotFoundMessage is a subclass of InventoryMessage, the test for it must come before the next.
@@ -433,6 +444,14 @@ public class Peer extends PeerSocketHandler {
         // in the chain).
         //
         // We go through and cancel the pending getdata futures for the items we were told weren't found.
+        InventoryScheduler scheduler = vInventoryScheduler;
+        if (scheduler != null) {
+            List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(m.getItems().size());
+            for (InventoryItem item : m.getItems())
+                if (item.type == InventoryItem.Type.Transaction)
+                    hashes.add(item.hash);
+            scheduler.notFound(this, hashes);
+        }
         for (GetDataRequest req : getDataFutures) {
             for (InventoryItem item : m.getItems()) {
                 if (item.hash.equals(req.hash)) {
@@ -485,42 +504,51 @@ public class Peer extends PeerSocketHandler {
 
         try {
             checkState(!downloadBlockBodies, toString());
-            for (int i = 0; i < m.getBlockHeaders().size(); i++) {
-                Block header = m.getBlockHeaders().get(i);
-                // Process headers until we pass the fast catchup time, or are about to catch up with the head
-                // of the chain - always process the last block as a full/filtered block to kick us out of the
-                // fast catchup mode (in which we ignore new blocks).
-                boolean passedTime = header.getTimeSeconds() >= fastCatchupTimeSecs;
-                boolean reachedTop = blockChain.getBestChainHeight() >= vPeerVersionMessage.bestHeight;
-                if (!passedTime && !reachedTop) {
-                    if (!vDownloadData) {
-                        // Not download peer anymore, some other peer probably became better.
-                        log.info("Lost download peer status, throwing away downloaded headers.");
-                        return;
-                    }
-                    if (blockChain.add(header)) {
-                        // The block was successfully linked into the chain. Notify the user of our progress.
-                        invokeOnBlocksDownloaded(header);
-                    } else {
-                        // This block is unconnected - we don't know how to get from it back to the genesis block yet.
-                        // That must mean that the peer is buggy or malicious because we specifically requested for
-                        // headers that are part of the best chain.
-                        throw new ProtocolException("Got unconnected header from peer: " + header.getHashAsString());
-                    }
-                } else {
-                    lock.lock();
-                    try {
-                        log.info("Passed the fast catchup time, discarding {} headers and requesting full blocks",
-                                m.getBlockHeaders().size() - i);
-                        this.downloadBlockBodies = true;
-                        // Prevent this request being seen as a duplicate.
-                        this.lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
-                        blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
-                    } finally {
-                        lock.unlock();
-                    }
+            // Process headers until we pass the fast catchup time, or are about to catch up with the head of the
+            // chain - always process the last block as a full/filtered block to kick us out of the fast catchup mode
+            // (in which we ignore new blocks).
+            List<Block> headers = m.getBlockHeaders();
+            int bestChainHeight = blockChain.getBestChainHeight();
+            int count = 0;
+            while (count < headers.size() && headers.get(count).getTimeSeconds() < fastCatchupTimeSecs &&
+                    bestChainHeight + count < vPeerVersionMessage.bestHeight)
+                count++;
+            if (count > 0) {
+                if (!vDownloadData) {
+                    // Not download peer anymore, some other peer probably became better.
+                    log.info("Lost download peer status, throwing away downloaded headers.");
                     return;
                 }
+                boolean allConnected;
+                try {
+                    allConnected = blockChain.addHeaders(headers.subList(0, count));
+                } finally {
+                    // Notify the user of our progress with the blocks that were linked into the chain, which are all
+                    // of them unless one was bad or didn't connect.
+                    int linked = Math.min(count, Math.max(0, blockChain.getBestChainHeight() - bestChainHeight));
+                    for (Block header : headers.subList(0, linked))
+                        invokeOnBlocksDownloaded(header);
+                }
+                if (!allConnected) {
+                    // A block is unconnected - we don't know how to get from it back to the genesis block yet.
+                    // That must mean that the peer is buggy or malicious because we specifically requested for
+                    // headers that are part of the best chain.
+                    throw new ProtocolException("Got unconnected header from peer");
+                }
+            }
+            if (count < headers.size()) {
+                lock.lock();
+                try {
+                    log.info("Passed the fast catchup time, discarding {} headers and requesting full blocks",
+                            headers.size() - count);
+                    this.downloadBlockBodies = true;
+                    // Prevent this request being seen as a duplicate.
+                    this.lastGetBlocksBegin = Sha256Hash.ZERO_HASH;
+                    blockChainDownloadLocked(Sha256Hash.ZERO_HASH);
+                } finally {
+                    lock.unlock();
+                }
+                return;
             }
             // We added all headers in the message to the chain. Request some more if we got up to the limit, otherwise
             // we are at the end of the chain.
@@ -561,6 +589,9 @@ public class Peer extends PeerSocketHandler {
     private void processTransaction(Transaction tx) throws VerificationException {
         // Check a few basic syntax issues to ensure the received TX isn't nonsense.
         tx.verify();
+        InventoryScheduler scheduler = vInventoryScheduler;
+        if (scheduler != null)
+            scheduler.received(this, tx.getHash());
         final Transaction fTx;
         lock.lock();
         try {
@@ -943,6 +974,7 @@ public class Peer extends PeerSocketHandler {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
+        blocksDownloaded.incrementAndGet();
         final int blocksLeft = Math.max(0, (int) vPeerVersionMessage.bestHeight - checkNotNull(blockChain).getBestChainHeight());
         for (final ListenerRegistration<PeerEventListener> registration : eventListeners) {
             registration.executor.execute(new Runnable() {
@@ -992,10 +1024,19 @@ public class Peer extends PeerSocketHandler {
 
         GetDataMessage getdata = new GetDataMessage(params);
 
+        InventoryScheduler scheduler = vInventoryScheduler;
+        List<Sha256Hash> scheduled = new ArrayList<Sha256Hash>(transactions.size());
         Iterator<InventoryItem> it = transactions.iterator();
         while (it.hasNext()) {
             InventoryItem item = it.next();
-            if (memoryPool == null) {
+            if (scheduler != null) {
+                // Unless we already have it (e.g. because we broadcast it), the scheduler picks one of the peers that
+                // announced it to download it from, and moves on to another one if that doesn't work out.
+                if (memoryPool == null || memoryPool.get(item.hash) == null)
+                    scheduled.add(item.hash);
+                if (memoryPool != null)
+                    memoryPool.seen(item.hash, this.getAddress());
+            } else if (memoryPool == null) {
                 if (downloadData) {
                     // If there's no memory pool only download transactions if we're configured to.
                     getdata.addItem(item);
@@ -1069,6 +1110,9 @@ public class Peer extends PeerSocketHandler {
             lock.unlock();
         }
 
+        if (!scheduled.isEmpty())
+            scheduler.announced(this, scheduled);
+
         if (!getdata.getItems().isEmpty()) {
             // This will cause us to receive a bunch of block or tx messages.
             sendMessage(getdata);
@@ -1213,7 +1257,7 @@ public class Peer extends PeerSocketHandler {
         // must always put the genesis block as the first entry.
         BlockStore store = checkNotNull(blockChain).getBlockStore();
         StoredBlock chainHead = blockChain.getChainHead();
-        Sha256Hash chainHeadHash = chainHead.getHeader().getHash();
+        Sha256Hash chainHeadHash = chainHead.getHash();
         // Did we already make this request? If so, don't do it again.
         if (Objects.equal(lastGetBlocksBegin, chainHeadHash) && Objects.equal(lastGetBlocksEnd, toHash)) {
             log.info("blockChainDownloadLocked({}): ignoring duplicated request", toHash.toString());
@@ -1223,7 +1267,7 @@ public class Peer extends PeerSocketHandler {
                 toString(), toHash.toString(), chainHead.getHeader().getHashAsString());
         StoredBlock cursor = chainHead;
         for (int i = 100; cursor != null && i > 0; i--) {
-            blockLocator.add(cursor.getHeader().getHash());
+            blockLocator.add(cursor.getHash());
             try {
                 cursor = cursor.getPrev(store);
             } catch (BlockStoreException e) {
@@ -1388,6 +1432,19 @@ public class Peer extends PeerSocketHandler {
         }
     }
 
+    /** Returns how many blocks or block headers sent by this peer have been added to the chain. */
+    public long getBlocksDownloaded() {
+        return blocksDownloaded.get();
+    }
+
+    /**
+     * Returns how many bytes of blocks, filtered blocks along with their transactions, and block headers this peer
+     * has sent us, whether or not we asked for them.
+     */
+    public long getChainBytesReceived() {
+        return chainBytesReceived.get();
+    }
+
     /**
      * Returns the difference between our best chain height and the peers, which can either be positive if we are
      * behind the peer, or negative if the peer is ahead of us.
@@ -1424,6 +1481,15 @@ public class Peer extends PeerSocketHandler {
         this.vDownloadData = downloadData;
     }
 
+    /**
+     * Sets the scheduler that decides which peer to download announced transactions from. Once set, this peer hands
+     * the transactions it hears about to the scheduler rather than requesting them itself. {@link PeerGroup} does
+     * this for the peers it creates.
+     */
+    public void setInventoryScheduler(@Nullable InventoryScheduler scheduler) {
+        this.vInventoryScheduler = scheduler;
+    }
+
     /** Returns version data announced by the remote peer. */
     public VersionMessage getPeerVersionMessage() {
       return vPeerVersionMessage;
@@ -20,6 +20,8 @@ package com.google.bitcoin.core;
 import com.google.bitcoin.net.BlockingClientManager;
 import com.google.bitcoin.net.ClientConnectionManager;
 import com.google.bitcoin.net.NioClientManager;
+import com.google.bitcoin.net.discovery.MultiplexingDiscovery;
+import com.google.bitcoin.net.discovery.PeerAddressStore;
 import com.google.bitcoin.net.discovery.PeerDiscovery;
 import com.google.bitcoin.net.discovery.PeerDiscoveryException;
 import com.google.bitcoin.net.discovery.TorDiscovery;
@@ -29,7 +31,6 @@ import com.google.bitcoin.utils.ListenerRegistration;
 import com.google.bitcoin.utils.Threading;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Sets;
 import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
 import com.google.common.util.concurrent.*;
@@ -48,8 +49,10 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
@@ -79,6 +82,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     private static final Logger log = LoggerFactory.getLogger(PeerGroup.class);
     private static final int DEFAULT_CONNECTIONS = 4;
     private static final int TOR_TIMEOUT_SECONDS = 20;
+    // How long peer discovery sources get to find peers.
+    private static final int DISCOVERY_TIMEOUT_SECS = 5;
 
     protected final ReentrantLock lock = Threading.lock("peergroup");
 
@@ -101,6 +106,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     private final CopyOnWriteArrayList<ListenerRegistration<PeerEventListener>> peerEventListeners;
     // Peer discovery sources, will be polled occasionally if there aren't enough inactives.
     private final CopyOnWriteArraySet<PeerDiscovery> peerDiscoverers;
+    // Remembers peers across restarts, if set.
+    @Nullable private volatile PeerAddressStore vAddressStore;
     // The version message to use for new connections.
     @GuardedBy("lock") private VersionMessage versionMessage;
     // Switch for enabling download of pending transaction dependencies.
@@ -108,6 +115,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     // A class that tracks recent transactions that have been broadcast across the network, counts how many
     // peers announced them and updates the transaction confidence data. It is passed to each Peer.
     private final MemoryPool memoryPool;
+    // Makes sure each announced transaction is only downloaded from one peer at a time.
+    private final InventoryScheduler inventoryScheduler;
     // How many connections we want to have open at the current time. If we lose connections, we'll try opening more
     // until we reach this count.
     @GuardedBy("lock") private int maxConnections;
@@ -121,6 +130,15 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     public static final long DEFAULT_PING_INTERVAL_MSEC = 2000;
     private long pingIntervalMsec = DEFAULT_PING_INTERVAL_MSEC;
 
+    /** How many seconds the download peer may send chain data too slowly for before we switch, by default. */
+    public static final int DEFAULT_STALL_PERIOD_SECS = 10;
+    /** The least chain data the download peer should send us per second, by default: about 20 headers worth. */
+    public static final int DEFAULT_STALL_MIN_BYTES_PER_SEC = Block.HEADER_SIZE * 20;
+    @GuardedBy("lock") private int stallPeriodSecs = DEFAULT_STALL_PERIOD_SECS;
+    @GuardedBy("lock") private int stallMinBytesPerSec = DEFAULT_STALL_MIN_BYTES_PER_SEC;
+    // Peers we stopped downloading from because they were too slow. They are only picked again if nobody else can be.
+    @GuardedBy("lock") private final Set<Peer> stalledPeers = new HashSet<Peer>();
+
     private final NetworkParameters params;
     private final AbstractBlockChain chain;
     @GuardedBy("lock") private long fastCatchupTimeSecs;
@@ -135,6 +153,16 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             return handleGetData(m);
         }
 
+        @Override
+        public Message onPreMessageReceived(Peer peer, Message m) {
+            PeerAddressStore store = vAddressStore;
+            if (store != null && m instanceof AddressMessage)
+                store.addAll(((AddressMessage) m).getAddresses());
+            if (m instanceof InventoryMessage && !(m instanceof NotFoundMessage) && !batchBroadcastTxns.isEmpty())
+                markBatchTransactionsSeen(peer, (InventoryMessage) m);
+            return m;
+        }
+
         @Override
         public void onBlocksDownloaded(Peer peer, Block block, int blocksLeft) {
             double rate = checkNotNull(chain).getFalsePositiveRate();
@@ -146,33 +174,50 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     };
 
     private int minBroadcastConnections = 0;
-    private Runnable bloomSendIfChanged = new Runnable() {
-        @Override public void run() {
-            recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
-        }
-    };
-    private Runnable bloomDontSend = new Runnable() {
+    // Wallet changes that still have to be applied to the Bloom filter. They are applied by a single job on the job
+    // queue, so a burst of changes from any number of wallets results in just one filter update. This has its own lock
+    // because the wallet event listener runs with the wallet locked, and must not take the PeerGroup lock.
+    private final ReentrantLock pendingFilterLock = Threading.lock("peergroup-filter");
+    @GuardedBy("pendingFilterLock") @Nullable private FilterRecalculateMode pendingFilterMode;
+    @GuardedBy("pendingFilterLock") private List<byte[]> pendingFilterElements = new ArrayList<byte[]>();
+    private final Runnable filterUpdate = new Runnable() {
         @Override public void run() {
-            recalculateFastCatchupAndFilter(FilterRecalculateMode.DONT_SEND);
+            updateFilter();
         }
     };
     private AbstractWalletEventListener walletEventListener = new AbstractWalletEventListener() {
-        private void queueRecalc(boolean andTransmit) {
-            if (andTransmit) {
-                log.info("Queuing recalc of the Bloom filter due to new keys or scripts becoming available");
-                Uninterruptibles.putUninterruptibly(jobQueue, bloomSendIfChanged);
-            } else {
-                log.info("Queuing recalc of the Bloom filter due to observing a pay to pubkey output on a relevant tx");
-                Uninterruptibles.putUninterruptibly(jobQueue, bloomDontSend);
+        private void queueRecalc(boolean andTransmit, List<byte[]> elements) {
+            if (andTransmit)
+                log.info("Queuing update of the Bloom filter due to new keys or scripts becoming available");
+            else
+                log.info("Queuing update of the Bloom filter due to observing a pay to pubkey output on a relevant tx");
+            FilterRecalculateMode mode = andTransmit ? FilterRecalculateMode.SEND_IF_CHANGED : FilterRecalculateMode.DONT_SEND;
+            pendingFilterLock.lock();
+            try {
+                pendingFilterElements.addAll(elements);
+                boolean queued = pendingFilterMode != null;
+                if (!queued || pendingFilterMode == FilterRecalculateMode.DONT_SEND)
+                    pendingFilterMode = mode;
+                if (queued)
+                    return;
+            } finally {
+                pendingFilterLock.unlock();
             }
+            Uninterruptibles.putUninterruptibly(jobQueue, filterUpdate);
         }
 
         @Override public void onScriptsAdded(Wallet wallet, List<Script> scripts) {
-            queueRecalc(true);
+            List<byte[]> elements = new ArrayList<byte[]>();
+            for (Script script : scripts)
+                Wallet.getBloomFilterElements(script, elements);
+            queueRecalc(true, elements);
         }
 
         @Override public void onKeysAdded(Wallet wallet, List<ECKey> keys) {
-            queueRecalc(true);
+            List<byte[]> elements = new ArrayList<byte[]>(keys.size() * 2);
+            for (ECKey key : keys)
+                Wallet.getBloomFilterElements(key, elements);
+            queueRecalc(true, elements);
         }
 
         @Override
@@ -195,16 +240,15 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             // it and update their filter themselves, but any newly connected nodes will receive the last filter we
             // calculated, which would not include this transaction.
             //
-            // For this reason we check if the transaction contained any relevant pay to pubkeys and force a recalc
-            // and possibly retransmit if so. The recalculation process will end up including the tx hash into the
-            // filter. In case (1), we need to retransmit the filter to the connected peers. In case (2), we don't
-            // and shouldn't, we should just recalculate and cache the new filter for next time.
+            // For this reason we check if the transaction contained any relevant pay to pubkeys and add its outpoints
+            // to the filter if so. In case (1), we need to retransmit the filter to the connected peers. In case (2),
+            // we don't and shouldn't, we should just update and cache the new filter for next time.
             for (TransactionOutput output : tx.getOutputs()) {
                 if (output.getScriptPubKey().isSentToRawPubKey() && output.isMine(wallet)) {
-                    if (tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
-                        queueRecalc(true);
-                    else
-                        queueRecalc(false);
+                    List<byte[]> elements = new ArrayList<byte[]>();
+                    wallet.getBloomFilterElements(tx, elements);
+                    boolean building = tx.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING;
+                    queueRecalc(building, elements);
                     return;
                 }
             }
@@ -223,6 +267,10 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     // being garbage collected if nothing in the apps code holds on to them transitively. See the discussion
     // in broadcastTransaction.
     private final Set<TransactionBroadcast> runningBroadcasts;
+    private final Set<TransactionBatchBroadcast> runningBatchBroadcasts;
+    // The transactions of running batch broadcasts that haven't propagated yet, which may no longer be in the memory
+    // pool. Indexed by hash so that getdata and inv messages can be matched against all batches at once.
+    private final ConcurrentHashMap<Sha256Hash, Transaction> batchBroadcastTxns;
 
     private class PeerStartupListener extends AbstractPeerEventListener {
         @Override
@@ -257,6 +305,10 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     // We use a constant tweak to avoid giving up privacy when we regenerate our filter with new keys
     private final long bloomFilterTweak = (long) (Math.random() * Long.MAX_VALUE);
     private int lastBloomFilterElementCount;
+    // How many elements have been put into bloomFilter, which may be more than the providers currently want in it.
+    @GuardedBy("lock") private int bloomFilterElements;
+    @GuardedBy("lock") private BloomFilter.BloomUpdate bloomFilterUpdate;
+    @GuardedBy("lock") private long bloomFilterRebuilds, bloomFilterInsertions;
 
     /** The default timeout between when a connection attempt begins and version message exchange completes */
     public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
@@ -339,6 +391,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         this.downloadTxDependencies = true;
 
         memoryPool = new MemoryPool();
+        inventoryScheduler = new InventoryScheduler(params);
 
         inactives = new PriorityQueue<PeerAddress>(1, new Comparator<PeerAddress>() {
             @Override
@@ -357,6 +410,8 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         peerDiscoverers = new CopyOnWriteArraySet<PeerDiscovery>();
         peerEventListeners = new CopyOnWriteArrayList<ListenerRegistration<PeerEventListener>>();
         runningBroadcasts = Collections.synchronizedSet(new HashSet<TransactionBroadcast>());
+        runningBatchBroadcasts = Collections.synchronizedSet(new HashSet<TransactionBatchBroadcast>());
+        batchBroadcastTxns = new ConcurrentHashMap<Sha256Hash, Transaction>();
     }
 
     /**
@@ -435,8 +490,10 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             Iterator<InventoryItem> it = items.iterator();
             while (it.hasNext()) {
                 InventoryItem item = it.next();
-                // Check the mempool first.
+                // Check the mempool first, then the batch broadcasts, whose transactions may not all fit in the mempool.
                 Transaction tx = memoryPool.get(item.hash);
+                if (tx == null)
+                    tx = batchBroadcastTxns.get(item.hash);
                 if (tx != null) {
                     transactions.add(tx);
                     it.remove();
@@ -635,27 +692,102 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         }
     }
 
+    /**
+     * <p>Sets a store that remembers the peers we hear about and connect to, and how well that went, across restarts.
+     * When the PeerGroup needs more addresses to connect to, it takes the most promising ones from the store, and
+     * also asks the discovery sources unless the store had enough to fill every connection slot. Peers are asked for the addresses they know of once connected, which are added to
+     * the store.</p>
+     *
+     * <p>The store should be set before the PeerGroup is started. It isn't closed by the PeerGroup.</p>
+     */
+    public void setAddressStore(@Nullable PeerAddressStore store) {
+        vAddressStore = store;
+    }
+
+    /** Returns the store set with {@link #setAddressStore(PeerAddressStore)}, if any. */
+    @Nullable
+    public PeerAddressStore getAddressStore() {
+        return vAddressStore;
+    }
+
     protected void discoverPeers() throws PeerDiscoveryException {
+        PeerAddressStore store = vAddressStore;
+        final int stored = store != null ? discoverStoredPeers(store) : 0;
+        // Stored addresses may well be stale, so unless there are enough of them to fill every connection slot the
+        // discovery sources are asked as well.
+        if (stored > 0 && (stored >= getMaxConnections() || peerDiscoverers.isEmpty()))
+            return;
         if (peerDiscoverers.isEmpty())
             throw new PeerDiscoveryException("No peer discoverers registered");
-        long start = System.currentTimeMillis();
-        Set<PeerAddress> addressSet = Sets.newHashSet();
-        for (PeerDiscovery peerDiscovery : peerDiscoverers) {
-            InetSocketAddress[] addresses;
-            addresses = peerDiscovery.getPeers(5, TimeUnit.SECONDS);
-            for (InetSocketAddress address : addresses) addressSet.add(new PeerAddress(address));
-            if (addressSet.size() > 0) break;
+        final long start = System.currentTimeMillis();
+        // All sources are asked at once, and this returns as soon as the first of them has found something, so that
+        // we can start connecting. Whatever the others find is added to the inactive list as it comes in. An empty
+        // array marks the end of discovery.
+        final BlockingQueue<InetSocketAddress[]> results = new LinkedBlockingQueue<InetSocketAddress[]>();
+        final AtomicBoolean returned = new AtomicBoolean();
+        MultiplexingDiscovery discovery = new MultiplexingDiscovery(new ArrayList<PeerDiscovery>(peerDiscoverers));
+        final ListenableFuture<List<InetSocketAddress>> future = discovery.discover(DISCOVERY_TIMEOUT_SECS, TimeUnit.SECONDS,
+                new MultiplexingDiscovery.Listener() {
+                    public void onPeersDiscovered(InetSocketAddress[] addresses) {
+                        results.add(addresses);
+                        if (returned.get()) {
+                            List<InetSocketAddress[]> batches = new ArrayList<InetSocketAddress[]>();
+                            results.drainTo(batches);
+                            addDiscoveredPeers(batches);
+                        }
+                    }
+                });
+        future.addListener(new Runnable() {
+            public void run() {
+                results.add(new InetSocketAddress[0]);
+                log.info("Peer discovery took {}msec and returned {} items", System.currentTimeMillis() - start,
+                        Futures.getUnchecked(future).size());
+            }
+        }, Threading.SAME_THREAD);
+        List<InetSocketAddress[]> batches = new ArrayList<InetSocketAddress[]>();
+        batches.add(Uninterruptibles.takeUninterruptibly(results));
+        // Anything that arrives from now on is added by the listener. Whatever arrived in between is drained here.
+        returned.set(true);
+        results.drainTo(batches);
+        if (addDiscoveredPeers(batches) == 0 && future.isDone() && stored == 0)
+            throw new PeerDiscoveryException("Peer discovery didn't return any items");
+    }
+
+    // Adds discovered addresses to the inactive list and the address store, and returns how many there were.
+    private int addDiscoveredPeers(List<InetSocketAddress[]> batches) {
+        List<PeerAddress> addresses = new ArrayList<PeerAddress>();
+        for (InetSocketAddress[] batch : batches) {
+            for (InetSocketAddress address : batch)
+                addresses.add(new PeerAddress(address));
         }
+        if (addresses.isEmpty())
+            return 0;
+        PeerAddressStore store = vAddressStore;
+        if (store != null)
+            store.addAll(addresses);
         lock.lock();
         try {
-            for (PeerAddress address : addressSet) {
+            for (PeerAddress address : addresses)
                 addInactive(address);
-            }
         } finally {
             lock.unlock();
         }
-        log.info("Peer discovery took {}msec and returned {} items",
-                System.currentTimeMillis() - start, addressSet.size());
+        return addresses.size();
+    }
+
+    // Adds addresses we haven't tried yet from the store to the inactive list, and returns how many there were.
+    private int discoverStoredPeers(PeerAddressStore store) {
+        lock.lock();
+        try {
+            List<PeerAddress> addresses = store.select(Math.max(getMaxConnections(), 1), backoffMap.keySet());
+            for (PeerAddress address : addresses)
+                addInactive(address);
+            if (!addresses.isEmpty())
+                log.info("Took {} addresses from the address store", addresses.size());
+            return addresses.size();
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
@@ -741,6 +873,13 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
     protected void startUp() throws Exception {
         // This is run in a background thread by the Service implementation.
         vPingTimer = new Timer("Peer pinging thread", true);
+        vPingTimer.scheduleAtFixedRate(new ChainDownloadSpeedCalculator(), 1000, 1000);
+        vPingTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                inventoryScheduler.checkTimeouts();
+            }
+        }, 1000, 1000);
         if (torClient != null) {
             log.info("Starting Tor/Orchid ...");
             torClient.start();
@@ -870,6 +1009,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             }
 
             if (elements > 0) {
+                bloomFilterRebuilds++;
                 // We stair-step our element count so that we avoid creating a filter with different parameters
                 // as much as possible as that results in a loss of privacy.
                 // The constant 100 here is somewhat arbitrary, but makes sense for small to medium wallets -
@@ -881,25 +1021,9 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                 for (PeerFilterProvider p : peerFilterProviders)
                     filter.merge(p.getBloomFilter(lastBloomFilterElementCount, bloomFilterFPRate, bloomFilterTweak));
 
-                boolean changed = !filter.equals(bloomFilter);
-                boolean send = false;
-
-                bloomFilter = filter;
-
-                switch (mode) {
-                    case SEND_IF_CHANGED: send = changed; break;
-                    case DONT_SEND: send = false; break;
-                    case FORCE_SEND: send = true; break;
-                }
-
-                if (send) {
-                    for (Peer peer : peers)
-                        peer.setBloomFilter(filter);
-                    // Reset the false positive estimate so that we don't send a flood of filter updates
-                    // if the estimate temporarily overshoots our threshold.
-                    if (chain != null)
-                        chain.resetFalsePositiveEstimate();
-                }
+                bloomFilterElements = elements;
+                bloomFilterUpdate = bloomFlags;
+                setFilter(filter, !filter.equals(bloomFilter), mode);
             }
             // Now adjust the earliest key time backwards by a week to handle the case of clock drift. This can occur
             // both in block header timestamps and if the users clock was out of sync when the key was first created
@@ -912,6 +1036,117 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             lock.unlock();
         }
     }
+
+    @GuardedBy("lock")
+    private void setFilter(BloomFilter filter, boolean changed, FilterRecalculateMode mode) {
+        boolean send = false;
+
+        bloomFilter = filter;
+
+        switch (mode) {
+            case SEND_IF_CHANGED: send = changed; break;
+            case DONT_SEND: send = false; break;
+            case FORCE_SEND: send = true; break;
+        }
+
+        if (send) {
+            for (Peer peer : peers)
+                peer.setBloomFilter(filter);
+            // Reset the false positive estimate so that we don't send a flood of filter updates
+            // if the estimate temporarily overshoots our threshold.
+            if (chain != null)
+                chain.resetFalsePositiveEstimate();
+        }
+        log.info("Bloom filter holds {} elements, expected false positive rate {}, observed {}", bloomFilterElements,
+                filter.getFalsePositiveRate(bloomFilterElements), chain != null ? chain.getFalsePositiveRate() : 0.0);
+    }
+
+    // Applies the wallet changes queued by the wallet event listener. The new elements are inserted into a copy of the
+    // current filter when it was sized for them, which saves asking every provider for its whole filter again, and
+    // doesn't lose any privacy as the new filter matches everything the old one did. Otherwise, or when the kind of
+    // filter needed changed, the filter is recalculated.
+    private void updateFilter() {
+        FilterRecalculateMode mode;
+        List<byte[]> elements;
+        pendingFilterLock.lock();
+        try {
+            mode = pendingFilterMode;
+            elements = pendingFilterElements;
+            pendingFilterMode = null;
+            pendingFilterElements = new ArrayList<byte[]>();
+        } finally {
+            pendingFilterLock.unlock();
+        }
+        if (mode == null)
+            return;
+        lock.lock();
+        try {
+            if (chain != null && chain.shouldVerifyTransactions())
+                return;
+            long earliestKeyTimeSecs = Long.MAX_VALUE;
+            boolean requiresUpdateAll = false;
+            for (PeerFilterProvider p : peerFilterProviders) {
+                earliestKeyTimeSecs = Math.min(earliestKeyTimeSecs, p.getEarliestKeyCreationTime());
+                requiresUpdateAll = requiresUpdateAll || p.isRequiringUpdateAllBloomFilter();
+            }
+            BloomFilter.BloomUpdate bloomFlags =
+                    requiresUpdateAll ? BloomFilter.BloomUpdate.UPDATE_ALL : BloomFilter.BloomUpdate.UPDATE_P2PUBKEY_ONLY;
+            if (bloomFilter == null || bloomFlags != bloomFilterUpdate ||
+                    bloomFilterElements + elements.size() > lastBloomFilterElementCount) {
+                recalculateFastCatchupAndFilter(mode);
+                return;
+            }
+            log.info("Inserting {} elements into the Bloom filter in mode {}", elements.size(), mode);
+            BloomFilter filter = bloomFilter;
+            for (byte[] element : elements) {
+                if (filter.contains(element))
+                    continue;
+                // Peers may still be sending the current filter, so it mustn't change under them.
+                if (filter == bloomFilter)
+                    filter = bloomFilter.duplicate();
+                filter.insert(element);
+            }
+            bloomFilterElements += elements.size();
+            bloomFilterInsertions++;
+            setFilter(filter, filter != bloomFilter, mode);
+            setFastCatchupTimeSecs(earliestKeyTimeSecs - 86400 * 7);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the false positive rate the current Bloom filter is expected to have, given how many elements were put
+     * into it. Compare with {@link AbstractBlockChain#getFalsePositiveRate()}, which is the rate actually observed.
+     */
+    public double getExpectedBloomFilterFalsePositiveRate() {
+        lock.lock();
+        try {
+            return bloomFilter == null ? 0 : bloomFilter.getFalsePositiveRate(bloomFilterElements);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many times the Bloom filter was calculated from scratch. */
+    public long getBloomFilterRebuilds() {
+        lock.lock();
+        try {
+            return bloomFilterRebuilds;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many times new elements were inserted into the existing Bloom filter instead of recalculating it. */
+    public long getBloomFilterInsertions() {
+        lock.lock();
+        try {
+            return bloomFilterInsertions;
+        } finally {
+            lock.unlock();
+        }
+    }
     
     /**
      * <p>Sets the false positive rate of bloom filters given to peers. The default is {@link #DEFAULT_BLOOM_FILTER_FP_RATE}.</p>
@@ -966,6 +1201,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         Peer peer = new Peer(params, ver, address, chain, memoryPool, downloadTxDependencies);
         peer.addEventListener(startupListener, Threading.SAME_THREAD);
         peer.setMinProtocolVersion(vMinRequiredProtocolVersion);
+        peer.setInventoryScheduler(inventoryScheduler);
         pendingPeers.add(peer);
 
         try {
@@ -1043,6 +1279,12 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
 
     protected void handleNewPeer(final Peer peer) {
         int newSize = -1;
+        PeerAddressStore store = vAddressStore;
+        if (store != null) {
+            store.recordSuccess(peer.getAddress(), BigInteger.valueOf(peer.getPeerVersionMessage().localServices));
+            // Ask for the addresses it knows about, which peerListener adds to the store.
+            peer.sendMessage(new GetAddrMessage(params));
+        }
         lock.lock();
         try {
             groupBackoff.trackSuccess();
@@ -1063,7 +1305,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
             // Re-evaluate download peers.
-            Peer newDownloadPeer = selectDownloadPeer(peers);
+            Peer newDownloadPeer = selectDownloadPeer(getDownloadCandidates());
             if (downloadPeer != newDownloadPeer) {
                 setDownloadPeer(newDownloadPeer);
                 boolean shouldDownloadChain = downloadListener != null && chain != null;
@@ -1119,6 +1361,10 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
                     return;
                 }
 
+                PeerAddressStore store = vAddressStore;
+                if (store != null)
+                    store.recordPing(peer.getAddress(), peer.getLastPingTime());
+
                 final long interval = getPingIntervalMsec();
                 if (interval <= 0)
                     return;  // Disabled.
@@ -1228,17 +1474,22 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         int numConnectedPeers = 0;
         lock.lock();
         try {
-            pendingPeers.remove(peer);
+            boolean wasPending = pendingPeers.remove(peer);
             peers.remove(peer);
+            stalledPeers.remove(peer);
 
             PeerAddress address = peer.getAddress();
+            // Peers that went away after the handshake may just have been shut down, so only count failed connects.
+            PeerAddressStore store = vAddressStore;
+            if (store != null && wasPending)
+                store.recordFailure(address);
 
             log.info("{}: Peer died", address);
             if (peer == downloadPeer) {
                 log.info("Download peer died. Picking a new one.");
                 setDownloadPeer(null);
                 // Pick a new one and possibly tell it to download the chain.
-                final Peer newDownloadPeer = selectDownloadPeer(peers);
+                final Peer newDownloadPeer = selectDownloadPeer(getDownloadCandidates());
                 if (newDownloadPeer != null) {
                     setDownloadPeer(newDownloadPeer);
                     if (downloadListener != null) {
@@ -1267,6 +1518,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         for (Wallet wallet : wallets) {
             peer.removeWallet(wallet);
         }
+        inventoryScheduler.disconnected(peer);
 
         final int fNumConnectedPeers = numConnectedPeers;
         for (final ListenerRegistration<PeerEventListener> registration : peerEventListeners) {
@@ -1280,6 +1532,120 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         }
     }
 
+    // Returns the connected peers that haven't stalled a download, or all of them if they all have.
+    @GuardedBy("lock")
+    private List<Peer> getDownloadCandidates() {
+        List<Peer> candidates = new ArrayList<Peer>(peers);
+        candidates.removeAll(stalledPeers);
+        return candidates.isEmpty() ? peers : candidates;
+    }
+
+    // Runs once a second on the ping timer thread. Tells the event listeners how fast each peer is sending us chain
+    // data, and moves the chain download to another peer if the download peer has sent too little of it for the last
+    // stallPeriodSecs seconds while we're still behind it. Progress isn't lost by switching, as the new peer is asked
+    // for the blocks after our current chain head.
+    private class ChainDownloadSpeedCalculator extends TimerTask {
+        // The counters of each peer as of the last run.
+        private final Map<Peer, long[]> lastCounts = new HashMap<Peer, long[]>();
+        private long lastRunMsec = System.currentTimeMillis();
+        // How many bytes the download peer sent during each of the last runs, in a ring.
+        @Nullable private Peer measuredPeer;
+        private long[] window = new long[0];
+        private int samples;
+
+        @Override
+        public void run() {
+            try {
+                calculate();
+            } catch (Throwable e) {
+                // Don't let this kill the timer, which also does the pinging.
+                log.error("Error measuring chain download speed", e);
+            }
+        }
+
+        private void calculate() {
+            long now = System.currentTimeMillis();
+            double secs = Math.max(now - lastRunMsec, 1) / 1000.0;
+            lastRunMsec = now;
+            List<Peer> connected = getConnectedPeers();
+            Peer current = getDownloadPeer();
+            long currentBytes = 0;
+            for (final Peer peer : connected) {
+                long[] counts = {peer.getBlocksDownloaded(), peer.getChainBytesReceived()};
+                long[] last = lastCounts.put(peer, counts);
+                if (last == null)
+                    last = new long[2];
+                final long bytes = counts[1] - last[1];
+                if (peer == current)
+                    currentBytes = bytes;
+                if (bytes == 0)
+                    continue;
+                final double blocksPerSecond = (counts[0] - last[0]) / secs;
+                final double bytesPerSecond = bytes / secs;
+                for (final ListenerRegistration<PeerEventListener> registration : peerEventListeners) {
+                    if (!(registration.listener instanceof ChainDownloadSpeedListener))
+                        continue;
+                    final ChainDownloadSpeedListener listener = (ChainDownloadSpeedListener) registration.listener;
+                    registration.executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onChainDownloadSpeed(peer, blocksPerSecond, bytesPerSecond);
+                        }
+                    });
+                }
+            }
+            lastCounts.keySet().retainAll(connected);
+            checkForStall(current, currentBytes);
+        }
+
+        private void checkForStall(@Nullable Peer current, long bytes) {
+            lock.lock();
+            try {
+                if (current != downloadPeer)
+                    return;  // Changed while we were measuring.
+                if (current != measuredPeer || window.length != stallPeriodSecs) {
+                    measuredPeer = current;
+                    window = new long[stallPeriodSecs];
+                    samples = 0;
+                }
+                // The download peer only has something to send us while a download is running and we're behind it.
+                if (current == null || chain == null || downloadListener == null ||
+                        chain.getBestChainHeight() >= current.getBestHeight()) {
+                    samples = 0;
+                    return;
+                }
+                window[samples++ % window.length] = bytes;
+                if (samples < window.length)
+                    return;
+                long total = 0;
+                for (long b : window) total += b;
+                if (total >= (long) stallMinBytesPerSec * window.length)
+                    return;
+                samples = 0;
+                stalledPeers.add(current);
+                List<Peer> candidates = new ArrayList<Peer>(peers);
+                candidates.removeAll(stalledPeers);
+                if (candidates.isEmpty()) {
+                    // Everyone else was too slow at some point too, so give them another chance.
+                    stalledPeers.retainAll(Collections.singleton(current));
+                    candidates = new ArrayList<Peer>(peers);
+                    candidates.remove(current);
+                }
+                Peer next = selectDownloadPeer(candidates);
+                if (next == null) {
+                    log.info("{}: Download peer only sent {} bytes in the last {} seconds, but there is nobody else",
+                            current, total, window.length);
+                    return;
+                }
+                log.warn("{}: Download peer only sent {} bytes in the last {} seconds, switching to {}",
+                        current, total, window.length, next);
+                startBlockChainDownloadFromPeer(next);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
     private void startBlockChainDownloadFromPeer(Peer peer) {
         lock.lock();
         try {
@@ -1391,21 +1757,7 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
             @Override
             public void onSuccess(Transaction transaction) {
                 runningBroadcasts.remove(broadcast);
-                // OK, now tell the wallet about the transaction. If the wallet created the transaction then
-                // it already knows and will ignore this. If it's a transaction we received from
-                // somebody else via a side channel and are now broadcasting, this will put it into the
-                // wallet now we know it's valid.
-                for (Wallet wallet : wallets) {
-                    // Assumption here is there are no dependencies of the created transaction.
-                    //
-                    // We may end up with two threads trying to do this in parallel - the wallet will
-                    // ignore whichever one loses the race.
-                    try {
-                        wallet.receivePending(transaction, null);
-                    } catch (VerificationException e) {
-                        throw new RuntimeException(e);   // Cannot fail to verify a tx we created ourselves.
-                    }
-                }
+                receiveBroadcastTransaction(transaction);
             }
 
             @Override
@@ -1424,6 +1776,93 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         return broadcast.future();
     }
 
+    /**
+     * Calls {@link PeerGroup#broadcastTransactions(List,int)} with getMinBroadcastConnections() as the number
+     * of connections to wait for before commencing broadcast.
+     */
+    public List<ListenableFuture<Transaction>> broadcastTransactions(List<Transaction> transactions) {
+        return broadcastTransactions(transactions, Math.max(1, getMinBroadcastConnections()));
+    }
+
+    /**
+     * <p>Broadcasts many transactions at once, as if {@link PeerGroup#broadcastTransaction(Transaction, int)} had been
+     * called for each of them, but much more cheaply. The transactions are announced to each chosen peer together and
+     * fetched from this PeerGroup by the peers that want them, see {@link TransactionBatchBroadcast}.</p>
+     *
+     * <p>Returns a future for each transaction, in the same order, which completes once that transaction propagated.
+     * Wallets are told about each transaction as its future completes.</p>
+     */
+    public List<ListenableFuture<Transaction>> broadcastTransactions(List<Transaction> transactions, int minConnections) {
+        final TransactionBatchBroadcast broadcast = new TransactionBatchBroadcast(this, transactions);
+        broadcast.setMinConnections(minConnections);
+        for (ListenableFuture<Transaction> future : broadcast.futures()) {
+            Futures.addCallback(future, new FutureCallback<Transaction>() {
+                @Override
+                public void onSuccess(Transaction transaction) {
+                    receiveBroadcastTransaction(transaction);
+                }
+
+                @Override
+                public void onFailure(Throwable throwable) {
+                    runningBatchBroadcasts.remove(broadcast);
+                    throw new RuntimeException(throwable);
+                }
+            });
+        }
+        // Keep a reference to the broadcast for the same reason broadcastTransaction does.
+        runningBatchBroadcasts.add(broadcast);
+        return broadcast.broadcast();
+    }
+
+    // Called by a batch broadcast once it has announced its transactions, so they can be served to the peers that ask.
+    void pinBatchTransactions(List<Transaction> transactions) {
+        for (Transaction tx : transactions)
+            batchBroadcastTxns.put(tx.getHash(), tx);
+    }
+
+    // Called by a batch broadcast as each of its transactions propagates.
+    void unpinBatchTransaction(Transaction tx) {
+        batchBroadcastTxns.remove(tx.getHash());
+    }
+
+    // Called by a batch broadcast once none of its transactions are pending any more.
+    void batchBroadcastComplete(TransactionBatchBroadcast broadcast) {
+        runningBatchBroadcasts.remove(broadcast);
+    }
+
+    // Counts the peer as having announced the batch transactions in the inv, as the memory pool would if they were
+    // still in there.
+    private void markBatchTransactionsSeen(Peer peer, InventoryMessage inv) {
+        for (InventoryItem item : inv.getItems()) {
+            if (item.type != InventoryItem.Type.Transaction)
+                continue;
+            Transaction tx = batchBroadcastTxns.get(item.hash);
+            if (tx == null)
+                continue;
+            TransactionConfidence confidence = tx.getConfidence();
+            if (confidence.markBroadcastBy(peer.getAddress()))
+                confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
+        }
+    }
+
+    private void receiveBroadcastTransaction(Transaction transaction) {
+        // OK, now tell the wallet about the transaction. If the wallet created the transaction then
+        // it already knows and will ignore this. If it's a transaction we received from
+        // somebody else via a side channel and are now broadcasting, this will put it into the
+        // wallet now we know it's valid.
+        for (Wallet wallet : wallets) {
+            // Assumption here is there are no dependencies of the created transaction.
+            //
+            // We may end up with two threads trying to do this in parallel - the wallet will
+            // ignore whichever one loses the race.
+            try {
+                wallet.receivePending(transaction, null);
+            } catch (VerificationException e) {
+                throw new RuntimeException(e);   // Cannot fail to verify a tx we created ourselves.
+            }
+        }
+    }
+
     /**
      * Returns the period between pings for an individual peer. Setting this lower means more accurate and timely ping
      * times are available via {@link com.google.bitcoin.core.Peer#getLastPingTime()} but it increases load on the
@@ -1454,6 +1893,26 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         }
     }
 
+    /**
+     * <p>Sets when the download peer is considered stalled. If it sends us fewer than minBytesPerSec bytes of blocks or
+     * headers per second, averaged over periodSecs seconds, whilst we are still behind it, the chain download is moved
+     * to another peer with the lowest ping time. The slow peer stays connected but isn't picked again unless there is
+     * nobody else. Setting minBytesPerSec to zero disables this.</p>
+     *
+     * <p>Defaults to {@link #DEFAULT_STALL_PERIOD_SECS} and {@link #DEFAULT_STALL_MIN_BYTES_PER_SEC}.</p>
+     */
+    public void setStallThreshold(int periodSecs, int minBytesPerSec) {
+        checkArgument(periodSecs > 0);
+        checkArgument(minBytesPerSec >= 0);
+        lock.lock();
+        try {
+            stallPeriodSecs = periodSecs;
+            stallMinBytesPerSec = minBytesPerSec;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * If a peer is connected to that claims to speak a protocol version lower than the given version, it will
      * be disconnected and another one will be tried instead.
@@ -1544,6 +2003,13 @@ public class PeerGroup extends AbstractExecutionThreadService implements Transac
         return candidates2.get(0).peer;
     }
 
+    /**
+     * Returns the {@link InventoryScheduler} that decides which peer each announced transaction is downloaded from.
+     */
+    public InventoryScheduler getInventoryScheduler() {
+        return inventoryScheduler;
+    }
+
     /**
      * Returns the currently selected download peer. Bear in mind that it may have changed as soon as this method
      * returns. Can return null if no peer was selected.
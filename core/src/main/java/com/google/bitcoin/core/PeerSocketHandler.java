@@ -24,7 +24,6 @@ import com.google.common.annotations.VisibleForTesting;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
@@ -51,10 +50,8 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
 
     // The ByteBuffers passed to us from the writeTarget are static in size, and usually smaller than some messages we
     // will receive. For SPV clients, this should be rare (ie we're mostly dealing with small transactions), but for
-    // messages which are larger than the read buffer, we have to keep a temporary buffer with its bytes.
-    private byte[] largeReadBuffer;
-    private int largeReadBufferPos;
-    private BitcoinSerializer.BitcoinPacketHeader header;
+    // messages which are larger than the read buffer, we have to collect its bytes as they arrive.
+    private LargeMessageReader largeMessage;
 
     private Lock lock = Threading.lock("PeerSocketHandler");
 
@@ -81,11 +78,10 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
         } finally {
             lock.unlock();
         }
-        // TODO: Some round-tripping could be avoided here
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         try {
-            serializer.serialize(message, out);
-            writeTarget.writeBytes(out.toByteArray());
+            // The message never writes to the array unsafeBitcoinSerialize() returns, so it can be sent without copying.
+            byte[] payload = message.unsafeBitcoinSerialize();
+            writeTarget.writeBytes(serializer.serializeHeader(message, payload), payload);
         } catch (IOException e) {
             exceptionCaught(e);
         }
@@ -126,19 +122,14 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
             // Repeatedly try to deserialize messages until we hit a BufferUnderflowException
             for (int i = 0; true; i++) {
                 // If we are in the middle of reading a message, try to fill that one first, before we expect another
-                if (largeReadBuffer != null) {
+                if (largeMessage != null) {
                     // This can only happen in the first iteration
                     checkState(i == 0);
-                    // Read new bytes into the largeReadBuffer
-                    int bytesToGet = Math.min(buff.remaining(), largeReadBuffer.length - largeReadBufferPos);
-                    buff.get(largeReadBuffer, largeReadBufferPos, bytesToGet);
-                    largeReadBufferPos += bytesToGet;
-                    // Check the largeReadBuffer's status
-                    if (largeReadBufferPos == largeReadBuffer.length) {
-                        // ...processing a message if one is available
-                        processMessage(serializer.deserializePayload(header, ByteBuffer.wrap(largeReadBuffer)));
-                        largeReadBuffer = null;
-                        header = null;
+                    // Read new bytes into the large message, processing it if it's complete...
+                    if (largeMessage.read(buff)) {
+                        Message message = largeMessage.deserialize(serializer);
+                        largeMessage = null;
+                        processMessage(message);
                     } else // ...or just returning if we don't have enough bytes yet
                         return buff.position();
                 }
@@ -148,21 +139,19 @@ public abstract class PeerSocketHandler extends AbstractTimeoutHandler implement
                 try {
                     message = serializer.deserialize(buff);
                 } catch (BufferUnderflowException e) {
-                    // If we went through the whole buffer without a full message, we need to use the largeReadBuffer
+                    // If we went through the whole buffer without a full message, we need a LargeMessageReader
                     if (i == 0 && buff.limit() == buff.capacity()) {
                         // ...so reposition the buffer to 0 and read the next message header
                         buff.position(0);
                         try {
                             serializer.seekPastMagicBytes(buff);
-                            header = serializer.deserializeHeader(buff);
-                            // Initialize the largeReadBuffer with the next message's size and fill it with any bytes
-                            // left in buff
-                            largeReadBuffer = new byte[header.size];
-                            largeReadBufferPos = buff.remaining();
-                            buff.get(largeReadBuffer, 0, largeReadBufferPos);
+                            BitcoinSerializer.BitcoinPacketHeader header = serializer.deserializeHeader(buff);
+                            // Start the large message with any bytes left in buff
+                            largeMessage = new LargeMessageReader(header);
+                            largeMessage.read(buff);
                         } catch (BufferUnderflowException e1) {
                             // If we went through a whole buffer's worth of bytes without getting a header, give up
-                            // In cases where the buff is just really small, we could create a second largeReadBuffer
+                            // In cases where the buff is just really small, we could create a second buffer
                             // that we use to deserialize the magic+header, but that is rather complicated when the buff
                             // should probably be at least that big anyway (for efficiency)
                             throw new ProtocolException("No magic bytes+header after reading " + buff.capacity() + " bytes");
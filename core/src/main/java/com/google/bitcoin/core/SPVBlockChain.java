@@ -66,7 +66,7 @@ public class SPVBlockChain extends AbstractBlockChain {
     @Override
     protected StoredBlock addToBlockStore(StoredBlock storedPrev, Block blockHeader, TransactionOutputChanges txOutChanges)
             throws BlockStoreException, VerificationException {
-        StoredBlock newBlock = storedPrev.build(blockHeader);
+        StoredBlock newBlock = storedPrev.build(blockHeader, blockStore);
         blockStore.put(newBlock);
         return newBlock;
     }
@@ -74,7 +74,7 @@ public class SPVBlockChain extends AbstractBlockChain {
     @Override
     protected StoredBlock addToBlockStore(StoredBlock storedPrev, Block blockHeader)
             throws BlockStoreException, VerificationException {
-        StoredBlock newBlock = storedPrev.build(blockHeader);
+        StoredBlock newBlock = storedPrev.build(blockHeader, blockStore);
         blockStore.put(newBlock);
         return newBlock;
     }
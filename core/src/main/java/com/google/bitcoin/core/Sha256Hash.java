@@ -17,12 +17,11 @@
 package com.google.bitcoin.core;
 
 import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Longs;
+import com.google.common.primitives.UnsignedLongs;
 import org.spongycastle.util.encoders.Hex;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.Serializable;
+import java.io.*;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -32,19 +31,28 @@ import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * A Sha256Hash just wraps a byte[] so that equals and hashcode work correctly, allowing it to be used as keys in a
- * map. It also checks that the length is correct and provides a bit more type safety.
+ * map. It also checks that the length is correct and provides a bit more type safety.<p>
+ *
+ * As hashes are kept in great numbers, the bytes are held as four longs rather than in an array of their own, which
+ * makes each hash a single small object. Maps and sets that are the only thing keeping many hashes can use
+ * {@link Sha256HashMap} and {@link Sha256HashSet}, which store the keys in the same form.
  */
 public class Sha256Hash implements Serializable, Comparable {
-    private byte[] bytes;
+    // Keeps the serialized form of the time the bytes were held in an array.
+    private static final long serialVersionUID = 1169360734028206990L;
+    private static final ObjectStreamField[] serialPersistentFields = { new ObjectStreamField("bytes", byte[].class) };
+
+    // The bytes of the hash in big endian words: w0 holds bytes 0 to 7 and w3 bytes 24 to 31. The hash code is the
+    // lower half of w3, so there is no need to keep it separately. Sha256HashMap reads them directly.
+    transient long w0, w1, w2, w3;
     public static final Sha256Hash ZERO_HASH = new Sha256Hash(new byte[32]);
 
     /**
-     * Creates a Sha256Hash by wrapping the given byte array. It must be 32 bytes long.
+     * Creates a Sha256Hash from the given byte array, which must be 32 bytes long. The bytes are copied.
      */
     public Sha256Hash(byte[] rawHashBytes) {
         checkArgument(rawHashBytes.length == 32);
-        this.bytes = rawHashBytes;
-
+        setBytes(rawHashBytes);
     }
 
     /**
@@ -52,7 +60,31 @@ public class Sha256Hash implements Serializable, Comparable {
      */
     public Sha256Hash(String hexString) {
         checkArgument(hexString.length() == 64);
-        this.bytes = Hex.decode(hexString);
+        setBytes(Hex.decode(hexString));
+    }
+
+    /** Creates a Sha256Hash from the big endian words of its bytes. */
+    Sha256Hash(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+    }
+
+    /**
+     * Reads a hash that is stored in reverse byte order, as hashes are in the wire format, without copying the bytes
+     * around first. Same as <tt>new Sha256Hash(Utils.reverseBytes(...))</tt> on the 32 bytes at the offset.
+     */
+    static Sha256Hash readReversed(byte[] bytes, int offset) {
+        return new Sha256Hash(Utils.readInt64(bytes, offset + 24), Utils.readInt64(bytes, offset + 16),
+                Utils.readInt64(bytes, offset + 8), Utils.readInt64(bytes, offset));
+    }
+
+    private void setBytes(byte[] bytes) {
+        w0 = Longs.fromBytes(bytes[0], bytes[1], bytes[2], bytes[3], bytes[4], bytes[5], bytes[6], bytes[7]);
+        w1 = Longs.fromBytes(bytes[8], bytes[9], bytes[10], bytes[11], bytes[12], bytes[13], bytes[14], bytes[15]);
+        w2 = Longs.fromBytes(bytes[16], bytes[17], bytes[18], bytes[19], bytes[20], bytes[21], bytes[22], bytes[23]);
+        w3 = Longs.fromBytes(bytes[24], bytes[25], bytes[26], bytes[27], bytes[28], bytes[29], bytes[30], bytes[31]);
     }
 
     /**
@@ -93,8 +125,10 @@ public class Sha256Hash implements Serializable, Comparable {
      */
     @Override
     public boolean equals(Object other) {
+        if (this == other) return true;
         if (!(other instanceof Sha256Hash)) return false;
-        return Arrays.equals(bytes, ((Sha256Hash) other).bytes);
+        Sha256Hash o = (Sha256Hash) other;
+        return w3 == o.w3 && w2 == o.w2 && w1 == o.w1 && w0 == o.w0;
     }
 
     /**
@@ -105,27 +139,60 @@ public class Sha256Hash implements Serializable, Comparable {
     @Override
     public int hashCode() {
         // Use the last 4 bytes, not the first 4 which are often zeros in Bitcoin.
-        return (bytes[31] & 0xFF) | ((bytes[30] & 0xFF) << 8) | ((bytes[29] & 0xFF) << 16) | ((bytes[28] & 0xFF) << 24);
+        return (int) w3;
     }
 
     @Override
     public String toString() {
-        return Utils.bytesToHexString(bytes);
+        return Utils.bytesToHexString(getBytes());
     }
 
     /**
      * Returns the bytes interpreted as a positive integer.
      */
     public BigInteger toBigInteger() {
-        return new BigInteger(1, bytes);
+        return new BigInteger(1, getBytes());
     }
 
+    /** Returns a copy of the bytes of the hash. */
     public byte[] getBytes() {
+        byte[] bytes = new byte[32];
+        putWord(bytes, 0, w0);
+        putWord(bytes, 8, w1);
+        putWord(bytes, 16, w2);
+        putWord(bytes, 24, w3);
+        return bytes;
+    }
+
+    /**
+     * Returns a copy of the bytes of the hash in reverse order, as they are written in the wire format. Same as
+     * <tt>Utils.reverseBytes(getBytes())</tt>.
+     */
+    public byte[] getReversedBytes() {
+        byte[] bytes = new byte[32];
+        putWordReversed(bytes, 24, w0);
+        putWordReversed(bytes, 16, w1);
+        putWordReversed(bytes, 8, w2);
+        putWordReversed(bytes, 0, w3);
         return bytes;
     }
 
+    private static void putWord(byte[] bytes, int offset, long word) {
+        for (int i = 7; i >= 0; i--) {
+            bytes[offset + i] = (byte) word;
+            word >>>= 8;
+        }
+    }
+
+    private static void putWordReversed(byte[] bytes, int offset, long word) {
+        for (int i = 0; i < 8; i++) {
+            bytes[offset + i] = (byte) word;
+            word >>>= 8;
+        }
+    }
+
     public Sha256Hash duplicate() {
-        return new Sha256Hash(bytes);
+        return new Sha256Hash(w0, w1, w2, w3);
     }
 
     @Override
@@ -135,4 +202,27 @@ public class Sha256Hash implements Serializable, Comparable {
         int oCode = ((Sha256Hash)o).hashCode();
         return thisCode > oCode ? 1 : (thisCode == oCode ? 0 : -1);
     }
+
+    /**
+     * Compares the bytes of the hashes as unsigned numbers, in order. Unlike {@link #compareTo(Object)}, which only
+     * looks at the hash codes, this is a total order.
+     */
+    public int compareBytes(Sha256Hash other) {
+        if (w0 != other.w0) return UnsignedLongs.compare(w0, other.w0);
+        if (w1 != other.w1) return UnsignedLongs.compare(w1, other.w1);
+        if (w2 != other.w2) return UnsignedLongs.compare(w2, other.w2);
+        return UnsignedLongs.compare(w3, other.w3);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.putFields().put("bytes", getBytes());
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        byte[] bytes = (byte[]) in.readFields().get("bytes", null);
+        if (bytes == null || bytes.length != 32)
+            throw new InvalidObjectException("Hash must be 32 bytes");
+        setBytes(bytes);
+    }
 }
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>A map keyed by {@link Sha256Hash}es, which keeps the keys inline in one array of longs instead of as objects
+ * referenced from an entry object per mapping, the way {@link HashMap} does. The keys given to
+ * {@link #put(Sha256Hash, Object)} aren't held on to, and iterating makes new ones. That makes it the smaller choice
+ * where the map is what keeps the hashes alive, like an index over records that are stored as bytes: a mapping takes
+ * about a quarter less memory than in an equally full HashMap. Where the keys are kept by the values anyway, as
+ * transactions and stored blocks keep their hashes, a HashMap that shares them takes less. See the
+ * MemoryFootprintBenchmark tool.</p>
+ *
+ * <p>It is an open addressing table with linear probing. Null keys and values are not allowed. The iteration order is
+ * unspecified, as with HashMap. Sha256HashMaps are not thread safe.</p>
+ */
+public class Sha256HashMap<V> extends AbstractMap<Sha256Hash, V> implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final int MIN_CAPACITY = 16;
+
+    // The words of the key in slot i are at keys[4 * i] to keys[4 * i + 3]. A slot is empty if its value is null.
+    private transient long[] keys;
+    private transient Object[] values;
+    private transient int size;
+    // Resize when the size goes above this, which keeps the table at most three quarters full.
+    private transient int threshold;
+    private transient int modCount;
+    private transient Set<Entry<Sha256Hash, V>> entrySet;
+
+    public Sha256HashMap() {
+        allocate(MIN_CAPACITY);
+    }
+
+    /** Creates a map that can hold the given number of keys without growing. */
+    public Sha256HashMap(int expectedSize) {
+        checkArgument(expectedSize >= 0);
+        allocate(capacityFor(expectedSize));
+    }
+
+    public Sha256HashMap(Map<? extends Sha256Hash, ? extends V> map) {
+        this(map.size());
+        putAll(map);
+    }
+
+    private static int capacityFor(int size) {
+        int capacity = MIN_CAPACITY;
+        while (capacity / 4 * 3 < size)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity * 4];
+        values = new Object[capacity];
+        threshold = capacity / 4 * 3;
+    }
+
+    // The slot a key starts probing from. The bytes of a hash are random already, but as w3 is also the hash code the
+    // bits are mixed so that keys chosen to share their low bytes don't all end up in the same run of slots.
+    private int slotOf(long w3) {
+        int h = (int) (w3 ^ (w3 >>> 32)) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (values.length - 1);
+    }
+
+    // Returns the slot holding the key, or if it isn't present, -1 minus the empty slot where it would go.
+    private int find(Sha256Hash key) {
+        int mask = values.length - 1;
+        int slot = slotOf(key.w3);
+        while (values[slot] != null) {
+            int i = slot * 4;
+            if (keys[i + 3] == key.w3 && keys[i + 2] == key.w2 && keys[i + 1] == key.w1 && keys[i] == key.w0)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1 - slot;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof Sha256Hash && find((Sha256Hash) key) >= 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        if (!(key instanceof Sha256Hash))
+            return null;
+        int slot = find((Sha256Hash) key);
+        return slot >= 0 ? (V) values[slot] : null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V put(Sha256Hash key, V value) {
+        checkNotNull(key);
+        checkNotNull(value);
+        int slot = find(key);
+        if (slot >= 0) {
+            V old = (V) values[slot];
+            values[slot] = value;
+            return old;
+        }
+        slot = -1 - slot;
+        int i = slot * 4;
+        keys[i] = key.w0;
+        keys[i + 1] = key.w1;
+        keys[i + 2] = key.w2;
+        keys[i + 3] = key.w3;
+        values[slot] = value;
+        modCount++;
+        if (++size > threshold)
+            resize(values.length * 2);
+        return null;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int oldSlot = 0; oldSlot < oldValues.length; oldSlot++) {
+            if (oldValues[oldSlot] == null)
+                continue;
+            int slot = slotOf(oldKeys[oldSlot * 4 + 3]);
+            while (values[slot] != null)
+                slot = (slot + 1) & mask;
+            System.arraycopy(oldKeys, oldSlot * 4, keys, slot * 4, 4);
+            values[slot] = oldValues[oldSlot];
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V remove(Object key) {
+        if (!(key instanceof Sha256Hash))
+            return null;
+        int slot = find((Sha256Hash) key);
+        if (slot < 0)
+            return null;
+        V old = (V) values[slot];
+        removeSlot(slot);
+        return old;
+    }
+
+    // Empties the slot, then moves keys later in the run back into the gap when they can't be found otherwise, so
+    // that no run of slots is broken up. Keys only ever move back within their run, which the iterator relies on.
+    private void removeSlot(int gap) {
+        int mask = values.length - 1;
+        values[gap] = null;
+        size--;
+        modCount++;
+        int slot = gap;
+        while (true) {
+            slot = (slot + 1) & mask;
+            if (values[slot] == null)
+                return;
+            int home = slotOf(keys[slot * 4 + 3]);
+            // The key can stay if its home slot is after the gap, up to where it is now.
+            boolean stays = gap <= slot ? (gap < home && home <= slot) : (gap < home || home <= slot);
+            if (stays)
+                continue;
+            System.arraycopy(keys, slot * 4, keys, gap * 4, 4);
+            values[gap] = values[slot];
+            values[slot] = null;
+            gap = slot;
+        }
+    }
+
+    @Override
+    public void clear() {
+        if (size == 0)
+            return;
+        Arrays.fill(values, null);
+        size = 0;
+        modCount++;
+    }
+
+    private Sha256Hash keyAt(int slot) {
+        int i = slot * 4;
+        return new Sha256Hash(keys[i], keys[i + 1], keys[i + 2], keys[i + 3]);
+    }
+
+    @Override
+    public Set<Entry<Sha256Hash, V>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Entry<Sha256Hash, V>>() {
+                @Override
+                public Iterator<Entry<Sha256Hash, V>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+
+                @Override
+                public void clear() {
+                    Sha256HashMap.this.clear();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    /**
+     * Walks the slots backwards, starting just before an empty one. Removing a key only moves keys that are later in
+     * its run, and no run goes past the empty slot we started at, so every key that moves has been seen already and
+     * goes to a slot that has been seen too.
+     */
+    private class EntryIterator implements Iterator<Entry<Sha256Hash, V>> {
+        private final int mask = values.length - 1;
+        private int expectedModCount = modCount;
+        private int remaining = size;
+        private int slot;
+        private int lastSlot = -1;
+
+        EntryIterator() {
+            int empty = 0;
+            if (remaining > 0) {
+                while (values[empty] != null)
+                    empty++;
+            }
+            slot = empty;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        @Override
+        public Entry<Sha256Hash, V> next() {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (remaining == 0)
+                throw new NoSuchElementException();
+            do {
+                slot = (slot - 1) & mask;
+            } while (values[slot] == null);
+            remaining--;
+            lastSlot = slot;
+            return new SlotEntry(slot);
+        }
+
+        @Override
+        public void remove() {
+            checkState(lastSlot >= 0);
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            removeSlot(lastSlot);
+            lastSlot = -1;
+            expectedModCount = modCount;
+        }
+    }
+
+    private class SlotEntry implements Entry<Sha256Hash, V> {
+        private final Sha256Hash key;
+        private V value;
+        private final int slot;
+
+        @SuppressWarnings("unchecked")
+        SlotEntry(int slot) {
+            this.key = keyAt(slot);
+            this.value = (V) values[slot];
+            this.slot = slot;
+        }
+
+        @Override
+        public Sha256Hash getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            checkNotNull(value);
+            // Only valid until the map is changed, like the entries of other maps.
+            checkState(values[slot] != null && keyAt(slot).equals(key));
+            V old = this.value;
+            values[slot] = value;
+            this.value = value;
+            return old;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) return false;
+            Entry<?, ?> e = (Entry<?, ?>) o;
+            return key.equals(e.getKey()) && value.equals(e.getValue());
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() ^ value.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for (int slot = 0; slot < values.length; slot++) {
+            if (values[slot] == null)
+                continue;
+            for (int i = 0; i < 4; i++)
+                out.writeLong(keys[slot * 4 + i]);
+            out.writeObject(values[slot]);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int count = in.readInt();
+        allocate(capacityFor(count));
+        for (int i = 0; i < count; i++) {
+            Sha256Hash key = new Sha256Hash(in.readLong(), in.readLong(), in.readLong(), in.readLong());
+            put(key, (V) in.readObject());
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * A set of {@link Sha256Hash}es that keeps them inline, the way {@link Sha256HashMap} does, rather than as objects in a
+ * {@link java.util.HashSet}. Null is not allowed and the iteration order is unspecified. Sha256HashSets are not thread
+ * safe.
+ */
+public class Sha256HashSet extends AbstractSet<Sha256Hash> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Sha256HashMap<Boolean> map;
+
+    public Sha256HashSet() {
+        map = new Sha256HashMap<Boolean>();
+    }
+
+    public Sha256HashSet(Collection<? extends Sha256Hash> hashes) {
+        map = new Sha256HashMap<Boolean>(hashes.size());
+        addAll(hashes);
+    }
+
+    @Override
+    public boolean add(Sha256Hash hash) {
+        return map.put(hash, Boolean.TRUE) == null;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return map.containsKey(o);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return map.remove(o) != null;
+    }
+
+    @Override
+    public void clear() {
+        map.clear();
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public Iterator<Sha256Hash> iterator() {
+        return map.keySet().iterator();
+    }
+}
@@ -18,24 +18,29 @@ package com.google.bitcoin.core;
 
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.HeightIndexedBlockStore;
 
+import javax.annotation.Nullable;
 import java.io.*;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
- * Wraps a {@link Block} object with extra data that can be derived from the block chain but is slow or inconvenient to
+ * Wraps a {@link Block} header with extra data that can be derived from the block chain but is slow or inconvenient to
  * calculate. By storing it alongside the block header we reduce the amount of work required significantly.
  * Recalculation is slow because the fields are cumulative - to find the chainWork you have to iterate over every
  * block in the chain back to the genesis block, which involves lots of seeking/loading etc. So we just keep a
  * running total: it's a disk space vs cpu/io tradeoff.<p>
  *
- * StoredBlocks are put inside a {@link BlockStore} which saves them to memory or disk.
+ * StoredBlocks are put inside a {@link BlockStore} which saves them to memory or disk. As stores and chains can hold
+ * very many of them, they keep the header in its compact wire format along with its hash, and the chain work as a
+ * fixed width number, rather than as objects.
  */
 public class StoredBlock implements Serializable {
-    private static final long serialVersionUID = -6097565241243701771L;
+    private static final long serialVersionUID = 2318516392751874466L;
 
     // A BigInteger representing the total amount of work done so far on this chain. As of May 2011 it takes 8
     // bytes to represent this field, so 12 bytes should be plenty for now.
@@ -43,21 +48,70 @@ public class StoredBlock implements Serializable {
     public static final byte[] EMPTY_BYTES = new byte[CHAIN_WORK_BYTES];
     public static final int COMPACT_SERIALIZED_SIZE = Block.HEADER_SIZE + CHAIN_WORK_BYTES + 4;  // for height
 
-    private Block header;
-    private BigInteger chainWork;
-    private int height;
+    // The header in the 80 bytes of its wire format, and its hash. A Block object is only made for it when one is
+    // asked for, as holding thousands of those (each with its own hashes and cached bytes) takes a lot more memory.
+    private final NetworkParameters params;
+    private final byte[] header;
+    private final Sha256Hash hash;
+    // The chain work as an unsigned number of CHAIN_WORK_BYTES bytes: the top 32 bits and the lower 64 bits.
+    private final int chainWorkHigh;
+    private final long chainWorkLow;
+    private final int height;
+    // The hash of the ancestor at getSkipHeight(height), which lets getAncestor() jump back through the chain instead
+    // of walking it block by block. Null if it isn't known.
+    @Nullable private Sha256Hash skipHash;
 
     public StoredBlock(Block header, BigInteger chainWork, int height) {
+        this(header, chainWork, height, null);
+    }
+
+    /**
+     * Creates a stored block which knows the hash of its ancestor at {@link #getSkipHeight(int)}. Block stores use this
+     * to restore the value of {@link #getSkipHash()} they saved. Only the header of the given block is kept.
+     */
+    public StoredBlock(Block header, BigInteger chainWork, int height, @Nullable Sha256Hash skipHash) {
+        checkArgument(chainWork.signum() >= 0, "Negative chain work");
+        checkState(chainWork.bitLength() <= CHAIN_WORK_BYTES * 8, "Ran out of space to store chain work!");
+        this.params = header.getParams();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(Block.HEADER_SIZE);
+        try {
+            header.writeHeader(stream);
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        this.header = stream.toByteArray();
+        this.hash = header.getHash();
+        this.chainWorkHigh = chainWork.shiftRight(64).intValue();
+        this.chainWorkLow = chainWork.longValue();
+        this.height = height;
+        this.skipHash = skipHash;
+    }
+
+    private StoredBlock(NetworkParameters params, byte[] header, int chainWorkHigh, long chainWorkLow, int height) {
+        this.params = params;
         this.header = header;
-        this.chainWork = chainWork;
+        this.hash = Sha256Hash.readReversed(Utils.doubleDigest(header), 0);
+        this.chainWorkHigh = chainWorkHigh;
+        this.chainWorkLow = chainWorkLow;
         this.height = height;
     }
 
     /**
-     * The block header this object wraps. The referenced block object must not have any transactions in it.
+     * The block header this object wraps, without any transactions. A new block object is returned on each call, so
+     * use {@link #getHash()} or {@link #getPrevBlockHash()} when that is all that's needed.
      */
     public Block getHeader() {
-        return header;
+        return Block.headerFromBytes(params, header, hash);
+    }
+
+    /** The hash of the block header, same as <tt>getHeader().getHash()</tt>. */
+    public Sha256Hash getHash() {
+        return hash;
+    }
+
+    /** The hash of the previous block in the chain, same as <tt>getHeader().getPrevBlockHash()</tt>. */
+    public Sha256Hash getPrevBlockHash() {
+        return Sha256Hash.readReversed(header, 4);
     }
 
     /**
@@ -66,7 +120,9 @@ public class StoredBlock implements Serializable {
      * then the work represented by a block is 10.
      */
     public BigInteger getChainWork() {
-        return chainWork;
+        byte[] bytes = new byte[CHAIN_WORK_BYTES];
+        writeChainWork(ByteBuffer.wrap(bytes));
+        return new BigInteger(1, bytes);
     }
 
     /**
@@ -76,22 +132,35 @@ public class StoredBlock implements Serializable {
         return height;
     }
 
+    /**
+     * The hash of this block's ancestor at {@link #getSkipHeight(int)}, or null if it isn't known. Block stores that
+     * can should save it along with the block, so that {@link #getAncestor(BlockStore, int)} stays fast.
+     */
+    @Nullable
+    public Sha256Hash getSkipHash() {
+        return skipHash;
+    }
+
     /** Returns true if this objects chainWork is higher than the others. */
     public boolean moreWorkThan(StoredBlock other) {
-        return chainWork.compareTo(other.chainWork) > 0;
+        if (chainWorkHigh != other.chainWorkHigh)
+            return (chainWorkHigh & 0xFFFFFFFFL) > (other.chainWorkHigh & 0xFFFFFFFFL);
+        // Flipping the sign bit makes a signed comparison order the values as unsigned ones.
+        return (chainWorkLow ^ Long.MIN_VALUE) > (other.chainWorkLow ^ Long.MIN_VALUE);
     }
 
     @Override
     public boolean equals(Object other) {
         if (!(other instanceof StoredBlock)) return false;
         StoredBlock o = (StoredBlock) other;
-        return o.header.equals(header) && o.chainWork.equals(chainWork) && o.height == height;
+        return o.hash.equals(hash) && o.chainWorkHigh == chainWorkHigh && o.chainWorkLow == chainWorkLow &&
+                o.height == height;
     }
 
     @Override
     public int hashCode() {
         // A better hashCode is possible, but this works for now.
-        return header.hashCode() ^ chainWork.hashCode() ^ height;
+        return hash.hashCode() ^ (int) (chainWorkLow ^ (chainWorkLow >>> 32)) ^ height;
     }
 
 
@@ -101,51 +170,126 @@ public class StoredBlock implements Serializable {
     public StoredBlock build(Block block) throws VerificationException {
         // Stored blocks track total work done in this chain, because the canonical chain is the one that represents
         // the largest amount of work done not the tallest.
-        BigInteger chainWork = this.chainWork.add(block.getWork());
+        BigInteger chainWork = getChainWork().add(block.getWork());
         int height = this.height + 1;
         return new StoredBlock(block, chainWork, height);
     }
 
+    /**
+     * Like {@link #build(Block)}, but also looks up the ancestor the new block can skip back to with
+     * {@link #getAncestor(BlockStore, int)}. That is done if this block knows its own skip ancestor, or is the genesis
+     * block, or is on the main chain of a {@link HeightIndexedBlockStore}, so that it doesn't take a walk through the
+     * whole chain.
+     */
+    public StoredBlock build(Block block, BlockStore store) throws VerificationException, BlockStoreException {
+        StoredBlock built = build(block);
+        int skipHeight = getSkipHeight(built.height);
+        StoredBlock skip = null;
+        if (skipHash != null || height == 0) {
+            skip = getAncestor(store, skipHeight);
+        } else if (store instanceof HeightIndexedBlockStore) {
+            // Blocks stored before skip hashes were kept, and blocks that follow a checkpoint or come from a store
+            // that doesn't save them, don't know their skip ancestors. The height index still finds the ancestor of a
+            // main chain block, so new blocks on the main chain get their skip hashes back.
+            skip = getMainChainAncestor((HeightIndexedBlockStore) store, skipHeight);
+        }
+        if (skip != null)
+            built.skipHash = skip.hash;
+        return built;
+    }
+
+    /**
+     * Returns the ancestor of this block at the given height, or this block if the height is its own. Returns null if
+     * the height is above this block or the ancestor isn't in the store. Takes a number of lookups that is logarithmic
+     * in the distance, as long as the blocks on the way know their skip ancestors, and constant if this block is on the
+     * main chain of a {@link HeightIndexedBlockStore}.
+     */
+    @Nullable
+    public StoredBlock getAncestor(BlockStore store, int height) throws BlockStoreException {
+        if (height > this.height || height < 0)
+            return null;
+        if (store instanceof HeightIndexedBlockStore) {
+            StoredBlock ancestor = getMainChainAncestor((HeightIndexedBlockStore) store, height);
+            if (ancestor != null)
+                return ancestor;
+        }
+        StoredBlock cursor = this;
+        while (cursor != null && cursor.height > height) {
+            int skipHeight = getSkipHeight(cursor.height);
+            int skipHeightPrev = getSkipHeight(cursor.height - 1);
+            // Take the skip unless it overshoots, or the previous block's skip gets closer to the height while still
+            // not overshooting it.
+            if (cursor.skipHash != null && (skipHeight == height ||
+                    (skipHeight > height && !(skipHeightPrev < skipHeight - 2 && skipHeightPrev >= height))))
+                cursor = store.get(cursor.skipHash);
+            else
+                cursor = cursor.getPrev(store);
+        }
+        return cursor;
+    }
+
+    // Returns the ancestor at the given height from the height index of the store, or null if this block isn't on the
+    // main chain of the store or the ancestor isn't in it.
+    @Nullable
+    private StoredBlock getMainChainAncestor(HeightIndexedBlockStore store, int height) throws BlockStoreException {
+        StoredBlock self = store.getByHeight(this.height);
+        if (self == null || !self.hash.equals(hash))
+            return null;
+        return store.getByHeight(height);
+    }
+
+    /**
+     * Returns the height of the ancestor whose hash a block at the given height keeps, see {@link #getSkipHash()}.
+     * This is the same choice as the reference client makes: the heights share many low bits that are zero, which
+     * keeps paths through the skips short.
+     */
+    public static int getSkipHeight(int height) {
+        if (height < 2)
+            return 0;
+        // Odd heights skip to a height one above the even one, so that paths from heights next to each other don't
+        // all merge into the same blocks.
+        return (height & 1) != 0 ? clearLowestOne(clearLowestOne(height - 1)) + 1 : clearLowestOne(height);
+    }
+
+    private static int clearLowestOne(int n) {
+        return n & (n - 1);
+    }
+
     /**
      * Given a block store, looks up the previous block in this chain. Convenience method for doing
-     * <tt>store.get(this.getHeader().getPrevBlockHash())</tt>.
+     * <tt>store.get(this.getPrevBlockHash())</tt>.
      *
      * @return the previous block in the chain or null if it was not found in the store.
      */
     public StoredBlock getPrev(BlockStore store) throws BlockStoreException {
-        return store.get(getHeader().getPrevBlockHash());
+        return store.get(getPrevBlockHash());
     }
 
     /** Serializes the stored block to a custom packed format. Used by {@link CheckpointManager}. */
     public void serializeCompact(ByteBuffer buffer) {
-        byte[] chainWorkBytes = getChainWork().toByteArray();
-        checkState(chainWorkBytes.length <= CHAIN_WORK_BYTES, "Ran out of space to store chain work!");
-        if (chainWorkBytes.length < CHAIN_WORK_BYTES) {
-            // Pad to the right size.
-            buffer.put(EMPTY_BYTES, 0, CHAIN_WORK_BYTES - chainWorkBytes.length);
-        }
-        buffer.put(chainWorkBytes);
+        writeChainWork(buffer);
         buffer.putInt(getHeight());
-        // Using unsafeBitcoinSerialize here can give us direct access to the same bytes we read off the wire,
-        // avoiding serialization round-trips.
-        byte[] bytes = getHeader().unsafeBitcoinSerialize();
-        buffer.put(bytes, 0, Block.HEADER_SIZE);  // Trim the trailing 00 byte (zero transactions).
+        buffer.put(header);
+    }
+
+    private void writeChainWork(ByteBuffer buffer) {
+        // Big endian, like BigInteger.toByteArray() but always CHAIN_WORK_BYTES long.
+        buffer.putInt(chainWorkHigh);
+        buffer.putLong(chainWorkLow);
     }
 
     /** De-serializes the stored block from a custom packed format. Used by {@link CheckpointManager}. */
     public static StoredBlock deserializeCompact(NetworkParameters params, ByteBuffer buffer) throws ProtocolException {
-        byte[] chainWorkBytes = new byte[StoredBlock.CHAIN_WORK_BYTES];
-        buffer.get(chainWorkBytes);
-        BigInteger chainWork = new BigInteger(1, chainWorkBytes);
+        int chainWorkHigh = buffer.getInt();
+        long chainWorkLow = buffer.getLong();
         int height = buffer.getInt();  // +4 bytes
-        byte[] header = new byte[Block.HEADER_SIZE + 1];    // Extra byte for the 00 transactions length.
-        buffer.get(header, 0, Block.HEADER_SIZE);
-        return new StoredBlock(new Block(params, header), chainWork, height);
+        byte[] header = new byte[Block.HEADER_SIZE];
+        buffer.get(header);
+        return new StoredBlock(params, header, chainWorkHigh, chainWorkLow, height);
     }
 
     @Override
     public String toString() {
-        return String.format("Block %s at height %d: %s",
-                getHeader().getHashAsString(), getHeight(), getHeader().toString());
+        return String.format("Block %s at height %d: %s", hash, getHeight(), getHeader().toString());
     }
 }
@@ -211,7 +211,7 @@ public class Transaction extends ChildMessage implements Serializable {
     public Sha256Hash getHash() {
         if (hash == null) {
             byte[] bits = bitcoinSerialize();
-            hash = new Sha256Hash(reverseBytes(doubleDigest(bits)));
+            hash = Sha256Hash.readReversed(doubleDigest(bits), 0);
         }
         return hash;
     }
@@ -314,7 +314,7 @@ public class Transaction extends ChildMessage implements Serializable {
             updatedAt = new Date(blockTime);
         }
 
-        addBlockAppearance(block.getHeader().getHash(), relativityOffset);
+        addBlockAppearance(block.getHash(), relativityOffset);
 
         if (bestChain) {
             TransactionConfidence transactionConfidence = getConfidence();
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.utils.Threading;
+import com.google.common.base.Joiner;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Broadcasts many transactions at once. It works like {@link TransactionBroadcast}, except that the transactions are
+ * announced to each chosen peer in as few "inv" messages as possible. The peers then ask for the ones they want, and
+ * {@link PeerGroup} answers from the transactions of this broadcast that haven't propagated yet. They are added to its
+ * {@link MemoryPool} too, but a large batch doesn't fit in there, so the PeerGroup keeps them until they propagated and
+ * counts the announcements of them that peers send back itself. A single listener follows how many peers announced
+ * each transaction back to us.</p>
+ *
+ * <p>Each transaction has its own future, which completes once enough peers have announced the transaction or it was
+ * included in a block.</p>
+ */
+public class TransactionBatchBroadcast {
+    private static final Logger log = LoggerFactory.getLogger(TransactionBatchBroadcast.class);
+
+    private final ReentrantLock lock = Threading.lock("batchbroadcast");
+    private final PeerGroup peerGroup;
+    private final List<Transaction> transactions;
+    private final List<SettableFuture<Transaction>> futures;
+    private int minConnections;
+    private volatile int numWaitingFor;
+    // The futures of the transactions that haven't propagated yet.
+    @GuardedBy("lock") private final Map<Sha256Hash, SettableFuture<Transaction>> pendingFutures;
+    private final ConfidenceChange confidenceChange = new ConfidenceChange();
+
+    public TransactionBatchBroadcast(PeerGroup peerGroup, List<Transaction> transactions) {
+        checkArgument(!transactions.isEmpty(), "No transactions to broadcast");
+        this.peerGroup = peerGroup;
+        this.transactions = new ArrayList<Transaction>(transactions);
+        this.futures = new ArrayList<SettableFuture<Transaction>>(transactions.size());
+        for (int i = 0; i < transactions.size(); i++)
+            futures.add(SettableFuture.<Transaction>create());
+        this.pendingFutures = new HashMap<Sha256Hash, SettableFuture<Transaction>>(transactions.size());
+        this.minConnections = Math.max(1, peerGroup.getMinBroadcastConnections());
+    }
+
+    /** Returns the futures for the transactions, in the order they were given. */
+    public List<ListenableFuture<Transaction>> futures() {
+        return Collections.<ListenableFuture<Transaction>>unmodifiableList(futures);
+    }
+
+    public void setMinConnections(int minConnections) {
+        this.minConnections = minConnections;
+    }
+
+    /** Returns how many of the transactions haven't propagated yet. */
+    public int getPendingCount() {
+        lock.lock();
+        try {
+            return pendingFutures.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public List<ListenableFuture<Transaction>> broadcast() {
+        log.info("Waiting for {} peers required for broadcast of {} transactions ...", minConnections, transactions.size());
+        ListenableFuture<PeerGroup> peerAvailabilityFuture = peerGroup.waitForPeers(minConnections);
+        peerAvailabilityFuture.addListener(new EnoughAvailablePeers(), Threading.SAME_THREAD);
+        return futures();
+    }
+
+    private class EnoughAvailablePeers implements Runnable {
+        public void run() {
+            // Peers are picked and waited for just like TransactionBroadcast does, see there for the reasoning.
+            List<Peer> peers = peerGroup.getConnectedPeers();    // snapshots
+            int numConnected = peers.size();
+            int numToBroadcastTo = (int) Math.max(1, Math.round(Math.ceil(peers.size() / 2.0)));
+            numWaitingFor = (int) Math.ceil((peers.size() - numToBroadcastTo) / 2.0);
+            Collections.shuffle(peers, TransactionBroadcast.random);
+            peers = peers.subList(0, numToBroadcastTo);
+            log.info("broadcastTransactions: We have {} peers, adding {} txns to the memory pool and announcing them " +
+                    "to {} peers, will wait for {}: {}", numConnected, transactions.size(), numToBroadcastTo,
+                    numWaitingFor, Joiner.on(",").join(peers));
+            // Have the PeerGroup keep the canonical versions of the transactions, so they can be served to the peers
+            // that ask for them even once the memory pool, which only holds so many, has dropped them.
+            MemoryPool memoryPool = peerGroup.getMemoryPool();
+            List<Transaction> pinned = new ArrayList<Transaction>(transactions.size());
+            lock.lock();
+            try {
+                for (int i = 0; i < transactions.size(); i++) {
+                    Transaction tx = memoryPool.intern(transactions.get(i));
+                    pinned.add(tx);
+                    pendingFutures.put(tx.getHash(), futures.get(i));
+                }
+            } finally {
+                lock.unlock();
+            }
+            peerGroup.pinBatchTransactions(pinned);
+            if (minConnections == 1) {
+                // As with TransactionBroadcast, we won't hear back from a single peer, so just send the transactions
+                // themselves and assume we're done.
+                for (Peer peer : peers) {
+                    try {
+                        for (Transaction tx : pinned)
+                            peer.sendMessage(tx);
+                    } catch (Exception e) {
+                        log.error("Caught exception sending to {}", peer, e);
+                    }
+                }
+                for (Transaction tx : pinned)
+                    complete(tx);
+                return;
+            }
+            for (Transaction tx : pinned)
+                tx.getConfidence().addEventListener(confidenceChange);
+            List<InventoryMessage> invs = new ArrayList<InventoryMessage>();
+            for (int i = 0; i < pinned.size(); i++) {
+                if (i % InventoryMessage.MAX_INVENTORY_ITEMS == 0)
+                    invs.add(new InventoryMessage(pinned.get(i).getParams()));
+                invs.get(invs.size() - 1).addTransaction(pinned.get(i));
+            }
+            for (Peer peer : peers) {
+                try {
+                    for (InventoryMessage inv : invs)
+                        peer.sendMessage(inv);
+                } catch (Exception e) {
+                    log.error("Caught exception sending to {}", peer, e);
+                }
+            }
+            // Some may have been announced or mined already.
+            for (Transaction tx : pinned)
+                checkPropagated(tx);
+        }
+    }
+
+    private void checkPropagated(Transaction tx) {
+        boolean mined = tx.getAppearsInHashes() != null;
+        if (tx.getConfidence().numBroadcastPeers() >= numWaitingFor || mined) {
+            // See TransactionBroadcast for why this is the point at which we're done.
+            tx.getConfidence().removeEventListener(confidenceChange);
+            complete(tx);
+        }
+    }
+
+    private void complete(Transaction tx) {
+        SettableFuture<Transaction> future;
+        int remaining;
+        lock.lock();
+        try {
+            future = pendingFutures.remove(tx.getHash());
+            remaining = pendingFutures.size();
+        } finally {
+            lock.unlock();
+        }
+        if (future == null)
+            return;
+        peerGroup.unpinBatchTransaction(tx);
+        if (remaining == 0) {
+            log.info("broadcastTransactions: all {} txns complete", transactions.size());
+            peerGroup.batchBroadcastComplete(this);
+        }
+        future.set(tx);  // RE-ENTRANCY POINT
+    }
+
+    // One listener is shared by all the transactions, rather than there being one per transaction.
+    private class ConfidenceChange implements TransactionConfidence.Listener {
+        public void onConfidenceChanged(Transaction tx, ChangeReason reason) {
+            checkPropagated(tx);
+        }
+    }
+}
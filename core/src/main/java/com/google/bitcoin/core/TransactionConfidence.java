@@ -23,6 +23,8 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.math.BigInteger;
 import java.util.ListIterator;
@@ -54,7 +56,8 @@ import java.util.concurrent.Executor;
  * been double spent and will never confirm unless there is another re-org.</p>
  *
  * <p>TransactionConfidence is updated via the {@link com.google.bitcoin.core.TransactionConfidence#notifyWorkDone(Block)}
- * method to ensure the block depth and work done are up to date.</p>
+ * method to ensure the block depth and work done are up to date. Confidences of transactions in a {@link Wallet}
+ * instead follow the wallet's view of the chain tip, and work out their depth and work done when asked.</p>
  * To make a copy that won't be changed, use {@link com.google.bitcoin.core.TransactionConfidence#duplicate()}.
  */
 public class TransactionConfidence implements Serializable {
@@ -75,6 +78,11 @@ public class TransactionConfidence implements Serializable {
     private int depth;
     // The cumulative work done for the blocks that bury this transaction.
     private BigInteger workDone = BigInteger.ZERO;
+    // If set, depth and workDone are as of when the tip had seen tipBlocks blocks and tipWork work. Whilst BUILDING,
+    // the transaction is buried by however many blocks the tip moved on since then. See catchUp().
+    @Nullable private transient ChainTip tip;
+    private transient int tipBlocks;
+    private transient BigInteger tipWork;
 
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
@@ -189,6 +197,9 @@ public class TransactionConfidence implements Serializable {
     public void addEventListener(Listener listener, Executor executor) {
         Preconditions.checkNotNull(listener);
         listeners.addIfAbsent(new ListenerRegistration<Listener>(listener, executor));
+        ChainTip tip = getChainTip();
+        if (tip != null)
+            tip.listenerAdded(this);
     }
 
     /**
@@ -227,6 +238,7 @@ public class TransactionConfidence implements Serializable {
     public synchronized void setAppearedAtChainHeight(int appearedAtChainHeight) {
         if (appearedAtChainHeight < 0)
             throw new IllegalArgumentException("appearedAtChainHeight out of range");
+        catchUp();
         this.appearedAtChainHeight = appearedAtChainHeight;
         this.depth = 1;
         setConfidenceType(ConfidenceType.BUILDING);
@@ -246,6 +258,7 @@ public class TransactionConfidence implements Serializable {
     public synchronized void setConfidenceType(ConfidenceType confidenceType) {
         if (confidenceType == this.confidenceType)
             return;
+        catchUp();
         this.confidenceType = confidenceType;
         if (confidenceType != ConfidenceType.DEAD) {
             overridingTransaction = null;
@@ -333,6 +346,7 @@ public class TransactionConfidence implements Serializable {
         if (getConfidenceType() != ConfidenceType.BUILDING)
             return false;   // Should this be an assert?
 
+        catchUp();
         this.depth++;
         this.workDone = this.workDone.add(block.getWork());
         return true;
@@ -349,6 +363,7 @@ public class TransactionConfidence implements Serializable {
      * the depth is zero.</p>
      */
     public synchronized int getDepthInBlocks() {
+        catchUp();
         return depth;
     }
 
@@ -356,6 +371,7 @@ public class TransactionConfidence implements Serializable {
      * Set the depth in blocks. Having one block confirmation is a depth of one.
      */
     public synchronized void setDepthInBlocks(int depth) {
+        catchUp();
         this.depth = depth;
     }
 
@@ -367,13 +383,72 @@ public class TransactionConfidence implements Serializable {
      * @return estimated number of hashes needed to reverse the transaction.
      */
     public synchronized BigInteger getWorkDone() {
+        catchUp();
         return workDone;
     }
 
     public synchronized void setWorkDone(BigInteger workDone) {
+        catchUp();
         this.workDone = workDone;
     }
 
+    /**
+     * Makes the depth and work done of this transaction follow the given tip whilst it's building, or stop following
+     * any tip if null. Used by the wallet, which moves the tip along as blocks arrive.
+     */
+    synchronized void setChainTip(@Nullable ChainTip tip) {
+        catchUp();
+        this.tip = tip;
+        if (tip != null) {
+            synchronized (tip) {
+                tipBlocks = tip.getBlocks();
+                tipWork = tip.getWork();
+            }
+        }
+    }
+
+    @Nullable
+    synchronized ChainTip getChainTip() {
+        return tip;
+    }
+
+    // Adds the blocks the tip has seen since we last looked to the depth and work done, so they can be read or changed.
+    private void catchUp() {
+        if (tip == null)
+            return;
+        int blocks;
+        BigInteger work;
+        synchronized (tip) {
+            blocks = tip.getBlocks();
+            work = tip.getWork();
+        }
+        if (confidenceType == ConfidenceType.BUILDING) {
+            depth += blocks - tipBlocks;
+            workDone = workDone.add(work.subtract(tipWork));
+        }
+        tipBlocks = blocks;
+        tipWork = work;
+    }
+
+    /** Returns true if any event listener other than the given one is registered. */
+    boolean hasListenersOtherThan(Listener listener) {
+        for (ListenerRegistration<Listener> registration : listeners) {
+            if (registration.listener != listener)
+                return true;
+        }
+        return false;
+    }
+
+    Transaction getTransaction() {
+        return transaction;
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        // The tip isn't serialized, so store the depth and work done as of now.
+        catchUp();
+        out.defaultWriteObject();
+    }
+
     /**
      * If this transaction has been overridden by a double spend (is dead), this call returns the overriding transaction.
      * Note that this call <b>can return null</b> if you have migrated an old wallet, as pre-Jan 2012 wallets did not
@@ -174,7 +174,10 @@ public class TransactionOutput extends ChildMessage implements Serializable {
         this.value = value;
     }
 
-    int getIndex() {
+    /**
+     * Returns the position of this output in its parent transaction, as used in a {@link TransactionOutPoint}.
+     */
+    public int getIndex() {
         checkNotNull(parentTransaction, "This output is not attached to a parent transaction.");
         for (int i = 0; i < parentTransaction.getOutputs().size(); i++) {
             if (parentTransaction.getOutputs().get(i) == this)
@@ -81,16 +81,16 @@ public class VerifiedBlockChain extends AbstractBlockChain {
     @Override
     protected StoredBlock addToBlockStore(StoredBlock storedPrev, Block header, TransactionOutputChanges txOutChanges)
             throws BlockStoreException, VerificationException {
-        StoredBlock newBlock = storedPrev.build(header);
-        blockStore.put(newBlock, new StoredTxOChanges(newBlock.getHeader().getHash(), txOutChanges));
+        StoredBlock newBlock = storedPrev.build(header, blockStore);
+        blockStore.put(newBlock, new StoredTxOChanges(newBlock.getHash(), txOutChanges));
         return newBlock;
     }
     
     @Override
     protected StoredBlock addToBlockStore(StoredBlock storedPrev, Block block)
             throws BlockStoreException, VerificationException {
-        StoredBlock newBlock = storedPrev.build(block);
-        blockStore.put(newBlock, new StoredTxOChanges(newBlock.getHeader().getHash(), block.transactions));
+        StoredBlock newBlock = storedPrev.build(block, blockStore);
+        blockStore.put(newBlock, new StoredTxOChanges(newBlock.getHash(), block.transactions));
         return newBlock;
     }
 
@@ -275,15 +275,15 @@ public class VerifiedBlockChain extends AbstractBlockChain {
     protected synchronized TransactionOutputChanges connectTransactions(StoredBlock newBlock)
             throws VerificationException, BlockStoreException, PrunedException {
         checkState(lock.isHeldByCurrentThread());
-        if (!params.passesCheckpoint(newBlock.getHeight(), newBlock.getHeader().getHash()))
+        if (!params.passesCheckpoint(newBlock.getHeight(), newBlock.getHash()))
             throw new VerificationException("Block failed checkpoint lockin at " + newBlock.getHeight());
         
         blockStore.beginBatchWrite();
-        StoredTxOChanges block = blockStore.getUndoBlock(newBlock.getHeader().getHash());
+        StoredTxOChanges block = blockStore.getUndoBlock(newBlock.getHash());
         if (block == null) {
             // We're trying to re-org too deep and the data needed has been deleted.
             blockStore.abortBatchWrite();
-            throw new PrunedException(newBlock.getHeader().getHash());
+            throw new PrunedException(newBlock.getHash());
         }
         TransactionOutputChanges txOutChanges;
         try {
@@ -414,8 +414,8 @@ public class VerifiedBlockChain extends AbstractBlockChain {
         checkState(lock.isHeldByCurrentThread());
         blockStore.beginBatchWrite();
         try {
-            StoredTxOChanges undoBlock = blockStore.getUndoBlock(oldBlock.getHeader().getHash());
-            if (undoBlock == null) throw new PrunedException(oldBlock.getHeader().getHash());
+            StoredTxOChanges undoBlock = blockStore.getUndoBlock(oldBlock.getHash());
+            if (undoBlock == null) throw new PrunedException(oldBlock.getHash());
             TransactionOutputChanges txOutChanges = undoBlock.getTxOutChanges();
             for(StoredTransactionOutput out : txOutChanges.txOutsSpent)
                 blockStore.addUnspentTransactionOutput(out);
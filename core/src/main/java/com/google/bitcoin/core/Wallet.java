@@ -36,6 +36,7 @@ import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,6 +51,7 @@ import java.math.BigInteger;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -131,6 +133,24 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     // All transactions together.
     final Map<Sha256Hash, Transaction> transactions;
 
+    // Index of the outputs in the unspent and pending pools that belong to us and are available for spending, keyed
+    // by the hash of the transaction that holds them. It lets balance queries and coin selection avoid walking every
+    // transaction and running isMine on every output. Transactions whose outputs may have changed state are recorded
+    // in dirtyUnspents as they move around and are re-examined lazily by updateMyUnspents, and myUnspentsValue is a
+    // running total of everything in the index, so the ESTIMATED balance doesn't require any iteration at all.
+    private transient LinkedHashMap<Sha256Hash, List<TransactionOutput>> myUnspents;
+    // The same outputs ordered by value and age, for coin selectors that can use it. See IndexedCoinSelector.
+    private transient UnspentOutputIndex unspentOutputIndex;
+    private transient HashSet<Sha256Hash> dirtyUnspents;
+    private transient BigInteger myUnspentsValue;
+    private transient boolean rebuildMyUnspents;
+
+    // Which wallet transactions appear in which blocks, on any chain, so a re-org only has to look at the transactions
+    // in the blocks being disconnected and connected rather than the whole wallet. Kept up to date as transactions are
+    // received and built from the appearsInHashes of every transaction when rebuildBlockTxIndex is set.
+    private transient SetMultimap<Sha256Hash, Transaction> blockTxIndex;
+    private transient boolean rebuildBlockTxIndex;
+
     // A list of public/private EC keys owned by this user. Access it using addKey[s], hasKey[s] and findPubKeyFromHash.
     private ArrayList<ECKey> keychain;
 
@@ -145,6 +165,22 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     private transient CopyOnWriteArrayList<ListenerRegistration<WalletEventListener>> eventListeners;
 
+    // Listeners that get coalesced change sets instead of per transaction callbacks. Changes made by a block are
+    // delivered at the end of notifyNewBestBlock/reorganize, others after the batch window has passed.
+    private transient CopyOnWriteArrayList<ListenerRegistration<WalletBatchListener>> batchListeners;
+    @Nullable private transient WalletChangeBatch.Builder currentBatch;
+    private transient boolean batchFlushScheduled;
+    // Set when a best chain transaction is received whilst batching, so we save once at the end of the block rather
+    // than once per transaction.
+    private transient boolean saveAfterBatch;
+    // The estimated balance as of the last batch delivered, or null if there are no batch listeners.
+    @Nullable private transient BigInteger batchBalance;
+    private transient volatile long vBatchWindowMillis;
+    /** How long changes that aren't caused by a block are collected for before being delivered to batch listeners. */
+    public static final long DEFAULT_BATCH_WINDOW_MILLIS = 500;
+    // Shared by all wallets, only created once somebody uses batch listeners.
+    @GuardedBy("Wallet.class") private static ScheduledThreadPoolExecutor batchTimer;
+
     // A listener that relays confidence changes from the transaction confidence object to the wallet event listener,
     // as a convenience to API users so they don't have to register on every transaction themselves.
     private transient TransactionConfidence.Listener txConfidenceListener;
@@ -153,6 +189,15 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     // in receive() via Transaction.setBlockAppearance(). As the SPVBlockChain always calls notifyNewBestBlock even if
     // it sent transactions to the wallet, without this we'd double count.
     private transient HashSet<Sha256Hash> ignoreNextNewBlock;
+    // Counts the blocks added to the best chain. The confidences of our transactions follow it to work out their depth
+    // and work done, so a new block doesn't have to touch every building transaction.
+    private transient ChainTip chainTip;
+    // Building transactions that get a DEPTH confidence change on every block: those that aren't yet buried
+    // vDepthEventLimit deep, and those with confidence listeners other than ours.
+    private transient LinkedHashSet<Transaction> depthWatched;
+    private transient volatile int vDepthEventLimit;
+    /** How deep a transaction gets before it stops causing DEPTH confidence changes, unless somebody listens to it. */
+    public static final int DEFAULT_DEPTH_EVENT_LIMIT = 100;
     // Whether or not to ignore nLockTime > 0 transactions that are received to the mempool.
     private boolean acceptRiskyTransactions;
 
@@ -217,6 +262,16 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     private void createTransientState() {
         ignoreNextNewBlock = new HashSet<Sha256Hash>();
+        chainTip = new ChainTip();
+        depthWatched = new LinkedHashSet<Transaction>();
+        vDepthEventLimit = DEFAULT_DEPTH_EVENT_LIMIT;
+        myUnspents = new LinkedHashMap<Sha256Hash, List<TransactionOutput>>();
+        unspentOutputIndex = new UnspentOutputIndex();
+        dirtyUnspents = new HashSet<Sha256Hash>();
+        myUnspentsValue = BigInteger.ZERO;
+        rebuildMyUnspents = true;
+        blockTxIndex = HashMultimap.create();
+        rebuildBlockTxIndex = true;
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
@@ -230,8 +285,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     lock.lock();
                     try {
                         checkBalanceFuturesLocked(null);
-                        queueOnTransactionConfidenceChanged(tx);
+                        queueOnTransactionConfidenceChanged(tx, reason);
                         maybeQueueOnWalletChanged();
+                        maybeScheduleBatchFlush();
                     } finally {
                         lock.unlock();
                     }
@@ -239,6 +295,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             }
         };
         acceptRiskyTransactions = false;
+        batchListeners = new CopyOnWriteArrayList<ListenerRegistration<WalletBatchListener>>();
+        currentBatch = null;
+        batchFlushScheduled = false;
+        saveAfterBatch = false;
+        batchBalance = null;
+        vBatchWindowMillis = DEFAULT_BATCH_WINDOW_MILLIS;
     }
 
     public NetworkParameters getNetworkParameters() {
@@ -277,7 +339,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public boolean removeKey(ECKey key) {
         lock.lock();
         try {
-            return keychain.remove(key);
+            boolean removed = keychain.remove(key);
+            if (removed)
+                rebuildMyUnspents = true;
+            return removed;
         } finally {
             lock.unlock();
         }
@@ -551,6 +616,22 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 }
             }
 
+            updateMyUnspents();
+            int numUnspentTxns = 0;
+            for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
+                List<TransactionOutput> expected = findMyUnspents(tx);
+                if (expected == null) continue;
+                numUnspentTxns++;
+                if (!expected.equals(myUnspents.get(tx.getHash()))) {
+                    success = false;
+                    log.error("Unspent output index is out of date for tx {}", tx.getHashAsString());
+                }
+            }
+            if (numUnspentTxns != myUnspents.size()) {
+                log.error("Unspent output index has {} entries but expected {}", myUnspents.size(), numUnspentTxns);
+                success = false;
+            }
+
             if (!success) {
                 try {
                     log.error(toString());
@@ -578,6 +659,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
         createTransientState();
+        for (Transaction tx : transactions.values()) {
+            TransactionConfidence confidence = tx.getConfidence();
+            confidence.setChainTip(chainTip);
+            if (confidence.getConfidenceType() == ConfidenceType.BUILDING &&
+                    confidence.getDepthInBlocks() < vDepthEventLimit)
+                depthWatched.add(tx);
+        }
     }
     
     /**
@@ -837,10 +925,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                          int relativityOffset) throws VerificationException {
         // Runs in a peer thread.
         checkState(lock.isHeldByCurrentThread());
-        BigInteger prevBalance = getBalance();
         Sha256Hash txHash = tx.getHash();
         boolean bestChain = blockType == SPVBlockChain.NewBlockType.BEST_CHAIN;
         boolean sideChain = blockType == SPVBlockChain.NewBlockType.SIDE_CHAIN;
+        // The balance is only needed for event listeners, which aren't told about transactions replayed by a re-org.
+        // Calculating it involves the whole wallet, which we don't want to do for every transaction in a re-org.
+        BigInteger prevBalance = !insideReorg && bestChain ? getBalance() : null;
 
         BigInteger valueSentFromMe = tx.getValueSentFromMe(this);
         BigInteger valueSentToMe = tx.getValueSentToMe(this);
@@ -848,7 +938,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
         log.info("Received tx{} for {} BTC: {} [{}] in block {}", sideChain ? " on a side chain" : "",
                 bitcoinValueToFriendlyString(valueDifference), tx.getHashAsString(), relativityOffset,
-                block != null ? block.getHeader().getHash() : "(unit test)");
+                block != null ? block.getHash() : "(unit test)");
 
         onWalletChangedSuppressions++;
 
@@ -863,6 +953,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         boolean wasPending = pending.remove(txHash) != null;
         if (wasPending)
             log.info("  <-pending");
+        dirtyUnspents.add(txHash);
 
         if (bestChain) {
             if (wasPending) {
@@ -899,6 +990,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // Mark the tx as appearing in this block so we can find it later after a re-org. This also tells the tx
             // confidence object about the block and sets its work done/depth appropriately.
             tx.setBlockAppearance(block, bestChain, relativityOffset);
+            if (!rebuildBlockTxIndex)
+                blockTxIndex.put(block.getHash(), tx);
             if (bestChain) {
                 // Don't notify this tx of work done in notifyNewBestBlock which will be called immediately after
                 // this method has been called by SPVBlockChain for all relevant transactions. Otherwise we'd double
@@ -932,17 +1025,29 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 // We pick one callback based on the value difference, though a tx can of course both send and receive
                 // coins from the wallet.
                 if (diff > 0) {
-                    queueOnCoinsReceived(tx, prevBalance, newBalance);
+                    queueOnCoinsReceived(tx, checkNotNull(prevBalance), newBalance);
                 } else if (diff < 0) {
-                    queueOnCoinsSent(tx, prevBalance, newBalance);
+                    queueOnCoinsSent(tx, checkNotNull(prevBalance), newBalance);
                 }
             }
             checkBalanceFuturesLocked(newBalance);
         }
 
         informConfidenceListenersIfNotReorganizing();
-        checkState(isConsistent());
-        saveNow();
+        // A re-org checks consistency once it's done, rather than after every transaction it replays.
+        if (!insideReorg)
+            checkState(isConsistent());
+        if (insideReorg) {
+            // reorganize() saves once all the blocks have been replayed.
+            saveAfterBatch = true;
+        } else if (bestChain && !batchListeners.isEmpty()) {
+            // notifyNewBestBlock will be invoked next and save once the whole block has been processed. If it never
+            // comes, for instance because the block failed to connect, the batch timer saves instead.
+            saveAfterBatch = true;
+            maybeScheduleBatchFlush();
+        } else {
+            saveNow();
+        }
     }
 
     private void informConfidenceListenersIfNotReorganizing() {
@@ -951,7 +1056,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : confidenceChanged.entrySet()) {
             final Transaction tx = entry.getKey();
             tx.getConfidence().queueListeners(entry.getValue());
-            queueOnTransactionConfidenceChanged(tx);
+            queueOnTransactionConfidenceChanged(tx, entry.getValue());
         }
         confidenceChanged.clear();
     }
@@ -966,40 +1071,106 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      * Invokes the onWalletChanged event listener if there were any affected transactions.</p>
      */
     public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
-        // Check to see if this block has been seen before.
-        Sha256Hash newBlockHash = block.getHeader().getHash();
-        if (newBlockHash.equals(getLastBlockSeenHash()))
-            return;
         lock.lock();
         try {
+            // Check to see if this block has been seen before.
+            Sha256Hash newBlockHash = block.getHash();
+            if (newBlockHash.equals(getLastBlockSeenHash())) {
+                if (saveAfterBatch)
+                    flushBatch(block);
+                return;
+            }
             // Store the new block hash.
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
-            // TODO: Clarify the code below.
-            // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their work done and depth.
-            Set<Transaction> transactions = getTransactions(true);
-            for (Transaction tx : transactions) {
-                if (ignoreNextNewBlock.contains(tx.getHash())) {
-                    // tx was already processed in receive() due to it appearing in this block, so we don't want to
-                    // notify the tx confidence of work done twice, it'd result in miscounting.
-                    ignoreNextNewBlock.remove(tx.getHash());
-                } else if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-                    tx.getConfidence().notifyWorkDone(block.getHeader());
-                    confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-                }
+            // Moving the tip buries all the BUILDING transactions one block deeper. The ones that appeared in this
+            // block already had their confidence set up in receive(), so take the block back off those, otherwise
+            // we'd double count.
+            BigInteger work = block.getHeader().getWork();
+            chainTip.add(work);
+            queueDepthChanges();
+            for (Sha256Hash hash : ignoreNextNewBlock) {
+                Transaction tx = transactions.get(hash);
+                if (tx == null) continue;
+                TransactionConfidence confidence = tx.getConfidence();
+                if (confidence.getConfidenceType() != ConfidenceType.BUILDING) continue;
+                confidence.setDepthInBlocks(confidence.getDepthInBlocks() - 1);
+                confidence.setWorkDone(confidence.getWorkDone().subtract(work));
+                depthWatched.add(tx);
             }
+            ignoreNextNewBlock.clear();
 
             informConfidenceListenersIfNotReorganizing();
             maybeQueueOnWalletChanged();
-            // Coalesce writes to avoid throttling on disk access when catching up with the chain.
-            saveLater();
+            if (!insideReorg && !batchListeners.isEmpty()) {
+                flushBatch(block);
+            } else {
+                // Coalesce writes to avoid throttling on disk access when catching up with the chain.
+                saveLater();
+            }
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Queues a DEPTH confidence change for the building transactions somebody may care about, now that the chain tip
+     * has moved. Stops watching transactions that are buried deep enough and have no listeners of their own.
+     */
+    private void queueDepthChanges() {
+        checkState(lock.isHeldByCurrentThread());
+        for (TransactionConfidence confidence : chainTip.takeListenedTo()) {
+            Transaction tx = confidence.getTransaction();
+            if (transactions.containsKey(tx.getHash()) && confidence.getConfidenceType() == ConfidenceType.BUILDING)
+                depthWatched.add(tx);
+        }
+        final int limit = vDepthEventLimit;
+        for (Iterator<Transaction> it = depthWatched.iterator(); it.hasNext(); ) {
+            Transaction tx = it.next();
+            TransactionConfidence confidence = tx.getConfidence();
+            if (confidence.getConfidenceType() != ConfidenceType.BUILDING || !transactions.containsKey(tx.getHash())) {
+                it.remove();
+                continue;
+            }
+            // Don't hide a more important change that happened to the transaction at the same time.
+            if (!confidenceChanged.containsKey(tx))
+                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+            if (confidence.getDepthInBlocks() >= limit && !confidence.hasListenersOtherThan(txConfidenceListener))
+                it.remove();
+        }
+    }
+
+    // Makes the confidence of the given wallet transaction follow our chain tip, watching it for depth changes if need be.
+    private void trackDepth(Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        confidence.setChainTip(chainTip);
+        if (confidence.getConfidenceType() == ConfidenceType.BUILDING &&
+                (confidence.getDepthInBlocks() < vDepthEventLimit ||
+                        confidence.hasListenersOtherThan(txConfidenceListener)))
+            depthWatched.add(tx);
+    }
+
+    /**
+     * <p>Sets how deep a transaction in the best chain has to be buried before the wallet stops queueing
+     * {@link TransactionConfidence.Listener.ChangeReason#DEPTH} confidence changes for it on every block, which
+     * defaults to {@link #DEFAULT_DEPTH_EVENT_LIMIT}. Transactions that have confidence listeners of their own, for
+     * instance because somebody is waiting on {@link TransactionConfidence#getDepthFuture(int)}, keep getting them
+     * no matter how deep they are.</p>
+     *
+     * <p>The depth and work done of a transaction are always up to date when read, this only controls which
+     * transactions are reported as changed. Raising it means every new block does work for more transactions.</p>
+     */
+    public void setDepthEventLimit(int limit) {
+        checkArgument(limit >= 0);
+        vDepthEventLimit = limit;
+    }
+
+    /** Returns the value set by {@link #setDepthEventLimit(int)}. */
+    public int getDepthEventLimit() {
+        return vDepthEventLimit;
+    }
+
     /**
      * Handle when a transaction becomes newly active on the best chain, either due to receiving a new block or a
      * re-org. Places the tx into the right pool, handles coinbase transactions, handles double-spends and so on.
@@ -1134,6 +1305,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 // If the transactions outputs are now all spent, it will be moved into the spent pool by the
                 // processTxFromBestChain method.
             }
+            dirtyUnspents.add(tx.getHash());
         }
     }
 
@@ -1189,6 +1361,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     private void maybeMovePool(Transaction tx, String context) {
         checkState(lock.isHeldByCurrentThread());
+        // Called whenever an input connects to or disconnects from tx, so its spendable outputs may have changed.
+        dirtyUnspents.add(tx.getHash());
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getHash()) != null) {
@@ -1231,6 +1405,64 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         return ListenerRegistration.removeFromList(listener, eventListeners);
     }
 
+    /**
+     * Adds a listener that is told about changes to the wallet in batches, see {@link WalletBatchListener}. Runs the
+     * listener in the user thread.
+     */
+    public void addBatchListener(WalletBatchListener listener) {
+        addBatchListener(listener, Threading.USER_THREAD);
+    }
+
+    /**
+     * <p>Adds a listener that is told about changes to the wallet in batches, see {@link WalletBatchListener}. The
+     * listener is executed by the given executor.</p>
+     *
+     * <p>Whilst any batch listeners are registered, auto saving is tied to the batches as well: a block that contains
+     * several relevant transactions causes a single immediate save once the whole block has been processed, rather
+     * than one save per transaction.</p>
+     */
+    public void addBatchListener(WalletBatchListener listener, Executor executor) {
+        lock.lock();
+        try {
+            if (batchBalance == null)
+                batchBalance = getBalance(BalanceType.ESTIMATED);
+            batchListeners.add(new ListenerRegistration<WalletBatchListener>(listener, executor));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the given batch listener object. Returns true if the listener was removed, false if that listener
+     * was never added.
+     */
+    public boolean removeBatchListener(WalletBatchListener listener) {
+        lock.lock();
+        try {
+            boolean removed = ListenerRegistration.removeFromList(listener, batchListeners);
+            if (batchListeners.isEmpty()) {
+                currentBatch = null;
+                batchBalance = null;
+                if (saveAfterBatch) {
+                    saveAfterBatch = false;
+                    saveNow();
+                }
+            }
+            return removed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets how long changes that don't come from a block, like pending transactions being announced by peers, are
+     * collected for before they're delivered to batch listeners. Defaults to {@link #DEFAULT_BATCH_WINDOW_MILLIS}.
+     */
+    public void setBatchWindow(long time, TimeUnit unit) {
+        checkArgument(time >= 0);
+        vBatchWindowMillis = unit.toMillis(time);
+    }
+
     /**
      * Calls {@link Wallet#commitTx} if tx is not already in the pending pool
      *
@@ -1360,6 +1592,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
         transactions.put(tx.getHash(), tx);
+        dirtyUnspents.add(tx.getHash());
+        indexBlockAppearances(tx);
         switch (pool) {
         case UNSPENT:
             checkState(unspent.put(tx.getHash(), tx) == null);
@@ -1379,6 +1613,43 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(txConfidenceListener, Threading.SAME_THREAD);
+        trackDepth(tx);
+    }
+
+    private void indexBlockAppearances(Transaction tx) {
+        Map<Sha256Hash, Integer> appearsIn = tx.getAppearsInHashes();
+        if (appearsIn == null || rebuildBlockTxIndex) return;
+        for (Sha256Hash blockHash : appearsIn.keySet())
+            blockTxIndex.put(blockHash, tx);
+    }
+
+    private void unindexBlockAppearances(Transaction tx) {
+        Map<Sha256Hash, Integer> appearsIn = tx.getAppearsInHashes();
+        if (appearsIn == null || rebuildBlockTxIndex) return;
+        for (Sha256Hash blockHash : appearsIn.keySet())
+            blockTxIndex.remove(blockHash, tx);
+    }
+
+    /**
+     * Returns the wallet transactions that appear in the given block, sorted by their position in it. Rebuilds the
+     * block index first if needed, which is the only time this has to look at the whole wallet.
+     */
+    private List<TxOffsetPair> getTransactionsInBlock(Sha256Hash blockHash) {
+        checkState(lock.isHeldByCurrentThread());
+        if (rebuildBlockTxIndex) {
+            blockTxIndex.clear();
+            rebuildBlockTxIndex = false;
+            for (Transaction tx : transactions.values())
+                indexBlockAppearances(tx);
+        }
+        List<TxOffsetPair> pairs = new ArrayList<TxOffsetPair>();
+        for (Transaction tx : blockTxIndex.get(blockHash)) {
+            if (transactions.get(tx.getHash()) != tx) continue;  // No longer in the wallet.
+            Integer offset = tx.getAppearsInHashes().get(blockHash);
+            pairs.add(new TxOffsetPair(tx, offset == null ? 0 : offset));
+        }
+        Collections.sort(pairs);
+        return pairs;
     }
 
     /**
@@ -1452,6 +1723,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 pending.clear();
                 dead.clear();
                 transactions.clear();
+                // Leave the confidences of the removed transactions following a tip that no longer moves.
+                chainTip = new ChainTip();
+                depthWatched.clear();
+                rebuildMyUnspents = true;
+                rebuildBlockTxIndex = true;
                 saveLater();
             } else {
                 throw new UnsupportedOperationException();
@@ -1474,9 +1750,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 if (isTransactionRisky(tx, null) && !acceptRiskyTransactions) {
                     log.debug("Found risky transaction {} in wallet during cleanup.", tx.getHashAsString());
                     if (!tx.isAnyOutputSpent()) {
+                        markInputsDirty(tx);
+                        dirtyUnspents.add(tx.getHash());
                         tx.disconnectInputs();
                         i.remove();
                         transactions.remove(tx.getHash());
+                        unindexBlockAppearances(tx);
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getHashAsString());
                     } else {
@@ -1900,30 +2179,23 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     }
             }
 
-            // Calculate a list of ALL potential candidates for spending and then ask a coin selector to provide us
-            // with the actual outputs that'll be used to gather the required amount of value. In this way, users
-            // can customize coin selection policies.
-            //
-            // Note that this code is poorly optimized: the spend candidates only alter when transactions in the wallet
-            // change - it could be pre-calculated and held in RAM, and this is probably an optimization worth doing.
-            // Note that output.isMine(this) needs to test the keychain which is currently an array, so it's
-            // O(candidate outputs ^ keychain.size())! There's lots of low hanging fruit here.
-            LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
+            // Ask a coin selector to pick, from all the potential candidates for spending, the outputs that'll be used
+            // to gather the required amount of value. In this way, users can customize coin selection policies. The
+            // candidates come from the unspent output index, so this doesn't have to scan the whole wallet.
+            CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
             CoinSelection bestCoinSelection;
             TransactionOutput bestChangeOutput = null;
             if (!req.emptyWallet) {
                 // This can throw InsufficientMoneyException.
                 FeeCalculation feeCalculation;
-                feeCalculation = new FeeCalculation(req, value, originalInputs, needAtLeastReferenceFee, candidates);
+                feeCalculation = new FeeCalculation(req, value, originalInputs, needAtLeastReferenceFee, selector);
                 bestCoinSelection = feeCalculation.bestCoinSelection;
                 bestChangeOutput = feeCalculation.bestChangeOutput;
             } else {
                 // We're being asked to empty the wallet. What this means is ensuring "tx" has only a single output
                 // of the total value we can currently spend as determined by the selector, and then subtracting the fee.
                 checkState(req.tx.getOutputs().size() == 1, "Empty wallet TX must have a single output only.");
-                CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
-                bestCoinSelection = selector.select(NetworkParameters.MAX_MONEY, candidates);
-                candidates = null;  // Selector took ownership and might have changed candidates. Don't access again.
+                bestCoinSelection = selectCoins(selector, NetworkParameters.MAX_MONEY);
                 req.tx.getOutput(0).setValue(bestCoinSelection.valueGathered);
                 totalOutput = bestCoinSelection.valueGathered;
             }
@@ -2000,15 +2272,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public LinkedList<TransactionOutput> calculateAllSpendCandidates(boolean excludeImmatureCoinbases) {
         lock.lock();
         try {
+            updateMyUnspents();
             LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
-            for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
+            for (List<TransactionOutput> outputs : myUnspents.values()) {
                 // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
-                if (excludeImmatureCoinbases && !tx.isMature()) continue;
-                for (TransactionOutput output : tx.getOutputs()) {
-                    if (!output.isAvailableForSpending()) continue;
-                    if (!output.isMine(this)) continue;
-                    candidates.add(output);
-                }
+                if (excludeImmatureCoinbases && !outputs.get(0).getParentTransaction().isMature()) continue;
+                candidates.addAll(outputs);
             }
             return candidates;
         } finally {
@@ -2044,6 +2313,84 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    /**
+     * Brings the unspent output index up to date by re-examining every transaction that was marked dirty since the
+     * last call, or the whole unspent and pending pools if the set of keys changed.
+     */
+    private void updateMyUnspents() {
+        checkState(lock.isHeldByCurrentThread());
+        if (rebuildMyUnspents) {
+            myUnspents.clear();
+            unspentOutputIndex.clear();
+            myUnspentsValue = BigInteger.ZERO;
+            dirtyUnspents.clear();
+            dirtyUnspents.addAll(unspent.keySet());
+            dirtyUnspents.addAll(pending.keySet());
+            rebuildMyUnspents = false;
+        }
+        if (dirtyUnspents.isEmpty())
+            return;
+        for (Sha256Hash hash : dirtyUnspents) {
+            List<TransactionOutput> old = myUnspents.remove(hash);
+            if (old != null) {
+                for (TransactionOutput output : old) {
+                    myUnspentsValue = myUnspentsValue.subtract(output.getValue());
+                    unspentOutputIndex.remove(output);
+                }
+            }
+            Transaction tx = unspent.get(hash);
+            if (tx == null)
+                tx = pending.get(hash);
+            if (tx == null)
+                continue;
+            List<TransactionOutput> outputs = findMyUnspents(tx);
+            if (outputs == null)
+                continue;
+            for (TransactionOutput output : outputs) {
+                myUnspentsValue = myUnspentsValue.add(output.getValue());
+                unspentOutputIndex.add(output);
+            }
+            myUnspents.put(hash, outputs);
+        }
+        dirtyUnspents.clear();
+    }
+
+    /** Returns the outputs of tx that are ours and available for spending, or null if there are none. */
+    @Nullable
+    private List<TransactionOutput> findMyUnspents(Transaction tx) {
+        List<TransactionOutput> outputs = null;
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (!output.isAvailableForSpending()) continue;
+            if (!output.isMine(this)) continue;
+            if (outputs == null)
+                outputs = new ArrayList<TransactionOutput>(1);
+            outputs.add(output);
+        }
+        return outputs;
+    }
+
+    /**
+     * Runs the given coin selector over the spendable outputs. An {@link IndexedCoinSelector} is given the unspent
+     * output index itself, other selectors get a fresh list of candidates that they are free to modify.
+     */
+    private CoinSelection selectCoins(CoinSelector selector, BigInteger target) {
+        checkState(lock.isHeldByCurrentThread());
+        if (selector instanceof IndexedCoinSelector) {
+            updateMyUnspents();
+            return ((IndexedCoinSelector) selector).select(target, unspentOutputIndex);
+        }
+        return selector.select(target, calculateAllSpendCandidates(true));
+    }
+
+    /** Marks the transactions connected to the inputs of tx as needing to be re-indexed, ahead of a disconnect. */
+    private void markInputsDirty(Transaction tx) {
+        for (TransactionInput input : tx.getInputs()) {
+            Transaction connected = input.getOutpoint().fromTx;
+            if (connected != null)
+                dirtyUnspents.add(connected.getHash());
+        }
+    }
+
     /** Returns the address used for change outputs. Note: this will probably go away in future. */
     public Address getChangeAddress() {
         lock.lock();
@@ -2093,6 +2440,9 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 keychain.add(key);
                 added++;
             }
+            // Outputs already in the wallet may have been sent to one of the new keys.
+            if (added > 0)
+                rebuildMyUnspents = true;
             queueOnKeysAdded(keys);
             // Force an auto-save immediately rather than queueing one, as keys are too important to risk losing.
             saveNow();
@@ -2282,10 +2632,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             if (balanceType == BalanceType.AVAILABLE) {
                 return getBalance(coinSelector);
             } else if (balanceType == BalanceType.ESTIMATED) {
-                LinkedList<TransactionOutput> all = calculateAllSpendCandidates(false);
-                BigInteger value = BigInteger.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
+                updateMyUnspents();
+                return myUnspentsValue;
             } else {
                 throw new AssertionError("Unknown balance type");  // Unreachable.
             }
@@ -2302,8 +2650,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             checkNotNull(selector);
-            LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
-            CoinSelection selection = selector.select(NetworkParameters.MAX_MONEY, candidates);
+            CoinSelection selection = selectCoins(selector, NetworkParameters.MAX_MONEY);
             return selection.valueGathered;
         } finally {
             lock.unlock();
@@ -2492,23 +2839,20 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             checkState(onWalletChangedSuppressions == 0);
             onWalletChangedSuppressions++;
 
-            // Map block hash to transactions that appear in it. We ensure that the map values are sorted according
-            // to their relative position within those blocks.
-            ArrayListMultimap<Sha256Hash, TxOffsetPair> mapBlockTx = ArrayListMultimap.create();
-            for (Transaction tx : getTransactions(true)) {
-                Map<Sha256Hash, Integer> appearsIn = tx.getAppearsInHashes();
-                if (appearsIn == null) continue;  // Pending.
-                for (Map.Entry<Sha256Hash, Integer> block : appearsIn.entrySet())
-                    mapBlockTx.put(block.getKey(), new TxOffsetPair(tx, block.getValue()));
+            // Look up the transactions that appear in the blocks on either side of the split, sorted according to
+            // their relative position within those blocks. The block index means we don't have to look at any others.
+            // This has to happen before anything is moved around, as replaying the new blocks adds to the index.
+            Map<Sha256Hash, List<TxOffsetPair>> mapBlockTx = new HashMap<Sha256Hash, List<TxOffsetPair>>();
+            for (StoredBlock b : Iterables.concat(oldBlocks, newBlocks)) {
+                Sha256Hash blockHash = b.getHash();
+                mapBlockTx.put(blockHash, getTransactionsInBlock(blockHash));
             }
-            for (Sha256Hash blockHash : mapBlockTx.keySet())
-                Collections.sort(mapBlockTx.get(blockHash));
 
             List<Sha256Hash> oldBlockHashes = new ArrayList<Sha256Hash>(oldBlocks.size());
             log.info("Old part of chain (top to bottom):");
             for (StoredBlock b : oldBlocks) {
                 log.info("  {}", b.getHeader().getHashAsString());
-                oldBlockHashes.add(b.getHeader().getHash());
+                oldBlockHashes.add(b.getHash());
             }
             log.info("New part of chain (top to bottom):");
             for (StoredBlock b : newBlocks) {
@@ -2539,6 +2883,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                             TransactionInput input = output.getSpentBy();
                             if (input != null) input.disconnect();
                         }
+                        markInputsDirty(tx);
+                        dirtyUnspents.add(txHash);
                         tx.disconnectInputs();
                         oldChainTxns.add(tx);
                         unspent.remove(txHash);
@@ -2575,13 +2921,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 workDoneToSubtract = workDoneToSubtract.add(b.getHeader().getWork());
             }
             log.info("depthToSubtract = " + depthToSubtract + ", workDoneToSubtract = " + workDoneToSubtract);
-            // Remove depthToSubtract and workDoneToSubtract from all transactions in the wallet except for pending.
-            subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, spent.values());
-            subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, unspent.values());
-            subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, dead.values());
+            // Remove depthToSubtract and workDoneToSubtract from all the BUILDING transactions in the wallet, by
+            // moving back the tip their confidences follow.
+            chainTip.subtract(depthToSubtract, workDoneToSubtract);
+            queueDepthChanges();
 
             // The effective last seen block is now the split point so set the lastSeenBlockHash.
-            setLastBlockSeenHash(splitPoint.getHeader().getHash());
+            setLastBlockSeenHash(splitPoint.getHash());
 
             // For each block in the new chain, work forwards calling receive() and notifyNewBestBlock().
             // This will pull them back out of the pending pool, or if the tx didn't appear in the old chain and
@@ -2589,7 +2935,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // conflict.
             for (StoredBlock block : newBlocks) {
                 log.info("Replaying block {}", block.getHeader().getHashAsString());
-                for (TxOffsetPair pair : mapBlockTx.get(block.getHeader().getHash())) {
+                for (TxOffsetPair pair : mapBlockTx.get(block.getHash())) {
                     log.info("  tx {}", pair.tx.getHash());
                     try {
                         receive(pair.tx, block, SPVBlockChain.NewBlockType.BEST_CHAIN, pair.offset);
@@ -2609,26 +2955,19 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             maybeQueueOnWalletChanged();
             checkBalanceFuturesLocked(balance);
             informConfidenceListenersIfNotReorganizing();
-            saveLater();
+            if (!batchListeners.isEmpty()) {
+                flushBatch(newBlocks.isEmpty() ? null : newBlocks.get(newBlocks.size() - 1));
+            } else if (saveAfterBatch) {
+                saveAfterBatch = false;
+                saveNow();
+            } else {
+                saveLater();
+            }
         } finally {
             lock.unlock();
         }
     }
 
-    /**
-     * Subtract the supplied depth and work done from the given transactions.
-     */
-    private void subtractDepthAndWorkDone(int depthToSubtract, BigInteger workDoneToSubtract,
-                                          Collection<Transaction> transactions) {
-        for (Transaction tx : transactions) {
-            if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-                tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() - depthToSubtract);
-                tx.getConfidence().setWorkDone(tx.getConfidence().getWorkDone().subtract(workDoneToSubtract));
-                confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-            }
-        }
-    }
-
     /**
      * Returns an immutable view of the transactions currently waiting for network confirmations.
      */
@@ -3088,41 +3427,54 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     @Override
     public BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
         BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
+        List<byte[]> elements = new ArrayList<byte[]>();
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                filter.insert(key.getPubKey());
-                filter.insert(key.getPubKeyHash());
-            }
-
-            for (Script script : watchedScripts) {
-                for (ScriptChunk chunk : script.getChunks()) {
-                    // Only add long (at least 64 bit) data to the bloom filter.
-                    // If any long constants become popular in scripts, we will need logic
-                    // here to exclude them.
-                    if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH) {
-                        filter.insert(chunk.data);
-                    }
-                }
-            }
+            for (ECKey key : keychain)
+                getBloomFilterElements(key, elements);
+            for (Script script : watchedScripts)
+                getBloomFilterElements(script, elements);
         } finally {
             lock.unlock();
         }
-        for (Transaction tx : getTransactions(false)) {
-            for (int i = 0; i < tx.getOutputs().size(); i++) {
-                TransactionOutput out = tx.getOutputs().get(i);
-                try {
-                    if (isTxOutputBloomFilterable(out)) {
-                        TransactionOutPoint outPoint = new TransactionOutPoint(params, i, tx);
-                        filter.insert(outPoint.bitcoinSerialize());
-                    }
-                } catch (ScriptException e) {
-                    throw new RuntimeException(e); // If it is ours, we parsed the script correctly, so this shouldn't happen
+        for (Transaction tx : getTransactions(false))
+            getBloomFilterElements(tx, elements);
+        for (byte[] element : elements)
+            filter.insert(element);
+        return filter;
+    }
+
+    // The following add the objects that getBloomFilter() inserts into the filter for a key, a watched script or the
+    // relevant outputs of a transaction to the given list. PeerGroup uses them to add new keys, scripts and outputs to
+    // an existing filter.
+
+    static void getBloomFilterElements(ECKey key, List<byte[]> elements) {
+        elements.add(key.getPubKey());
+        elements.add(key.getPubKeyHash());
+    }
+
+    static void getBloomFilterElements(Script script, List<byte[]> elements) {
+        for (ScriptChunk chunk : script.getChunks()) {
+            // Only add long (at least 64 bit) data to the bloom filter.
+            // If any long constants become popular in scripts, we will need logic
+            // here to exclude them.
+            if (!chunk.isOpCode() && chunk.data.length >= MINIMUM_BLOOM_DATA_LENGTH)
+                elements.add(chunk.data);
+        }
+    }
+
+    void getBloomFilterElements(Transaction tx, List<byte[]> elements) {
+        for (int i = 0; i < tx.getOutputs().size(); i++) {
+            TransactionOutput out = tx.getOutputs().get(i);
+            try {
+                if (isTxOutputBloomFilterable(out)) {
+                    TransactionOutPoint outPoint = new TransactionOutPoint(params, i, tx);
+                    elements.add(outPoint.bitcoinSerialize());
                 }
+            } catch (ScriptException e) {
+                throw new RuntimeException(e); // If it is ours, we parsed the script correctly, so this shouldn't happen
             }
         }
-
-        return filter;
     }
 
     private boolean isTxOutputBloomFilterable(TransactionOutput out) {
@@ -3309,8 +3661,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     // Boilerplate for running event listeners - dispatches events onto the user code thread (where we don't do
     // anything and hold no locks).
 
-    private void queueOnTransactionConfidenceChanged(final Transaction tx) {
+    private void queueOnTransactionConfidenceChanged(final Transaction tx,
+                                                    TransactionConfidence.Listener.ChangeReason reason) {
         checkState(lock.isHeldByCurrentThread());
+        if (!batchListeners.isEmpty())
+            batch().confidenceChanged(tx, reason);
         for (final ListenerRegistration<WalletEventListener> registration : eventListeners) {
             if (registration.executor == Threading.SAME_THREAD) {
                 registration.listener.onTransactionConfidenceChanged(this, tx);
@@ -3331,6 +3686,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         checkState(lock.isHeldByCurrentThread());
         checkState(onWalletChangedSuppressions >= 0);
         if (onWalletChangedSuppressions > 0) return;
+        if (!batchListeners.isEmpty()) {
+            batch().walletChanged();
+            maybeScheduleBatchFlush();
+        }
         for (final ListenerRegistration<WalletEventListener> registration : eventListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -3343,6 +3702,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     private void queueOnCoinsReceived(final Transaction tx, final BigInteger balance, final BigInteger newBalance) {
         checkState(lock.isHeldByCurrentThread());
+        if (!batchListeners.isEmpty())
+            batch().transactionAdded(tx);
         for (final ListenerRegistration<WalletEventListener> registration : eventListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -3355,6 +3716,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     private void queueOnCoinsSent(final Transaction tx, final BigInteger prevBalance, final BigInteger newBalance) {
         checkState(lock.isHeldByCurrentThread());
+        if (!batchListeners.isEmpty())
+            batch().transactionAdded(tx);
         for (final ListenerRegistration<WalletEventListener> registration : eventListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -3368,6 +3731,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     private void queueOnReorganize() {
         checkState(lock.isHeldByCurrentThread());
         checkState(insideReorg);
+        if (!batchListeners.isEmpty())
+            batch().reorganized();
         for (final ListenerRegistration<WalletEventListener> registration : eventListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -3402,6 +3767,85 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    private WalletChangeBatch.Builder batch() {
+        if (currentBatch == null)
+            currentBatch = new WalletChangeBatch.Builder(checkNotNull(batchBalance));
+        return currentBatch;
+    }
+
+    // Changes that aren't caused by a block are delivered once the batch window has passed.
+    private void maybeScheduleBatchFlush() {
+        checkState(lock.isHeldByCurrentThread());
+        if (batchFlushScheduled)
+            return;
+        batchFlushScheduled = true;
+        getBatchTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                lock.lock();
+                try {
+                    batchFlushScheduled = false;
+                    // Deliver and save whatever is pending even if a block is still being processed: the rest of
+                    // it ends up in the next batch, and changes aren't left unsaved if notifyNewBestBlock never runs.
+                    flushBatch(null);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }, vBatchWindowMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Delivers the changes collected since the last batch, if any, and saves the wallet. The given block is the one
+     * that ended the batch, or null if the batch window ran out.
+     */
+    private void flushBatch(@Nullable StoredBlock block) {
+        lock.lock();
+        try {
+            if (insideReorg)
+                return;
+            boolean save = saveAfterBatch;
+            saveAfterBatch = false;
+            WalletChangeBatch.Builder builder = currentBatch;
+            currentBatch = null;
+            if (builder != null && !builder.isEmpty() && !batchListeners.isEmpty()) {
+                BigInteger balance = getBalance(BalanceType.ESTIMATED);
+                queueOnWalletChanges(builder.build(balance, block));
+                batchBalance = balance;
+            }
+            if (save)
+                saveNow();
+            else if (block != null)
+                saveLater();  // Coalesce writes to avoid throttling on disk access when catching up with the chain.
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getBatchTimer() {
+        if (batchTimer == null) {
+            batchTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+                    .setDaemon(true)
+                    .setNameFormat("Wallet batch timer")
+                    .build());
+            batchTimer.setKeepAliveTime(5, TimeUnit.SECONDS);
+            batchTimer.allowCoreThreadTimeOut(true);
+        }
+        return batchTimer;
+    }
+
+    private void queueOnWalletChanges(final WalletChangeBatch changes) {
+        checkState(lock.isHeldByCurrentThread());
+        for (final ListenerRegistration<WalletBatchListener> registration : batchListeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onWalletChanges(Wallet.this, changes);
+                }
+            });
+        }
+    }
+
     /////////////////////////////////////////////////////////////////////////////////////////////////////////////////
     //
     // Fee calculation code.
@@ -3411,7 +3855,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         private TransactionOutput bestChangeOutput;
 
         public FeeCalculation(SendRequest req, BigInteger value, List<TransactionInput> originalInputs,
-                              boolean needAtLeastReferenceFee, LinkedList<TransactionOutput> candidates) throws InsufficientMoneyException {
+                              boolean needAtLeastReferenceFee, CoinSelector selector) throws InsufficientMoneyException {
             checkState(lock.isHeldByCurrentThread());
             // There are 3 possibilities for what adding change might do:
             // 1) No effect
@@ -3449,9 +3893,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 BigInteger additionalValueSelected = additionalValueForNextCategory;
 
                 // Of the coins we could spend, pick some that we actually will spend.
-                CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
-                // selector is allowed to modify candidates list.
-                CoinSelection selection = selector.select(valueNeeded, new LinkedList<TransactionOutput>(candidates));
+                CoinSelection selection = selectCoins(selector, valueNeeded);
                 // Can we afford this?
                 if (selection.valueGathered.compareTo(valueNeeded) < 0) {
                     valueMissing = valueNeeded.subtract(selection.valueGathered);
@@ -0,0 +1,32 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+/**
+ * <p>Implementors are told about changes to a {@link Wallet} in batches rather than one transaction at a time. This
+ * is much cheaper than a {@link WalletEventListener} when syncing a busy wallet with the block chain, as one event is
+ * queued per block instead of several per relevant transaction.</p>
+ *
+ * <p>Register with {@link Wallet#addBatchListener(WalletBatchListener)}.</p>
+ */
+public interface WalletBatchListener {
+    /**
+     * Called with every non-empty batch of changes, in the order they happened. It's safe to modify the wallet in
+     * this callback.
+     */
+    void onWalletChanges(Wallet wallet, WalletChangeBatch changes);
+}
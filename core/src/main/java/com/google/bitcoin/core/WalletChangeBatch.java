@@ -0,0 +1,147 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A coalesced set of changes made to a {@link Wallet}, delivered to a {@link WalletBatchListener}. A batch covers
+ * either everything a single block (or re-organization) did to the wallet, or everything that happened outside of
+ * blocks during the wallet's batch window, for example transactions being broadcast and seen by peers.</p>
+ *
+ * <p>Each transaction appears at most once in each collection, no matter how often it changed within the batch.</p>
+ */
+public class WalletChangeBatch {
+    private final List<Transaction> transactionsAdded;
+    private final Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanges;
+    private final BigInteger prevBalance;
+    private final BigInteger newBalance;
+    private final boolean reorganized;
+    @Nullable private final StoredBlock block;
+
+    private WalletChangeBatch(Builder builder, BigInteger newBalance, @Nullable StoredBlock block) {
+        this.transactionsAdded = ImmutableList.copyOf(builder.transactionsAdded);
+        this.confidenceChanges = ImmutableMap.copyOf(builder.confidenceChanges);
+        this.prevBalance = builder.prevBalance;
+        this.newBalance = newBalance;
+        this.reorganized = builder.reorganized;
+        this.block = block;
+    }
+
+    /**
+     * Transactions that sent coins to or from the wallet for the first time in this batch, in the order they were
+     * seen. These are the transactions {@link WalletEventListener#onCoinsReceived} and
+     * {@link WalletEventListener#onCoinsSent} are called for.
+     */
+    public List<Transaction> getTransactionsAdded() {
+        return transactionsAdded;
+    }
+
+    /**
+     * Transactions whose confidence changed, mapped to the most significant reason: a change of type beats a change
+     * of depth, which beats a change in the peers that announced it.
+     */
+    public Map<Transaction, TransactionConfidence.Listener.ChangeReason> getConfidenceChanges() {
+        return confidenceChanges;
+    }
+
+    /** The estimated balance before the first change in this batch. */
+    public BigInteger getPrevBalance() {
+        return prevBalance;
+    }
+
+    /** The estimated balance after the last change in this batch. */
+    public BigInteger getNewBalance() {
+        return newBalance;
+    }
+
+    /** The change in estimated balance over the batch, which may be negative. */
+    public BigInteger getBalanceDelta() {
+        return newBalance.subtract(prevBalance);
+    }
+
+    /** Whether a block chain re-organization happened during this batch. */
+    public boolean isReorganized() {
+        return reorganized;
+    }
+
+    /** The best chain block that closed this batch, or null if it was closed by the batch window running out. */
+    @Nullable
+    public StoredBlock getBlock() {
+        return block;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d txns added, %d confidence changes, balance %s -> %s%s%s", transactionsAdded.size(),
+                confidenceChanges.size(), Utils.bitcoinValueToFriendlyString(prevBalance),
+                Utils.bitcoinValueToFriendlyString(newBalance), reorganized ? ", reorganized" : "",
+                block != null ? " at block " + block.getHeight() : "");
+    }
+
+    /** Collects changes as they happen. Used by the wallet with its lock held. */
+    static class Builder {
+        private final LinkedHashSet<Transaction> transactionsAdded = new LinkedHashSet<Transaction>();
+        private final LinkedHashMap<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanges =
+                new LinkedHashMap<Transaction, TransactionConfidence.Listener.ChangeReason>();
+        private final BigInteger prevBalance;
+        private boolean reorganized;
+        private boolean walletChanged;
+
+        Builder(BigInteger prevBalance) {
+            this.prevBalance = prevBalance;
+        }
+
+        void transactionAdded(Transaction tx) {
+            transactionsAdded.add(tx);
+            walletChanged = true;
+        }
+
+        void confidenceChanged(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
+            TransactionConfidence.Listener.ChangeReason prev = confidenceChanges.get(tx);
+            // The enum is declared in order of significance, TYPE first.
+            if (prev == null || reason.ordinal() < prev.ordinal())
+                confidenceChanges.put(tx, reason);
+            walletChanged = true;
+        }
+
+        void walletChanged() {
+            walletChanged = true;
+        }
+
+        void reorganized() {
+            reorganized = true;
+            walletChanged = true;
+        }
+
+        boolean isEmpty() {
+            return !walletChanged;
+        }
+
+        WalletChangeBatch build(BigInteger newBalance, @Nullable StoredBlock block) {
+            return new WalletChangeBatch(this, newBalance, block);
+        }
+    }
+}
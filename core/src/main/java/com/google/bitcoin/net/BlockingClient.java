@@ -23,11 +23,11 @@ import javax.net.SocketFactory;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -44,7 +44,6 @@ public class BlockingClient implements MessageWriteTarget {
     private static final int BUFFER_SIZE_LOWER_BOUND = 4096;
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
-    private final ByteBuffer dbuf;
     private Socket socket;
     private volatile boolean vCloseRequested = false;
 
@@ -62,30 +61,51 @@ public class BlockingClient implements MessageWriteTarget {
      */
     public BlockingClient(final SocketAddress serverAddress, final StreamParser parser,
                           final int connectTimeoutMillis, final SocketFactory socketFactory, @Nullable final Set<BlockingClient> clientSet) throws IOException {
+        this(serverAddress, parser, connectTimeoutMillis, socketFactory, clientSet, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                Thread t = new Thread(command);
+                t.setDaemon(true);
+                t.start();
+            }
+        }, null);
+    }
+
+    /**
+     * Creates a client whose network thread is provided by the given executor, which must run the task straight away
+     * and on a thread of its own, as the task blocks for as long as the connection is open. If a buffer pool is given,
+     * the read buffer is taken from it once connected and given back once closed.
+     */
+    BlockingClient(final SocketAddress serverAddress, final StreamParser parser, final int connectTimeoutMillis,
+                   final SocketFactory socketFactory, @Nullable final Set<BlockingClient> clientSet, Executor executor,
+                   @Nullable final ReadBufferPool bufferPool) throws IOException {
         // Try to fit at least one message in the network buffer, but place an upper and lower limit on its size to make
         // sure it doesnt get too large or have to call read too often.
-        dbuf = ByteBuffer.allocateDirect(Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        final int bufferSize = Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND);
         parser.setWriteTarget(this);
         socket = socketFactory.createSocket();
-        Thread t = new Thread() {
+        executor.execute(new Runnable() {
             @Override
             public void run() {
+                Thread thread = Thread.currentThread();
+                String oldName = thread.getName();
+                thread.setName("BlockingClient network thread for " + serverAddress);
                 if (clientSet != null)
                     clientSet.add(BlockingClient.this);
+                ByteBuffer dbuf = null;
                 try {
-                    InetSocketAddress iServerAddress = (InetSocketAddress)serverAddress;
                     socket.connect(serverAddress, connectTimeoutMillis);
                     parser.connectionOpened();
                     InputStream stream = socket.getInputStream();
-                    byte[] readBuff = new byte[dbuf.capacity()];
+                    dbuf = bufferPool != null ? bufferPool.take(bufferSize) : ByteBuffer.allocate(bufferSize);
 
                     while (true) {
-                        // TODO Kill the message duplication here
-                        checkState(dbuf.remaining() > 0 && dbuf.remaining() <= readBuff.length);
-                        int read = stream.read(readBuff, 0, Math.max(1, Math.min(dbuf.remaining(), stream.available())));
+                        // Read straight into the buffer's backing array, so the bytes are only copied by the parser.
+                        checkState(dbuf.remaining() > 0);
+                        int read = stream.read(dbuf.array(), dbuf.arrayOffset() + dbuf.position(), dbuf.remaining());
                         if (read == -1)
                             return;
-                        dbuf.put(readBuff, 0, read);
+                        dbuf.position(dbuf.position() + read);
                         // "flip" the buffer - setting the limit to the current position and setting position to 0
                         dbuf.flip();
                         // Use parser.receiveBytes's return value as a double-check that it stopped reading at the right
@@ -108,12 +128,12 @@ public class BlockingClient implements MessageWriteTarget {
                     if (clientSet != null)
                         clientSet.remove(BlockingClient.this);
                     parser.connectionClosed();
+                    if (dbuf != null && bufferPool != null)
+                        bufferPool.give(dbuf);
+                    thread.setName(oldName);
                 }
             }
-        };
-        t.setName("BlockingClient network thread for " + serverAddress);
-        t.setDaemon(true);
-        t.start();
+        });
     }
 
     /**
@@ -142,4 +162,18 @@ public class BlockingClient implements MessageWriteTarget {
             throw e;
         }
     }
+
+    @Override
+    public synchronized void writeBytes(byte[] header, byte[] payload) throws IOException {
+        try {
+            OutputStream stream = socket.getOutputStream();
+            stream.write(header);
+            stream.write(payload);
+            stream.flush();
+        } catch (IOException e) {
+            log.error("Error writing message to connection, closing connection", e);
+            closeConnection();
+            throw e;
+        }
+    }
 }
@@ -25,24 +25,42 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
  * <p>A thin wrapper around a set of {@link BlockingClient}s.</p>
  *
+ * <p>Each connection still needs a thread of its own for blocking reads, but the threads come from a pool owned by the
+ * manager, so a thread whose connection closed is reused by the next connection rather than being started afresh.
+ * Threads are created with {@link #setThreadStackSize(long)} bytes of stack, and read buffers are likewise reused, which
+ * keeps the cost of a large number of connections down.</p>
+ *
  * <p>Generally, using {@link NioClient} and {@link NioClientManager} should be preferred over {@link BlockingClient}
  * and {@link BlockingClientManager} as they scale significantly better, unless you wish to connect over a proxy or use
  * some other network settings that cannot be set using NIO.</p>
  */
 public class BlockingClientManager extends AbstractIdleService implements ClientConnectionManager {
+    // Enough for the buffers of a few hundred connections at the largest buffer size.
+    private static final long MAX_POOLED_BUFFER_BYTES = 16 * 1024 * 1024;
+    // Idle threads wait this long for a new connection before they exit.
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 60;
+
     private final SocketFactory socketFactory;
     private final Set<BlockingClient> clients = Collections.synchronizedSet(new HashSet<BlockingClient>());
+    private final ReadBufferPool bufferPool = new ReadBufferPool(MAX_POOLED_BUFFER_BYTES);
+    private final ThreadPoolExecutor executor;
 
     private int connectTimeoutMillis = 1000;
+    private volatile long vThreadStackSize = 0;
 
     public BlockingClientManager() {
-        socketFactory = SocketFactory.getDefault();
+        this(SocketFactory.getDefault());
     }
 
     /**
@@ -51,6 +69,15 @@ public class BlockingClientManager extends AbstractIdleService implements Client
      */
     public BlockingClientManager(SocketFactory socketFactory) {
         this.socketFactory = checkNotNull(socketFactory);
+        executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(null, r, "BlockingClientManager network thread", vThreadStackSize);
+                t.setDaemon(true);
+                return t;
+            }
+        });
     }
 
     @Override
@@ -58,12 +85,32 @@ public class BlockingClientManager extends AbstractIdleService implements Client
         if (!isRunning())
             throw new IllegalStateException();
         try {
-            new BlockingClient(serverAddress, parser, connectTimeoutMillis, socketFactory, clients);
+            new BlockingClient(serverAddress, parser, connectTimeoutMillis, socketFactory, clients, executor, bufferPool);
         } catch (IOException e) {
             throw new RuntimeException(e); // This should only happen if we are, eg, out of system resources
         }
     }
 
+    /**
+     * Sets the stack size, in bytes, of network threads started from now on. 0, the default, uses the platform's
+     * default stack size. Peer messages are processed on these threads, so setting this too low will cause
+     * {@link StackOverflowError}s, but a few hundred kilobytes is enough and saves memory with many connections.
+     */
+    public void setThreadStackSize(long threadStackSize) {
+        checkArgument(threadStackSize >= 0);
+        this.vThreadStackSize = threadStackSize;
+    }
+
+    /** Returns the number of network threads, including idle ones waiting for a new connection. */
+    public int getThreadCount() {
+        return executor.getPoolSize();
+    }
+
+    /** Returns the number of network threads that are handling a connection. */
+    int getActiveThreadCount() {
+        return executor.getActiveCount();
+    }
+
     /** Sets the number of milliseconds to wait before giving up on a connect attempt */
     public void setConnectTimeoutMillis(int connectTimeoutMillis) {
         this.connectTimeoutMillis = connectTimeoutMillis;
@@ -78,6 +125,7 @@ public class BlockingClientManager extends AbstractIdleService implements Client
             for (BlockingClient client : clients)
                 client.closeConnection();
         }
+        executor.shutdown();
     }
 
     @Override
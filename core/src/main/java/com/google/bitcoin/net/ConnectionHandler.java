@@ -28,10 +28,15 @@ import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -39,7 +44,8 @@ import static com.google.common.base.Preconditions.checkState;
 
 /**
  * A simple NIO MessageWriteTarget which handles all the business logic of a connection (reading+writing bytes).
- * Used only by the NioClient and NioServer classes
+ * Used only by the NioClient and NioServer classes. Bytes are parsed on the thread of the {@link NioEventLoop} the
+ * connection belongs to, unless the loop has a message executor.
  */
 class ConnectionHandler implements MessageWriteTarget {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(ConnectionHandler.class);
@@ -48,6 +54,11 @@ class ConnectionHandler implements MessageWriteTarget {
     private static final int BUFFER_SIZE_UPPER_BOUND = 65536;
 
     private static final int OUTBOUND_BUFFER_BYTE_COUNT = Message.MAX_SIZE + 24; // 24 byte message header
+    // How many queued buffers are passed to a single gathering write.
+    private static final int MAX_BUFFERS_PER_WRITE = 64;
+    // When parsing on a message executor, we stop reading from the socket whilst more than this many bytes wait to be
+    // parsed, and start again once half of them have been.
+    private static final int MAX_HANDED_OFF_BYTES = 1024 * 1024;
 
     // We lock when touching local flags and when writing data, but NEVER when calling any methods which leave this
     // class into non-Java classes.
@@ -59,32 +70,50 @@ class ConnectionHandler implements MessageWriteTarget {
     @GuardedBy("lock") private boolean closeCalled = false;
 
     @GuardedBy("lock") private long bytesToWriteRemaining = 0;
-    @GuardedBy("lock") private final LinkedList<ByteBuffer> bytesToWrite = new LinkedList<ByteBuffer>();
+    @GuardedBy("lock") private final ArrayDeque<ByteBuffer> bytesToWrite = new ArrayDeque<ByteBuffer>();
 
     private Set<ConnectionHandler> connectedHandlers;
 
-    public ConnectionHandler(StreamParserFactory parserFactory, SelectionKey key) throws IOException {
-        this(parserFactory.getNewParser(((SocketChannel)key.channel()).socket().getInetAddress(), ((SocketChannel)key.channel()).socket().getPort()), key);
+    private final NioEventLoop loop;
+    // If not null, the bytes we read are handed to this executor to be parsed, in the order they arrived, rather than
+    // being parsed on the loop thread. Closing the connection is handed off the same way, so the parser hears about it
+    // after the last of the bytes.
+    @Nullable private final Executor messageExecutor;
+    private final Queue<Runnable> handedOff = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean handOffScheduled = new AtomicBoolean(false);
+    private final AtomicLong handedOffBytes = new AtomicLong();
+    // Only touched by whichever thread is running the handed off tasks.
+    @Nullable private final ByteBuffer parseBuff;
+    @GuardedBy("lock") private boolean readingPaused = false;
+
+    public ConnectionHandler(StreamParserFactory parserFactory, SelectionKey key, NioEventLoop loop) throws IOException {
+        this(parserFactory.getNewParser(((SocketChannel)key.channel()).socket().getInetAddress(), ((SocketChannel)key.channel()).socket().getPort()), key, loop);
         if (parser == null)
             throw new IOException("Parser factory.getNewParser returned null");
     }
 
-    private ConnectionHandler(@Nullable StreamParser parser, SelectionKey key) {
+    private ConnectionHandler(@Nullable StreamParser parser, SelectionKey key, NioEventLoop loop) {
         this.key = key;
         this.channel = checkNotNull(((SocketChannel)key.channel()));
+        this.loop = checkNotNull(loop);
+        this.messageExecutor = loop.getMessageExecutor();
         if (parser == null) {
             readBuff = null;
+            parseBuff = null;
             closeConnection();
             return;
         }
         this.parser = parser;
-        readBuff = ByteBuffer.allocateDirect(Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND));
+        int buffSize = Math.min(Math.max(parser.getMaxMessageSize(), BUFFER_SIZE_LOWER_BOUND), BUFFER_SIZE_UPPER_BOUND);
+        readBuff = ByteBuffer.allocateDirect(buffSize);
+        parseBuff = messageExecutor == null ? null : ByteBuffer.allocate(buffSize);
         parser.setWriteTarget(this); // May callback into us (eg closeConnection() now)
         connectedHandlers = null;
     }
 
-    public ConnectionHandler(StreamParser parser, SelectionKey key, Set<ConnectionHandler> connectedHandlers) {
-        this(checkNotNull(parser), key);
+    public ConnectionHandler(StreamParser parser, SelectionKey key, Set<ConnectionHandler> connectedHandlers,
+                             NioEventLoop loop) {
+        this(checkNotNull(parser), key, loop);
 
         // closeConnection() may have already happened, in which case we shouldn't add ourselves to the connectedHandlers set
         lock.lock();
@@ -107,21 +136,39 @@ class ConnectionHandler implements MessageWriteTarget {
         key.selector().wakeup();
     }
 
+    // Called on the selector thread once a client connection has finished connecting, to start reading and flush
+    // whatever was written before then
+    void connectionFinished() {
+        lock.lock();
+        try {
+            int ops = SelectionKey.OP_READ;
+            if (!bytesToWrite.isEmpty())
+                ops |= SelectionKey.OP_WRITE;
+            key.interestOps(ops);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     // Tries to write any outstanding write bytes, runs in any thread (possibly unlocked)
     private void tryWriteBytes() throws IOException {
         lock.lock();
         try {
-            // Iterate through the outbound ByteBuff queue, pushing as much as possible into the OS' network buffer.
-            Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
-            while (bytesIterator.hasNext()) {
-                ByteBuffer buff = bytesIterator.next();
-                bytesToWriteRemaining -= channel.write(buff);
-                if (!buff.hasRemaining())
-                    bytesIterator.remove();
-                else {
-                    setWriteOps();
+            // Push as much of the outbound ByteBuff queue as possible into the OS' network buffer, handing several
+            // buffers to each gathering write.
+            while (!bytesToWrite.isEmpty()) {
+                ByteBuffer[] buffers = new ByteBuffer[Math.min(bytesToWrite.size(), MAX_BUFFERS_PER_WRITE)];
+                Iterator<ByteBuffer> bytesIterator = bytesToWrite.iterator();
+                for (int i = 0; i < buffers.length; i++)
+                    buffers[i] = bytesIterator.next();
+                long written = channel.write(buffers);
+                bytesToWriteRemaining -= written;
+                loop.bytesWritten(written);
+                while (!bytesToWrite.isEmpty() && !bytesToWrite.peek().hasRemaining())
+                    bytesToWrite.poll();
+                // If the OS didn't take everything, wait until it can take more (we're still registered for OP_WRITE)
+                if (buffers[buffers.length - 1].hasRemaining())
                     break;
-                }
             }
             // If we are done writing, clear the OP_WRITE interestOps
             if (bytesToWrite.isEmpty())
@@ -134,20 +181,44 @@ class ConnectionHandler implements MessageWriteTarget {
 
     @Override
     public void writeBytes(byte[] message) throws IOException {
+        // The caller may reuse the array, so anything we can't write straight away gets copied.
+        write(true, ByteBuffer.wrap(message));
+    }
+
+    @Override
+    public void writeBytes(byte[] header, byte[] payload) throws IOException {
+        write(false, ByteBuffer.wrap(header), ByteBuffer.wrap(payload));
+    }
+
+    private void write(boolean copy, ByteBuffer... buffers) throws IOException {
         lock.lock();
         try {
             // Network buffers are not unlimited (and are often smaller than some messages we may wish to send), and
-            // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers and just
-            // append to it when we want to send a message. We then let tryWriteBytes() either send the message or
-            // register our SelectionKey to wakeup when we have free outbound buffer space available.
-
-            if (bytesToWriteRemaining + message.length > OUTBOUND_BUFFER_BYTE_COUNT)
+            // thus we have to buffer outbound messages sometimes. To do this, we use a queue of ByteBuffers. If
+            // nothing is queued we try to write the message straight away, and only queue what the OS didn't take
+            // and register our SelectionKey to wakeup when we have free outbound buffer space available.
+            long length = 0;
+            for (ByteBuffer buff : buffers)
+                length += buff.remaining();
+            if (bytesToWriteRemaining + length > OUTBOUND_BUFFER_BYTE_COUNT)
                 throw new IOException("Outbound buffer overflowed");
-            // Just dump the message onto the write buffer and call tryWriteBytes
-            // TODO: Kill the needless message duplication when the write completes right away
-            bytesToWrite.offer(ByteBuffer.wrap(Arrays.copyOf(message, message.length)));
-            bytesToWriteRemaining += message.length;
-            setWriteOps();
+            // Fail the same way whether or not the write below would have gone through the selector.
+            if (!key.isValid())
+                throw new CancelledKeyException();
+            // A client connection may not have finished connecting yet, in which case everything is queued until
+            // connectionFinished() registers for OP_WRITE.
+            if (bytesToWrite.isEmpty() && channel.isConnected())
+                loop.bytesWritten(channel.write(buffers));
+            for (ByteBuffer buff : buffers) {
+                if (!buff.hasRemaining())
+                    continue;
+                if (copy)
+                    buff = ByteBuffer.wrap(Arrays.copyOfRange(buff.array(), buff.position(), buff.limit()));
+                bytesToWrite.offer(buff);
+                bytesToWriteRemaining += buff.remaining();
+            }
+            if (!bytesToWrite.isEmpty())
+                setWriteOps();
         } catch (IOException e) {
             lock.unlock();
             log.error("Error writing message to connection, closing connection", e);
@@ -184,7 +255,96 @@ class ConnectionHandler implements MessageWriteTarget {
         }
         if (callClosed) {
             checkState(connectedHandlers == null || connectedHandlers.remove(this));
-            parser.connectionClosed();
+            if (messageExecutor == null) {
+                parser.connectionClosed();
+            } else {
+                handOff(new Runnable() {
+                    @Override
+                    public void run() {
+                        parser.connectionClosed();
+                    }
+                });
+            }
+        }
+    }
+
+    // Runs the given task on the message executor after all the ones handed off before it.
+    private void handOff(Runnable task) {
+        handedOff.add(task);
+        if (handOffScheduled.compareAndSet(false, true))
+            checkNotNull(messageExecutor).execute(runHandedOff);
+    }
+
+    private final Runnable runHandedOff = new Runnable() {
+        @Override
+        public void run() {
+            do {
+                Runnable task;
+                while ((task = handedOff.poll()) != null)
+                    task.run();
+                handOffScheduled.set(false);
+                // Somebody may have handed off another task after we last looked but before they could see we were
+                // done, in which case it's up to us to run it.
+            } while (!handedOff.isEmpty() && handOffScheduled.compareAndSet(false, true));
+        }
+    };
+
+    // Copies the bytes available in buff and hands them off to be parsed, leaving buff empty. Runs on the loop thread.
+    private void handOffBytes(ByteBuffer buff) {
+        final byte[] bytes = new byte[buff.remaining()];
+        buff.get(bytes);
+        buff.clear();
+        loop.bytesQueued(bytes.length);
+        if (handedOffBytes.addAndGet(bytes.length) > MAX_HANDED_OFF_BYTES)
+            setReadingPaused(true);
+        handOff(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    parseBytes(bytes);
+                } catch (Exception e) {
+                    log.error("Error parsing bytes from connection: {}", Throwables.getRootCause(e).getMessage());
+                    closeConnection();
+                } finally {
+                    loop.bytesQueued(-bytes.length);
+                    if (handedOffBytes.addAndGet(-bytes.length) <= MAX_HANDED_OFF_BYTES / 2)
+                        setReadingPaused(false);
+                }
+            }
+        });
+    }
+
+    // Feeds the given bytes to the parser through parseBuff, in the same way handleKey() does with readBuff.
+    private void parseBytes(byte[] bytes) throws Exception {
+        checkNotNull(parseBuff);
+        int offset = 0;
+        while (offset < bytes.length) {
+            int length = Math.min(bytes.length - offset, parseBuff.remaining());
+            parseBuff.put(bytes, offset, length);
+            offset += length;
+            parseBuff.flip();
+            int bytesConsumed = checkNotNull(parser).receiveBytes(parseBuff);
+            checkState(parseBuff.position() == bytesConsumed);
+            parseBuff.compact();
+        }
+    }
+
+    private void setReadingPaused(boolean paused) {
+        lock.lock();
+        try {
+            if (readingPaused == paused)
+                return;
+            readingPaused = paused;
+            if (paused) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                key.selector().wakeup();
+            }
+        } catch (CancelledKeyException e) {
+            // The connection was closed, so there's nothing left to read anyway.
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -210,14 +370,19 @@ class ConnectionHandler implements MessageWriteTarget {
                     handler.closeConnection();
                     return;
                 }
+                handler.loop.bytesRead(read);
                 // "flip" the buffer - setting the limit to the current position and setting position to 0
                 handler.readBuff.flip();
-                // Use parser.receiveBytes's return value as a check that it stopped reading at the right location
-                int bytesConsumed = checkNotNull(handler.parser).receiveBytes(handler.readBuff);
-                checkState(handler.readBuff.position() == bytesConsumed);
-                // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping relative
-                // position)
-                handler.readBuff.compact();
+                if (handler.messageExecutor != null) {
+                    handler.handOffBytes(handler.readBuff);
+                } else {
+                    // Use parser.receiveBytes's return value as a check that it stopped reading at the right location
+                    int bytesConsumed = checkNotNull(handler.parser).receiveBytes(handler.readBuff);
+                    checkState(handler.readBuff.position() == bytesConsumed);
+                    // Now drop the bytes which were read by compacting readBuff (resetting limit and keeping relative
+                    // position)
+                    handler.readBuff.compact();
+                }
             }
             if (key.isWritable())
                 handler.tryWriteBytes();
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of the counters of one of the selector threads of a {@link NioClientManager} or {@link NioServer}. All
+ * totals are since the selector was created.
+ */
+public class EventLoopStats {
+    private final long uptimeNanos;
+    private final int connections;
+    private final long selects;
+    private final long latencyNanos;
+    private final long maxLatencyNanos;
+    private final long bytesRead;
+    private final long bytesWritten;
+    private final int queuedTasks;
+    private final long queuedBytes;
+
+    EventLoopStats(long uptimeNanos, int connections, long selects, long latencyNanos, long maxLatencyNanos,
+                   long bytesRead, long bytesWritten, int queuedTasks, long queuedBytes) {
+        this.uptimeNanos = uptimeNanos;
+        this.connections = connections;
+        this.selects = selects;
+        this.latencyNanos = latencyNanos;
+        this.maxLatencyNanos = maxLatencyNanos;
+        this.bytesRead = bytesRead;
+        this.bytesWritten = bytesWritten;
+        this.queuedTasks = queuedTasks;
+        this.queuedBytes = queuedBytes;
+    }
+
+    /** Returns how many channels were registered with the selector when it last selected. */
+    public int getConnections() {
+        return connections;
+    }
+
+    /** Returns how many times the selector woke up with something to do. */
+    public long getSelects() {
+        return selects;
+    }
+
+    /**
+     * Returns how long, on average, the thread took to handle what it selected and get back to selecting. This is how
+     * long an event on one connection may wait behind the others on the same selector.
+     */
+    public long getAverageSelectLatencyNanos() {
+        return selects == 0 ? 0 : latencyNanos / selects;
+    }
+
+    /** Returns the longest time the thread took to handle what it selected. */
+    public long getMaxSelectLatencyNanos() {
+        return maxLatencyNanos;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /** Returns the average number of bytes read per second since the selector was created. */
+    public double getBytesReadPerSecond() {
+        return perSecond(bytesRead);
+    }
+
+    /** Returns the average number of bytes written per second since the selector was created. */
+    public double getBytesWrittenPerSecond() {
+        return perSecond(bytesWritten);
+    }
+
+    /** Returns how many tasks, like new connections to register, are waiting for the thread. */
+    public int getQueuedTasks() {
+        return queuedTasks;
+    }
+
+    /** Returns how many bytes have been read but not yet parsed by the message executor, if one is used. */
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    private double perSecond(long count) {
+        return uptimeNanos == 0 ? 0 : count * (double) TimeUnit.SECONDS.toNanos(1) / uptimeNanos;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d connections, %d selects, %.2f ms average/%.2f ms max select latency, " +
+                "%.0f bytes/sec read, %.0f bytes/sec written, %d queued tasks, %d queued bytes", connections, selects,
+                getAverageSelectLatencyNanos() / 1e6, maxLatencyNanos / 1e6, getBytesReadPerSecond(),
+                getBytesWrittenPerSecond(), queuedTasks, queuedBytes);
+    }
+}
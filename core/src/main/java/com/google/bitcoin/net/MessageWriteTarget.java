@@ -26,6 +26,12 @@ public interface MessageWriteTarget {
      * Writes the given bytes to the remote server.
      */
     void writeBytes(byte[] message) throws IOException;
+    /**
+     * Writes the given header and payload to the remote server, one straight after the other. Unlike
+     * {@link #writeBytes(byte[])}, the arrays may be written from without being copied, so they must not be modified
+     * afterwards. This lets the same payload be sent over many connections.
+     */
+    void writeBytes(byte[] header, byte[] payload) throws IOException;
     /**
      * Closes the connection to the server, triggering the {@link StreamParser#connectionClosed()}
      * event on the network-handling thread where all callbacks occur.
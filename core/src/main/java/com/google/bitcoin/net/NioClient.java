@@ -106,4 +106,9 @@ public class NioClient implements MessageWriteTarget {
     public synchronized void writeBytes(byte[] message) throws IOException {
         handler.writeTarget.writeBytes(message);
     }
+
+    @Override
+    public synchronized void writeBytes(byte[] header, byte[] payload) throws IOException {
+        handler.writeTarget.writeBytes(header, payload);
+    }
 }
@@ -17,47 +17,47 @@
 package com.google.bitcoin.net;
 
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.net.SocketAddress;
 import java.nio.channels.*;
-import java.nio.channels.spi.SelectorProvider;
 import java.util.*;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * A class which manages a set of client connections. Uses Java NIO to select network events and processes them in a
- * single network processing thread.
+ * single network processing thread, or spreads the connections over several selector threads if asked to.
  */
 public class NioClientManager extends AbstractExecutionThreadService implements ClientConnectionManager {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioClientManager.class);
 
-    private final Selector selector;
-
-    // SocketChannels and StreamParsers of newly-created connections which should be registered with OP_CONNECT
-    class SocketChannelAndParser {
-        SocketChannel sc; StreamParser parser;
-        SocketChannelAndParser(SocketChannel sc, StreamParser parser) { this.sc = sc; this.parser = parser; }
-    }
-    final Queue<SocketChannelAndParser> newConnectionChannels = new LinkedBlockingQueue<SocketChannelAndParser>();
+    // The first loop runs on the service thread, any others on threads of their own.
+    private final List<NioEventLoop> loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
 
     // Added to/removed from by the individual ConnectionHandler's, thus must by synchronized on its own.
     private final Set<ConnectionHandler> connectedHandlers = Collections.synchronizedSet(new HashSet<ConnectionHandler>());
 
     // Handle a SelectionKey which was selected
-    private void handleKey(SelectionKey key) throws IOException {
+    private void handleKey(NioEventLoop loop, SelectionKey key) throws IOException {
         // We could have a !isValid() key here if the connection is already closed at this point
         if (key.isValid() && key.isConnectable()) { // ie a client connection which has finished the initial connect process
             // Create a ConnectionHandler and hook everything together
             StreamParser parser = (StreamParser) key.attachment();
             SocketChannel sc = (SocketChannel) key.channel();
-            ConnectionHandler handler = new ConnectionHandler(parser, key, connectedHandlers);
+            ConnectionHandler handler = new ConnectionHandler(parser, key, connectedHandlers, loop);
             try {
                 if (sc.finishConnect()) {
                     log.info("Successfully connected to {}", sc.socket().getRemoteSocketAddress());
-                    key.interestOps(SelectionKey.OP_READ).attach(handler);
+                    key.attach(handler);
+                    handler.connectionFinished();
                     handler.parser.connectionOpened();
                 } else {
                     log.error("Failed to connect to {}", sc.socket().getRemoteSocketAddress());
@@ -79,70 +79,67 @@ public class NioClientManager extends AbstractExecutionThreadService implements
      * calls.
      */
     public NioClientManager() {
-        try {
-            selector = SelectorProvider.provider().openSelector();
-        } catch (IOException e) {
-            throw new RuntimeException(e); // Shouldn't ever happen
-        }
+        this(1, null);
+    }
+
+    /**
+     * <p>Creates a new client manager which uses Java NIO for socket management, with the given number of selector
+     * threads. New connections are given to each of them in turn.</p>
+     *
+     * <p>If messageExecutor is not null, the bytes read from each connection are parsed on it rather than on the
+     * selector thread, so message processing and listeners run there too. The bytes of any one connection are still
+     * parsed one chunk at a time, in order, so the executor can have as many threads as you like.</p>
+     */
+    public NioClientManager(int selectorThreads, @Nullable Executor messageExecutor) {
+        checkArgument(selectorThreads > 0);
+        NioEventLoop.KeyHandler keyHandler = new NioEventLoop.KeyHandler() {
+            @Override
+            public void handleKey(NioEventLoop loop, SelectionKey key) throws IOException {
+                NioClientManager.this.handleKey(loop, key);
+            }
+        };
+        ImmutableList.Builder<NioEventLoop> builder = ImmutableList.builder();
+        for (int i = 0; i < selectorThreads; i++)
+            builder.add(new NioEventLoop(keyHandler, messageExecutor));
+        loops = builder.build();
     }
 
     @Override
     public void run() {
+        Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
+        for (int i = 1; i < loops.size(); i++)
+            loops.get(i).start("NioClientManager selector " + i);
         try {
-            Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-            while (isRunning()) {
-                SocketChannelAndParser conn;
-                while ((conn = newConnectionChannels.poll()) != null) {
-                    try {
-                        SelectionKey key = conn.sc.register(selector, SelectionKey.OP_CONNECT);
-                        key.attach(conn.parser);
-                    } catch (ClosedChannelException e) {
-                        log.info("SocketChannel was closed before it could be registered");
-                    }
-                }
-
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-                    handleKey(key);
-                }
-            }
-        } catch (Exception e) {
-            log.error("Error trying to open/read from connection: ", e);
+            loops.get(0).run();
         } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.error("Error closing channel", e);
-                }
-                key.cancel();
-                if (key.attachment() instanceof ConnectionHandler)
-                    ConnectionHandler.handleKey(key); // Close connection if relevant
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.error("Error closing client manager selector", e);
+            for (int i = 1; i < loops.size(); i++) {
+                loops.get(i).stop();
+                loops.get(i).awaitStopped();
             }
         }
     }
 
     @Override
-    public void openConnection(SocketAddress serverAddress, StreamParser parser) {
+    public void openConnection(SocketAddress serverAddress, final StreamParser parser) {
         if (!isRunning())
             throw new IllegalStateException();
         // Create a new connection, give it a parser as an attachment
         try {
-            SocketChannel sc = SocketChannel.open();
+            final SocketChannel sc = SocketChannel.open();
             sc.configureBlocking(false);
             sc.connect(serverAddress);
-            newConnectionChannels.offer(new SocketChannelAndParser(sc, parser));
-            selector.wakeup();
+            final NioEventLoop loop = loops.get((nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.size());
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        SelectionKey key = sc.register(loop.selector, SelectionKey.OP_CONNECT);
+                        key.attach(parser);
+                    } catch (ClosedChannelException e) {
+                        log.info("SocketChannel was closed before it could be registered");
+                    }
+                }
+            });
         } catch (IOException e) {
             log.error("Could not connect to " + serverAddress);
             throw new RuntimeException(e); // This should only happen if we are, eg, out of system resources
@@ -151,7 +148,15 @@ public class NioClientManager extends AbstractExecutionThreadService implements
 
     @Override
     public void triggerShutdown() {
-        selector.wakeup();
+        loops.get(0).stop();
+    }
+
+    /** Returns the current counters of each of the selector threads. */
+    public List<EventLoopStats> getEventLoopStats() {
+        List<EventLoopStats> stats = new ArrayList<EventLoopStats>(loops.size());
+        for (NioEventLoop loop : loops)
+            stats.add(loop.getStats());
+        return stats;
     }
 
     @Override
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>One selector and the thread that selects on it, used by {@link NioClientManager} and {@link NioServer}. Both can
+ * spread their connections over several of these, so that reading, writing and parsing for thousands of connections
+ * isn't limited to a single core.</p>
+ *
+ * <p>All changes to the selector's registrations have to be made on the loop's own thread, so other threads pass them
+ * in using {@link #execute(Runnable)}.</p>
+ */
+class NioEventLoop implements Executor {
+    private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioEventLoop.class);
+
+    /** Handles the keys the loop selected. */
+    interface KeyHandler {
+        void handleKey(NioEventLoop loop, SelectionKey key) throws IOException;
+    }
+
+    final Selector selector;
+    private final KeyHandler keyHandler;
+    // If not null, connections on this loop pass the bytes they read to this executor to be parsed, rather than
+    // parsing them on the loop thread. See ConnectionHandler.
+    @Nullable private final Executor messageExecutor;
+    private final Queue<Runnable> tasks = new LinkedBlockingQueue<Runnable>();
+    private volatile boolean stopped;
+    @Nullable private Thread thread;
+
+    private final long createdAt = System.nanoTime();
+    private final AtomicLong selects = new AtomicLong();
+    private final AtomicLong latencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    // Bytes read by connections on this loop that the message executor hasn't parsed yet.
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private volatile int connections;
+
+    NioEventLoop(KeyHandler keyHandler, @Nullable Executor messageExecutor) {
+        this.keyHandler = keyHandler;
+        this.messageExecutor = messageExecutor;
+        try {
+            selector = SelectorProvider.provider().openSelector();
+        } catch (IOException e) {
+            throw new RuntimeException(e); // Shouldn't ever happen
+        }
+    }
+
+    /** Runs the given task on the loop thread, before it next selects. */
+    @Override
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    /** Handles events on the calling thread until {@link #stop()} is called, then closes all connections. */
+    void run() {
+        try {
+            while (!stopped) {
+                Runnable task;
+                while ((task = tasks.poll()) != null)
+                    task.run();
+                // Count connections registered by the tasks before any of them can be read from.
+                connections = selector.keys().size();
+
+                selector.select();
+
+                long start = System.nanoTime();
+                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    keyHandler.handleKey(this, key);
+                }
+                recordSelect(System.nanoTime() - start);
+                connections = selector.keys().size();
+            }
+        } catch (Exception e) {
+            log.error("Error trying to open/read from connection: ", e);
+        } finally {
+            close();
+        }
+    }
+
+    /** Starts a thread of the given name which runs the loop. */
+    void start(String name) {
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                NioEventLoop.this.run();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /** Makes the loop close its connections and return. */
+    void stop() {
+        stopped = true;
+        selector.wakeup();
+    }
+
+    /** Waits for the thread started by {@link #start(String)}, if any, to finish. */
+    void awaitStopped() {
+        if (thread != null)
+            Uninterruptibles.joinUninterruptibly(thread);
+    }
+
+    private void close() {
+        // Go through and close everything, without letting IOExceptions get in our way
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException e) {
+                log.error("Error closing channel", e);
+            }
+            key.cancel();
+            if (key.attachment() instanceof ConnectionHandler)
+                ConnectionHandler.handleKey(key); // Close connection if relevant
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.error("Error closing selector", e);
+        }
+        connections = 0;
+    }
+
+    @Nullable
+    Executor getMessageExecutor() {
+        return messageExecutor;
+    }
+
+    private void recordSelect(long nanos) {
+        selects.incrementAndGet();
+        latencyNanos.addAndGet(nanos);
+        long max;
+        do {
+            max = maxLatencyNanos.get();
+        } while (nanos > max && !maxLatencyNanos.compareAndSet(max, nanos));
+    }
+
+    void bytesRead(int count) {
+        bytesRead.addAndGet(count);
+    }
+
+    void bytesWritten(long count) {
+        bytesWritten.addAndGet(count);
+    }
+
+    void bytesQueued(int count) {
+        queuedBytes.addAndGet(count);
+    }
+
+    EventLoopStats getStats() {
+        return new EventLoopStats(System.nanoTime() - createdAt, connections, selects.get(), latencyNanos.get(),
+                maxLatencyNanos.get(), bytesRead.get(), bytesWritten.get(), tasks.size(), queuedBytes.get());
+    }
+}
@@ -19,19 +19,23 @@ package com.google.bitcoin.net;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.*;
-import java.nio.channels.spi.SelectorProvider;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.AbstractExecutionThreadService;
 import org.slf4j.LoggerFactory;
 
-import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.base.Preconditions.checkState;
+import javax.annotation.Nullable;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * Creates a simple server listener which listens for incoming client connections and uses a {@link StreamParser} to
- * process data.
+ * process data. Connections can be spread over several selector threads, see
+ * {@link #NioServer(StreamParserFactory, java.net.InetSocketAddress, int, java.util.concurrent.Executor)}.
  */
 public class NioServer extends AbstractExecutionThreadService {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(NioServer.class);
@@ -39,23 +43,45 @@ public class NioServer extends AbstractExecutionThreadService {
     private final StreamParserFactory parserFactory;
 
     private final ServerSocketChannel sc;
+    // The first loop accepts connections and runs on the service thread, any others on threads of their own.
+    private final List<NioEventLoop> loops;
+    private int nextLoop;
     @VisibleForTesting final Selector selector;
 
     // Handle a SelectionKey which was selected
-    private void handleKey(Selector selector, SelectionKey key) throws IOException {
+    private void handleKey(NioEventLoop loop, SelectionKey key) throws IOException {
         if (key.isValid() && key.isAcceptable()) {
             // Accept a new connection, give it a parser as an attachment
-            SocketChannel newChannel = sc.accept();
+            final SocketChannel newChannel = sc.accept();
             newChannel.configureBlocking(false);
-            SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
-            ConnectionHandler handler = new ConnectionHandler(parserFactory, newKey);
-            newKey.attach(handler);
-            handler.parser.connectionOpened();
+            final NioEventLoop connectionLoop = loops.get(nextLoop++ % loops.size());
+            if (connectionLoop == loop) {
+                registerConnection(connectionLoop, newChannel);
+            } else {
+                // Channels can only be registered by the thread selecting on them.
+                connectionLoop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            registerConnection(connectionLoop, newChannel);
+                        } catch (IOException e) {
+                            log.error("Error registering new connection", e);
+                        }
+                    }
+                });
+            }
         } else { // Got a closing channel or a channel to a client connection
             ConnectionHandler.handleKey(key);
         }
     }
 
+    private void registerConnection(NioEventLoop loop, SocketChannel newChannel) throws IOException {
+        SelectionKey newKey = newChannel.register(loop.selector, SelectionKey.OP_READ);
+        ConnectionHandler handler = new ConnectionHandler(parserFactory, newKey, loop);
+        newKey.attach(handler);
+        handler.parser.connectionOpened();
+    }
+
     /**
      * Creates a new server which is capable of listening for incoming connections and processing client provided data
      * using {@link StreamParser}s created by the given {@link StreamParserFactory}
@@ -63,50 +89,53 @@ public class NioServer extends AbstractExecutionThreadService {
      * @throws IOException If there is an issue opening the server socket or binding fails for some reason
      */
     public NioServer(final StreamParserFactory parserFactory, InetSocketAddress bindAddress) throws IOException {
+        this(parserFactory, bindAddress, 1, null);
+    }
+
+    /**
+     * <p>Creates a new server which is capable of listening for incoming connections and processing client provided
+     * data using {@link StreamParser}s created by the given {@link StreamParserFactory}. Accepted connections are given
+     * to each of the selector threads in turn.</p>
+     *
+     * <p>If messageExecutor is not null, the bytes read from each connection are parsed on it rather than on the
+     * selector thread, so message processing and listeners run there too. The bytes of any one connection are still
+     * parsed one chunk at a time, in order, so the executor can have as many threads as you like.</p>
+     *
+     * @throws IOException If there is an issue opening the server socket or binding fails for some reason
+     */
+    public NioServer(final StreamParserFactory parserFactory, InetSocketAddress bindAddress, int selectorThreads,
+                     @Nullable Executor messageExecutor) throws IOException {
+        checkArgument(selectorThreads > 0);
         this.parserFactory = parserFactory;
 
         sc = ServerSocketChannel.open();
         sc.configureBlocking(false);
         sc.socket().bind(bindAddress);
-        selector = SelectorProvider.provider().openSelector();
+
+        NioEventLoop.KeyHandler keyHandler = new NioEventLoop.KeyHandler() {
+            @Override
+            public void handleKey(NioEventLoop loop, SelectionKey key) throws IOException {
+                NioServer.this.handleKey(loop, key);
+            }
+        };
+        ImmutableList.Builder<NioEventLoop> builder = ImmutableList.builder();
+        for (int i = 0; i < selectorThreads; i++)
+            builder.add(new NioEventLoop(keyHandler, messageExecutor));
+        loops = builder.build();
+        selector = loops.get(0).selector;
         sc.register(selector, SelectionKey.OP_ACCEPT);
     }
 
     @Override
     protected void run() throws Exception {
+        for (int i = 1; i < loops.size(); i++)
+            loops.get(i).start("NioServer selector " + i);
         try {
-            while (isRunning()) {
-                selector.select();
-
-                Iterator<SelectionKey> keyIterator = selector.selectedKeys().iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-
-                    handleKey(selector, key);
-                }
-            }
-        } catch (Exception e) {
-            log.error("Error trying to open/read from connection: {}", e);
+            loops.get(0).run();
         } finally {
-            // Go through and close everything, without letting IOExceptions get in our way
-            for (SelectionKey key : selector.keys()) {
-                try {
-                    key.channel().close();
-                } catch (IOException e) {
-                    log.error("Error closing channel", e);
-                }
-                try {
-                    key.cancel();
-                    handleKey(selector, key);
-                } catch (IOException e) {
-                    log.error("Error closing selection key", e);
-                }
-            }
-            try {
-                selector.close();
-            } catch (IOException e) {
-                log.error("Error closing server selector", e);
+            for (int i = 1; i < loops.size(); i++) {
+                loops.get(i).stop();
+                loops.get(i).awaitStopped();
             }
             try {
                 sc.close();
@@ -116,6 +145,14 @@ public class NioServer extends AbstractExecutionThreadService {
         }
     }
 
+    /** Returns the current counters of each of the selector threads. The first one also accepts connections. */
+    public List<EventLoopStats> getEventLoopStats() {
+        List<EventLoopStats> stats = new ArrayList<EventLoopStats>(loops.size());
+        for (NioEventLoop loop : loops)
+            stats.add(loop.getStats());
+        return stats;
+    }
+
     /**
      * Invoked by the Execution service when it's time to stop.
      * Calling this method directly will NOT stop the service, call
@@ -123,7 +160,7 @@ public class NioServer extends AbstractExecutionThreadService {
      */
     @Override
     public void triggerShutdown() {
-        // Wake up the selector and let the selection thread break its loop as the ExecutionService !isRunning()
-        selector.wakeup();
+        // Wake up the selector and let the selection thread break its loop
+        loops.get(0).stop();
     }
 }
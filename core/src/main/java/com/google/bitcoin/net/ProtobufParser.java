@@ -219,9 +219,7 @@ public class ProtobufParser<MessageType extends MessageLite> extends AbstractTim
         byte[] messageLength = new byte[4];
         Utils.uint32ToByteArrayBE(messageBytes.length, messageLength, 0);
         try {
-            MessageWriteTarget target = writeTarget.get();
-            target.writeBytes(messageLength);
-            target.writeBytes(messageBytes);
+            writeTarget.get().writeBytes(messageLength, messageBytes);
         } catch (IOException e) {
             closeConnection();
         }
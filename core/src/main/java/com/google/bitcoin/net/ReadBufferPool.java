@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Keeps the read buffers of closed connections around so that new connections can use them instead of allocating
+ * their own. Buffers are handed out by capacity, and at most maxPooledBytes worth are kept.
+ */
+class ReadBufferPool {
+    private final long maxPooledBytes;
+    @GuardedBy("this") private final Map<Integer, ArrayDeque<ByteBuffer>> buffers = new HashMap<Integer, ArrayDeque<ByteBuffer>>();
+    @GuardedBy("this") private long pooledBytes;
+
+    ReadBufferPool(long maxPooledBytes) {
+        checkArgument(maxPooledBytes >= 0);
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /** Returns an empty heap buffer of the given capacity, which should be given back once the connection closes. */
+    synchronized ByteBuffer take(int capacity) {
+        ArrayDeque<ByteBuffer> free = buffers.get(capacity);
+        if (free == null || free.isEmpty())
+            return ByteBuffer.allocate(capacity);
+        pooledBytes -= capacity;
+        return free.poll();
+    }
+
+    synchronized void give(ByteBuffer buffer) {
+        if (pooledBytes + buffer.capacity() > maxPooledBytes)
+            return;
+        ArrayDeque<ByteBuffer> free = buffers.get(buffer.capacity());
+        if (free == null) {
+            free = new ArrayDeque<ByteBuffer>();
+            buffers.put(buffer.capacity(), free);
+        }
+        buffer.clear();
+        free.offer(buffer);
+        pooledBytes += buffer.capacity();
+    }
+
+    synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+}
@@ -17,14 +17,21 @@
 package com.google.bitcoin.net.discovery;
 
 import com.google.bitcoin.core.NetworkParameters;
-import com.google.common.collect.Lists;
+import com.google.bitcoin.core.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.util.*;
-import java.util.concurrent.*;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * <p>Supports peer discovery through DNS.</p>
@@ -36,12 +43,32 @@ import java.util.concurrent.*;
  * <p>DNS seeds do not attempt to enumerate every peer on the network. {@link DnsDiscovery#getPeers(long, java.util.concurrent.TimeUnit)}
  * will return up to 30 random peers from the set of those returned within the timeout period. If you want more peers
  * to connect to, you need to discover them via other means (like addr broadcasts).</p>
+ *
+ * <p>All host names are looked up at the same time, and the results of each are handed over as soon as they arrive
+ * when using {@link #discover(long, java.util.concurrent.TimeUnit, MultiplexingDiscovery.Listener)}. Results are
+ * cached for a while, see {@link #setCacheTtl(long, java.util.concurrent.TimeUnit)}.</p>
  */
-public class DnsDiscovery implements PeerDiscovery {
+public class DnsDiscovery extends MultiplexingDiscovery {
     private static final Logger log = LoggerFactory.getLogger(DnsDiscovery.class);
 
-    private final String[] hostNames;
-    private final NetworkParameters netParams;
+    /** How long the results of looking up a host name are used for, by default. */
+    public static final long DEFAULT_CACHE_TTL_MSEC = 60 * 1000;
+
+    private static class CachedLookup {
+        final InetAddress[] addresses;
+        final long time;
+
+        CachedLookup(InetAddress[] addresses, long time) {
+            this.addresses = addresses;
+            this.time = time;
+        }
+    }
+
+    // Successful lookups by host name, shared by all instances.
+    private static final ConcurrentMap<String, CachedLookup> cache = new ConcurrentHashMap<String, CachedLookup>();
+
+    // Shared with the DnsSeedDiscovery of each host name.
+    private final AtomicLong cacheTtlMsec;
 
     /**
      * Supports finding peers through DNS A records. Community run DNS entry points will be used.
@@ -59,57 +86,76 @@ public class DnsDiscovery implements PeerDiscovery {
      * @param netParams Network parameters to be used for port information.
      */
     public DnsDiscovery(String[] hostNames, NetworkParameters netParams) {
-        this.hostNames = hostNames;
-        this.netParams = netParams;
+        this(hostNames, netParams, new AtomicLong(DEFAULT_CACHE_TTL_MSEC));
+    }
+
+    private DnsDiscovery(String[] hostNames, NetworkParameters netParams, AtomicLong cacheTtlMsec) {
+        super(buildDiscoveries(hostNames, netParams, cacheTtlMsec));
+        this.cacheTtlMsec = cacheTtlMsec;
     }
 
+    private static List<PeerDiscovery> buildDiscoveries(String[] hostNames, NetworkParameters netParams,
+                                                        AtomicLong cacheTtlMsec) {
+        List<PeerDiscovery> discoveries = new ArrayList<PeerDiscovery>();
+        if (hostNames != null) {
+            for (String hostName : hostNames)
+                discoveries.add(new DnsSeedDiscovery(hostName, netParams, cacheTtlMsec));
+        }
+        return discoveries;
+    }
+
+    /**
+     * Sets for how long the results of looking up a host name are used before looking it up again. Zero means
+     * results are never reused. The default is {@link #DEFAULT_CACHE_TTL_MSEC}.
+     */
+    public void setCacheTtl(long ttl, TimeUnit unit) {
+        checkArgument(ttl >= 0);
+        cacheTtlMsec.set(unit.toMillis(ttl));
+    }
+
+    @Override
     public InetSocketAddress[] getPeers(long timeoutValue, TimeUnit timeoutUnit) throws PeerDiscoveryException {
-        if (hostNames == null)
+        if (seeds.isEmpty())
             throw new PeerDiscoveryException("Unable to find any peers via DNS");
+        return super.getPeers(timeoutValue, timeoutUnit);
+    }
 
-        // Java doesn't have an async DNS API so we have to do all lookups in a thread pool, as sometimes seeds go
-        // hard down and it takes ages to give up and move on.
-        ExecutorService threadPool = Executors.newFixedThreadPool(hostNames.length);
-        try {
-            List<Callable<InetAddress[]>> tasks = Lists.newArrayList();
-            for (final String seed : hostNames)
-                tasks.add(new Callable<InetAddress[]>() {
-                    public InetAddress[] call() throws Exception {
-                        return InetAddress.getAllByName(seed);
-                    }
-                });
-            final List<Future<InetAddress[]>> futures = threadPool.invokeAll(tasks, timeoutValue, timeoutUnit);
-            ArrayList<InetSocketAddress> addrs = Lists.newArrayList();
-            for (int i = 0; i < futures.size(); i++) {
-                Future<InetAddress[]> future = futures.get(i);
-                if (future.isCancelled()) {
-                    log.warn("{} timed out", hostNames[i]);
-                    continue;  // Timed out.
-                }
-                final InetAddress[] inetAddresses;
+    /** Looks up a single host name. It's only used from a DnsDiscovery, which takes care of the timeout. */
+    private static class DnsSeedDiscovery implements PeerDiscovery {
+        private final String hostName;
+        private final NetworkParameters netParams;
+        private final AtomicLong cacheTtlMsec;
+
+        DnsSeedDiscovery(String hostName, NetworkParameters netParams, AtomicLong cacheTtlMsec) {
+            this.hostName = hostName;
+            this.netParams = netParams;
+            this.cacheTtlMsec = cacheTtlMsec;
+        }
+
+        public InetSocketAddress[] getPeers(long timeoutValue, TimeUnit timeoutUnit) throws PeerDiscoveryException {
+            CachedLookup lookup = cache.get(hostName);
+            if (lookup == null || Utils.currentTimeMillis() - lookup.time >= cacheTtlMsec.get()) {
                 try {
-                    inetAddresses = future.get();
-                } catch (ExecutionException e) {
-                    log.error("Failed to look up DNS seeds from {}: {}", hostNames[i], e.getMessage());
-                    continue;
-                }
-                for (InetAddress addr : inetAddresses) {
-                    addrs.add(new InetSocketAddress(addr, netParams.getPort()));
+                    lookup = new CachedLookup(InetAddress.getAllByName(hostName), Utils.currentTimeMillis());
+                } catch (UnknownHostException e) {
+                    log.error("Failed to look up DNS seeds from {}: {}", hostName, e.getMessage());
+                    throw new PeerDiscoveryException(e);
                 }
+                cache.put(hostName, lookup);
             }
-            if (addrs.size() == 0)
-                throw new PeerDiscoveryException("Unable to find any peers via DNS");
-            Collections.shuffle(addrs);
-            threadPool.shutdownNow();
-            return addrs.toArray(new InetSocketAddress[addrs.size()]);
-        } catch (InterruptedException e) {
-            throw new PeerDiscoveryException(e);
-        } finally {
-            threadPool.shutdown();
+            InetSocketAddress[] addresses = new InetSocketAddress[lookup.addresses.length];
+            for (int i = 0; i < addresses.length; i++)
+                addresses[i] = new InetSocketAddress(lookup.addresses[i], netParams.getPort());
+            return addresses;
         }
-    }
 
-    /** We don't have a way to abort a DNS lookup, so this does nothing */
-    public void shutdown() {
+        /** We don't have a way to abort a DNS lookup, so this does nothing */
+        public void shutdown() {
+        }
+
+        @Override
+        public String toString() {
+            return hostName;
+        }
     }
 }
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net.discovery;
+
+import com.google.bitcoin.utils.Threading;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Asks several other {@link PeerDiscovery} sources for peers at the same time, and merges what they find, leaving
+ * out addresses found more than once. Sources that don't answer within the timeout are left out.</p>
+ *
+ * <p>{@link #discover(long, java.util.concurrent.TimeUnit, Listener)} hands over the addresses each source finds as
+ * soon as it answers, so that connecting to them can start without waiting for the slowest source. Sources which are
+ * themselves MultiplexingDiscoverys, like {@link DnsDiscovery}, hand over what each of their own sources finds in the
+ * same way.</p>
+ */
+public class MultiplexingDiscovery implements PeerDiscovery {
+    private static final Logger log = LoggerFactory.getLogger(MultiplexingDiscovery.class);
+
+    // All sources are asked on this pool, which is shared by all instances. Many sources block, and DNS lookups can't
+    // be aborted, so the pool grows as needed and idle threads go away after a minute.
+    static final ExecutorService threadPool = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+            .setDaemon(true).setNameFormat("Peer discovery %d").build());
+
+    /** Receives the addresses found by {@link #discover(long, java.util.concurrent.TimeUnit, Listener)}. */
+    public interface Listener {
+        /**
+         * Called on a discovery thread with the addresses that one of the sources found, leaving out any that were
+         * found already.
+         */
+        void onPeersDiscovered(InetSocketAddress[] addresses);
+    }
+
+    protected final List<PeerDiscovery> seeds;
+
+    /** Creates a discovery that asks each of the given sources. */
+    public MultiplexingDiscovery(List<? extends PeerDiscovery> seeds) {
+        this.seeds = new ArrayList<PeerDiscovery>(seeds);
+    }
+
+    /**
+     * Asks all sources for peers. The listener, if given, is called with the new addresses whenever a source answers.
+     * The returned future completes once all sources have answered or the timeout has passed, with all addresses that
+     * were found in random order. Every address passed to the listener is part of that result.
+     */
+    public ListenableFuture<List<InetSocketAddress>> discover(final long timeoutValue, final TimeUnit timeoutUnit,
+                                                             @Nullable final Listener listener) {
+        final SettableFuture<List<InetSocketAddress>> result = SettableFuture.create();
+        final Set<InetSocketAddress> found = new LinkedHashSet<InetSocketAddress>();
+        final AtomicInteger remaining = new AtomicInteger(seeds.size());
+
+        // Takes the addresses a source found, and completes the result once it was the last source to answer.
+        class Collector implements Listener {
+            public void onPeersDiscovered(InetSocketAddress[] addresses) {
+                List<InetSocketAddress> fresh = new ArrayList<InetSocketAddress>(addresses.length);
+                synchronized (found) {
+                    if (result.isDone())
+                        return;
+                    for (InetSocketAddress address : addresses) {
+                        if (found.add(address))
+                            fresh.add(address);
+                    }
+                }
+                if (listener != null && !fresh.isEmpty())
+                    listener.onPeersDiscovered(fresh.toArray(new InetSocketAddress[fresh.size()]));
+            }
+
+            void sourceDone() {
+                if (remaining.decrementAndGet() == 0)
+                    finish();
+            }
+
+            void finish() {
+                List<InetSocketAddress> addresses;
+                synchronized (found) {
+                    if (result.isDone())
+                        return;
+                    addresses = new ArrayList<InetSocketAddress>(found);
+                    Collections.shuffle(addresses);
+                    result.set(addresses);
+                }
+            }
+        }
+        final Collector collector = new Collector();
+        if (seeds.isEmpty()) {
+            collector.finish();
+            return result;
+        }
+        for (final PeerDiscovery seed : seeds) {
+            if (seed instanceof MultiplexingDiscovery) {
+                ((MultiplexingDiscovery) seed).discover(timeoutValue, timeoutUnit, collector).addListener(new Runnable() {
+                    public void run() {
+                        collector.sourceDone();
+                    }
+                }, Threading.SAME_THREAD);
+                continue;
+            }
+            threadPool.submit(new Runnable() {
+                public void run() {
+                    try {
+                        collector.onPeersDiscovered(seed.getPeers(timeoutValue, timeoutUnit));
+                    } catch (PeerDiscoveryException e) {
+                        log.warn("{} failed: {}", seed, e.getMessage());
+                    } catch (RuntimeException e) {
+                        log.error("{} failed", seed, e);
+                    } finally {
+                        collector.sourceDone();
+                    }
+                }
+            });
+        }
+        // Don't wait any longer for sources that don't respect the timeout.
+        threadPool.submit(new Runnable() {
+            public void run() {
+                try {
+                    Uninterruptibles.getUninterruptibly(result, timeoutValue, timeoutUnit);
+                } catch (TimeoutException e) {
+                    log.info("{} of {} peer discovery sources timed out", remaining.get(), seeds.size());
+                    collector.finish();
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e);  // Can't happen, the result is never failed.
+                }
+            }
+        });
+        return result;
+    }
+
+    public InetSocketAddress[] getPeers(long timeoutValue, TimeUnit timeoutUnit) throws PeerDiscoveryException {
+        List<InetSocketAddress> addresses;
+        try {
+            addresses = discover(timeoutValue, timeoutUnit, null).get();
+        } catch (InterruptedException e) {
+            throw new PeerDiscoveryException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e);  // Can't happen, the result is never failed.
+        }
+        if (addresses.isEmpty())
+            throw new PeerDiscoveryException("No peer discovery returned any results: check internet connection?");
+        return addresses.toArray(new InetSocketAddress[addresses.size()]);
+    }
+
+    public void shutdown() {
+        for (PeerDiscovery seed : seeds)
+            seed.shutdown();
+    }
+}
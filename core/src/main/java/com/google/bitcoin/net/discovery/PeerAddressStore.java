@@ -0,0 +1,460 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net.discovery;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.PeerAddress;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.VersionMessage;
+import com.google.bitcoin.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * <p>Remembers the addresses of peers across restarts, along with how often connecting to them worked, how quickly
+ * they answered pings and which services they offer. It is fed by the addresses peers gossip to us and by what
+ * happens when we connect to them, and {@link #select(int, java.util.Set)} picks addresses to try, favouring those
+ * that worked before and were fast. Give one to {@link com.google.bitcoin.core.PeerGroup#setAddressStore(PeerAddressStore)}
+ * so that it can reconnect to good peers straight after startup, rather than waiting for DNS discovery and trying
+ * whatever it returns.</p>
+ *
+ * <p>The addresses live in a fixed number of slots in a memory mapped file, like {@link com.google.bitcoin.store.SPVBlockStore}.
+ * When every slot is taken, a new address replaces the worst of a few randomly chosen ones.</p>
+ */
+public class PeerAddressStore {
+    private static final Logger log = LoggerFactory.getLogger(PeerAddressStore.class);
+
+    /** The default number of addresses that will be remembered. */
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final String HEADER_MAGIC = "PADB";
+
+    // How many occupied slots to look at when choosing which address to forget.
+    private static final int EVICTION_CANDIDATES = 8;
+    // After n failed attempts in a row, an address isn't tried again for RETRY_DELAY_SECS * 2^(n-1), up to a week.
+    private static final long RETRY_DELAY_SECS = 10 * 60;
+    private static final long MAX_RETRY_DELAY_SECS = 7 * 24 * 60 * 60;
+    // Peers we haven't pinged are assumed to be this slow.
+    private static final long UNKNOWN_PING_MILLIS = 500;
+    // Addresses that haven't been seen or connected to for this long count for less and less.
+    private static final long STALE_SECS = 24 * 60 * 60;
+
+    // File format:
+    //   4 header bytes = "PADB"
+    //   4 bytes packet magic of the network the addresses belong to
+    //   4 bytes number of slots
+    //
+    // For each slot (64 bytes), empty if the port is zero
+    //   16 bytes IPv6 address, or IPv4 address mapped into IPv6
+    //    2 bytes port
+    //    2 bytes unused
+    //    8 bytes services
+    //    8 bytes time the address was last seen, in seconds
+    //    8 bytes time of the last connection attempt, in seconds
+    //    8 bytes time of the last successful connection, in seconds
+    //    4 bytes number of successful connections
+    //    4 bytes number of failed connection attempts since the last success
+    //    4 bytes average ping time, in milliseconds, or 0 if unknown
+    private static final int FILE_PROLOGUE_BYTES = 64;
+    private static final int RECORD_SIZE = 64;
+
+    private final ReentrantLock lock = Threading.lock("PeerAddressStore");
+    private final int capacity;
+    private final RandomAccessFile randomAccessFile;
+    private final FileLock fileLock;
+    @GuardedBy("lock") @Nullable private MappedByteBuffer buffer;
+    // A copy of every slot, so that selecting addresses doesn't have to read them out of the buffer again. On Android
+    // every get() on a mapped buffer is a JNI call, see SPVBlockStore.
+    @GuardedBy("lock") private final Entry[] entries;
+    @GuardedBy("lock") private final Map<InetSocketAddress, Entry> index = new HashMap<InetSocketAddress, Entry>();
+    @GuardedBy("lock") private final ArrayDeque<Integer> freeSlots = new ArrayDeque<Integer>();
+    @GuardedBy("lock") private final Random random = new Random();
+
+    private static class Entry {
+        final int slot;
+        final InetSocketAddress address;
+        long services, lastSeen, lastAttempt, lastSuccess;
+        int successes, failures, pingMillis;
+
+        Entry(int slot, InetSocketAddress address) {
+            this.slot = slot;
+            this.address = address;
+        }
+    }
+
+    /**
+     * Opens the store in the given file, creating it with room for {@link #DEFAULT_CAPACITY} addresses if it doesn't
+     * exist yet.
+     */
+    public PeerAddressStore(NetworkParameters params, File file) throws IOException {
+        this(params, file, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Opens the store in the given file, creating it with room for the given number of addresses if it doesn't exist
+     * yet. An existing file keeps the capacity it was created with.
+     */
+    public PeerAddressStore(NetworkParameters params, File file, int capacity) throws IOException {
+        checkArgument(capacity > 0);
+        boolean exists = file.exists();
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            if (exists) {
+                byte[] header = new byte[4];
+                randomAccessFile.readFully(header);
+                if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
+                    throw new IOException("Header bytes do not equal " + HEADER_MAGIC);
+                if (randomAccessFile.readInt() != (int) params.getPacketMagic())
+                    throw new IOException("Address store belongs to a different network");
+                capacity = randomAccessFile.readInt();
+                if (capacity <= 0 || randomAccessFile.length() != getFileSize(capacity))
+                    throw new IOException("File size on disk does not match expected size: " +
+                            randomAccessFile.length() + " vs " + getFileSize(capacity));
+            } else {
+                log.info("Creating new peer address store " + file);
+                randomAccessFile.setLength(getFileSize(capacity));
+            }
+            this.capacity = capacity;
+            FileChannel channel = randomAccessFile.getChannel();
+            fileLock = channel.tryLock();
+            if (fileLock == null)
+                throw new IOException("Store file is already locked by another process");
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, getFileSize(capacity));
+            if (!exists) {
+                buffer.put(HEADER_MAGIC.getBytes("US-ASCII"));
+                buffer.putInt((int) params.getPacketMagic());
+                buffer.putInt(capacity);
+            }
+            entries = new Entry[capacity];
+            load();
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+        log.info("Opened peer address store with {} of {} addresses", index.size(), capacity);
+    }
+
+    private static long getFileSize(int capacity) {
+        return FILE_PROLOGUE_BYTES + (long) RECORD_SIZE * capacity;
+    }
+
+    private void load() throws UnknownHostException {
+        byte[] addressBytes = new byte[16];
+        for (int slot = 0; slot < capacity; slot++) {
+            int offset = FILE_PROLOGUE_BYTES + slot * RECORD_SIZE;
+            int port = buffer.getShort(offset + 16) & 0xFFFF;
+            if (port == 0) {
+                freeSlots.add(slot);
+                continue;
+            }
+            buffer.position(offset);
+            buffer.get(addressBytes);
+            Entry entry = new Entry(slot, new InetSocketAddress(InetAddress.getByAddress(addressBytes), port));
+            entry.services = buffer.getLong(offset + 20);
+            entry.lastSeen = buffer.getLong(offset + 28);
+            entry.lastAttempt = buffer.getLong(offset + 36);
+            entry.lastSuccess = buffer.getLong(offset + 44);
+            entry.successes = buffer.getInt(offset + 52);
+            entry.failures = buffer.getInt(offset + 56);
+            entry.pingMillis = buffer.getInt(offset + 60);
+            entries[slot] = entry;
+            index.put(entry.address, entry);
+        }
+    }
+
+    private void write(Entry entry) {
+        MappedByteBuffer buffer = checkNotNull(this.buffer, "Store closed");
+        int offset = FILE_PROLOGUE_BYTES + entry.slot * RECORD_SIZE;
+        byte[] addressBytes = entry.address.getAddress().getAddress();
+        buffer.position(offset);
+        if (addressBytes.length == 4) {
+            // IPv4-mapped IPv6 address, ::ffff:a.b.c.d
+            buffer.put(new byte[10]);
+            buffer.put((byte) 0xFF).put((byte) 0xFF);
+        }
+        buffer.put(addressBytes);
+        buffer.putShort((short) entry.address.getPort());
+        buffer.putShort((short) 0);
+        buffer.putLong(entry.services);
+        buffer.putLong(entry.lastSeen);
+        buffer.putLong(entry.lastAttempt);
+        buffer.putLong(entry.lastSuccess);
+        buffer.putInt(entry.successes);
+        buffer.putInt(entry.failures);
+        buffer.putInt(entry.pingMillis);
+    }
+
+    private void clear(int slot) {
+        MappedByteBuffer buffer = checkNotNull(this.buffer, "Store closed");
+        buffer.position(FILE_PROLOGUE_BYTES + slot * RECORD_SIZE);
+        buffer.put(new byte[RECORD_SIZE]);
+    }
+
+    /**
+     * Remembers an address that a peer told us about, or which came from some other discovery source. The time in the
+     * address is taken as when it was last seen, or now if it is zero.
+     */
+    public void add(PeerAddress address) {
+        long now = Utils.currentTimeSeconds();
+        lock.lock();
+        try {
+            Entry entry = getOrCreate(address.toSocketAddress());
+            if (entry == null)
+                return;
+            // Don't believe peers which claim to have seen an address in the future.
+            long seen = address.getTime() > 0 ? Math.min(address.getTime(), now) : now;
+            entry.lastSeen = Math.max(entry.lastSeen, seen);
+            // Only the peer itself can tell us for sure which services it offers, see recordSuccess.
+            if (entry.successes == 0 && address.getServices().signum() != 0)
+                entry.services = address.getServices().longValue();
+            write(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Adds all of the given addresses, see {@link #add(com.google.bitcoin.core.PeerAddress)}. */
+    public void addAll(Collection<PeerAddress> addresses) {
+        lock.lock();
+        try {
+            for (PeerAddress address : addresses)
+                add(address);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Nullable
+    @GuardedBy("lock")
+    private Entry getOrCreate(InetSocketAddress address) {
+        Entry entry = index.get(address);
+        if (entry != null)
+            return entry;
+        if (address.getAddress() == null || address.getPort() == 0)
+            return null;
+        Integer slot = freeSlots.poll();
+        if (slot == null)
+            slot = evict();
+        entry = new Entry(slot, address);
+        entries[slot] = entry;
+        index.put(address, entry);
+        return entry;
+    }
+
+    // Forgets the address with the lowest weight of a few random ones, and returns its slot.
+    @GuardedBy("lock")
+    private int evict() {
+        long now = Utils.currentTimeSeconds();
+        Entry worst = null;
+        double worstWeight = Double.MAX_VALUE;
+        for (int i = 0; i < EVICTION_CANDIDATES; i++) {
+            Entry candidate = entries[random.nextInt(capacity)];
+            double weight = getWeight(candidate, now);
+            if (weight < worstWeight) {
+                worst = candidate;
+                worstWeight = weight;
+            }
+        }
+        checkState(worst != null);
+        index.remove(worst.address);
+        entries[worst.slot] = null;
+        return worst.slot;
+    }
+
+    /**
+     * Records that we connected to the given address and completed the version handshake, and the services the peer
+     * said it offers.
+     */
+    public void recordSuccess(PeerAddress address, BigInteger services) {
+        long now = Utils.currentTimeSeconds();
+        lock.lock();
+        try {
+            Entry entry = getOrCreate(address.toSocketAddress());
+            if (entry == null)
+                return;
+            entry.services = services.longValue();
+            entry.lastSeen = entry.lastAttempt = entry.lastSuccess = now;
+            entry.successes++;
+            entry.failures = 0;
+            write(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that connecting to the given address failed. */
+    public void recordFailure(PeerAddress address) {
+        lock.lock();
+        try {
+            Entry entry = getOrCreate(address.toSocketAddress());
+            if (entry == null)
+                return;
+            entry.lastAttempt = Utils.currentTimeSeconds();
+            entry.failures++;
+            write(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records how long a ping to the peer at the given address took. The store keeps a moving average. */
+    public void recordPing(PeerAddress address, long pingMillis) {
+        if (pingMillis < 0 || pingMillis >= Integer.MAX_VALUE)
+            return;
+        lock.lock();
+        try {
+            Entry entry = index.get(address.toSocketAddress());
+            if (entry == null)
+                return;
+            // Round up so that very fast peers don't end up looking unpinged.
+            entry.pingMillis = entry.pingMillis == 0 ? Math.max((int) pingMillis, 1) :
+                    (int) ((3L * entry.pingMillis + pingMillis + 3) / 4);
+            write(entry);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Picks up to n addresses to connect to, leaving out those in the exclude set and those that failed recently
+     * (which are retried after an exponentially growing delay).</p>
+     *
+     * <p>Addresses are picked at random, weighted by how often connecting to them worked, how fast they answer pings
+     * and how recently they were seen, so that known good peers are tried first without every client hammering the
+     * same ones. Peers that said they can't serve blocks are never picked.</p>
+     *
+     * <p>The returned addresses have no time or services set, so they compare equal to the same addresses found by
+     * other discovery sources.</p>
+     */
+    public List<PeerAddress> select(int n, Set<PeerAddress> exclude) {
+        long now = Utils.currentTimeSeconds();
+        lock.lock();
+        try {
+            List<Entry> candidates = new ArrayList<Entry>();
+            List<Double> weights = new ArrayList<Double>();
+            double total = 0;
+            for (Entry entry : index.values()) {
+                if (entry.failures > 0 && now < entry.lastAttempt + getRetryDelaySecs(entry.failures))
+                    continue;
+                double weight = getWeight(entry, now);
+                if (weight <= 0)
+                    continue;
+                if (exclude.contains(new PeerAddress(entry.address)))
+                    continue;
+                candidates.add(entry);
+                weights.add(weight);
+                total += weight;
+            }
+            List<PeerAddress> result = new ArrayList<PeerAddress>();
+            while (result.size() < n && !candidates.isEmpty()) {
+                double target = random.nextDouble() * total;
+                int i = 0;
+                while (i < candidates.size() - 1 && (target -= weights.get(i)) >= 0)
+                    i++;
+                result.add(new PeerAddress(candidates.get(i).address));
+                total -= weights.get(i);
+                // Swap with the last one, so removing it doesn't shift everything along.
+                int last = candidates.size() - 1;
+                candidates.set(i, candidates.get(last));
+                weights.set(i, weights.get(last));
+                candidates.remove(last);
+                weights.remove(last);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long getRetryDelaySecs(int failures) {
+        return Math.min(RETRY_DELAY_SECS << Math.min(failures - 1, 20), MAX_RETRY_DELAY_SECS);
+    }
+
+    private double getWeight(Entry entry, long now) {
+        // Peers that told us they don't serve blocks are no use to us.
+        if (entry.services != 0 && (entry.services & VersionMessage.NODE_NETWORK) == 0)
+            return 0;
+        // Chance that connecting works, assuming one success and one failure we didn't see.
+        double reliability = (entry.successes + 1.0) / (entry.successes + entry.failures + 2.0);
+        double speed = 100.0 / (100 + (entry.pingMillis > 0 ? entry.pingMillis : UNKNOWN_PING_MILLIS));
+        long age = now - Math.max(entry.lastSeen, entry.lastSuccess);
+        double freshness = age <= STALE_SECS ? 1.0 : (double) STALE_SECS / age;
+        return reliability * speed * freshness;
+    }
+
+    /** Returns the number of addresses in the store. */
+    public int size() {
+        lock.lock();
+        try {
+            return index.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the number of addresses the store can hold. */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /** Forgets the given address. */
+    public void remove(PeerAddress address) {
+        lock.lock();
+        try {
+            Entry entry = index.remove(address.toSocketAddress());
+            if (entry == null)
+                return;
+            entries[entry.slot] = null;
+            clear(entry.slot);
+            freeSlots.add(entry.slot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Writes any changes to disk and closes the file. The store can't be used afterwards. */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (buffer == null)
+                return;
+            buffer.force();
+            buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
+            randomAccessFile.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -29,6 +29,7 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -78,7 +79,7 @@ public abstract class AbstractSqlPrunedBlockStore implements PrunedBlockStore {
 
   @Override
   public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
-    Sha256Hash hash = chainHead.getHeader().getHash();
+    Sha256Hash hash = chainHead.getHash();
     this.chainHeadHash = hash;
     this.chainHeadBlock = chainHead;
     maybeConnect();
@@ -89,11 +90,79 @@ public abstract class AbstractSqlPrunedBlockStore implements PrunedBlockStore {
       s.setBytes(1, hash.getBytes());
       s.executeUpdate();
       s.close();
+      indexMainChain(chainHead);
     } catch (SQLException ex) {
       throw new BlockStoreException(ex);
     }
   }
 
+  /**
+   * <p>Brings the mainChain table, which maps the heights of the main chain to the hashes of its blocks, up to date for
+   * the given chain head.</p>
+   *
+   * <p>The heights above the head are removed, then the chain is walked back from the head until it joins the chain
+   * that is already in the table. That is only a block or two normally, or the blocks that changed in a re-org, but
+   * the whole chain if the table is empty.</p>
+   */
+  protected void indexMainChain(StoredBlock chainHead) throws SQLException, BlockStoreException {
+    PreparedStatement s = conn.get().prepareStatement("DELETE FROM mainChain WHERE height > ?");
+    s.setInt(1, chainHead.getHeight());
+    s.executeUpdate();
+    s.close();
+
+    PreparedStatement select = conn.get().prepareStatement("SELECT hash FROM mainChain WHERE height = ?");
+    PreparedStatement update = conn.get().prepareStatement("UPDATE mainChain SET hash = ? WHERE height = ?");
+    PreparedStatement insert = conn.get().prepareStatement("INSERT INTO mainChain(height, hash) VALUES(?, ?)");
+    try {
+      StoredBlock cursor = chainHead;
+      while (cursor != null) {
+        byte[] hash = cursor.getHash().getBytes();
+        select.setInt(1, cursor.getHeight());
+        ResultSet results = select.executeQuery();
+        boolean indexed = results.next();
+        boolean joined = indexed && Arrays.equals(hash, results.getBytes(1));
+        results.close();
+        if (joined)
+          break;
+        PreparedStatement write = indexed ? update : insert;
+        write.setBytes(indexed ? 1 : 2, hash);
+        write.setInt(indexed ? 2 : 1, cursor.getHeight());
+        write.executeUpdate();
+        if (cursor.getHeight() == 0)
+          break;
+        cursor = get(cursor.getPrevBlockHash());
+      }
+    } finally {
+      select.close();
+      update.close();
+      insert.close();
+    }
+  }
+
+  @Override
+  @Nullable
+  public StoredBlock getByHeight(int height) throws BlockStoreException {
+    if (chainHeadBlock != null && chainHeadBlock.getHeight() == height)
+      return chainHeadBlock;
+    maybeConnect();
+    PreparedStatement s = null;
+    try {
+      s = conn.get().prepareStatement("SELECT hash FROM mainChain WHERE height = ?");
+      s.setInt(1, height);
+      ResultSet results = s.executeQuery();
+      if (!results.next())
+        return null;
+      return get(new Sha256Hash(results.getBytes(1)));
+    } catch (SQLException ex) {
+      throw new BlockStoreException(ex);
+    } finally {
+      if (s != null)
+        try {
+          s.close();
+        } catch (SQLException e) { throw new BlockStoreException("Failed to close PreparedStatement"); }
+    }
+  }
+
   @Override
   public StoredBlock getVerifiedChainHead() throws BlockStoreException {
     return verifiedChainHeadBlock;
@@ -101,7 +170,7 @@ public abstract class AbstractSqlPrunedBlockStore implements PrunedBlockStore {
 
   @Override
   public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
-    Sha256Hash hash = chainHead.getHeader().getHash();
+    Sha256Hash hash = chainHead.getHash();
     this.verifiedChainHeadHash = hash;
     this.verifiedChainHeadBlock = chainHead;
     maybeConnect();
@@ -56,7 +56,15 @@ public class H2PrunedBlockStore extends AbstractSqlPrunedBlockStore {
         + "chainWork BLOB NOT NULL,"
         + "height INT NOT NULL,"
         + "header BLOB NOT NULL,"
-        + "wasUndoable BOOL NOT NULL"
+        + "wasUndoable BOOL NOT NULL,"
+        + "skipHash BINARY(32)"
+        + ")";
+    // Adds the column for the skip hashes of StoredBlock to stores that were created without it.
+    static final String ADD_SKIP_HASH_COLUMN = "ALTER TABLE headers ADD skipHash BINARY(32)";
+    // The hashes of the main chain by height, for getByHeight().
+    static final String CREATE_MAIN_CHAIN_TABLE = "CREATE TABLE mainChain ( "
+        + "height INT NOT NULL CONSTRAINT mainChain_pk PRIMARY KEY,"
+        + "hash BINARY(32) NOT NULL"
         + ")";
     
     static final String CREATE_UNDOABLE_TABLE = "CREATE TABLE undoableBlocks ( "
@@ -104,9 +112,22 @@ public class H2PrunedBlockStore extends AbstractSqlPrunedBlockStore {
         
         try {
             // Create tables if needed
-            if (!tableExists("settings"))
+            boolean indexMainChain = false;
+            if (!tableExists("settings")) {
                 createTables();
+            } else {
+                if (!columnExists("headers", "skipHash"))
+                    addSkipHashColumn();
+                if (!tableExists("mainChain")) {
+                    createMainChainTable();
+                    indexMainChain = true;
+                }
+            }
             initFromDatabase();
+            if (indexMainChain) {
+                log.info("H2PrunedBlockStore : indexing the main chain by height, this may take a while");
+                indexMainChain(chainHeadBlock);
+            }
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
@@ -166,6 +187,7 @@ public class H2PrunedBlockStore extends AbstractSqlPrunedBlockStore {
             s.executeUpdate("DROP TABLE headers");
             s.executeUpdate("DROP TABLE undoableBlocks");
             s.executeUpdate("DROP TABLE openOutputs");
+            s.executeUpdate("DROP TABLE mainChain");
             s.close();
             createTables();
             initFromDatabase();
@@ -181,6 +203,9 @@ public class H2PrunedBlockStore extends AbstractSqlPrunedBlockStore {
 
         log.debug("H2PrunedBlockStore : CREATE settings table");
         s.executeUpdate(CREATE_SETTINGS_TABLE);
+
+        log.debug("H2PrunedBlockStore : CREATE main chain table");
+        s.executeUpdate(CREATE_MAIN_CHAIN_TABLE);
         
         log.debug("H2PrunedBlockStore : CREATE undoable block table");
         s.executeUpdate(CREATE_UNDOABLE_TABLE);
@@ -250,6 +275,24 @@ public class H2PrunedBlockStore extends AbstractSqlPrunedBlockStore {
         }
     }
 
+    private void addSkipHashColumn() throws SQLException {
+        Statement s = conn.get().createStatement();
+        log.info("H2PrunedBlockStore : ALTER headers table to add skip hashes");
+        s.executeUpdate(ADD_SKIP_HASH_COLUMN);
+        s.close();
+    }
+
+    private void createMainChainTable() throws SQLException {
+        Statement s = conn.get().createStatement();
+        log.info("H2PrunedBlockStore : CREATE main chain table");
+        s.executeUpdate(CREATE_MAIN_CHAIN_TABLE);
+        s.close();
+    }
+
+    private boolean columnExists(String table, String column) throws SQLException {
+        return tableExists("(SELECT " + column + " FROM " + table + ")");
+    }
+
     private boolean tableExists(String table) throws SQLException {
         Statement s = conn.get().createStatement();
         try {
@@ -338,16 +381,18 @@ public class H2PrunedBlockStore extends AbstractSqlPrunedBlockStore {
     private void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
         try {
             PreparedStatement s =
-                    conn.get().prepareStatement("INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
-                            + " VALUES(?, ?, ?, ?, ?)");
+                    conn.get().prepareStatement("INSERT INTO headers(hash, chainWork, height, header, wasUndoable, skipHash)"
+                            + " VALUES(?, ?, ?, ?, ?, ?)");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
-            System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
+            System.arraycopy(storedBlock.getHash().getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
             s.setBytes(2, storedBlock.getChainWork().toByteArray());
             s.setInt(3, storedBlock.getHeight());
             s.setBytes(4, storedBlock.getHeader().unsafeBitcoinSerialize());
             s.setBoolean(5, wasUndoable);
+            Sha256Hash skipHash = storedBlock.getSkipHash();
+            s.setBytes(6, skipHash == null ? null : skipHash.getBytes());
             s.executeUpdate();
             s.close();
         } catch (SQLException e) {
@@ -360,7 +405,7 @@ public class H2PrunedBlockStore extends AbstractSqlPrunedBlockStore {
             s.setBoolean(1, true);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
-            System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
+            System.arraycopy(storedBlock.getHash().getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(2, hashBytes);
             s.executeUpdate();
             s.close();
@@ -380,7 +425,7 @@ public class H2PrunedBlockStore extends AbstractSqlPrunedBlockStore {
         maybeConnect();
         // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
         byte[] hashBytes = new byte[28];
-        System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
+        System.arraycopy(storedBlock.getHash().getBytes(), 3, hashBytes, 0, 28);
         int height = storedBlock.getHeight();
         byte[] transactions = null;
         byte[] txOutChanges = null;
@@ -459,7 +504,7 @@ public class H2PrunedBlockStore extends AbstractSqlPrunedBlockStore {
         maybeConnect();
         PreparedStatement s = null;
         try {
-            s = conn.get().prepareStatement("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
+            s = conn.get().prepareStatement("SELECT chainWork, height, header, wasUndoable, skipHash FROM headers WHERE hash = ?");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
@@ -475,7 +520,8 @@ public class H2PrunedBlockStore extends AbstractSqlPrunedBlockStore {
             int height = results.getInt(2);
             Block b = new Block(params, results.getBytes(3));
             b.verifyHeader();
-            return new StoredBlock(b, chainWork, height);
+            byte[] skipHash = results.getBytes(5);
+            return new StoredBlock(b, chainWork, height, skipHash == null ? null : new Sha256Hash(skipHash));
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } catch (ProtocolException e) {
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.store;
+
+import com.google.bitcoin.core.StoredBlock;
+
+import javax.annotation.Nullable;
+
+/**
+ * <p>A {@link BlockStore} that can look up the blocks of the main chain by their height, without walking the chain
+ * back from its head. The main chain is the one that ends in the block last given to
+ * {@link BlockStore#setChainHead(StoredBlock)}, so the index follows the head through re-organizations.</p>
+ *
+ * <p>HeightIndexedBlockStores are thread safe.</p>
+ */
+public interface HeightIndexedBlockStore extends BlockStore {
+    /**
+     * Returns the block at the given height in the chain that ends in the chain head, or null if the height is above
+     * the chain head or the block isn't (or is no longer) in the store.
+     */
+    @Nullable
+    StoredBlock getByHeight(int height) throws BlockStoreException;
+}
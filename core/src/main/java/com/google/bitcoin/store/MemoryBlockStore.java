@@ -18,13 +18,16 @@ package com.google.bitcoin.store;
 
 import com.google.bitcoin.core.*;
 
+import javax.annotation.Nullable;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Keeps {@link com.google.bitcoin.core.StoredBlock}s in memory. Used primarily for unit testing.
  */
-public class MemoryBlockStore implements BlockStore {
+public class MemoryBlockStore implements HeightIndexedBlockStore {
     private LinkedHashMap<Sha256Hash, StoredBlock> blockMap = new LinkedHashMap<Sha256Hash, StoredBlock>() {
         @Override
         protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> eldest) {
@@ -32,6 +35,8 @@ public class MemoryBlockStore implements BlockStore {
         }
     };
     private StoredBlock chainHead;
+    // The hashes of the main chain by height. Null where the chain wasn't walked back that far.
+    private List<Sha256Hash> mainChain = new ArrayList<Sha256Hash>();
 
     public MemoryBlockStore(NetworkParameters params) {
         // Insert the genesis block.
@@ -49,7 +54,7 @@ public class MemoryBlockStore implements BlockStore {
 
     public synchronized void put(StoredBlock block) throws BlockStoreException {
         if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
-        Sha256Hash hash = block.getHeader().getHash();
+        Sha256Hash hash = block.getHash();
         blockMap.put(hash, block);
     }
 
@@ -63,9 +68,34 @@ public class MemoryBlockStore implements BlockStore {
         return chainHead;
     }
 
-    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
         this.chainHead = chainHead;
+        // Forget the heights above the new head, then walk back until the new chain joins the one we had.
+        int height = chainHead.getHeight();
+        while (mainChain.size() > height + 1)
+            mainChain.remove(mainChain.size() - 1);
+        while (mainChain.size() <= height)
+            mainChain.add(null);
+        StoredBlock cursor = chainHead;
+        while (cursor != null) {
+            Sha256Hash hash = cursor.getHash();
+            if (hash.equals(mainChain.get(cursor.getHeight())))
+                break;
+            mainChain.set(cursor.getHeight(), hash);
+            if (cursor.getHeight() == 0)
+                break;
+            cursor = blockMap.get(cursor.getPrevBlockHash());
+        }
+    }
+
+    @Nullable
+    public synchronized StoredBlock getByHeight(int height) throws BlockStoreException {
+        if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
+        if (height < 0 || height >= mainChain.size())
+            return null;
+        Sha256Hash hash = mainChain.get(height);
+        return hash == null ? null : blockMap.get(hash);
     }
     
     public void close() {
@@ -234,6 +234,8 @@ public class MemoryPrunedBlockStore implements PrunedBlockStore {
     private TransactionalHashMap<StoredTransactionOutPoint, StoredTransactionOutput> transactionOutputMap;
     private StoredBlock chainHead;
     private StoredBlock verifiedChainHead;
+    // The hashes of the main chain by height. Null where the chain wasn't walked back that far.
+    private List<Sha256Hash> mainChain = new ArrayList<Sha256Hash>();
     private int fullStoreDepth;
     
     /**
@@ -264,13 +266,13 @@ public class MemoryPrunedBlockStore implements PrunedBlockStore {
 
     public synchronized void put(StoredBlock block) throws BlockStoreException {
         Preconditions.checkNotNull(blockMap, "MemoryPrunedBlockStore is closed");
-        Sha256Hash hash = block.getHeader().getHash();
+        Sha256Hash hash = block.getHash();
         blockMap.put(hash, new StoredBlockAndWasUndoableFlag(block, false));
     }
     
     public synchronized void put(StoredBlock storedBlock, StoredTxOChanges undoableBlock) throws BlockStoreException {
         Preconditions.checkNotNull(blockMap, "MemoryPrunedBlockStore is closed");
-        Sha256Hash hash = storedBlock.getHeader().getHash();
+        Sha256Hash hash = storedBlock.getHash();
         fullBlockMap.put(hash, storedBlock.getHeight(), undoableBlock);
         blockMap.put(hash, new StoredBlockAndWasUndoableFlag(storedBlock, true));
     }
@@ -303,6 +305,31 @@ public class MemoryPrunedBlockStore implements PrunedBlockStore {
     public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         Preconditions.checkNotNull(blockMap, "MemoryPrunedBlockStore is closed");
         this.chainHead = chainHead;
+        // Forget the heights above the new head, then walk back until the new chain joins the one we had.
+        int height = chainHead.getHeight();
+        while (mainChain.size() > height + 1)
+            mainChain.remove(mainChain.size() - 1);
+        while (mainChain.size() <= height)
+            mainChain.add(null);
+        StoredBlock cursor = chainHead;
+        while (cursor != null) {
+            Sha256Hash hash = cursor.getHash();
+            if (hash.equals(mainChain.get(cursor.getHeight())))
+                break;
+            mainChain.set(cursor.getHeight(), hash);
+            if (cursor.getHeight() == 0)
+                break;
+            cursor = get(cursor.getPrevBlockHash());
+        }
+    }
+
+    @Nullable
+    public synchronized StoredBlock getByHeight(int height) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "MemoryPrunedBlockStore is closed");
+        if (height < 0 || height >= mainChain.size())
+            return null;
+        Sha256Hash hash = mainChain.get(height);
+        return hash == null ? null : get(hash);
     }
     
     public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
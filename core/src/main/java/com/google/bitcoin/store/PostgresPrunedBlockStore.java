@@ -53,7 +53,15 @@ public class PostgresPrunedBlockStore extends AbstractSqlPrunedBlockStore {
             "    chainwork bytea NOT NULL," +
             "    height integer NOT NULL," +
             "    header bytea NOT NULL," +
-            "    wasundoable boolean NOT NULL" +
+            "    wasundoable boolean NOT NULL," +
+            "    skiphash bytea" +
+            ");";
+    // Adds the column for the skip hashes of StoredBlock to stores that were created without it.
+    private static final String ADD_SKIP_HASH_COLUMN = "ALTER TABLE headers ADD COLUMN skiphash bytea;";
+    // The hashes of the main chain by height, for getByHeight().
+    private static final String CREATE_MAIN_CHAIN_TABLE = "CREATE TABLE mainchain (" +
+            "    height integer NOT NULL PRIMARY KEY," +
+            "    hash bytea NOT NULL" +
             ");";
 
     private static final String CREATE_UNDOABLE_TABLE = "CREATE TABLE undoableblocks (" +
@@ -167,9 +175,22 @@ public class PostgresPrunedBlockStore extends AbstractSqlPrunedBlockStore {
 
         try {
             // Create tables if needed
-            if (!tableExists("settings"))
+            boolean indexMainChain = false;
+            if (!tableExists("settings")) {
                 createTables();
+            } else {
+                if (!columnExists("headers", "skiphash"))
+                    addSkipHashColumn();
+                if (!tableExists("mainChain")) {
+                    createMainChainTable();
+                    indexMainChain = true;
+                }
+            }
             initFromDatabase();
+            if (indexMainChain) {
+                log.info("PostgresPrunedBlockStore : indexing the main chain by height, this may take a while");
+                indexMainChain(chainHeadBlock);
+            }
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
@@ -221,6 +242,7 @@ public class PostgresPrunedBlockStore extends AbstractSqlPrunedBlockStore {
             s.execute("DROP TABLE headers");
             s.execute("DROP TABLE undoableBlocks");
             s.execute("DROP TABLE openOutputs");
+            s.execute("DROP TABLE mainChain");
             s.close();
             createTables();
             initFromDatabase();
@@ -239,6 +261,10 @@ public class PostgresPrunedBlockStore extends AbstractSqlPrunedBlockStore {
             log.debug("PostgresPrunedBlockStore : CREATE settings table");
         s.executeUpdate(CREATE_SETTINGS_TABLE);
 
+        if (log.isDebugEnabled())
+            log.debug("PostgresPrunedBlockStore : CREATE main chain table");
+        s.executeUpdate(CREATE_MAIN_CHAIN_TABLE);
+
         if (log.isDebugEnabled())
             log.debug("PostgresPrunedBlockStore : CREATE undoable block table");
         s.executeUpdate(CREATE_UNDOABLE_TABLE);
@@ -313,6 +339,24 @@ public class PostgresPrunedBlockStore extends AbstractSqlPrunedBlockStore {
         }
     }
 
+    private void addSkipHashColumn() throws SQLException {
+        Statement s = conn.get().createStatement();
+        log.info("PostgresPrunedBlockStore : ALTER headers table to add skip hashes");
+        s.executeUpdate(ADD_SKIP_HASH_COLUMN);
+        s.close();
+    }
+
+    private void createMainChainTable() throws SQLException {
+        Statement s = conn.get().createStatement();
+        log.info("PostgresPrunedBlockStore : CREATE main chain table");
+        s.executeUpdate(CREATE_MAIN_CHAIN_TABLE);
+        s.close();
+    }
+
+    private boolean columnExists(String table, String column) throws SQLException {
+        return tableExists("(SELECT " + column + " FROM " + table + ") AS t");
+    }
+
     private boolean tableExists(String table) throws SQLException {
         Statement s = conn.get().createStatement();
         try {
@@ -401,16 +445,18 @@ public class PostgresPrunedBlockStore extends AbstractSqlPrunedBlockStore {
     private void putUpdateStoredBlock(StoredBlock storedBlock, boolean wasUndoable) throws SQLException {
         try {
             PreparedStatement s =
-                    conn.get().prepareStatement("INSERT INTO headers(hash, chainWork, height, header, wasUndoable)"
-                            + " VALUES(?, ?, ?, ?, ?)");
+                    conn.get().prepareStatement("INSERT INTO headers(hash, chainWork, height, header, wasUndoable, skipHash)"
+                            + " VALUES(?, ?, ?, ?, ?, ?)");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
-            System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
+            System.arraycopy(storedBlock.getHash().getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(1, hashBytes);
             s.setBytes(2, storedBlock.getChainWork().toByteArray());
             s.setInt(3, storedBlock.getHeight());
             s.setBytes(4, storedBlock.getHeader().unsafeBitcoinSerialize());
             s.setBoolean(5, wasUndoable);
+            Sha256Hash skipHash = storedBlock.getSkipHash();
+            s.setBytes(6, skipHash == null ? null : skipHash.getBytes());
             s.executeUpdate();
             s.close();
         } catch (SQLException e) {
@@ -423,7 +469,7 @@ public class PostgresPrunedBlockStore extends AbstractSqlPrunedBlockStore {
             s.setBoolean(1, true);
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
-            System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
+            System.arraycopy(storedBlock.getHash().getBytes(), 3, hashBytes, 0, 28);
             s.setBytes(2, hashBytes);
             s.executeUpdate();
             s.close();
@@ -443,7 +489,7 @@ public class PostgresPrunedBlockStore extends AbstractSqlPrunedBlockStore {
         maybeConnect();
         // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
         byte[] hashBytes = new byte[28];
-        System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
+        System.arraycopy(storedBlock.getHash().getBytes(), 3, hashBytes, 0, 28);
         int height = storedBlock.getHeight();
         byte[] transactions = null;
         byte[] txOutChanges = null;
@@ -546,7 +592,7 @@ public class PostgresPrunedBlockStore extends AbstractSqlPrunedBlockStore {
         PreparedStatement s = null;
         try {
             s = conn.get()
-                    .prepareStatement("SELECT chainWork, height, header, wasUndoable FROM headers WHERE hash = ?");
+                    .prepareStatement("SELECT chainWork, height, header, wasUndoable, skipHash FROM headers WHERE hash = ?");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
@@ -564,7 +610,9 @@ public class PostgresPrunedBlockStore extends AbstractSqlPrunedBlockStore {
             int height = results.getInt(2);
             Block b = new Block(params, results.getBytes(3));
             b.verifyHeader();
-            StoredBlock stored = new StoredBlock(b, chainWork, height);
+            byte[] skipHash = results.getBytes(5);
+            StoredBlock stored = new StoredBlock(b, chainWork, height,
+                    skipHash == null ? null : new Sha256Hash(skipHash));
             return stored;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
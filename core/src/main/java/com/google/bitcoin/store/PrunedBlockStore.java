@@ -38,7 +38,8 @@ import com.google.bitcoin.core.StoredTxOChanges;
  * Because N determines the memory usage, it is recommended that N be customizable. N should be chosen such that
  * re-orgs beyond that point are vanishingly unlikely, for example, a few thousand blocks is a reasonable choice.</p>
  * 
- * <p>It must store the {@link StoredBlock} of all blocks.</p>
+ * <p>It must store the {@link StoredBlock} of all blocks, and be able to look up those of the main chain by their
+ * height.</p>
  *
  * <p>A PrunedBlockStore contains a map of hashes to [Full]StoredBlock. The hash is the double digest of the
  * Bitcoin serialization of the block header, <b>not</b> the header with the extra data as well.</p>
@@ -48,7 +49,7 @@ import com.google.bitcoin.core.StoredTxOChanges;
  *
  * <p>FullPrunedBlockStores are thread safe.</p>
  */
-public interface PrunedBlockStore extends BatchableBlockStore {
+public interface PrunedBlockStore extends BatchableBlockStore, HeightIndexedBlockStore {
     /**
      * <p>Saves the given {@link com.google.bitcoin.core.StoredTxOChanges} and {@link StoredBlock}. Calculates keys from the {@link StoredBlock}</p>
      * 
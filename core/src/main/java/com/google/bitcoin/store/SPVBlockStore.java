@@ -39,11 +39,14 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
- * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
+ * <p>An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
- * but as they are virtually unheard of this is not a significant risk.
+ * but as they are virtually unheard of this is not a significant risk.</p>
+ *
+ * <p>The blocks of the main chain that are still in the ring buffer can be looked up by height with
+ * {@link #getByHeight(int)}.</p>
  */
-public class SPVBlockStore implements BlockStore {
+public class SPVBlockStore implements HeightIndexedBlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
 
     /** The default number of headers that will be stored in the ring buffer. */
@@ -82,6 +85,11 @@ public class SPVBlockStore implements BlockStore {
             return size() > 100;  // This was chosen arbitrarily.
         }
     };
+    // Where the records of the main chain are in the file, at their height modulo the number of headers, or zero where
+    // that isn't known. Built by the first getByHeight() and then kept up to date by setChainHead().
+    protected int[] heightIndex;
+    // The height of the chain head the index was last brought up to date for.
+    protected int heightIndexHead;
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
@@ -173,7 +181,7 @@ public class SPVBlockStore implements BlockStore {
                 cursor = FILE_PROLOGUE_BYTES;
             }
             buffer.position(cursor);
-            Sha256Hash hash = block.getHeader().getHash();
+            Sha256Hash hash = block.getHash();
             notFoundCache.remove(hash);
             buffer.put(hash.getBytes());
             block.serializeCompact(buffer);
@@ -195,29 +203,13 @@ public class SPVBlockStore implements BlockStore {
             if (notFoundCache.get(hash) != null)
                 return null;
 
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize();
-            final byte[] targetHashBytes = hash.getBytes();
-            byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
-                if (Arrays.equals(scratch, targetHashBytes)) {
-                    // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
-                    return storedBlock;
-                }
-            } while (cursor != startingPoint);
+            int cursor = findRecord(buffer, hash.getBytes());
+            if (cursor != -1) {
+                buffer.position(cursor + 32);
+                StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
+                blockCache.put(hash, storedBlock);
+                return storedBlock;
+            }
             // Not found.
             notFoundCache.put(hash, notFoundMarker);
             return null;
@@ -226,6 +218,110 @@ public class SPVBlockStore implements BlockStore {
         } finally { lock.unlock(); }
     }
 
+    // Returns the offset of the record with the given hash, or -1 if there is none.
+    private int findRecord(ByteBuffer buffer, byte[] targetHashBytes) {
+        // Starting from the current tip of the ring work backwards until we have either found the block or
+        // wrapped around.
+        int cursor = getRingCursor(buffer);
+        final int startingPoint = cursor;
+        final int fileSize = getFileSize();
+        byte[] scratch = new byte[32];
+        do {
+            cursor -= RECORD_SIZE;
+            if (cursor < FILE_PROLOGUE_BYTES) {
+                // We hit the start, so wrap around.
+                cursor = fileSize - RECORD_SIZE;
+            }
+            // Cursor is now at the start of the next record to check, so read the hash and compare it.
+            buffer.position(cursor);
+            buffer.get(scratch);
+            if (Arrays.equals(scratch, targetHashBytes))
+                return cursor;
+        } while (cursor != startingPoint);
+        return -1;
+    }
+
+    /**
+     * Returns the block at the given height in the main chain, or null if it is above the chain head or no longer in
+     * the ring buffer. The first call reads the hashes of all the records to find the main chain, after that this
+     * takes constant time.
+     */
+    @Nullable
+    public StoredBlock getByHeight(int height) throws BlockStoreException {
+        final MappedByteBuffer buffer = this.buffer;
+        if (buffer == null) throw new BlockStoreException("Store closed");
+
+        lock.lock();
+        try {
+            int headHeight = getChainHead().getHeight();
+            if (height < 0 || height > headHeight || height <= headHeight - numHeaders)
+                return null;
+            if (heightIndex == null)
+                buildHeightIndex(buffer);
+            int cursor = heightIndex[height % numHeaders];
+            // The record may have been overwritten since, by a block of another height.
+            if (cursor == 0 || buffer.getInt(cursor + HEIGHT_OFFSET) != height)
+                return null;
+            byte[] hashBytes = new byte[32];
+            buffer.position(cursor);
+            buffer.get(hashBytes);
+            Sha256Hash hash = new Sha256Hash(hashBytes);
+            StoredBlock storedBlock = blockCache.get(hash);
+            if (storedBlock == null) {
+                storedBlock = StoredBlock.deserializeCompact(params, buffer);
+                blockCache.put(hash, storedBlock);
+            }
+            return storedBlock;
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        } finally { lock.unlock(); }
+    }
+
+    private void buildHeightIndex(ByteBuffer buffer) throws BlockStoreException {
+        // Walking back from the head with findRecord() would search the ring once for every block, so collect where
+        // all the records are first.
+        Map<Sha256Hash, Integer> records = new Sha256HashMap<Integer>(numHeaders);
+        for (int cursor = FILE_PROLOGUE_BYTES; cursor < getFileSize(); cursor += RECORD_SIZE) {
+            byte[] hashBytes = new byte[32];
+            buffer.position(cursor);
+            buffer.get(hashBytes);
+            records.put(new Sha256Hash(hashBytes), cursor);
+        }
+        heightIndex = new int[numHeaders];
+        StoredBlock head = getChainHead();
+        heightIndexHead = head.getHeight();
+        indexMainChain(buffer, head, records);
+    }
+
+    // Points the index at the records of the chain that ends in the given head, walking back until it joins the chain
+    // that is already indexed. Records are looked up in the map if one is given and searched for otherwise, which is
+    // quick as after a new head or a re-org the blocks to walk through were put recently.
+    private void indexMainChain(ByteBuffer buffer, StoredBlock head, @Nullable Map<Sha256Hash, Integer> records) {
+        int height = head.getHeight();
+        // Forget what the index still holds of the old chain above the new head.
+        for (int h = height + 1; h <= heightIndexHead && h <= height + numHeaders; h++)
+            heightIndex[h % numHeaders] = 0;
+        heightIndexHead = height;
+        byte[] hashBytes = head.getHash().getBytes();
+        for (int i = 0; i < numHeaders && height >= 0; i++, height--) {
+            int cursor;
+            if (records != null) {
+                Integer record = records.get(new Sha256Hash(hashBytes));
+                cursor = record == null ? -1 : record;
+            } else {
+                cursor = findRecord(buffer, hashBytes);
+            }
+            int slot = height % numHeaders;
+            if (cursor == -1 || heightIndex[slot] == cursor)
+                break;
+            heightIndex[slot] = cursor;
+            byte[] prevHash = new byte[32];
+            buffer.position(cursor + PREV_HASH_OFFSET);
+            buffer.get(prevHash);
+            hashBytes = Utils.reverseBytes(prevHash);
+        }
+    }
+
     protected StoredBlock lastChainHead = null;
 
     public StoredBlock getChainHead() throws BlockStoreException {
@@ -255,9 +351,11 @@ public class SPVBlockStore implements BlockStore {
         lock.lock();
         try {
             lastChainHead = chainHead;
-            byte[] headHash = chainHead.getHeader().getHash().getBytes();
+            byte[] headHash = chainHead.getHash().getBytes();
             buffer.position(8);
             buffer.put(headHash);
+            if (heightIndex != null)
+                indexMainChain(buffer, chainHead, null);
         } finally { lock.unlock(); }
     }
 
@@ -285,6 +383,10 @@ public class SPVBlockStore implements BlockStore {
     //   80 bytes of block header data
     protected static final int FILE_PROLOGUE_BYTES = 1024;
 
+    // Where the height and the hash of the previous block are within a record.
+    private static final int HEIGHT_OFFSET = 32 + StoredBlock.CHAIN_WORK_BYTES;
+    private static final int PREV_HASH_OFFSET = HEIGHT_OFFSET + 4 + 4 /* version */;
+
     /** Returns the offset from the file start where the latest block should be written (end of prev block). */
     private int getRingCursor(ByteBuffer buffer) {
         int c = buffer.getInt(4);
@@ -19,16 +19,25 @@ package com.google.bitcoin.utils;
 import com.google.bitcoin.core.Block;
 import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.ProtocolException;
-import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.VerificationException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.NoSuchElementException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * <p>This class reads block files stored in the reference/Satoshi client format. This is simply a way to concatenate
@@ -44,6 +53,10 @@ import java.util.NoSuchElementException;
  * for (Block block : loader) {<br>
  * &nbsp;&nbsp;try { chain.add(block); } catch (Exception e) { }<br>
  * }</p>
+ *
+ * <p>Each file is memory mapped rather than read. To keep the chain busy while importing, give the loader some
+ * threads with {@link #BlockFileLoader(NetworkParameters, List, int)}: blocks are then parsed and hashed by those
+ * threads ahead of being asked for, and still handed out in the order they appear in the files.</p>
  */
 public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
     /**
@@ -70,16 +83,58 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
         return list;
     }
     
-    private Iterator<File> fileIt;
-    private FileInputStream currentFileStream = null;
+    private static final Logger log = LoggerFactory.getLogger(BlockFileLoader.class);
+
+    // How many blocks are parsed ahead per prefetch thread.
+    private static final int PREFETCH_BLOCKS_PER_THREAD = 16;
+
+    private final Iterator<File> fileIt;
+    @Nullable private ByteBuffer currentFile = null;
+    private final NetworkParameters params;
+    private final int magic;
+    // Blocks being parsed ahead, in file order, if prefetching. A null result means the block couldn't be parsed.
+    @Nullable private final ExecutorService prefetchExecutor;
+    private final Deque<Future<Block>> prefetched = new ArrayDeque<Future<Block>>();
+    private final int prefetchLimit;
+    private volatile boolean verify = false;
     private Block nextBlock = null;
-    private NetworkParameters params;
-    
+
     public BlockFileLoader(NetworkParameters params, List<File> files) {
+        this(params, files, 0);
+    }
+
+    /**
+     * Creates a loader that parses blocks ahead on the given number of threads. With no threads, blocks are parsed
+     * when they are asked for.
+     */
+    public BlockFileLoader(NetworkParameters params, List<File> files, int prefetchThreads) {
+        checkArgument(prefetchThreads >= 0);
         fileIt = files.iterator();
         this.params = params;
+        this.magic = (int) params.getPacketMagic();
+        if (prefetchThreads > 0) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(prefetchThreads, prefetchThreads, 10, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder()
+                    .setDaemon(true).setNameFormat("Block file loader %d").build());
+            // So that the threads go away if iteration is abandoned.
+            executor.allowCoreThreadTimeOut(true);
+            prefetchExecutor = executor;
+            prefetchLimit = prefetchThreads * PREFETCH_BLOCKS_PER_THREAD;
+        } else {
+            prefetchExecutor = null;
+            prefetchLimit = 0;
+        }
     }
     
+    /**
+     * Sets whether blocks are checked with {@link Block#verify()} before being handed out. Blocks that fail are skipped,
+     * like blocks that can't be parsed. When prefetching, this is done by the prefetch threads, which takes the work of
+     * hashing the transactions to the merkle root off the thread that adds the blocks to a chain.
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
     @Override
     public boolean hasNext() {
         if (nextBlock == null)
@@ -95,71 +150,117 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
         nextBlock = null;
         return next;
     }
-    
+
     private void loadNextBlock() {
+        if (prefetchExecutor == null) {
+            byte[] bytes;
+            while ((bytes = nextBlockBytes()) != null) {
+                nextBlock = parse(bytes);
+                if (nextBlock != null)
+                    return;
+            }
+            return;
+        }
         while (true) {
+            // Keep the prefetch queue full.
+            byte[] bytes;
+            while (prefetched.size() < prefetchLimit && (bytes = nextBlockBytes()) != null) {
+                final byte[] blockBytes = bytes;
+                prefetched.add(prefetchExecutor.submit(new Callable<Block>() {
+                    @Override
+                    public Block call() throws Exception {
+                        Block block = parse(blockBytes);
+                        if (block != null && !verify) {
+                            // Calculate the hashes the chain will ask for, while it's busy with earlier blocks.
+                            block.getHash();
+                            for (Transaction tx : block.getTransactions())
+                                tx.getHash();
+                        }
+                        return block;
+                    }
+                }));
+            }
+            Future<Block> future = prefetched.poll();
+            if (future == null) {
+                prefetchExecutor.shutdown();
+                return;
+            }
             try {
-                if (!fileIt.hasNext() && (currentFileStream == null || currentFileStream.available() < 1))
-                    break;
-            } catch (IOException e) {
-                currentFileStream = null;
+                nextBlock = Uninterruptibles.getUninterruptibly(future);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+            if (nextBlock != null)
+                return;
+        }
+    }
+
+    @Nullable
+    private Block parse(byte[] bytes) {
+        try {
+            Block block = new Block(params, bytes);
+            if (verify)
+                block.verify();
+            return block;
+        } catch (ProtocolException e) {
+            return null;
+        } catch (VerificationException e) {
+            log.warn("Skipping block that failed to verify: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    // Finds the next block in the files, and returns a copy of its bytes, or null if there are no more blocks.
+    @Nullable
+    private byte[] nextBlockBytes() {
+        while (true) {
+            if (currentFile == null || currentFile.remaining() < 8) {
                 if (!fileIt.hasNext())
-                    break;
+                    return null;
+                currentFile = map(fileIt.next());
+                continue;
             }
-            while (true) {
-                try {
-                    if (currentFileStream != null && currentFileStream.available() > 0)
-                        break;
-                } catch (IOException e1) {
-                    currentFileStream = null;
-                }
-                if (!fileIt.hasNext()) {
-                    nextBlock = null;
-                    currentFileStream = null;
-                    return;
-                }
-                try {
-                    currentFileStream = new FileInputStream(fileIt.next());
-                } catch (FileNotFoundException e) {
-                    currentFileStream = null;
-                }
+            ByteBuffer file = currentFile;
+            // Blocks usually follow one another directly, but skip anything that isn't one.
+            int position = file.position();
+            int end = file.limit() - 8;
+            while (position <= end && file.getInt(position) != magic)
+                position++;
+            if (position > end) {
+                currentFile = null;
+                continue;
             }
-            try {
-                int nextChar = currentFileStream.read();
-                while (nextChar != -1) {
-                    if (nextChar != ((params.getPacketMagic() >>> 24) & 0xff)) {
-                        nextChar = currentFileStream.read();
-                        continue;
-                    }
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 16) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 8) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar == (params.getPacketMagic() & 0xff))
-                        break;
-                }
-                byte[] bytes = new byte[4];
-                currentFileStream.read(bytes, 0, 4);
-                long size = Utils.readUint32BE(Utils.reverseBytes(bytes), 0);
-                // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
-                if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0)
-                    continue;
-                bytes = new byte[(int) size];
-                currentFileStream.read(bytes, 0, (int) size);
-                try {
-                    nextBlock = new Block(params, bytes);
-                } catch (ProtocolException e) {
-                    nextBlock = null;
-                    continue;
-                }
-                break;
-            } catch (IOException e) {
-                currentFileStream = null;
+            file.position(position + 4);
+            long size = Integer.reverseBytes(file.getInt()) & 0xffffffffL;
+            // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
+            if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0)
+                continue;
+            if (size > file.remaining()) {
+                // The file ends in the middle of the block.
+                currentFile = null;
                 continue;
             }
+            byte[] bytes = new byte[(int) size];
+            file.get(bytes);
+            return bytes;
+        }
+    }
+
+    @Nullable
+    private static ByteBuffer map(File file) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                // The magic bytes are compared as a big endian int, the sizes are little endian.
+                buffer.order(ByteOrder.BIG_ENDIAN);
+                return buffer;
+            } finally {
+                // The mapping stays valid after the file is closed.
+                raf.close();
+            }
+        } catch (IOException e) {
+            return null;
         }
     }
 
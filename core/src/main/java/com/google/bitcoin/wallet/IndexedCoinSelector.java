@@ -0,0 +1,215 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.wallet;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>A coin selector designed for wallets with very large numbers of unspent outputs. When set on a
+ * {@link com.google.bitcoin.core.Wallet} it is given the wallet's {@link UnspentOutputIndex} directly instead of a
+ * freshly built list of candidates, so a spend only touches the outputs that could plausibly be used.</p>
+ *
+ * <p>Selection happens in three steps:</p>
+ * <ol>
+ *     <li>A branch and bound search for a set of outputs whose total is at least the target, but no more than
+ *     the target plus the match range. Such a set needs no change output. The search gives up after a configurable
+ *     amount of time or number of steps.</li>
+ *     <li>Failing that, the smallest single output that covers the target.</li>
+ *     <li>Failing that, the largest outputs until the target is reached, which minimizes the number of inputs.</li>
+ * </ol>
+ *
+ * <p>Which transactions are eligible is decided by {@link DefaultCoinSelector#shouldSelect(Transaction)}, so
+ * sub-classes can customize that in the same way.</p>
+ */
+public class IndexedCoinSelector extends DefaultCoinSelector {
+    private static final Logger log = LoggerFactory.getLogger(IndexedCoinSelector.class);
+
+    /** How long the exact match search may run by default. */
+    public static final long DEFAULT_SEARCH_TIME_MILLIS = 100;
+    /** The maximum number of steps the exact match search may take, regardless of time. */
+    public static final int MAX_TRIES = 1000000;
+    /**
+     * How many of the largest outputs below the target the exact match search considers. Checking whether an output
+     * is selectable isn't free, and matches made of few inputs are found among the biggest outputs anyway.
+     */
+    public static final int MAX_CANDIDATES = 1000;
+
+    private final long matchRange;
+    private final long searchTimeNanos;
+
+    /**
+     * Creates a selector that accepts exact matches that overshoot by less than the dust limit, as the excess
+     * couldn't be sent back as change anyway, and searches for them for {@link #DEFAULT_SEARCH_TIME_MILLIS}.
+     */
+    public IndexedCoinSelector() {
+        this(Transaction.MIN_NONDUST_OUTPUT, DEFAULT_SEARCH_TIME_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param matchRange how much a selection may exceed the target by and still count as an exact match.
+     * @param searchTime how long to look for an exact match before falling back. Zero disables the search.
+     */
+    public IndexedCoinSelector(BigInteger matchRange, long searchTime, TimeUnit unit) {
+        checkArgument(matchRange.signum() >= 0);
+        checkArgument(searchTime >= 0);
+        this.matchRange = matchRange.longValue();
+        this.searchTimeNanos = unit.toNanos(searchTime);
+    }
+
+    /**
+     * Selects from an arbitrary list of candidates by indexing them first. When used from a wallet the index that
+     * the wallet maintains is used instead, see {@link #select(java.math.BigInteger, UnspentOutputIndex)}.
+     */
+    @Override
+    public CoinSelection select(BigInteger target, LinkedList<TransactionOutput> candidates) {
+        UnspentOutputIndex index = new UnspentOutputIndex();
+        for (TransactionOutput output : candidates)
+            index.add(output);
+        return select(target, index);
+    }
+
+    /**
+     * Selects outputs from the given index to cover the target value. The index is not modified. If there isn't
+     * enough value available the returned selection gathers everything selectable, as with other selectors.
+     */
+    public CoinSelection select(BigInteger biTarget, UnspentOutputIndex index) {
+        long target = biTarget.longValue();
+        if (!biTarget.equals(NetworkParameters.MAX_MONEY) && target > 0) {
+            CoinSelection selection = findExactMatch(target, index);
+            if (selection != null)
+                return selection;
+            for (Iterator<TransactionOutput> it = index.atLeast(target); it.hasNext(); ) {
+                TransactionOutput output = it.next();
+                if (canSelect(output))
+                    return new CoinSelection(output.getValue(), Collections.singletonList(output));
+            }
+        }
+        // Either we're being asked for everything (to calculate the balance), or no single output is big enough, so
+        // take the biggest ones until we have enough.
+        List<TransactionOutput> gathered = new ArrayList<TransactionOutput>();
+        long total = 0;
+        for (TransactionOutput output : index) {
+            if (total >= target) break;
+            if (!canSelect(output)) continue;
+            gathered.add(output);
+            total += output.getValue().longValue();
+        }
+        return new CoinSelection(BigInteger.valueOf(total), gathered);
+    }
+
+    /** Returns whether the given output may be spent, according to its maturity and {@link #shouldSelect}. */
+    protected boolean canSelect(TransactionOutput output) {
+        Transaction tx = output.getParentTransaction();
+        return tx.isMature() && shouldSelect(tx);
+    }
+
+    /**
+     * Depth first search over the include/exclude tree of candidate outputs, largest first, pruning branches that
+     * can no longer reach the target or have already overshot it. Returns the first selection that lands within the
+     * match range, or null if none was found within the time budget.
+     */
+    @Nullable
+    private CoinSelection findExactMatch(long target, UnspentOutputIndex index) {
+        if (searchTimeNanos == 0)
+            return null;
+        long upperBound = target + matchRange;
+        // Outputs larger than the upper bound can never be part of a match, so the index lets us skip them.
+        ArrayList<TransactionOutput> candidates = new ArrayList<TransactionOutput>();
+        long available = 0;
+        Iterator<TransactionOutput> it = index.atMost(upperBound);
+        while (it.hasNext() && candidates.size() < MAX_CANDIDATES) {
+            TransactionOutput output = it.next();
+            long value = output.getValue().longValue();
+            if (value == 0 || !canSelect(output)) continue;
+            candidates.add(output);
+            available += value;
+        }
+        if (available < target)
+            return null;
+        final int n = candidates.size();
+        long[] values = new long[n];
+        for (int i = 0; i < n; i++)
+            values[i] = candidates.get(i).getValue().longValue();
+
+        long deadline = System.nanoTime() + searchTimeNanos;
+        boolean[] included = new boolean[n];
+        boolean[] best = null;
+        int depth = 0;
+        long selected = 0;
+        int tries;
+        for (tries = 0; tries < MAX_TRIES; tries++) {
+            if ((tries & 1023) == 1023 && System.nanoTime() > deadline)
+                break;
+            boolean backtrack = false;
+            if (selected + available < target || selected > upperBound) {
+                // Can't reach the target any more, or went over.
+                backtrack = true;
+            } else if (selected >= target) {
+                // Anything within the match range is as good as exact, as the excess is too small to be worth
+                // making change for.
+                best = Arrays.copyOf(included, depth);
+                break;
+            }
+            if (backtrack) {
+                // Walk back to the last included output, restoring the excluded ones as available.
+                while (depth > 0 && !included[depth - 1]) {
+                    depth--;
+                    available += values[depth];
+                }
+                if (depth == 0)
+                    break;  // Explored the whole tree.
+                // Try the branch that excludes it. Its value was already removed from available when included.
+                included[depth - 1] = false;
+                selected -= values[depth - 1];
+            } else {
+                available -= values[depth];
+                // If the previous output has the same value and was excluded, including this one instead would only
+                // repeat work we already did.
+                if (depth > 0 && !included[depth - 1] && values[depth] == values[depth - 1]) {
+                    included[depth] = false;
+                } else {
+                    included[depth] = true;
+                    selected += values[depth];
+                }
+                depth++;
+            }
+        }
+        if (best == null) {
+            log.debug("No exact match found for {} among {} candidates after {} tries", target, n, tries);
+            return null;
+        }
+        List<TransactionOutput> gathered = new ArrayList<TransactionOutput>();
+        long total = 0;
+        for (int i = 0; i < best.length; i++) {
+            if (!best[i]) continue;
+            gathered.add(candidates.get(i));
+            total += values[i];
+        }
+        return new CoinSelection(BigInteger.valueOf(total), gathered);
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.wallet;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionOutput;
+
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>An ordered set of spendable outputs, sorted by value (largest first) and then by age (oldest first). The
+ * {@link com.google.bitcoin.core.Wallet} keeps one of these up to date as transactions come and go, so that coin
+ * selectors like {@link IndexedCoinSelector} can find candidates of a given size without sorting the whole wallet
+ * on every spend.</p>
+ *
+ * <p>The sort key of an output is captured when it's added. If the value or position in the chain of the parent
+ * transaction changes, the output must be removed and re-added to be re-sorted. This class is not thread safe, the
+ * wallet only accesses it with its lock held.</p>
+ */
+public class UnspentOutputIndex implements Iterable<TransactionOutput> {
+    private static class Entry {
+        final TransactionOutput output;
+        final long value;
+        final int height;
+        final Sha256Hash txHash;
+        final int index;
+
+        Entry(TransactionOutput output, long value, int height, Sha256Hash txHash, int index) {
+            this.output = output;
+            this.value = value;
+            this.height = height;
+            this.txHash = txHash;
+            this.index = index;
+        }
+    }
+
+    private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.value != b.value)
+                return a.value > b.value ? -1 : 1;
+            if (a.height != b.height)
+                return a.height < b.height ? -1 : 1;
+            // Sha256Hash.compareTo only looks at the hash codes, which isn't a total order.
+            int c = a.txHash.compareBytes(b.txHash);
+            if (c != 0)
+                return c;
+            return a.index < b.index ? -1 : (a.index == b.index ? 0 : 1);
+        }
+    };
+
+    private final TreeSet<Entry> entries = new TreeSet<Entry>(ORDER);
+    // TransactionOutput equality is defined by value and script, so two identical outputs in one transaction would
+    // collide in a regular map. We need to find entries by object identity instead.
+    private final IdentityHashMap<TransactionOutput, Entry> byOutput = new IdentityHashMap<TransactionOutput, Entry>();
+
+    /** Adds the given output, returning false if it was already present. */
+    public boolean add(TransactionOutput output) {
+        if (byOutput.containsKey(output))
+            return false;
+        Transaction tx = output.getParentTransaction();
+        checkArgument(tx != null, "Output must belong to a transaction");
+        Entry entry = new Entry(output, output.getValue().longValue(), heightOf(tx), tx.getHash(), output.getIndex());
+        byOutput.put(output, entry);
+        entries.add(entry);
+        return true;
+    }
+
+    /** Removes the given output, returning false if it wasn't present. */
+    public boolean remove(TransactionOutput output) {
+        Entry entry = byOutput.remove(output);
+        if (entry == null)
+            return false;
+        entries.remove(entry);
+        return true;
+    }
+
+    public boolean contains(TransactionOutput output) {
+        return byOutput.containsKey(output);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public void clear() {
+        entries.clear();
+        byOutput.clear();
+    }
+
+    /** Iterates over all outputs, largest value first. Outputs of equal value are returned oldest first. */
+    @Override
+    public Iterator<TransactionOutput> iterator() {
+        return outputs(entries.iterator());
+    }
+
+    /**
+     * Iterates over the outputs with a value less than or equal to the given one, largest first. This skips every
+     * output that is too big without having to look at it.
+     */
+    public Iterator<TransactionOutput> atMost(long value) {
+        Entry bound = new Entry(null, value, Integer.MIN_VALUE, Sha256Hash.ZERO_HASH, Integer.MIN_VALUE);
+        return outputs(entries.tailSet(bound, true).iterator());
+    }
+
+    /**
+     * Iterates over the outputs with a value greater than or equal to the given one, smallest first. The first
+     * selectable output returned is the smallest single output that covers a payment of the given value.
+     */
+    public Iterator<TransactionOutput> atLeast(long value) {
+        // Everything that sorts before the first possible entry of the next smaller value.
+        Entry bound = new Entry(null, value - 1, Integer.MIN_VALUE, Sha256Hash.ZERO_HASH, Integer.MIN_VALUE);
+        return outputs(entries.headSet(bound, false).descendingIterator());
+    }
+
+    private static Iterator<TransactionOutput> outputs(final Iterator<Entry> it) {
+        return new Iterator<TransactionOutput>() {
+            @Override public boolean hasNext() { return it.hasNext(); }
+            @Override public TransactionOutput next() { return it.next().output; }
+            @Override public void remove() { throw new UnsupportedOperationException(); }
+        };
+    }
+
+    // Pending transactions sort after everything in the chain, as they are the youngest.
+    private static int heightOf(Transaction tx) {
+        TransactionConfidence confidence = tx.getConfidence();
+        if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
+            return confidence.getAppearedAtChainHeight();
+        return Integer.MAX_VALUE;
+    }
+}
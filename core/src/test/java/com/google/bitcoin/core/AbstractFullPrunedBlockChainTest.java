@@ -106,6 +106,19 @@ public abstract class AbstractFullPrunedBlockChainTest
                 log.error("New block head didn't match the correct height after block " + block.ruleName);
                 fail();
             }
+            // The height index follows the chain head through the re-orgs.
+            checkHeightIndex(10);
+        }
+        checkHeightIndex(Integer.MAX_VALUE);
+    }
+
+    // Checks the given number of blocks at the top of the store's main chain can be found by height.
+    private void checkHeightIndex(int depth) throws BlockStoreException {
+        StoredBlock cursor = store.getChainHead();
+        assertNull(store.getByHeight(cursor.getHeight() + 1));
+        for (int i = 0; i < depth && cursor != null; i++) {
+            assertEquals(cursor, store.getByHeight(cursor.getHeight()));
+            cursor = cursor.getPrev(store);
         }
     }
 
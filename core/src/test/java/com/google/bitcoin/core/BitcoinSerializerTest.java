@@ -148,6 +148,35 @@ public class BitcoinSerializerTest {
 
     }
 
+    @Test
+    public void testSerializeHeader() throws Exception {
+        BitcoinSerializer bs = new BitcoinSerializer(MainNetParams.get(), false, true);
+        Transaction tx = (Transaction)bs.deserialize(ByteBuffer.wrap(txMessage));
+        // The payload of a message parsed with its bytes retained is sent as is, along with the checksum it came with.
+        byte[] payload = tx.unsafeBitcoinSerialize();
+        byte[] header = bs.serializeHeader(tx, payload);
+        assertArrayEquals(txMessage, concat(header, payload));
+        assertSame(payload, tx.unsafeBitcoinSerialize());
+
+        // Changing the message throws away the cached checksum.
+        tx.setLockTime(1);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bs.serialize(tx, bos);
+        payload = tx.unsafeBitcoinSerialize();
+        header = bs.serializeHeader(tx, payload);
+        assertArrayEquals(bos.toByteArray(), concat(header, payload));
+        // The new checksum is kept for next time.
+        byte[] checksum = tx.getChecksum();
+        assertNotNull(checksum);
+        assertArrayEquals(header, bs.serializeHeader(tx, tx.unsafeBitcoinSerialize()));
+        assertSame(checksum, tx.getChecksum());
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
 
     /**
      * Get 1 header of the block number 1 (the first one is 0) in the chain
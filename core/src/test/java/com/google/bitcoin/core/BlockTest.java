@@ -19,6 +19,7 @@ package com.google.bitcoin.core;
 import com.google.bitcoin.params.TestNet2Params;
 import com.google.bitcoin.params.UnitTestParams;
 import com.google.bitcoin.script.ScriptOpCodes;
+import com.google.bitcoin.testing.FakeTxBuilder;
 import org.junit.Test;
 import org.spongycastle.util.encoders.Hex;
 
@@ -27,7 +28,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.Assert.*;
 
@@ -96,6 +99,80 @@ public class BlockTest {
         assertEquals(block.getNonce(), 2);
     }
 
+    @Test
+    public void largeMerkleTree() throws Exception {
+        // Enough transactions for the tree to be hashed by several threads.
+        NetworkParameters params = UnitTestParams.get();
+        Address to = new ECKey().toAddress(params);
+        Address change = new ECKey().toAddress(params);
+        Block block = params.getGenesisBlock().createNextBlock(to);
+        for (int i = 1; i < 3001; i++)
+            block.addTransaction(FakeTxBuilder.createFakeTxWithChangeAddress(params, BigInteger.valueOf(i), to, change));
+        // Hash the tree one level at a time, like the reference client does.
+        List<byte[]> level = new ArrayList<byte[]>();
+        for (Transaction tx : block.getTransactions())
+            level.add(Utils.reverseBytes(tx.getHash().getBytes()));
+        while (level.size() > 1) {
+            List<byte[]> next = new ArrayList<byte[]>();
+            for (int i = 0; i < level.size(); i += 2) {
+                byte[] right = level.get(Math.min(i + 1, level.size() - 1));
+                next.add(Utils.doubleDigestTwoBuffers(level.get(i), 0, 32, right, 0, 32));
+            }
+            level = next;
+        }
+        assertEquals(new Sha256Hash(Utils.reverseBytes(level.get(0))), block.getMerkleRoot());
+        block.verifyTransactions();
+
+        // The tree kept from verifying must not be used once the transactions are different.
+        Transaction tx1 = block.transactions.get(1);
+        block.transactions.set(1, block.transactions.get(2));
+        block.transactions.set(2, tx1);
+        try {
+            block.verifyTransactions();
+            fail();
+        } catch (VerificationException e) {
+            assertTrue(e.getMessage().startsWith("Merkle hashes do not match"));
+        }
+    }
+
+    @Test
+    public void parallelParse() throws Exception {
+        // Enough transactions for them to be parsed by several threads.
+        NetworkParameters params = UnitTestParams.get();
+        Address to = new ECKey().toAddress(params);
+        Address change = new ECKey().toAddress(params);
+        Block block = params.getGenesisBlock().createNextBlock(to);
+        for (int i = 1; i < 1000; i++)
+            block.addTransaction(FakeTxBuilder.createFakeTxWithChangeAddress(params, BigInteger.valueOf(i), to, change));
+        block.solve();
+        byte[] bytes = block.bitcoinSerialize();
+        for (boolean parseLazy : new boolean[] { false, true }) {
+            for (boolean parseRetain : new boolean[] { false, true }) {
+                Block parsed = new Block(params, bytes, parseLazy, parseRetain, bytes.length);
+                List<Transaction> txns = parsed.getTransactions();
+                assertEquals(block.getTransactions().size(), txns.size());
+                for (int i = 0; i < txns.size(); i++) {
+                    Transaction tx = txns.get(i);
+                    assertEquals(block.getTransactions().get(i).getHash(), tx.getHash());
+                    assertEquals(block.getTransactions().get(i), tx);
+                    assertEquals(TransactionConfidence.Source.NETWORK, tx.getConfidence().getSource());
+                }
+                assertEquals(block.getMerkleRoot(), parsed.getMerkleRoot());
+                assertEquals(bytes.length, parsed.getOptimalEncodingMessageSize());
+                assertArrayEquals(bytes, parsed.bitcoinSerialize());
+                parsed.verify();
+            }
+        }
+
+        // A block cut short fails to parse, as the last transaction runs past its end.
+        try {
+            new Block(params, Arrays.copyOf(bytes, bytes.length - 10));
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+    }
+
     @Test
     public void testBadTransactions() throws Exception {
         Block block = new Block(params, blockBytes);
@@ -534,6 +534,33 @@ public class ChainSplitTest {
         assertEquals(newWork3.add(extraWork), txns.get(2).getConfidence().getWorkDone());
     }
 
+    @Test
+    public void reorgAfterReload() throws Exception {
+        // The wallet doesn't save which of its transactions appear in which blocks, so has to work it out again
+        // after being loaded.
+        Block b1 = unitTestParams.getGenesisBlock().createNextBlock(coinsTo);
+        Block b2 = b1.createNextBlock(coinsTo);
+        assertTrue(chain.add(b1));
+        assertTrue(chain.add(b2));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        wallet.saveToFileStream(bos);
+        wallet = Wallet.loadFromFileStream(new ByteArrayInputStream(bos.toByteArray()));
+        chain = new SPVBlockChain(unitTestParams, wallet, blockStore);
+        //     genesis -> b1 -> b2
+        //                  \-> b3 -> b4
+        Block b3 = b1.createNextBlock(someOtherGuy);
+        assertTrue(chain.add(b3));
+        assertTrue(chain.add(b3.createNextBlock(someOtherGuy)));
+        assertEquals("50.00", Utils.bitcoinValueToFriendlyString(wallet.getBalance()));
+        assertEquals(1, wallet.getPendingTransactions().size());
+        // ... and back again, which uses what the wallet learned during the first re-org.
+        Block b5 = b2.createNextBlock(coinsTo);
+        assertTrue(chain.add(b5));
+        assertTrue(chain.add(b5.createNextBlock(coinsTo)));
+        assertEquals("200.00", Utils.bitcoinValueToFriendlyString(wallet.getBalance()));
+        assertEquals(0, wallet.getPendingTransactions().size());
+    }
+
     @Test
     public void orderingInsideBlock() throws Exception {
         // Test that transactions received in the same block have their ordering preserved when reorganising.
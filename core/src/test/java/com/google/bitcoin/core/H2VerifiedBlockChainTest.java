@@ -1,11 +1,18 @@
 package com.google.bitcoin.core;
 
+import com.google.bitcoin.params.UnitTestParams;
 import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.store.PrunedBlockStore;
 import com.google.bitcoin.store.H2PrunedBlockStore;
 import org.junit.After;
+import org.junit.Test;
 
 import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+
+import static org.junit.Assert.*;
 
 /**
  * An H2 implementation of the FullPrunedBlockStoreTest
@@ -25,6 +32,8 @@ public class H2VerifiedBlockChainTest extends AbstractFullPrunedBlockChainTest {
     private void deleteFiles() {
         maybeDelete("test.h2.db");
         maybeDelete("test.trace.db");
+        maybeDelete("upgrade.h2.db");
+        maybeDelete("upgrade.trace.db");
     }
 
     private void maybeDelete(String s) {
@@ -35,4 +44,45 @@ public class H2VerifiedBlockChainTest extends AbstractFullPrunedBlockChainTest {
     public void resetStore(PrunedBlockStore store) throws BlockStoreException {
         ((H2PrunedBlockStore)store).resetStore();
     }
+
+    @Test
+    public void skipHashesAfterUpgrade() throws Exception {
+        // No difficulty changes in the blocks made here.
+        NetworkParameters params = new UnitTestParams() {
+            @Override public int getInterval() {
+                return 10000;
+            }
+        };
+        byte[] pubKey = new ECKey().getPubKey();
+        // A database of its own, as closing the store leaves the database open until the connections are gone.
+        deleteFiles();
+        H2PrunedBlockStore store = new H2PrunedBlockStore(params, "upgrade", 10);
+        VerifiedBlockChain chain = new VerifiedBlockChain(params, store);
+        Block block = params.getGenesisBlock();
+        for (int i = 0; i < 20; i++) {
+            block = block.createNextBlockWithCoinbase(pubKey);
+            chain.add(block);
+        }
+        store.close();
+
+        // Take the store back to how it was before skip hashes were kept. Opening it adds the column again, empty.
+        Connection conn = DriverManager.getConnection("jdbc:h2:upgrade;create=true;LOCK_TIMEOUT=60000");
+        Statement s = conn.createStatement();
+        s.executeUpdate("ALTER TABLE headers DROP COLUMN skipHash");
+        store = new H2PrunedBlockStore(params, "upgrade", 10);
+        assertNull(store.getChainHead().getSkipHash());
+
+        chain = new VerifiedBlockChain(params, store);
+        for (int i = 0; i < 20; i++) {
+            block = block.createNextBlockWithCoinbase(pubKey);
+            chain.add(block);
+            StoredBlock stored = store.get(block.getHash());
+            StoredBlock skip = store.getByHeight(StoredBlock.getSkipHeight(stored.getHeight()));
+            assertEquals(skip.getHash(), stored.getSkipHash());
+        }
+        store.close();
+        s.execute("SHUTDOWN");
+        s.close();
+        conn.close();
+    }
 }
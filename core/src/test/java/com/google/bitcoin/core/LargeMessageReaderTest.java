@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.MainNetParams;
+import com.google.common.io.ByteStreams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class LargeMessageReaderTest {
+    private static final NetworkParameters params = MainNetParams.get();
+    private BitcoinSerializer serializer;
+    private Block block;
+    private byte[] bytes;
+
+    @Before
+    public void setUp() throws Exception {
+        serializer = new BitcoinSerializer(params);
+        block = new Block(params, ByteStreams.toByteArray(getClass().getResourceAsStream("block169482.dat")));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(block, bos);
+        bytes = bos.toByteArray();
+    }
+
+    // Feeds the message to a reader in pieces of the given size.
+    private LargeMessageReader read(int pieceSize) throws Exception {
+        ByteBuffer buff = ByteBuffer.wrap(bytes);
+        serializer.seekPastMagicBytes(buff);
+        LargeMessageReader reader = new LargeMessageReader(serializer.deserializeHeader(buff));
+        int position = buff.position();
+        while (true) {
+            ByteBuffer piece = ByteBuffer.wrap(bytes, position, Math.min(pieceSize, bytes.length - position));
+            boolean complete = reader.read(piece);
+            position = piece.position();
+            if (complete)
+                return reader;
+            assertEquals(piece.limit(), position);
+        }
+    }
+
+    @Test
+    public void blockInPieces() throws Exception {
+        for (int pieceSize : new int[] { 1, 100, 1000, bytes.length }) {
+            Block received = (Block) read(pieceSize).deserialize(serializer);
+            assertEquals(block, received);
+            // The hashes given to the transactions must be right for the merkle root to verify.
+            received.verify();
+            for (int i = 0; i < block.getTransactions().size(); i++)
+                assertEquals(block.getTransactions().get(i).getHash(), received.getTransactions().get(i).getHash());
+        }
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void badChecksum() throws Exception {
+        bytes[bytes.length - 1] ^= 1;
+        read(1000).deserialize(serializer);
+    }
+}
@@ -17,6 +17,7 @@
 
 package com.google.bitcoin.core;
 
+import com.google.bitcoin.net.discovery.PeerAddressStore;
 import com.google.bitcoin.net.discovery.PeerDiscovery;
 import com.google.bitcoin.net.discovery.PeerDiscoveryException;
 import com.google.bitcoin.params.UnitTestParams;
@@ -33,6 +34,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
+import java.io.File;
 import java.math.BigInteger;
 import java.net.InetSocketAddress;
 import java.util.*;
@@ -159,6 +161,32 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertTrue(result.get());
     }
 
+    @Test
+    public void addressStoreWithDiscovery() throws Exception {
+        // A store that can't fill every connection slot doesn't stop the discovery sources being asked.
+        File file = File.createTempFile("peeraddressstore", null);
+        file.delete();
+        file.deleteOnExit();
+        PeerAddressStore store = new PeerAddressStore(params, file, 16);
+        store.add(new PeerAddress(new InetSocketAddress("localhost", 2000)));
+        final AtomicBoolean discovered = new AtomicBoolean();
+        peerGroup.addPeerDiscovery(new PeerDiscovery() {
+            public InetSocketAddress[] getPeers(long unused, TimeUnit unused2) throws PeerDiscoveryException {
+                discovered.set(true);
+                return new InetSocketAddress[]{new InetSocketAddress("localhost", 2001)};
+            }
+            public void shutdown() {
+            }
+        });
+        peerGroup.setMaxConnections(2);
+        peerGroup.setAddressStore(store);
+        peerGroup.discoverPeers();
+        assertTrue(discovered.get());
+        assertEquals(2, store.size());
+        store.close();
+        file.delete();
+    }
+
     @Test
     public void receiveTxBroadcast() throws Exception {
         // Check that when we receive transactions on all our peers, we do the right thing.
@@ -342,6 +370,49 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertTrue(tx.getConfidence().wasBroadcastBy(peerOf(p3).getAddress()));
     }
 
+    @Test
+    public void txDownloadFallsBackToOtherPeers() throws Exception {
+        // A tx announced by several peers is requested from one of them at a time, moving on when that doesn't work.
+        peerGroup.startAsync();
+        peerGroup.awaitRunning();
+        InboundMessageQueuer p1 = connectPeer(1);
+        InboundMessageQueuer p2 = connectPeer(2);
+        InboundMessageQueuer p3 = connectPeer(3);
+
+        Transaction tx = FakeTxBuilder.createFakeTx(params, Utils.toNanoCoins(20, 0), address);
+        InventoryMessage inv = new InventoryMessage(params);
+        inv.addTransaction(tx);
+        inbound(p1, inv);
+        pingAndWait(p1);
+        inbound(p2, inv);
+        pingAndWait(p2);
+        inbound(p3, inv);
+        pingAndWait(p3);
+        GetDataMessage getdata = (GetDataMessage) outbound(p1);
+        assertEquals(tx.getHash(), getdata.getItems().get(0).hash);
+        assertNull(outbound(p2));
+        assertNull(outbound(p3));
+
+        // Peer 1 doesn't have it after all, so peer 2 is asked.
+        inbound(p1, new NotFoundMessage(params, getdata.getItems()));
+        pingAndWait(p1);
+        assertTrue(outbound(p2) instanceof GetDataMessage);
+        assertNull(outbound(p3));
+        assertEquals(1, peerGroup.getInventoryScheduler().getInFlight(peerOf(p2)));
+
+        // Peer 2 never answers, so peer 3 is asked once the request times out.
+        InventoryScheduler scheduler = peerGroup.getInventoryScheduler();
+        scheduler.checkTimeouts(Utils.currentTimeMillis() + InventoryScheduler.DEFAULT_TIMEOUT_MSEC);
+        assertTrue(outbound(p3) instanceof GetDataMessage);
+        inbound(p3, tx);
+        pingAndWait(p3);
+        assertEquals(0, scheduler.size());
+
+        // Later announcements of it don't cause more requests.
+        inbound(p2, inv);
+        assertNull(outbound(p2));
+    }
+
     @Test
     public void testWalletCatchupTime() throws Exception {
         // Check the fast catchup time was initialized to something around the current runtime minus a week.
@@ -432,6 +503,43 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertEquals(d.peer, peerGroup.getDownloadPeer());*/
     }
 
+    @Test
+    public void stalledDownloadPeer() throws Exception {
+        // A download peer that doesn't send us enough is replaced by another one, which carries on from our chain head.
+        peerGroup.setStallThreshold(1, 1000000);
+        final BlockingQueue<Peer> speedReports = new LinkedBlockingQueue<Peer>();
+        peerGroup.addEventListener(new AbstractPeerEventListener() {
+            @Override
+            public void onChainDownloadSpeed(Peer peer, double blocksPerSecond, double bytesPerSecond) {
+                assertTrue(blocksPerSecond > 0);
+                assertTrue(bytesPerSecond > 0);
+                speedReports.add(peer);
+            }
+        }, Threading.SAME_THREAD);
+        peerGroup.startAsync();
+        peerGroup.awaitRunning();
+        VersionMessage versionMessage = new VersionMessage(params, 3);
+        versionMessage.clientVersion = FilteredBlock.MIN_PROTOCOL_VERSION;
+        versionMessage.localServices = VersionMessage.NODE_NETWORK;
+        InboundMessageQueuer p1 = connectPeer(1, versionMessage);
+        InboundMessageQueuer p2 = connectPeer(2, versionMessage);
+        assertEquals(peerOf(p1), peerGroup.getDownloadPeer());
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener());
+        assertTrue(outbound(p1) instanceof GetBlocksMessage);
+        // Peer 1 sends a block, which is reported, but nothing else.
+        Block b1 = FakeTxBuilder.makeSolvedTestBlock(blockStore.getChainHead().getHeader());
+        inbound(p1, b1);
+        pingAndWait(p1);
+        assertEquals(b1, spvBlockChain.getChainHead().getHeader());
+        assertEquals(peerOf(p1), speedReports.poll(5, TimeUnit.SECONDS));
+        // So peer 2 is asked for the blocks after b1.
+        GetBlocksMessage getblocks = (GetBlocksMessage) waitForOutbound(p2);
+        assertEquals(b1.getHash(), getblocks.getLocator().get(0));
+        assertEquals(peerOf(p2), peerGroup.getDownloadPeer());
+        assertTrue(peerGroup.getConnectedPeers().contains(peerOf(p1)));
+        peerGroup.stopAsync();
+    }
+
     @Test
     public void peerTimeoutTest() throws Exception {
         peerGroup.startAsync();
@@ -581,4 +689,42 @@ public class PeerGroupTest extends TestWithPeerGroup {
         assertFalse(f1.contains(key.getPubKey()));
         assertFalse(f1.contains(key.getPubKeyHash()));
     }
+
+    @Test
+    public void bloomFilterUpdatedIncrementally() throws Exception {
+        // New keys are inserted into the existing filter while it has room for them, and the filter is only calculated
+        // again once it doesn't.
+        peerGroup.startAsync();
+        peerGroup.awaitRunning();
+        InboundMessageQueuer p1 = connectPeer(1);
+        long rebuilds = peerGroup.getBloomFilterRebuilds();
+        long insertions = peerGroup.getBloomFilterInsertions();
+        List<ECKey> keys = new ArrayList<ECKey>();
+        for (int i = 0; i < 5; i++)
+            keys.add(new ECKey());
+        wallet.addKeys(keys);
+        peerGroup.waitForJobQueue();
+        assertEquals(rebuilds, peerGroup.getBloomFilterRebuilds());
+        assertEquals(insertions + 1, peerGroup.getBloomFilterInsertions());
+        BloomFilter filter = (BloomFilter) outbound(p1);
+        assertTrue(outbound(p1) instanceof MemoryPoolMessage);
+        for (ECKey key : keys) {
+            assertTrue(filter.contains(key.getPubKey()));
+            assertTrue(filter.contains(key.getPubKeyHash()));
+        }
+        assertTrue(peerGroup.getExpectedBloomFilterFalsePositiveRate() <= PeerGroup.DEFAULT_BLOOM_FILTER_FP_RATE);
+
+        // Too many to fit.
+        keys.clear();
+        for (int i = 0; i < 100; i++)
+            keys.add(new ECKey());
+        wallet.addKeys(keys);
+        peerGroup.waitForJobQueue();
+        assertEquals(rebuilds + 1, peerGroup.getBloomFilterRebuilds());
+        filter = (BloomFilter) outbound(p1);
+        assertTrue(outbound(p1) instanceof MemoryPoolMessage);
+        for (ECKey key : keys)
+            assertTrue(filter.contains(key.getPubKey()));
+        assertTrue(peerGroup.getExpectedBloomFilterFalsePositiveRate() <= PeerGroup.DEFAULT_BLOOM_FILTER_FP_RATE);
+    }
 }
@@ -21,9 +21,11 @@ import com.google.bitcoin.params.MainNetParams;
 import com.google.bitcoin.params.TestNet2Params;
 import com.google.bitcoin.params.UnitTestParams;
 import com.google.bitcoin.store.BlockStore;
+import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.store.MemoryBlockStore;
 import com.google.bitcoin.testing.FakeTxBuilder;
 import com.google.bitcoin.utils.BriefLogFormatter;
+import com.google.bitcoin.utils.Threading;
 import com.google.common.util.concurrent.ListenableFuture;
 import org.junit.After;
 import org.junit.Before;
@@ -31,7 +33,10 @@ import org.junit.Test;
 
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
 import static com.google.bitcoin.testing.FakeTxBuilder.createFakeBlock;
 import static com.google.bitcoin.testing.FakeTxBuilder.createFakeTx;
@@ -119,6 +124,141 @@ public class SPVBlockChainTest {
         assertEquals(2, future.get().getHeight());
     }
 
+    @Test
+    public void orphans() throws Exception {
+        // Blocks that arrive before their parents are connected as soon as the parents do, however they are ordered.
+        Block b1 = unitTestParams.getGenesisBlock().createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block b3 = b2.createNextBlock(coinbaseTo);
+        Block b4 = b3.createNextBlock(coinbaseTo);
+        Block b3b = b2.createNextBlock(new ECKey().toAddress(unitTestParams));
+        assertFalse(chain.add(b4));
+        assertFalse(chain.add(b2));
+        assertFalse(chain.add(b3b));
+        assertFalse(chain.add(b3));
+        assertEquals(4, chain.getOrphanCount());
+        assertEquals(b2.getHash(), chain.getOrphanRoot(b4.getHash()).getHash());
+        assertTrue(chain.getOrphanBytes() > 0);
+        assertTrue(chain.add(b1));
+        assertEquals(b4, chain.getChainHead().getHeader());
+        assertEquals(0, chain.getOrphanCount());
+        assertEquals(0, chain.getOrphanBytes());
+        assertEquals(4, chain.getOrphansConnected());
+        assertNotNull(blockStore.get(b3b.getHash()));
+
+        // Once the orphans take up too much room the oldest are dropped, but never the newest.
+        Block b6 = b4.createNextBlock(coinbaseTo).createNextBlock(coinbaseTo);
+        Block b7 = b6.createNextBlock(coinbaseTo);
+        chain.setMaxOrphanBytes(0);
+        assertFalse(chain.add(b6));
+        assertFalse(chain.add(b7));
+        assertEquals(1, chain.getOrphanCount());
+        assertTrue(chain.isOrphan(b7.getHash()));
+        assertFalse(chain.isOrphan(b6.getHash()));
+        assertEquals(1, chain.getOrphansEvicted());
+    }
+
+    @Test
+    public void orphansRetried() throws Exception {
+        // A chain that can be told to not let blocks connect to a stored block, as a VerifiedBlockChain does with blocks
+        // it has no undo data for.
+        final Sha256Hash[] hidden = new Sha256Hash[1];
+        BlockStore blockStore = new MemoryBlockStore(unitTestParams);
+        SPVBlockChain chain = new SPVBlockChain(unitTestParams, blockStore) {
+            @Override
+            protected StoredBlock getStoredBlockInCurrentScope(Sha256Hash hash) throws BlockStoreException {
+                return hash.equals(hidden[0]) ? null : super.getStoredBlockInCurrentScope(hash);
+            }
+        };
+        Block b1 = unitTestParams.getGenesisBlock().createNextBlock(coinbaseTo);
+        Block b2 = b1.createNextBlock(coinbaseTo);
+        Block b2b = b1.createNextBlock(new ECKey().toAddress(unitTestParams));
+        hidden[0] = b1.getHash();
+        assertFalse(chain.add(b2));
+        assertTrue(chain.add(b1));
+        assertTrue(chain.isOrphan(b2.getHash()));
+        // Once b1 can be connected to, b2 is connected along with the next block that is.
+        hidden[0] = null;
+        assertTrue(chain.add(b2b));
+        assertFalse(chain.isOrphan(b2.getHash()));
+        assertNotNull(blockStore.get(b2.getHash()));
+
+        // An orphan that fails to connect is kept, as it is if its parent hasn't arrived yet.
+        Block b3 = b2.createNextBlock(coinbaseTo);
+        Block bad = b3.createNextBlock(coinbaseTo);
+        bad.setDifficultyTarget(0x1f7fffffL);
+        bad.solve();
+        assertFalse(chain.add(bad));
+        try {
+            chain.add(b3);
+            fail();
+        } catch (VerificationException e) {
+            // Unexpected change in difficulty.
+        }
+        assertEquals(b3, chain.getChainHead().getHeader());
+        assertTrue(chain.isOrphan(bad.getHash()));
+        assertEquals(1, chain.getOrphanCount());
+    }
+
+    @Test
+    public void addHeaders() throws Exception {
+        // Without a difficulty transition in the way.
+        NetworkParameters params = new UnitTestParams() {{ interval = 1000; }};
+        BlockStore blockStore = new MemoryBlockStore(params);
+        SPVBlockChain chain = new SPVBlockChain(params, blockStore);
+        final List<StoredBlock> bestBlocks = new ArrayList<StoredBlock>();
+        chain.addListener(new AbstractBlockChainListener() {
+            @Override
+            public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+                bestBlocks.add(block);
+            }
+        }, Threading.SAME_THREAD);
+        // Enough headers for them to be checked on several threads.
+        List<Block> headers = new ArrayList<Block>();
+        Block prev = params.getGenesisBlock();
+        for (int i = 0; i < 300; i++) {
+            prev = prev.createNextBlock(coinbaseTo).cloneAsHeader();
+            headers.add(prev);
+        }
+        assertTrue(chain.addHeaders(headers));
+        assertEquals(300, chain.getBestChainHeight());
+        assertEquals(prev, chain.getChainHead().getHeader());
+        assertEquals(prev, blockStore.getChainHead().getHeader());
+        // Listeners still hear about every block.
+        assertEquals(300, bestBlocks.size());
+        for (int i = 0; i < 300; i++)
+            assertEquals(headers.get(i), bestBlocks.get(i).getHeader());
+
+        // The headers before a bad one are added, the others aren't.
+        headers.clear();
+        for (int i = 0; i < 300; i++) {
+            prev = prev.createNextBlock(coinbaseTo).cloneAsHeader();
+            headers.add(prev);
+        }
+        headers.get(200).setTime(Utils.currentTimeSeconds() + Block.ALLOWED_TIME_DRIFT + 60);
+        try {
+            chain.addHeaders(headers);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(500, chain.getBestChainHeight());
+        assertEquals(headers.get(199), chain.getChainHead().getHeader());
+        // And the listeners heard about them before the exception was thrown.
+        assertEquals(500, bestBlocks.size());
+        assertEquals(headers.get(199), bestBlocks.get(499).getHeader());
+
+        // Headers that fork off or don't connect are dealt with like add() does.
+        Block fork = headers.get(198).createNextBlock(new ECKey().toAddress(params)).cloneAsHeader();
+        Block unconnected = headers.get(250).createNextBlock(coinbaseTo);
+        assertFalse(chain.addHeaders(Arrays.asList(fork, unconnected)));
+        assertNotNull(blockStore.get(fork.getHash()));
+        assertTrue(chain.isOrphan(unconnected.getHash()));
+        assertEquals(headers.get(199), chain.getChainHead().getHeader());
+        // An empty batch does nothing.
+        assertTrue(chain.addHeaders(new ArrayList<Block>()));
+    }
+
     @Test
     public void receiveCoins() throws Exception {
         // Quick check that we can actually receive coins.
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import org.junit.Test;
+import org.spongycastle.util.encoders.Hex;
+
+import java.io.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class Sha256HashMapTest {
+    // A hash serialized when Sha256Hash still kept its bytes in an array.
+    private static final String OLD_SERIALIZED_HASH = "aced000573720022636f6d2e676f6f676c652e626974636f696e2e636f72" +
+            "652e53686132353648617368103a67645e0a938e0200015b000562797465737400025b427870757200025b42acf317f806085" +
+            "4e0020000787000000020000000000019d6689c085ae165831e934ff763ae46a2a6c172b3f1b60a8ce26f";
+
+    private final Random random = new Random(42);
+
+    private Sha256Hash randomHash() {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return new Sha256Hash(bytes);
+    }
+
+    @Test
+    public void hashBytes() throws Exception {
+        byte[] bytes = new byte[32];
+        for (int i = 0; i < 32; i++)
+            bytes[i] = (byte) (0xF0 - i);
+        Sha256Hash hash = new Sha256Hash(bytes);
+        assertArrayEquals(bytes, hash.getBytes());
+        assertArrayEquals(Utils.reverseBytes(bytes), hash.getReversedBytes());
+        assertEquals(hash, Sha256Hash.readReversed(hash.getReversedBytes(), 0));
+        // The bytes are copied both ways.
+        bytes[0] = 0;
+        hash.getBytes()[1] = 0;
+        assertEquals((byte) 0xF0, hash.getBytes()[0]);
+        assertEquals((byte) 0xEF, hash.getBytes()[1]);
+        assertEquals(Utils.bytesToHexString(hash.getBytes()), hash.toString());
+        assertEquals(0xF0 - 31 | (0xF0 - 30) << 8 | (0xF0 - 29) << 16 | (0xF0 - 28) << 24, hash.hashCode());
+
+        Sha256Hash low = new Sha256Hash("0000000000000000000000000000000000000000000000000000000000000001");
+        Sha256Hash high = new Sha256Hash("8000000000000000000000000000000000000000000000000000000000000000");
+        assertTrue(low.compareBytes(high) < 0);
+        assertTrue(high.compareBytes(low) > 0);
+        assertEquals(0, high.compareBytes(high.duplicate()));
+    }
+
+    @Test
+    public void hashSerialization() throws Exception {
+        Sha256Hash genesis = new Sha256Hash("000000000019d6689c085ae165831e934ff763ae46a2a6c172b3f1b60a8ce26f");
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(Hex.decode(OLD_SERIALIZED_HASH)));
+        assertEquals(genesis, in.readObject());
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bos);
+        out.writeObject(genesis);
+        out.close();
+        in = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        assertEquals(genesis, in.readObject());
+    }
+
+    @Test
+    public void sameAsHashMap() throws Exception {
+        Sha256HashMap<Integer> map = new Sha256HashMap<Integer>();
+        Map<Sha256Hash, Integer> expected = new HashMap<Sha256Hash, Integer>();
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (int i = 0; i < 2000; i++) {
+            Sha256Hash hash = randomHash();
+            hashes.add(hash);
+            // Hashes sharing their hash code end up in the same run of slots.
+            byte[] bytes = randomHash().getBytes();
+            System.arraycopy(hash.getBytes(), 28, bytes, 28, 4);
+            hashes.add(new Sha256Hash(bytes));
+        }
+        for (int i = 0; i < 20000; i++) {
+            Sha256Hash hash = hashes.get(random.nextInt(hashes.size()));
+            switch (random.nextInt(3)) {
+                case 0:
+                case 1:
+                    assertEquals(expected.put(hash, i), map.put(hash, i));
+                    break;
+                case 2:
+                    assertEquals(expected.remove(hash), map.remove(hash));
+                    break;
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (Sha256Hash hash : hashes) {
+            assertEquals(expected.get(hash), map.get(hash));
+            assertEquals(expected.containsKey(hash), map.containsKey(hash));
+        }
+        assertEquals(expected, map);
+        assertEquals(map, expected);
+        assertEquals(expected.hashCode(), map.hashCode());
+        assertNull(map.get("not a hash"));
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(hashes.get(0)));
+    }
+
+    @Test
+    public void removeWhileIterating() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            Sha256HashMap<Integer> map = new Sha256HashMap<Integer>();
+            for (int i = 0; i < 1000; i++)
+                map.put(randomHash(), i);
+            Set<Sha256Hash> seen = new HashSet<Sha256Hash>();
+            Set<Sha256Hash> kept = new HashSet<Sha256Hash>();
+            Iterator<Map.Entry<Sha256Hash, Integer>> it = map.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Sha256Hash, Integer> entry = it.next();
+                // Every key is seen exactly once, even as removing keys moves others around.
+                assertTrue(seen.add(entry.getKey()));
+                if (random.nextBoolean()) {
+                    it.remove();
+                } else {
+                    kept.add(entry.getKey());
+                    entry.setValue(-entry.getValue());
+                }
+            }
+            assertEquals(1000, seen.size());
+            assertEquals(kept, map.keySet());
+            for (Sha256Hash hash : kept)
+                assertTrue(map.get(hash) <= 0);
+        }
+    }
+
+    @Test(expected = ConcurrentModificationException.class)
+    public void concurrentModification() throws Exception {
+        Sha256HashMap<Integer> map = new Sha256HashMap<Integer>();
+        map.put(randomHash(), 1);
+        map.put(randomHash(), 2);
+        Iterator<Sha256Hash> it = map.keySet().iterator();
+        it.next();
+        map.put(randomHash(), 3);
+        it.next();
+    }
+
+    @Test
+    public void serialization() throws Exception {
+        Sha256HashMap<String> map = new Sha256HashMap<String>();
+        for (int i = 0; i < 100; i++)
+            map.put(randomHash(), "value " + i);
+        Sha256HashSet set = new Sha256HashSet(map.keySet());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bos);
+        out.writeObject(map);
+        out.writeObject(set);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        assertEquals(map, in.readObject());
+        assertEquals(set, in.readObject());
+    }
+
+    @Test
+    public void set() throws Exception {
+        Sha256HashSet set = new Sha256HashSet();
+        Sha256Hash a = randomHash(), b = randomHash();
+        assertTrue(set.add(a));
+        assertFalse(set.add(a.duplicate()));
+        assertTrue(set.add(b));
+        assertEquals(2, set.size());
+        assertTrue(set.contains(a));
+        assertEquals(new HashSet<Sha256Hash>(Arrays.asList(a, b)), set);
+        assertTrue(set.remove(a));
+        assertFalse(set.remove(a));
+        assertFalse(set.contains(a));
+        assertEquals(1, set.size());
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.core;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.BlockStoreException;
+import com.google.bitcoin.store.MemoryBlockStore;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StoredBlockTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    @Test
+    public void skipHeights() throws Exception {
+        assertEquals(0, StoredBlock.getSkipHeight(0));
+        assertEquals(0, StoredBlock.getSkipHeight(1));
+        for (int height = 2; height < 100000; height++) {
+            int skip = StoredBlock.getSkipHeight(height);
+            assertTrue(skip < height - 1);
+            assertTrue(skip >= 0);
+        }
+    }
+
+    @Test
+    public void ancestors() throws Exception {
+        // Counts the lookups getAncestor makes.
+        final int[] lookups = new int[1];
+        MemoryBlockStore store = new MemoryBlockStore(params) {
+            @Override
+            public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+                lookups[0]++;
+                return super.get(hash);
+            }
+        };
+        Address to = new ECKey().toAddress(params);
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        chain.add(store.getChainHead());
+        for (int i = 1; i <= 3000; i++) {
+            StoredBlock prev = chain.get(i - 1);
+            StoredBlock block = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader(), store);
+            assertNotNull(block.getSkipHash());
+            store.put(block);
+            chain.add(block);
+        }
+        StoredBlock head = chain.get(chain.size() - 1);
+        for (int height = 0; height < chain.size(); height++) {
+            lookups[0] = 0;
+            assertEquals(chain.get(height), head.getAncestor(store, height));
+            // Walking back block by block would take up to 3000 lookups.
+            assertTrue(lookups[0] + " lookups for height " + height, lookups[0] <= 100);
+        }
+        assertNull(head.getAncestor(store, chain.size()));
+        assertNull(head.getAncestor(store, -1));
+
+        // A block that doesn't know its skip hash steps back to its previous block, which does.
+        StoredBlock noSkip = new StoredBlock(head.getHeader(), head.getChainWork(), head.getHeight());
+        lookups[0] = 0;
+        assertEquals(chain.get(1000), noSkip.getAncestor(store, 1000));
+        assertTrue(lookups[0] <= 101);
+        // Blocks built on it don't get one while it is off the main chain, as that could take a walk through the
+        // whole chain.
+        Block next = noSkip.getHeader().createNextBlock(to).cloneAsHeader();
+        assertNull(noSkip.build(next, store).getSkipHash());
+        // On the main chain, the height index finds it.
+        store.setChainHead(head);
+        StoredBlock built = noSkip.build(next, store);
+        assertEquals(chain.get(StoredBlock.getSkipHeight(built.getHeight())).getHash(), built.getSkipHash());
+    }
+
+    @Test
+    public void compact() throws Exception {
+        Block header = params.getGenesisBlock().createNextBlock(new ECKey().toAddress(params));
+        BigInteger work = BigInteger.ONE.shiftLeft(StoredBlock.CHAIN_WORK_BYTES * 8).subtract(BigInteger.TEN);
+        StoredBlock block = new StoredBlock(header, work, 1);
+        // Only the header is kept.
+        assertEquals(header.cloneAsHeader(), block.getHeader());
+        assertEquals(header.getTimeSeconds(), block.getHeader().getTimeSeconds());
+        assertEquals(header.getMerkleRoot(), block.getHeader().getMerkleRoot());
+        assertEquals(header.getHash(), block.getHash());
+        assertEquals(header.getPrevBlockHash(), block.getPrevBlockHash());
+        assertEquals(work, block.getChainWork());
+
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        block.serializeCompact(buffer);
+        assertEquals(0, buffer.remaining());
+        buffer.rewind();
+        StoredBlock read = StoredBlock.deserializeCompact(params, buffer);
+        assertEquals(block, read);
+        assertEquals(work, read.getChainWork());
+        assertEquals(1, read.getHeight());
+        assertEquals(header.getHash(), read.getHeader().getHash());
+
+        // Chain work compares as an unsigned number, across both of the parts it is kept in.
+        StoredBlock less = new StoredBlock(header, work.subtract(BigInteger.ONE.shiftLeft(64)), 1);
+        StoredBlock lowBitSet = new StoredBlock(header, BigInteger.ONE.shiftLeft(63), 1);
+        StoredBlock small = new StoredBlock(header, BigInteger.ONE, 1);
+        assertTrue(block.moreWorkThan(less));
+        assertFalse(less.moreWorkThan(block));
+        assertTrue(lowBitSet.moreWorkThan(small));
+        assertFalse(small.moreWorkThan(lowBitSet));
+        assertFalse(block.moreWorkThan(read));
+        assertFalse(block.equals(less));
+    }
+}
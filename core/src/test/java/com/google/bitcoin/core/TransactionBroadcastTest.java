@@ -22,6 +22,7 @@ import com.google.bitcoin.store.MemoryBlockStore;
 import com.google.bitcoin.testing.FakeTxBuilder;
 import com.google.bitcoin.testing.InboundMessageQueuer;
 import com.google.bitcoin.utils.Threading;
+import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.ListenableFuture;
 import org.junit.After;
 import org.junit.Before;
@@ -29,8 +30,10 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import java.util.Random;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -99,6 +102,85 @@ public class TransactionBroadcastTest extends TestWithPeerGroup {
         assertTrue(future.isDone());
     }
 
+    @Test
+    public void fourPeersBatch() throws Exception {
+        InboundMessageQueuer[] channels = { connectPeer(1), connectPeer(2), connectPeer(3), connectPeer(4) };
+        Address dest = new ECKey().toAddress(params);
+        Transaction tx1 = FakeTxBuilder.createFakeTx(params, Utils.toNanoCoins(1, 0), dest);
+        Transaction tx2 = FakeTxBuilder.createFakeTx(params, Utils.toNanoCoins(2, 0), dest);
+        List<ListenableFuture<Transaction>> futures = peerGroup.broadcastTransactions(Arrays.asList(tx1, tx2));
+        assertEquals(2, futures.size());
+        // 0 and 3 are randomly selected, as above, and get a single inv announcing both transactions.
+        InventoryMessage inv = (InventoryMessage) outbound(channels[0]);
+        assertEquals(2, inv.getItems().size());
+        assertEquals(tx1.getHash(), inv.getItems().get(0).hash);
+        assertEquals(tx2.getHash(), inv.getItems().get(1).hash);
+        assertEquals(2, ((InventoryMessage) outbound(channels[3])).getItems().size());
+        assertNull(outbound(channels[1]));
+        assertNull(outbound(channels[2]));
+        // The transactions are served from the memory pool when asked for.
+        GetDataMessage getdata = new GetDataMessage(params);
+        getdata.addTransaction(tx1.getHash());
+        getdata.addTransaction(tx2.getHash());
+        inbound(channels[0], getdata);
+        assertEquals(tx1, outbound(channels[0]));
+        assertEquals(tx2, outbound(channels[0]));
+        Threading.waitForUserCode();
+        assertFalse(futures.get(0).isDone());
+        assertFalse(futures.get(1).isDone());
+        // Each future completes once its own transaction is announced back to us.
+        inbound(channels[1], InventoryMessage.with(tx1));
+        pingAndWait(channels[1]);
+        Threading.waitForUserCode();
+        assertTrue(futures.get(0).isDone());
+        assertFalse(futures.get(1).isDone());
+        inbound(channels[2], InventoryMessage.with(tx2));
+        pingAndWait(channels[2]);
+        Threading.waitForUserCode();
+        assertTrue(futures.get(1).isDone());
+        assertEquals(tx2, futures.get(1).get());
+    }
+
+    @Test
+    public void batchLargerThanMemoryPool() throws Exception {
+        InboundMessageQueuer[] channels = { connectPeer(1), connectPeer(2), connectPeer(3), connectPeer(4) };
+        Address dest = new ECKey().toAddress(params);
+        List<Transaction> txns = new ArrayList<Transaction>();
+        for (int i = 0; i < MemoryPool.MAX_SIZE + 500; i++)
+            txns.add(FakeTxBuilder.createFakeTx(params, Utils.toNanoCoins(1, 0), dest));
+        List<ListenableFuture<Transaction>> futures = peerGroup.broadcastTransactions(txns);
+        InventoryMessage inv = (InventoryMessage) outbound(channels[0]);
+        assertEquals(txns.size(), inv.getItems().size());
+        // The first transactions have been pushed out of the memory pool by the later ones, but are still served.
+        // They are asked for in parts, as a channel only queues so many messages.
+        for (List<Transaction> part : Lists.partition(txns, 500)) {
+            GetDataMessage getdata = new GetDataMessage(params);
+            for (Transaction tx : part)
+                getdata.addTransaction(tx.getHash());
+            inbound(channels[0], getdata);
+            pingAndWait(channels[0]);
+            for (Transaction tx : part)
+                assertEquals(tx, channels[0].nextMessage());
+        }
+        // And announcing them all back completes all the futures.
+        InventoryMessage announcement = new InventoryMessage(params);
+        for (Transaction tx : txns)
+            announcement.addTransaction(tx);
+        inbound(channels[1], announcement);
+        pingAndWait(channels[1]);
+        Threading.waitForUserCode();
+        for (int i = 0; i < txns.size(); i++) {
+            assertTrue(futures.get(i).isDone());
+            assertEquals(txns.get(i), futures.get(i).get());
+        }
+        // Once propagated, the transactions that didn't fit in the memory pool are no longer served.
+        GetDataMessage getdata = new GetDataMessage(params);
+        getdata.addTransaction(txns.get(0).getHash());
+        inbound(channels[0], getdata);
+        pingAndWait(channels[0]);
+        assertNull(outbound(channels[0]));
+    }
+
     @Test
     public void retryFailedBroadcast() throws Exception {
         // If we create a spend, it's sent to a peer that swallows it, and the peergroup is removed/re-added then
@@ -50,6 +50,7 @@ import java.net.InetAddress;
 import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -546,6 +547,34 @@ public class WalletTest extends TestWithWallet {
         assertEquals(3, confTxns.size());
     }
 
+    @Test
+    public void balanceTracksKeysAndSpends() throws Exception {
+        // The unspent output index has to notice outputs that become ours after the transaction was received, and
+        // outputs that get spent, without a full walk of the wallet.
+        ECKey key2 = new ECKey();
+        Transaction tx = new Transaction(params);
+        tx.addOutput(toNanoCoins(1, 0), myAddress);
+        tx.addOutput(toNanoCoins(2, 0), key2.toAddress(params));
+        tx.addInput(createFakeTx(params, toNanoCoins(3, 0), new ECKey().toAddress(params)).getOutput(0));
+        sendMoneyToWallet(tx, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(toNanoCoins(1, 0), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(1, wallet.calculateAllSpendCandidates(true).size());
+        wallet.addKey(key2);
+        assertEquals(toNanoCoins(3, 0), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(toNanoCoins(3, 0), wallet.getBalance());
+        assertEquals(2, wallet.calculateAllSpendCandidates(true).size());
+
+        Transaction spend = wallet.createSend(new ECKey().toAddress(params), toNanoCoins(0, 50));
+        wallet.commitTx(spend);
+        assertTrue(wallet.isConsistent());
+        BigInteger change = spend.getValueSentToMe(wallet);
+        assertEquals(toNanoCoins(3, 0).subtract(spend.getValueSentFromMe(wallet)).add(change),
+                wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        sendMoneyToWallet(spend, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertEquals(wallet.getBalance(Wallet.BalanceType.ESTIMATED), wallet.getBalance());
+        assertTrue(wallet.isConsistent());
+    }
+
     @Test
     public void balances() throws Exception {
         BigInteger nanos = Utils.toNanoCoins(1, 0);
@@ -1159,6 +1188,99 @@ public class WalletTest extends TestWithWallet {
         assertTrue(wallet.getBloomFilter(1e-12).contains(outPoint.bitcoinSerialize()));
     }
 
+    @Test
+    public void batchListener() throws Exception {
+        final LinkedBlockingQueue<WalletChangeBatch> batches = new LinkedBlockingQueue<WalletChangeBatch>();
+        wallet.setBatchWindow(100, TimeUnit.MILLISECONDS);
+        WalletBatchListener listener = new WalletBatchListener() {
+            @Override
+            public void onWalletChanges(Wallet wallet, WalletChangeBatch changes) {
+                batches.add(changes);
+            }
+        };
+        wallet.addBatchListener(listener, Threading.SAME_THREAD);
+        // Two payments in the same block arrive as a single batch.
+        Transaction t1 = createFakeTx(params, toNanoCoins(1, 0), myAddress);
+        Transaction t2 = createFakeTx(params, toNanoCoins(2, 0), myAddress);
+        Block b1 = createFakeBlock(blockStore, t1, t2).block;
+        chain.add(b1);
+        WalletChangeBatch batch = batches.poll();
+        assertNull(batches.poll());
+        assertEquals(Lists.newArrayList(t1, t2), batch.getTransactionsAdded());
+        assertEquals(TransactionConfidence.Listener.ChangeReason.TYPE, batch.getConfidenceChanges().get(t1));
+        assertEquals(BigInteger.ZERO, batch.getPrevBalance());
+        assertEquals(toNanoCoins(3, 0), batch.getBalanceDelta());
+        assertEquals(b1.getHash(), batch.getBlock().getHeader().getHash());
+        assertFalse(batch.isReorganized());
+
+        // A block with nothing for us only buries what we have.
+        chain.add(b1.createNextBlock(new ECKey().toAddress(params)));
+        batch = batches.poll();
+        assertEquals(0, batch.getTransactionsAdded().size());
+        assertEquals(TransactionConfidence.Listener.ChangeReason.DEPTH, batch.getConfidenceChanges().get(t2));
+        assertEquals(BigInteger.ZERO, batch.getBalanceDelta());
+
+        // Pending transactions are delivered once the batch window has passed.
+        Transaction t3 = createFakeTx(params, toNanoCoins(0, 50), myAddress);
+        wallet.receivePending(t3, null);
+        batch = batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertNull(batch.getBlock());
+        assertEquals(Lists.newArrayList(t3), batch.getTransactionsAdded());
+        assertEquals(toNanoCoins(0, 50), batch.getBalanceDelta());
+
+        // A block transaction that isn't followed by the block itself being connected is still flushed.
+        Transaction t4 = createFakeTx(params, toNanoCoins(0, 10), myAddress);
+        StoredBlock b3 = createFakeBlock(blockStore, t4).storedBlock;
+        wallet.receiveFromBlock(t4, b3, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        batch = batches.poll(5, TimeUnit.SECONDS);
+        assertNotNull(batch);
+        assertEquals(Lists.newArrayList(t4), batch.getTransactionsAdded());
+
+        // Nothing more is delivered once the listener is gone.
+        assertTrue(wallet.removeBatchListener(listener));
+        sendMoneyToWallet(toNanoCoins(1, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        assertNull(batches.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void depthEventLimit() throws Exception {
+        final List<Transaction> depthChanges = new ArrayList<Transaction>();
+        wallet.addEventListener(new AbstractWalletEventListener() {
+            @Override
+            public void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+                depthChanges.add(tx);
+            }
+        }, Threading.SAME_THREAD);
+        wallet.setDepthEventLimit(2);
+        Transaction t1 = createFakeTx(params, toNanoCoins(1, 0), myAddress);
+        Block b = createFakeBlock(blockStore, t1).block;
+        chain.add(b);
+        assertEquals(1, t1.getConfidence().getDepthInBlocks());
+        depthChanges.clear();
+        // The transaction is reported as it gets buried, until it reaches the limit.
+        b = b.createNextBlock(new ECKey().toAddress(params));
+        chain.add(b);
+        assertEquals(Lists.newArrayList(t1), depthChanges);
+        depthChanges.clear();
+        b = b.createNextBlock(new ECKey().toAddress(params));
+        chain.add(b);
+        assertEquals(0, depthChanges.size());
+        // Its depth and work done still go up.
+        assertEquals(3, t1.getConfidence().getDepthInBlocks());
+        assertEquals(b.getWork().multiply(BigInteger.valueOf(3)), t1.getConfidence().getWorkDone());
+        // Waiting for more confirmations makes it interesting again.
+        ListenableFuture<Transaction> future = t1.getConfidence().getDepthFuture(5, Threading.SAME_THREAD);
+        for (int i = 0; i < 2; i++) {
+            assertFalse(future.isDone());
+            b = b.createNextBlock(new ECKey().toAddress(params));
+            chain.add(b);
+        }
+        assertTrue(future.isDone());
+        assertEquals(5, t1.getConfidence().getDepthInBlocks());
+        assertEquals(Lists.newArrayList(t1, t1), depthChanges);
+    }
+
     @Test
     public void autosaveImmediate() throws Exception {
         // Test that the wallet will save itself automatically when it changes.
@@ -18,6 +18,7 @@
 package com.google.bitcoin.net;
 
 import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.utils.Threading;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.ByteString;
 import org.bitcoin.paymentchannel.Protos;
@@ -31,13 +32,17 @@ import javax.net.SocketFactory;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.google.common.base.Preconditions.checkState;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 @RunWith(value = Parameterized.class)
 public class NetworkAbstractionTests {
@@ -47,7 +52,7 @@ public class NetworkAbstractionTests {
 
     @Parameterized.Parameters
     public static Collection<Integer[]> parameters() {
-        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3});
+        return Arrays.asList(new Integer[]{0}, new Integer[]{1}, new Integer[]{2}, new Integer[]{3}, new Integer[]{4});
     }
 
     public NetworkAbstractionTests(Integer clientType) throws Exception {
@@ -55,15 +60,21 @@ public class NetworkAbstractionTests {
         if (clientType == 0) {
             channels = new NioClientManager();
             channels.startAsync();
+            channels.awaitRunning();
         } else if (clientType == 1) {
             channels = new BlockingClientManager();
             channels.startAsync();
+            channels.awaitRunning();
+        } else if (clientType == 4) {
+            channels = new NioClientManager(2, Threading.THREAD_POOL);
+            channels.startAsync();
+            channels.awaitRunning();
         } else
             channels = null;
     }
 
     private MessageWriteTarget openConnection(SocketAddress addr, ProtobufParser parser) throws Exception {
-        if (clientType == 0 || clientType == 1) {
+        if (clientType == 0 || clientType == 1 || clientType == 4) {
             channels.openConnection(addr, parser);
             if (parser.writeTarget.get() == null)
                 Thread.sleep(100);
@@ -407,6 +418,80 @@ public class NetworkAbstractionTests {
         server.awaitTerminated();
     }
 
+    @Test
+    public void multipleSelectorsTest() throws Exception {
+        // Tests a server spreading its connections over several selector threads, parsing on a separate executor
+        final int numClients = 6;
+        final CountDownLatch serverConnectionsClosed = new CountDownLatch(numClients);
+        NioServer server = new NioServer(new StreamParserFactory() {
+            @Override
+            public ProtobufParser getNewParser(InetAddress inetAddress, int port) {
+                return new ProtobufParser<Protos.TwoWayChannelMessage>(new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufParser<Protos.TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                        handler.write(msg);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufParser handler) {}
+
+                    @Override
+                    public void connectionClosed(ProtobufParser handler) {
+                        serverConnectionsClosed.countDown();
+                    }
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            }
+        }, new InetSocketAddress("localhost", 4243), 3, Threading.THREAD_POOL);
+        server.startAsync();
+        server.awaitRunning();
+
+        List<MessageWriteTarget> clients = new ArrayList<MessageWriteTarget>();
+        List<SettableFuture<Protos.TwoWayChannelMessage>> replies = new ArrayList<SettableFuture<Protos.TwoWayChannelMessage>>();
+        for (int i = 0; i < numClients; i++) {
+            final SettableFuture<Void> clientConnectionOpen = SettableFuture.create();
+            final SettableFuture<Protos.TwoWayChannelMessage> reply = SettableFuture.create();
+            ProtobufParser<Protos.TwoWayChannelMessage> clientHandler = new ProtobufParser<Protos.TwoWayChannelMessage>(
+                    new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                        @Override
+                        public void messageReceived(ProtobufParser handler, Protos.TwoWayChannelMessage msg) {
+                            reply.set(msg);
+                        }
+
+                        @Override
+                        public void connectionOpen(ProtobufParser handler) {
+                            clientConnectionOpen.set(null);
+                        }
+
+                        @Override
+                        public void connectionClosed(ProtobufParser handler) {}
+                    }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            clients.add(openConnection(new InetSocketAddress("localhost", 4243), clientHandler));
+            clientConnectionOpen.get();
+            Protos.TwoWayChannelMessage msg = Protos.TwoWayChannelMessage.newBuilder()
+                    .setType(Protos.TwoWayChannelMessage.MessageType.CHANNEL_OPEN)
+                    .setClientVersion(Protos.ClientVersion.newBuilder().setMajor(i)).build();
+            clientHandler.write(msg);
+            replies.add(reply);
+        }
+        for (int i = 0; i < numClients; i++)
+            assertEquals(i, replies.get(i).get().getClientVersion().getMajor());
+
+        // Each selector got two of the connections and read from them. The first one also has the server socket.
+        List<EventLoopStats> stats = server.getEventLoopStats();
+        assertEquals(3, stats.size());
+        for (int i = 0; i < stats.size(); i++) {
+            assertEquals(i == 0 ? 3 : 2, stats.get(i).getConnections());
+            assertTrue(stats.get(i).getBytesRead() > 0);
+            assertTrue(stats.get(i).getBytesWritten() > 0);
+        }
+
+        for (MessageWriteTarget client : clients)
+            client.closeConnection();
+        serverConnectionsClosed.await();
+        server.stopAsync();
+        server.awaitTerminated();
+    }
+
     @Test
     public void testConnectionEventHandlers() throws Exception {
         final SettableFuture<Void> serverConnection1Open = SettableFuture.create();
@@ -560,4 +645,69 @@ public class NetworkAbstractionTests {
         server.stopAsync();
         server.awaitTerminated();
     }
+
+    @Test
+    public void blockingClientManagerReuseTest() throws Exception {
+        // Tests that BlockingClientManager gives a new connection the thread and read buffer of a closed one
+        if (clientType != 1)
+            return;
+        BlockingClientManager manager = (BlockingClientManager) channels;
+        NioServer server = new NioServer(new StreamParserFactory() {
+            @Override
+            public ProtobufParser getNewParser(InetAddress inetAddress, int port) {
+                return new ProtobufParser<Protos.TwoWayChannelMessage>(new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                    @Override
+                    public void messageReceived(ProtobufParser<Protos.TwoWayChannelMessage> handler, Protos.TwoWayChannelMessage msg) {
+                        handler.write(msg);
+                    }
+
+                    @Override
+                    public void connectionOpen(ProtobufParser handler) {}
+
+                    @Override
+                    public void connectionClosed(ProtobufParser handler) {}
+                }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            }
+        }, new InetSocketAddress("localhost", 4243));
+        server.startAsync();
+        server.awaitRunning();
+
+        for (int i = 0; i < 3; i++) {
+            final SettableFuture<Void> clientConnectionOpen = SettableFuture.create();
+            final SettableFuture<Protos.TwoWayChannelMessage> reply = SettableFuture.create();
+            final SettableFuture<Void> clientConnectionClosed = SettableFuture.create();
+            ProtobufParser<Protos.TwoWayChannelMessage> clientHandler = new ProtobufParser<Protos.TwoWayChannelMessage>(
+                    new ProtobufParser.Listener<Protos.TwoWayChannelMessage>() {
+                        @Override
+                        public void messageReceived(ProtobufParser handler, Protos.TwoWayChannelMessage msg) {
+                            reply.set(msg);
+                        }
+
+                        @Override
+                        public void connectionOpen(ProtobufParser handler) {
+                            clientConnectionOpen.set(null);
+                        }
+
+                        @Override
+                        public void connectionClosed(ProtobufParser handler) {
+                            clientConnectionClosed.set(null);
+                        }
+                    }, Protos.TwoWayChannelMessage.getDefaultInstance(), 1000, 0);
+            MessageWriteTarget client = openConnection(new InetSocketAddress("localhost", 4243), clientHandler);
+            clientConnectionOpen.get();
+            Protos.TwoWayChannelMessage msg = Protos.TwoWayChannelMessage.newBuilder()
+                    .setType(Protos.TwoWayChannelMessage.MessageType.CHANNEL_OPEN).build();
+            clientHandler.write(msg);
+            assertEquals(msg, reply.get());
+            client.closeConnection();
+            clientConnectionClosed.get();
+            // Wait for the thread to finish with the connection and go back to the pool.
+            while (manager.getActiveThreadCount() > 0)
+                Thread.sleep(10);
+            assertEquals(1, manager.getThreadCount());
+        }
+
+        server.stopAsync();
+        server.awaitTerminated();
+    }
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net.discovery;
+
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MultiplexingDiscoveryTest {
+    private static InetSocketAddress address(int i) {
+        return new InetSocketAddress("127.0.0.1", 1000 + i);
+    }
+
+    private static class FixedDiscovery implements PeerDiscovery {
+        private final CountDownLatch go;
+        private final InetSocketAddress[] addresses;
+
+        FixedDiscovery(CountDownLatch go, InetSocketAddress... addresses) {
+            this.go = go;
+            this.addresses = addresses;
+        }
+
+        public InetSocketAddress[] getPeers(long timeoutValue, TimeUnit timeoutUnit) throws PeerDiscoveryException {
+            try {
+                go.await();
+            } catch (InterruptedException e) {
+                throw new PeerDiscoveryException(e);
+            }
+            if (addresses.length == 0)
+                throw new PeerDiscoveryException("nothing");
+            return addresses;
+        }
+
+        public void shutdown() {
+        }
+    }
+
+    @Test
+    public void streamsAndMerges() throws Exception {
+        CountDownLatch now = new CountDownLatch(0);
+        CountDownLatch later = new CountDownLatch(1);
+        CountDownLatch never = new CountDownLatch(1);
+        MultiplexingDiscovery discovery = new MultiplexingDiscovery(Arrays.asList(
+                new FixedDiscovery(now, address(1), address(2)),
+                new FixedDiscovery(now),
+                new FixedDiscovery(later, address(2), address(3)),
+                new FixedDiscovery(never, address(4))));
+        final LinkedBlockingQueue<InetSocketAddress[]> found = new LinkedBlockingQueue<InetSocketAddress[]>();
+        ListenableFuture<List<InetSocketAddress>> future = discovery.discover(1, TimeUnit.SECONDS,
+                new MultiplexingDiscovery.Listener() {
+                    public void onPeersDiscovered(InetSocketAddress[] addresses) {
+                        found.add(addresses);
+                    }
+                });
+        // The first source is handed over without waiting for the others.
+        assertEquals(Arrays.asList(address(1), address(2)), Arrays.asList(found.take()));
+        assertFalse(future.isDone());
+        // Addresses found before are left out.
+        later.countDown();
+        assertEquals(Arrays.asList(address(3)), Arrays.asList(found.take()));
+        // The last source doesn't answer in time.
+        Set<InetSocketAddress> all = new HashSet<InetSocketAddress>(future.get());
+        assertEquals(new HashSet<InetSocketAddress>(Arrays.asList(address(1), address(2), address(3))), all);
+        never.countDown();
+        assertTrue(found.isEmpty());
+    }
+
+    @Test
+    public void dns() throws Exception {
+        DnsDiscovery discovery = new DnsDiscovery(new String[] { "localhost", "localhost" }, UnitTestParams.get());
+        InetSocketAddress[] addresses = discovery.getPeers(10, TimeUnit.SECONDS);
+        assertTrue(addresses.length > 0);
+        // Both host names resolve to the same addresses.
+        assertEquals(addresses.length, new HashSet<InetSocketAddress>(Arrays.asList(addresses)).size());
+        for (InetSocketAddress address : addresses) {
+            assertTrue(address.getAddress().isLoopbackAddress());
+            assertEquals(UnitTestParams.get().getPort(), address.getPort());
+        }
+        try {
+            new DnsDiscovery(UnitTestParams.get()).getPeers(1, TimeUnit.SECONDS);
+            fail();
+        } catch (PeerDiscoveryException e) {
+            // Expected: there are no DNS seeds for the unit test network.
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.net.discovery;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.PeerAddress;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.bitcoin.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class PeerAddressStoreTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock();
+        file = File.createTempFile("peeraddressstore", null);
+        file.delete();
+        file.deleteOnExit();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static PeerAddress address(int i) throws Exception {
+        return new PeerAddress(InetAddress.getByAddress(new byte[] {10, 0, (byte) (i >> 8), (byte) i}), params.getPort());
+    }
+
+    @Test
+    public void persistence() throws Exception {
+        PeerAddressStore store = new PeerAddressStore(params, file, 16);
+        PeerAddress v6 = new PeerAddress(InetAddress.getByName("2001:db8::1"), 8333);
+        store.add(address(1));
+        store.add(v6);
+        store.recordSuccess(address(1), BigInteger.ONE);
+        store.recordPing(address(1), 50);
+        store.close();
+
+        store = new PeerAddressStore(params, file, 1000);
+        assertEquals(16, store.getCapacity());
+        assertEquals(2, store.size());
+        Set<PeerAddress> selected = new HashSet<PeerAddress>(store.select(10, Collections.<PeerAddress>emptySet()));
+        assertEquals(2, selected.size());
+        assertTrue(selected.contains(address(1)));
+        assertTrue(selected.contains(v6));
+        store.close();
+
+        try {
+            new PeerAddressStore(MainNetParams.get(), file);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void failuresAndServices() throws Exception {
+        PeerAddressStore store = new PeerAddressStore(params, file, 16);
+        store.add(address(1));
+        store.add(address(2));
+        store.add(address(3));
+        store.recordFailure(address(1));
+        // Connected fine, but doesn't serve blocks.
+        store.recordSuccess(address(2), BigInteger.ZERO.setBit(1));
+        List<PeerAddress> selected = store.select(10, Collections.<PeerAddress>emptySet());
+        assertEquals(Collections.singletonList(address(3)), selected);
+        assertTrue(store.select(10, Collections.singleton(address(3))).isEmpty());
+
+        // Failed addresses are tried again after a while, but the wait grows with each failure.
+        Utils.rollMockClock(10 * 60);
+        assertEquals(2, store.select(10, Collections.<PeerAddress>emptySet()).size());
+        store.recordFailure(address(1));
+        Utils.rollMockClock(10 * 60);
+        assertEquals(1, store.select(10, Collections.<PeerAddress>emptySet()).size());
+        Utils.rollMockClock(10 * 60);
+        assertEquals(2, store.select(10, Collections.<PeerAddress>emptySet()).size());
+        store.close();
+    }
+
+    @Test
+    public void prefersGoodPeers() throws Exception {
+        PeerAddressStore store = new PeerAddressStore(params, file, 16);
+        store.add(address(1));
+        store.add(address(2));
+        for (int i = 0; i < 10; i++)
+            store.recordSuccess(address(1), BigInteger.ONE);
+        store.recordPing(address(1), 20);
+        int firstPicks = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (store.select(1, Collections.<PeerAddress>emptySet()).get(0).equals(address(1)))
+                firstPicks++;
+        }
+        // The weights are about 0.76 and 0.08, so address 1 is picked about 90% of the time.
+        assertTrue(firstPicks > 800);
+        assertTrue(firstPicks < 1000);
+        store.close();
+    }
+
+    @Test
+    public void eviction() throws Exception {
+        PeerAddressStore store = new PeerAddressStore(params, file, 16);
+        store.add(address(0));
+        store.recordSuccess(address(0), BigInteger.ONE);
+        for (int i = 1; i < 100; i++) {
+            store.add(address(i));
+            store.recordFailure(address(i));
+        }
+        assertEquals(16, store.size());
+        store.close();
+        store = new PeerAddressStore(params, file);
+        assertEquals(16, store.size());
+        store.close();
+    }
+}
@@ -24,8 +24,10 @@ import com.google.bitcoin.params.UnitTestParams;
 import org.junit.Test;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 public class SPVBlockStoreTest {
 
@@ -58,4 +60,70 @@ public class SPVBlockStoreTest {
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    @Test
+    public void getByHeight() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f);
+        Address to = new ECKey().toAddress(params);
+
+        List<StoredBlock> chain = extend(store, store.getChainHead(), 10, to);
+        assertEquals(chain.get(0), store.getByHeight(0));
+        assertEquals(chain.get(10), store.getByHeight(10));
+        assertNull(store.getByHeight(11));
+        assertNull(store.getByHeight(-1));
+
+        // Re-organize onto a longer chain that forks off at height 5.
+        List<StoredBlock> fork = extend(store, chain.get(5), 7, to);
+        for (int height = 0; height <= 12; height++)
+            assertEquals(fork.get(height), store.getByHeight(height));
+        // And back again.
+        chain.addAll(extend(store, chain.get(10), 3, to).subList(11, 14));
+        for (int height = 0; height <= 13; height++)
+            assertEquals(chain.get(height), store.getByHeight(height));
+        // Back to a shorter chain, as a checkpoint might do.
+        store.setChainHead(fork.get(8));
+        assertEquals(fork.get(8), store.getByHeight(8));
+        assertEquals(fork.get(6), store.getByHeight(6));
+        assertNull(store.getByHeight(9));
+        store.setChainHead(chain.get(13));
+        store.close();
+
+        // The index is built again when the store is opened.
+        store = new SPVBlockStore(params, f);
+        for (int height = 0; height <= 13; height++)
+            assertEquals(chain.get(height), store.getByHeight(height));
+
+        // Blocks that the ring buffer overwrote can't be found any more.
+        extend(store, chain.get(13), SPVBlockStore.DEFAULT_NUM_HEADERS, to);
+        StoredBlock head = store.getChainHead();
+        assertNull(store.getByHeight(10));
+        assertEquals(head, store.getByHeight(head.getHeight()));
+        assertEquals(head.getHeader().getPrevBlockHash(),
+                store.getByHeight(head.getHeight() - 1).getHeader().getHash());
+        store.close();
+    }
+
+    // Builds the given number of blocks on top of the given one, making each the chain head. Returns the whole chain by
+    // height.
+    private static List<StoredBlock> extend(SPVBlockStore store, StoredBlock from, int count, Address to)
+            throws Exception {
+        List<StoredBlock> chain = new ArrayList<StoredBlock>();
+        for (StoredBlock cursor = from; ; cursor = cursor.getPrev(store)) {
+            chain.add(0, cursor);
+            if (cursor.getHeight() == 0)
+                break;
+        }
+        for (int i = 0; i < count; i++) {
+            StoredBlock prev = chain.get(chain.size() - 1);
+            StoredBlock block = prev.build(prev.getHeader().createNextBlock(to).cloneAsHeader());
+            store.put(block);
+            store.setChainHead(block);
+            chain.add(block);
+        }
+        return chain;
+    }
 }
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.utils;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.params.MainNetParams;
+import com.google.common.io.Files;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BlockFileLoaderTest {
+    private static final NetworkParameters params = MainNetParams.get();
+
+    private File blockFile() {
+        return new File(getClass().getResource("/com/google/bitcoin/core/first-100k-blocks.dat").getFile());
+    }
+
+    private static List<Sha256Hash> hashes(BlockFileLoader loader) {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>();
+        for (Block block : loader)
+            hashes.add(block.getHash());
+        return hashes;
+    }
+
+    @Test
+    public void prefetchKeepsOrder() throws Exception {
+        List<Sha256Hash> expected = hashes(new BlockFileLoader(params, Arrays.asList(blockFile())));
+        assertEquals(params.getGenesisBlock().getHash(), expected.get(0));
+        for (int threads = 1; threads <= 4; threads++)
+            assertEquals(expected, hashes(new BlockFileLoader(params, Arrays.asList(blockFile()), threads)));
+        // All of these blocks are valid.
+        BlockFileLoader verifying = new BlockFileLoader(params, Arrays.asList(blockFile()), 2);
+        verifying.setVerify(true);
+        assertEquals(expected, hashes(verifying));
+    }
+
+    @Test
+    public void skipsGarbageAndTruncatedBlocks() throws Exception {
+        byte[] blocks = Files.toByteArray(blockFile());
+        File file = File.createTempFile("blocks", ".dat");
+        file.deleteOnExit();
+        FileOutputStream stream = new FileOutputStream(file);
+        stream.write(new byte[] { 1, 2, 3 });
+        stream.write(blocks);
+        // Cut off in the middle of the last block.
+        stream.write(blocks, 0, 100);
+        stream.close();
+        List<Sha256Hash> expected = hashes(new BlockFileLoader(params, Arrays.asList(blockFile())));
+        List<Sha256Hash> twice = new ArrayList<Sha256Hash>(expected);
+        twice.addAll(expected);
+        assertEquals(twice, hashes(new BlockFileLoader(params, Arrays.asList(file, blockFile()))));
+        assertEquals(twice, hashes(new BlockFileLoader(params, Arrays.asList(file, blockFile()), 2)));
+    }
+}
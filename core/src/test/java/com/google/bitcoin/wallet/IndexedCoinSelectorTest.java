@@ -0,0 +1,107 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.wallet;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.testing.TestWithWallet;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.bitcoin.core.Utils.toNanoCoins;
+import static org.junit.Assert.*;
+
+public class IndexedCoinSelectorTest extends TestWithWallet {
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        Utils.setMockClock(); // Use mock clock
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private LinkedList<TransactionOutput> receive(int... coins) throws Exception {
+        for (int c : coins)
+            sendMoneyToWallet(toNanoCoins(c, 0), AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        return wallet.calculateAllSpendCandidates(true);
+    }
+
+    @Test
+    public void exactMatch() throws Exception {
+        LinkedList<TransactionOutput> candidates = receive(1, 2, 5, 7, 20);
+        IndexedCoinSelector selector = new IndexedCoinSelector(BigInteger.ZERO, 1, TimeUnit.SECONDS);
+        CoinSelection selection = selector.select(toNanoCoins(8, 0), candidates);
+        assertEquals(toNanoCoins(8, 0), selection.valueGathered);
+        assertEquals(2, selection.gathered.size());
+        selection = selector.select(toNanoCoins(15, 0), candidates);
+        assertEquals(toNanoCoins(15, 0), selection.valueGathered);
+    }
+
+    @Test
+    public void singleOutputThenLargestFirst() throws Exception {
+        LinkedList<TransactionOutput> candidates = receive(1, 5, 20);
+        IndexedCoinSelector selector = new IndexedCoinSelector(BigInteger.ZERO, 1, TimeUnit.SECONDS);
+        // No exact match for 4, so the smallest output that covers it is used.
+        CoinSelection selection = selector.select(toNanoCoins(4, 0), candidates);
+        assertEquals(toNanoCoins(5, 0), selection.valueGathered);
+        assertEquals(1, selection.gathered.size());
+        // Nothing covers 26 on its own or exactly, so take the biggest first.
+        selection = selector.select(toNanoCoins(25, 50), candidates);
+        assertEquals(toNanoCoins(26, 0), selection.valueGathered);
+        // Not enough money: everything is gathered.
+        selection = selector.select(toNanoCoins(30, 0), candidates);
+        assertEquals(toNanoCoins(26, 0), selection.valueGathered);
+        assertEquals(3, selection.gathered.size());
+    }
+
+    @Test
+    public void ignoresUnconfirmed() throws Exception {
+        receive(1);
+        sendMoneyToWallet(toNanoCoins(3, 0), null);
+        IndexedCoinSelector selector = new IndexedCoinSelector();
+        assertEquals(toNanoCoins(4, 0), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(toNanoCoins(1, 0), wallet.getBalance(selector));
+        CoinSelection selection = selector.select(toNanoCoins(2, 0), wallet.calculateAllSpendCandidates(true));
+        assertEquals(toNanoCoins(1, 0), selection.valueGathered);
+    }
+
+    @Test
+    public void usedByWallet() throws Exception {
+        receive(1, 2, 5, 7, 20);
+        wallet.setCoinSelector(new IndexedCoinSelector());
+        assertEquals(toNanoCoins(35, 0), wallet.getBalance());
+        Wallet.SendRequest req = Wallet.SendRequest.to(new ECKey().toAddress(params), toNanoCoins(8, 0));
+        req.fee = BigInteger.ZERO;
+        req.feePerKb = BigInteger.ZERO;
+        wallet.completeTx(req);
+        // Exact match, so there's no change output.
+        assertEquals(1, req.tx.getOutputs().size());
+        assertEquals(2, req.tx.getInputs().size());
+        wallet.commitTx(req.tx);
+        assertEquals(toNanoCoins(27, 0), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertTrue(wallet.isConsistent());
+    }
+}
@@ -9,25 +9,35 @@ import com.google.common.base.Preconditions;
 
 import java.io.File;
 
-/** Very thin wrapper around {@link com.google.bitcoin.utils.BlockFileLoader} */
+/**
+ * Imports the block files of the reference client into a block store. Blocks the store already has are skipped, so
+ * an import that was interrupted carries on where it stopped. Blocks are parsed and verified ahead on the other cores
+ * while the chain connects earlier ones, and progress is reported every {@link #REPORT_INTERVAL_MSEC} milliseconds.
+ */
 public class BlockImporter {
+    private static final long REPORT_INTERVAL_MSEC = 10000;
+
     public static void main(String[] args) throws BlockStoreException, VerificationException, PrunedException {
-        System.out.println("USAGE: BlockImporter (prod|test) (H2|Disk|MemFull|Mem|SPV) [blockStore]");
+        System.out.println("USAGE: BlockImporter (prod|test) (H2|Postgres|Disk|MemFull|Mem|SPV) [blockStore] [dbName user password]");
         System.out.println("       blockStore is required unless type is Mem or MemFull");
+        System.out.println("       for Postgres, blockStore is the database host and the database name, user and password follow");
         System.out.println("       eg BlockImporter prod H2 /home/user/bitcoinj.h2store");
         System.out.println("       Does full verification if the store supports it");
-        Preconditions.checkArgument(args.length == 2 || args.length == 3);
-        
+        Preconditions.checkArgument(args.length == 2 || args.length == 3 || args.length == 6);
+
         NetworkParameters params;
         if (args[0].equals("test"))
             params = TestNet3Params.get();
         else
             params = MainNetParams.get();
-        
+
         BlockStore store;
         if (args[1].equals("H2")) {
             Preconditions.checkArgument(args.length == 3);
             store = new H2PrunedBlockStore(params, args[2], 100);
+        } else if (args[1].equals("Postgres")) {
+            Preconditions.checkArgument(args.length == 6);
+            store = new PostgresPrunedBlockStore(params, 100, args[2], args[3], args[4], args[5]);
         } else if (args[1].equals("MemFull")) {
             Preconditions.checkArgument(args.length == 2);
             store = new MemoryPrunedBlockStore(params, 100);
@@ -41,16 +51,57 @@ public class BlockImporter {
             System.err.println("Unknown store " + args[1]);
             return;
         }
-        
+
         AbstractBlockChain chain = null;
         if (store instanceof PrunedBlockStore)
             chain = new VerifiedBlockChain(params, (PrunedBlockStore) store);
         else
             chain = new SPVBlockChain(params, store);
-        
-        BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
-        
-        for (Block block : loader)
-            chain.add(block);
+        System.out.println("Importing from height " + chain.getBestChainHeight());
+
+        // Parse and verify the blocks ahead on the other cores while the chain connects them.
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList(), threads);
+        loader.setVerify(true);
+
+        long start = System.currentTimeMillis();
+        long lastReport = start;
+        long blocks = 0, txns = 0, skipped = 0, reportBlocks = 0, reportTxns = 0;
+        // Outputs created minus outputs spent by the blocks imported in this run.
+        long utxoChange = 0;
+        try {
+            for (Block block : loader) {
+                // Skip what an earlier import already stored.
+                if (store.get(block.getHash()) != null) {
+                    skipped++;
+                    continue;
+                }
+                chain.add(block);
+                blocks++;
+                reportBlocks++;
+                for (Transaction tx : block.getTransactions()) {
+                    txns++;
+                    reportTxns++;
+                    utxoChange += tx.getOutputs().size();
+                    if (!tx.isCoinBase())
+                        utxoChange -= tx.getInputs().size();
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastReport >= REPORT_INTERVAL_MSEC) {
+                    double secs = (now - lastReport) / 1000.0;
+                    System.out.println(String.format("Height %d: %.1f blocks/s, %.1f tx/s, %d skipped, UTXO change %+d",
+                            chain.getBestChainHeight(), reportBlocks / secs, reportTxns / secs, skipped, utxoChange));
+                    lastReport = now;
+                    reportBlocks = 0;
+                    reportTxns = 0;
+                }
+            }
+        } finally {
+            double secs = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+            System.out.println(String.format("Imported %d blocks with %d transactions in %.0f seconds " +
+                    "(%.1f blocks/s, %.1f tx/s), skipped %d, now at height %d, UTXO change %+d", blocks, txns, secs,
+                    blocks / secs, txns / secs, skipped, chain.getBestChainHeight(), utxoChange));
+            store.close();
+        }
     }
 }
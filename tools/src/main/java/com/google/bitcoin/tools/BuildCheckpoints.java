@@ -69,7 +69,7 @@ public class BuildCheckpoints {
                 int height = block.getHeight();
                 if (height % PARAMS.getInterval() == 0 && block.getHeader().getTimeSeconds() <= oneMonthAgo) {
                     System.out.println(String.format("Checkpointing block %s at height %d",
-                            block.getHeader().getHash(), block.getHeight()));
+                            block.getHash(), block.getHeight()));
                     checkpoints.put(height, block);
                 }
             }
@@ -0,0 +1,196 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.Message;
+import com.google.bitcoin.net.*;
+import com.google.bitcoin.utils.BriefLogFormatter;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+
+/**
+ * Compares {@link NioClientManager} and {@link BlockingClientManager} by opening many connections to a local server,
+ * which sends each of them some data as soon as they connect, and reporting how long it took for all of it to arrive
+ * along with how many threads were needed.
+ */
+public class ClientManagerBenchmark {
+    private static final InetSocketAddress ADDRESS = new InetSocketAddress("127.0.0.1", 4250);
+    // The server socket's accept queue only holds 50 connections, and the kernel drops any others, so we don't get too
+    // far ahead of the server.
+    private static final Semaphore unaccepted = new Semaphore(40);
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: ClientManagerBenchmark [numPeers] [messagesPerPeer] [messageSize] [rounds]");
+        BriefLogFormatter.init();
+        LogManager.getLogManager().getLogger("").setLevel(Level.WARNING);
+        int numPeers = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        final int messagesPerPeer = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        final int messageSize = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        NioServer server = new NioServer(new StreamParserFactory() {
+            @Override
+            public StreamParser getNewParser(InetAddress inetAddress, int port) {
+                return new Sender(messagesPerPeer, messageSize);
+            }
+        }, ADDRESS, 2, null);
+        server.startAsync();
+        server.awaitRunning();
+
+        // Each manager gets a round to warm up in, and later rounds show the effect of reusing threads and buffers.
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long bytesPerPeer = (long) messagesPerPeer * messageSize;
+        for (int type = 0; type < 3; type++) {
+            ClientConnectionManager manager;
+            String name;
+            if (type == 0) {
+                manager = new NioClientManager();
+                name = "NioClientManager";
+            } else if (type == 1) {
+                manager = new NioClientManager(2, null);
+                name = "NioClientManager (2 selectors)";
+            } else {
+                BlockingClientManager blocking = new BlockingClientManager();
+                blocking.setThreadStackSize(256 * 1024);
+                manager = blocking;
+                name = "BlockingClientManager";
+            }
+            manager.startAsync();
+            manager.awaitRunning();
+            System.out.println(name + ":");
+            for (int round = 0; round < rounds; round++) {
+                int threadsBefore = threads.getThreadCount();
+                CountDownLatch opened = new CountDownLatch(numPeers);
+                CountDownLatch received = new CountDownLatch(numPeers);
+                CountDownLatch closed = new CountDownLatch(numPeers);
+                long start = System.nanoTime();
+                for (int i = 0; i < numPeers; i++) {
+                    unaccepted.acquire();
+                    manager.openConnection(ADDRESS, new Receiver(bytesPerPeer, opened, received, closed));
+                }
+                if (!opened.await(60, TimeUnit.SECONDS) || !received.await(60, TimeUnit.SECONDS))
+                    throw new IllegalStateException(String.format("Timed out: %d connections didn't open, %d didn't receive everything",
+                            opened.getCount(), received.getCount()));
+                long elapsed = System.nanoTime() - start;
+                int threadsDuring = threads.getThreadCount() - threadsBefore;
+                manager.closeConnections(numPeers);
+                if (!closed.await(60, TimeUnit.SECONDS))
+                    throw new IllegalStateException("Timed out waiting for connections to close");
+                System.out.println(String.format("  %d peers received %.1f MB in %d ms, %d extra threads",
+                        numPeers, numPeers * bytesPerPeer / 1e6, elapsed / 1000000, threadsDuring));
+            }
+            manager.stopAsync();
+            manager.awaitTerminated();
+        }
+        server.stopAsync();
+        server.awaitTerminated();
+    }
+
+    /** Sends the given number of messages to the client as soon as it connects. */
+    private static class Sender implements StreamParser {
+        private final int messages;
+        private final int messageSize;
+        private MessageWriteTarget writeTarget;
+
+        Sender(int messages, int messageSize) {
+            this.messages = messages;
+            this.messageSize = messageSize;
+        }
+
+        @Override
+        public void connectionOpened() {
+            unaccepted.release();
+            byte[] message = new byte[messageSize];
+            try {
+                for (int i = 0; i < messages; i++)
+                    writeTarget.writeBytes(message);
+            } catch (IOException e) {
+                // The connection is closed along with the error.
+            }
+        }
+
+        @Override
+        public void connectionClosed() {}
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) {
+            buff.position(buff.limit());
+            return buff.limit();
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {
+            this.writeTarget = writeTarget;
+        }
+
+        @Override
+        public int getMaxMessageSize() {
+            return messageSize;
+        }
+    }
+
+    /** Counts the bytes it receives, and asks for buffers as big as a peer would. */
+    private static class Receiver implements StreamParser {
+        private final long expected;
+        private final CountDownLatch opened, received, closed;
+        private long bytes;
+
+        Receiver(long expected, CountDownLatch opened, CountDownLatch received, CountDownLatch closed) {
+            this.expected = expected;
+            this.opened = opened;
+            this.received = received;
+            this.closed = closed;
+        }
+
+        @Override
+        public void connectionOpened() {
+            opened.countDown();
+        }
+
+        @Override
+        public void connectionClosed() {
+            closed.countDown();
+        }
+
+        @Override
+        public int receiveBytes(ByteBuffer buff) {
+            int length = buff.remaining();
+            buff.position(buff.limit());
+            if (bytes < expected && (bytes += length) >= expected)
+                received.countDown();
+            return length;
+        }
+
+        @Override
+        public void setWriteTarget(MessageWriteTarget writeTarget) {}
+
+        @Override
+        public int getMaxMessageSize() {
+            return Message.MAX_SIZE;
+        }
+    }
+}
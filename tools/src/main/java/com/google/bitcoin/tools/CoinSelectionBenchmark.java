@@ -0,0 +1,117 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.testing.FakeTxBuilder;
+import com.google.bitcoin.utils.BriefLogFormatter;
+import com.google.bitcoin.wallet.*;
+
+import java.math.BigInteger;
+import java.util.LinkedList;
+import java.util.Random;
+
+/**
+ * Compares {@link DefaultCoinSelector} against {@link IndexedCoinSelector} over synthetic sets of unspent outputs.
+ * The outputs are built with {@link FakeTxBuilder} and given random confirmation heights. The indexed selector is
+ * timed against a pre-built {@link UnspentOutputIndex}, as that is what a wallet hands it.
+ */
+public class CoinSelectionBenchmark {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private enum Distribution {
+        /** Values spread evenly between 0.001 and 1 BTC. */
+        UNIFORM,
+        /** Mostly small payments with a long tail of big ones, like a merchant wallet. */
+        EXPONENTIAL,
+        /** Everything the same size, the worst case for a naive exact match search. */
+        EQUAL
+    }
+
+    public static void main(String[] args) {
+        System.out.println("USAGE: CoinSelectionBenchmark [numOutputs] [numSelections]");
+        BriefLogFormatter.init();
+        int numOutputs = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int numSelections = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        for (Distribution distribution : Distribution.values())
+            run(distribution, numOutputs, numSelections);
+    }
+
+    private static void run(Distribution distribution, int numOutputs, int numSelections) {
+        Random random = new Random(42);
+        Address to = new ECKey().toAddress(params);
+        LinkedList<TransactionOutput> candidates = new LinkedList<TransactionOutput>();
+        int chainHeight = numOutputs / 10 + 1;
+        for (int i = 0; i < numOutputs; i++) {
+            Transaction tx = FakeTxBuilder.createFakeTx(params, randomValue(distribution, random), to);
+            int height = random.nextInt(chainHeight);
+            tx.getConfidence().setAppearedAtChainHeight(height);
+            tx.getConfidence().setDepthInBlocks(chainHeight - height);
+            candidates.add(tx.getOutput(0));
+        }
+        long start = System.nanoTime();
+        UnspentOutputIndex index = new UnspentOutputIndex();
+        for (TransactionOutput output : candidates)
+            index.add(output);
+        long indexMillis = (System.nanoTime() - start) / 1000000;
+
+        DefaultCoinSelector defaultSelector = new DefaultCoinSelector();
+        IndexedCoinSelector indexedSelector = new IndexedCoinSelector();
+        long defaultNanos = 0, indexedNanos = 0;
+        int defaultInputs = 0, indexedInputs = 0, indexedNoChange = 0;
+        for (int i = 0; i < numSelections; i++) {
+            BigInteger target = randomValue(distribution, random).multiply(BigInteger.valueOf(1 + random.nextInt(5)));
+
+            start = System.nanoTime();
+            CoinSelection selection = defaultSelector.select(target, new LinkedList<TransactionOutput>(candidates));
+            defaultNanos += System.nanoTime() - start;
+            defaultInputs += selection.gathered.size();
+
+            start = System.nanoTime();
+            selection = indexedSelector.select(target, index);
+            indexedNanos += System.nanoTime() - start;
+            indexedInputs += selection.gathered.size();
+            if (selection.valueGathered.subtract(target).compareTo(Transaction.MIN_NONDUST_OUTPUT) <= 0)
+                indexedNoChange++;
+        }
+        System.out.println(String.format("%s, %d outputs (indexed in %d ms):", distribution, numOutputs, indexMillis));
+        System.out.println(String.format("  default: %8.2f ms/selection, %.1f inputs on average",
+                defaultNanos / 1e6 / numSelections, (double) defaultInputs / numSelections));
+        System.out.println(String.format("  indexed: %8.2f ms/selection, %.1f inputs on average, %d/%d without change",
+                indexedNanos / 1e6 / numSelections, (double) indexedInputs / numSelections, indexedNoChange,
+                numSelections));
+    }
+
+    private static BigInteger randomValue(Distribution distribution, Random random) {
+        long millis;
+        switch (distribution) {
+            case UNIFORM:
+                millis = 1 + random.nextInt(1000);
+                break;
+            case EXPONENTIAL:
+                millis = 1 + (long) (-Math.log(1 - random.nextDouble()) * 50);
+                break;
+            case EQUAL:
+                millis = 100;
+                break;
+            default:
+                throw new AssertionError();
+        }
+        return BigInteger.valueOf(millis * 100000);
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.MainNetParams;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Measures how much heap the structures that hold many hashes and headers take per entry: hashes, stored block headers,
+ * and hash keyed maps and sets, as {@link HashMap}/{@link HashSet} compared to {@link Sha256HashMap}/{@link Sha256HashSet},
+ * both for keys that the values keep anyway and for keys that only the collection keeps.
+ * The numbers come from the used heap after a full collection, so run it with nothing else going on and a heap big
+ * enough for the entries, and expect some noise.
+ */
+public class MemoryFootprintBenchmark {
+    private static final NetworkParameters params = MainNetParams.get();
+    private static final Random random = new Random();
+    // What is being measured. Holding it here keeps it from being collected before it's measured, as the JIT can
+    // tell when a local variable is no longer used.
+    private static Object measured;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: MemoryFootprintBenchmark [numEntries]");
+        int numEntries = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(numEntries);
+        long before = usedMemory();
+        for (int i = 0; i < numEntries; i++)
+            hashes.add(randomHash());
+        report("Sha256Hash", hashes, before, numEntries);
+
+        before = usedMemory();
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>(numEntries);
+        for (int i = 0; i < numEntries; i++)
+            blocks.add(randomStoredBlock(i));
+        report("StoredBlock", blocks, before, numEntries);
+
+        // Maps whose keys are kept by the values, as the stored blocks keep their hashes.
+        before = usedMemory();
+        Map<Sha256Hash, StoredBlock> map = new HashMap<Sha256Hash, StoredBlock>();
+        for (StoredBlock block : blocks)
+            map.put(block.getHash(), block);
+        report("HashMap, shared keys", map, before, numEntries);
+        map = null;
+
+        before = usedMemory();
+        map = new Sha256HashMap<StoredBlock>();
+        for (StoredBlock block : blocks)
+            map.put(block.getHash(), block);
+        report("Sha256HashMap, shared keys", map, before, numEntries);
+        map = null;
+
+        // Sets and maps that are the only thing keeping their hashes, like an index over records held as bytes.
+        before = usedMemory();
+        Set<Sha256Hash> set = new HashSet<Sha256Hash>();
+        for (int i = 0; i < numEntries; i++)
+            set.add(randomHash());
+        report("HashSet", set, before, numEntries);
+        set = null;
+
+        before = usedMemory();
+        set = new Sha256HashSet();
+        for (int i = 0; i < numEntries; i++)
+            set.add(randomHash());
+        report("Sha256HashSet", set, before, numEntries);
+        set = null;
+
+        before = usedMemory();
+        Map<Sha256Hash, Integer> index = new HashMap<Sha256Hash, Integer>();
+        for (int i = 0; i < numEntries; i++)
+            index.put(randomHash(), i);
+        report("HashMap", index, before, numEntries);
+        index = null;
+
+        before = usedMemory();
+        index = new Sha256HashMap<Integer>();
+        for (int i = 0; i < numEntries; i++)
+            index.put(randomHash(), i);
+        report("Sha256HashMap", index, before, numEntries);
+        index = null;
+
+        // Keep the hashes and blocks reachable to the end, so that they aren't freed while measuring what came after.
+        System.out.println(String.format("(%d hashes, %d blocks)", hashes.size(), blocks.size()));
+        System.out.println("Boxed Integer values count towards the maps of them. Open addressing tables are between " +
+                "3/8 and 3/4 full, and hash tables grow in steps, so try a few sizes.");
+    }
+
+    private static Sha256Hash randomHash() {
+        byte[] bytes = new byte[32];
+        random.nextBytes(bytes);
+        return new Sha256Hash(bytes);
+    }
+
+    private static StoredBlock randomStoredBlock(int height) throws ProtocolException {
+        ByteBuffer buffer = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        buffer.put(new byte[StoredBlock.CHAIN_WORK_BYTES - 8]);
+        buffer.putLong(random.nextLong() >>> 1);
+        buffer.putInt(height);
+        byte[] header = new byte[Block.HEADER_SIZE];
+        random.nextBytes(header);
+        buffer.put(header);
+        buffer.rewind();
+        return StoredBlock.deserializeCompact(params, buffer);
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // A single request for a collection isn't always a full one, so keep going until the number stops dropping.
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            long now = runtime.totalMemory() - runtime.freeMemory();
+            if (now >= used)
+                break;
+            used = now;
+        }
+        return used;
+    }
+
+    private static void report(String what, Object collection, long before, int numEntries) {
+        measured = collection;
+        long bytes = usedMemory() - before;
+        measured = null;
+        System.out.println(String.format("%-28s %6.1f bytes each", what, (double) bytes / numEntries));
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.bitcoin.tools;
+
+import com.google.bitcoin.core.*;
+import com.google.bitcoin.params.UnitTestParams;
+import com.google.bitcoin.store.MemoryBlockStore;
+import com.google.bitcoin.utils.BriefLogFormatter;
+
+import java.math.BigInteger;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+
+import static com.google.bitcoin.testing.FakeTxBuilder.createFakeTx;
+
+/**
+ * Measures how long a wallet takes to handle new blocks and short re-organizations, depending on how many
+ * transactions it has.
+ * Like ChainSplitTest, it builds a chain of blocks paying the wallet and then repeatedly forks off the block below
+ * the tip with a longer side chain, which moves one block worth of transactions back to pending and confirms them
+ * again.
+ */
+public class ReorgBenchmark {
+    private static final NetworkParameters params = UnitTestParams.get();
+    // UnitTestParams retargets every 10 blocks against a very long timespan. Spacing each block this far from its
+    // parent makes every 10 blocks take that long, which keeps the difficulty where it is, so blocks solve instantly.
+    private static final long BLOCK_SPACING_SECS = 22222223;
+    // Fake transactions paying the same value to the same address would double spend each other.
+    private static long nextValue = 100000;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: ReorgBenchmark [numBlocks] [txnsPerBlock] [numReorgs]");
+        BriefLogFormatter.init();
+        LogManager.getLogManager().getLogger("").setLevel(Level.WARNING);
+        int numBlocks = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int txnsPerBlock = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int numReorgs = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        Wallet wallet = new Wallet(params);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        Address to = key.toAddress(params);
+        Address someOtherGuy = new ECKey().toAddress(params);
+        MemoryBlockStore blockStore = new MemoryBlockStore(params);
+        SPVBlockChain chain = new SPVBlockChain(params, wallet, blockStore);
+
+        long start = System.nanoTime();
+        Block tip = params.getGenesisBlock();
+        for (int i = 0; i < numBlocks; i++)
+            tip = addBlock(chain, tip, to, txnsPerBlock);
+        System.out.println(String.format("Built a chain of %d blocks with %d wallet transactions in %d ms", numBlocks,
+                wallet.getTransactions(true).size(), (System.nanoTime() - start) / 1000000));
+
+        // Blocks that don't pay the wallet still bury all of its transactions.
+        start = System.nanoTime();
+        for (int i = 0; i < numReorgs; i++)
+            tip = addBlock(chain, tip, someOtherGuy, 0);
+        System.out.println(String.format("%.2f ms per empty block", (System.nanoTime() - start) / 1e6 / numReorgs));
+
+        // Each round replaces the tip with a block containing the same number of new transactions, and then builds
+        // on top of that, so the wallet keeps the same size.
+        long reorgNanos = 0;
+        for (int i = 0; i < numReorgs; i++) {
+            Block parent = chain.getBlockStore().get(tip.getPrevBlockHash()).getHeader();
+            Block fork = addBlock(chain, parent, to, txnsPerBlock);
+            start = System.nanoTime();
+            tip = addBlock(chain, fork, someOtherGuy, 0);
+            reorgNanos += System.nanoTime() - start;
+            if (!chain.getChainHead().getHeader().equals(tip))
+                throw new IllegalStateException("Re-org didn't happen");
+        }
+        System.out.println(String.format("%.2f ms per re-org over %d transactions", reorgNanos / 1e6 / numReorgs,
+                wallet.getTransactions(true).size()));
+        System.out.println("Balance: " + Utils.bitcoinValueToFriendlyString(wallet.getBalance()));
+    }
+
+    private static Block addBlock(SPVBlockChain chain, Block prev, Address to, int numTxns) throws Exception {
+        long time = prev.getTimeSeconds() + BLOCK_SPACING_SECS;
+        Utils.setMockClock(time);
+        Block block = prev.createNextBlock(new ECKey().toAddress(params), time);
+        for (int i = 0; i < numTxns; i++)
+            block.addTransaction(createFakeTx(params, BigInteger.valueOf(nextValue++), to));
+        block.solve();
+        chain.add(block);
+        return block;
+    }
+}